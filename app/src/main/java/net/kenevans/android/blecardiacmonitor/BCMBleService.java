@@ -32,49 +32,125 @@ import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Binder;
 import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
+import androidx.preference.PreferenceManager;
 
 /**
- * Service for managing connection and data communication with a GATT server
- * hosted on a given Bluetooth LE device.
+ * Service for managing connections and data communication with GATT servers
+ * hosted on Bluetooth LE devices. Several devices may be connected at the
+ * same time, each with its own session.
  */
 public class BCMBleService extends Service implements IConstants {
     private final static String TAG = "BCMService";
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
     private BCMDbAdapter mDbAdapter;
-    private int mConnectionState = BluetoothProfile.STATE_DISCONNECTED;
-    private long mLastHrDate;
-    private int mLastBat = INVALID_INT;
-    private int mLastHr = INVALID_INT;
-    private String mLastRr = INVALID_STRING;
-
-    private BluetoothGattCharacteristic mCharBat;
-    private BluetoothGattCharacteristic mCharHr;
-    private boolean mSessionInProgress = false;
-    private long mSessionStartTime;
-
-    private Queue<BluetoothGattDescriptor> descriptorWriteQueue = new
-            LinkedList<>();
-    private Queue<BluetoothGattCharacteristic> characteristicReadQueue = new
-            LinkedList<>();
+    /**
+     * The connections, keyed by device address. A Connection is kept after
+     * it disconnects so it can be reconnected with the same id.
+     */
+    private final Map<String, Connection> mConnections =
+            new ConcurrentHashMap<>();
+    private int mNextConnectionId;
+    private long mLastSessionStartTime;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    /**
+     * Reconnects devices that drop during a session. Only used on the main
+     * thread.
+     */
+    private ReconnectScheduler mReconnectScheduler;
+    /**
+     * Thread on which received HR values are decoded, written to the
+     * database, and broadcast.
+     */
+    private HandlerThread mPersistenceThread;
+    private Handler mPersistenceHandler;
+    private WriteBehindQueue mWriteQueue;
+    /**
+     * Hands off HR values from the GATT callbacks to mPersistenceThread.
+     */
+    private SampleQueue<Connection> mSampleQueue;
+    /**
+     * The most recent HR samples from all devices for consumers in this
+     * process. The source of each sample is the connection id.
+     */
+    private final SampleRingBuffer mSampleRing = new SampleRingBuffer(
+            SAMPLE_RING_CAPACITY, SAMPLE_RING_MAX_RR);
+    private volatile long mUpdateInterval = UPDATE_INTERVAL;
+    /**
+     * Latencies and throughput of the handling of received values.
+     */
+    private final PerformanceMetrics mMetrics = new PerformanceMetrics();
+    private final SharedPreferences.OnSharedPreferenceChangeListener
+            mPrefsListener = (prefs, key) -> {
+        if (PREF_UPDATE_INTERVAL.equals(key)) {
+            mUpdateInterval = getUpdateInterval(prefs);
+            for (Connection c : mConnections.values()) {
+                c.mUpdateCoalescer.setInterval(mUpdateInterval);
+            }
+        } else if (PREF_DB_DURABILITY.equals(key)) {
+            // The listener is called on the main thread, and changing the
+            // durability waits for any batch being written
+            BCMDbAdapter.Durability durability =
+                    BCMDbAdapter.Durability.fromPreferences(prefs);
+            mPersistenceHandler.post(() -> {
+                mWriteQueue.setDurability(durability);
+                scheduleCheckpoint(durability.getCheckpointInterval());
+            });
+        } else if (PREF_DB_JOURNAL.equals(key)) {
+            // Writes the pending samples first
+            File journalDir = getJournalDir(prefs);
+            mPersistenceHandler.post(() ->
+                    mWriteQueue.setJournalDir(journalDir));
+        } else if (PREF_RETENTION_MONTHS.equals(key)
+                || PREF_RETENTION_ACTION.equals(key)) {
+            scheduleRetention();
+        }
+    };
+    private volatile long mCheckpointInterval;
+    private final Runnable mCheckpointRunnable = this::checkpoint;
+    private final Runnable mRetentionRunnable = this::startRetention;
+    /**
+     * The thread applying the retention policy, if any, and the signal to
+     * stop it. Only used on mPersistenceThread and in stopDatabase.
+     */
+    private Thread mRetentionThread;
+    private CancellationSignal mRetentionSignal;
 
     private final IBinder mBinder = new LocalBinder();
+    /**
+     * Reused for decoding each Heart Rate Measurement. Only used on
+     * mPersistenceThread.
+     */
+    private final HeartRateValues mHrValues = new HeartRateValues();
 
     public final static String ACTION_GATT_CONNECTED = PACKAGE_NAME
             + ".ACTION_GATT_CONNECTED";
@@ -87,179 +163,317 @@ public class BCMBleService extends Service implements IConstants {
     public final static String ACTION_STATUS = PACKAGE_NAME + ".ACTION_STATUS";
 
     /**
-     * Implements callback methods for GATT events.
-     */
-    private final BluetoothGattCallback mGattCallback = new
-            BluetoothGattCallback() {
-                @Override
-                public void onConnectionStateChange(BluetoothGatt gatt,
-                                                    int status, int newState) {
-                    Log.i(TAG, "onConnectionStateChange: status="
-                            + getGattStatusString(status)
-                            + " newState=" + getGattNewStateString(newState));
-                    BluetoothDevice device = gatt.getDevice();
-                    if (Build.VERSION.SDK_INT >= 31 &&
-                            checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT) !=
-                                    PackageManager.PERMISSION_GRANTED) {
-                        Log.d(TAG, "onConnectionStateChange: " +
-                                "BLUETOOTH_CONNECT not granted");
-                    } else {
-                        if (device != null) {
-                            String address = device.getAddress();
-                            Log.d(TAG, "  mBluetoothDeviceAddress="
-                                    + mBluetoothDeviceAddress
-                                    + " address=" + address
-                                    + " name=" + device.getName()
-                                    + " newState="
-                                    + getGattNewStateString(newState));
-                        } else {
-                            Log.d(TAG, "  mBluetoothDeviceAddress="
-                                    + mBluetoothDeviceAddress
-                                    + " device is null (no address)"
-                                    + " newState="
-                                    + getGattNewStateString(newState));
-                        }
-                    }
-                    if (status == BluetoothGatt.GATT_SUCCESS) {
-                        // Clear the errors
-                        broadcastStatus("");
-                    } else {
-                        String msg = "Aborting, status="
-                                + getGattStatusString(status)
-                                + " newState=" + getGattNewStateString(newState);
-                        Log.i(TAG, msg);
-                        if (Build.VERSION.SDK_INT >= 31 &&
-                                checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT) !=
-                                        PackageManager.PERMISSION_GRANTED) {
-                            Log.d(TAG, "onConnectionStateChange: " +
-                                    "BLUETOOTH_CONNECT not granted");
-
-                        } else {
-                            gatt.close();
-                        }
-                        broadcastStatus(msg);
-                        return;
-                    }
-                    String intentAction;
-                    if (newState == BluetoothProfile.STATE_CONNECTED) {
-                        Log.i(TAG, "onConnectionStateChange: Connected to " +
-                                "GATT server");
-                        // Stop any session
-                        stopSession();
-                        intentAction = ACTION_GATT_CONNECTED;
-                        mConnectionState = BluetoothProfile.STATE_CONNECTED;
-                        broadcastUpdate(intentAction);
-                        // Attempts to discover services after successful
-                        // connection.
-                        if (Build.VERSION.SDK_INT >= 31 &&
-                                checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT) !=
-                                        PackageManager.PERMISSION_GRANTED) {
-                            Log.d(TAG, "BluetoothGattCallback: " +
-                                    "onConnectionStateChange: " +
-                                    "BLUETOOTH_CONNECT not granted");
-                            return;
-                        }
-                        Log.i(TAG,
-                                "onConnectionStateChange: Attempting to start"
-                                        + " service discovery: "
-                                        + mBluetoothGatt.discoverServices());
-                    } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                        Log.i(TAG,
-                                "onConnectionStateChange: Disconnected from "
-                                        + "GATT server");
-                        // Stop any session
-                        stopSession();
-                        // Close the device. We are through with it.
-                        if (device != null) {
-                            gatt.close();
-                        }
-                        mBluetoothGatt = null;
-                        mConnectionState = BluetoothProfile.STATE_DISCONNECTED;
-                        intentAction = ACTION_GATT_DISCONNECTED;
-                        broadcastUpdate(intentAction);
-                    }
+     * The state of the connection to one device. Each has its own GATT
+     * callback, descriptor and characteristic queues, and session.
+     */
+    private class Connection {
+        private final String mAddress;
+        /**
+         * Identifies the device for the life of the service. Used as the
+         * source of samples in mSampleRing.
+         */
+        private final int mId;
+        private final BluetoothGattCallback mGattCallback;
+        /**
+         * Limits how often the UI is told about new HR samples.
+         */
+        private final UpdateCoalescer mUpdateCoalescer;
+        private BluetoothGatt mBluetoothGatt;
+        private int mConnectionState = BluetoothProfile.STATE_DISCONNECTED;
+        private long mLastHrDate;
+        private int mLastBat = INVALID_INT;
+        private int mLastHr = INVALID_INT;
+        private String mLastRr = INVALID_STRING;
+
+        private BluetoothGattCharacteristic mCharBat;
+        private BluetoothGattCharacteristic mCharHr;
+        /**
+         * Whether a session is in progress. Read when values are received,
+         * so values received when there is none are dropped.
+         */
+        private volatile boolean mSessionInProgress = false;
+        /**
+         * The start date of the session, which identifies it in the
+         * database.
+         */
+        private volatile long mSessionStartTime;
+        /**
+         * The start date of the last session stopped or INVALID_DATE. Values
+         * for it still processed after that are dropped. Only used on
+         * mPersistenceThread.
+         */
+        private long mStoppedSessionStart = INVALID_DATE;
+        /**
+         * The source of the values when replaying rather than connected to
+         * a device.
+         */
+        private volatile SampleSource mSampleSource;
+        /**
+         * The start date of the session to resume when reconnected after
+         * the device dropped or INVALID_DATE.
+         */
+        private volatile long mResumeSessionStartTime = INVALID_DATE;
+        /**
+         * Whether disconnect was called, so the device should not be
+         * reconnected.
+         */
+        private volatile boolean mDisconnectRequested;
+
+        private final Queue<BluetoothGattDescriptor> descriptorWriteQueue =
+                new LinkedList<>();
+        private final Queue<BluetoothGattCharacteristic>
+                characteristicReadQueue = new LinkedList<>();
+
+        /**
+         * Constructor.
+         *
+         * @param address The device address.
+         * @param id      The connection id.
+         */
+        private Connection(String address, int id) {
+            mAddress = address;
+            mId = id;
+            mGattCallback = new GattCallback(this);
+            mUpdateCoalescer = new UpdateCoalescer(mPersistenceHandler,
+                    mUpdateInterval, (dates, hrs, count, rr, rrCount) ->
+                    dispatchUpdate(this, dates, hrs, count, rr, rrCount));
+        }
+
+        /**
+         * Returns if the device is connected or connecting or is being
+         * replayed.
+         *
+         * @return If active.
+         */
+        private boolean isActive() {
+            return mSampleSource != null || (mBluetoothGatt != null
+                    && mConnectionState != BluetoothProfile.STATE_DISCONNECTED);
+        }
+    }
+
+    /**
+     * Implements callback methods for GATT events for one Connection.
+     */
+    private class GattCallback extends BluetoothGattCallback {
+        private final Connection c;
+
+        private GattCallback(Connection connection) {
+            c = connection;
+        }
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt,
+                                            int status, int newState) {
+            Log.i(TAG, "onConnectionStateChange: status="
+                    + getGattStatusString(status)
+                    + " newState=" + getGattNewStateString(newState));
+            BluetoothDevice device = gatt.getDevice();
+            if (Build.VERSION.SDK_INT >= 31 &&
+                    checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT) !=
+                            PackageManager.PERMISSION_GRANTED) {
+                Log.d(TAG, "onConnectionStateChange: " +
+                        "BLUETOOTH_CONNECT not granted");
+            } else {
+                if (device != null) {
+                    String address = device.getAddress();
+                    Log.d(TAG, "  connection=" + c.mAddress
+                            + " address=" + address
+                            + " name=" + device.getName()
+                            + " newState="
+                            + getGattNewStateString(newState));
+                } else {
+                    Log.d(TAG, "  connection=" + c.mAddress
+                            + " device is null (no address)"
+                            + " newState="
+                            + getGattNewStateString(newState));
                 }
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                // Clear the errors
+                broadcastStatus(c, "");
+            } else {
+                String msg = "Aborting, status="
+                        + getGattStatusString(status)
+                        + " newState=" + getGattNewStateString(newState);
+                Log.i(TAG, msg);
+                if (Build.VERSION.SDK_INT >= 31 &&
+                        checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT) !=
+                                PackageManager.PERMISSION_GRANTED) {
+                    Log.d(TAG, "onConnectionStateChange: " +
+                            "BLUETOOTH_CONNECT not granted");
 
-                @Override
-                public void onServicesDiscovered(BluetoothGatt gatt, int
-                        status) {
-                    if (status == BluetoothGatt.GATT_SUCCESS) {
-                        broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-                    } else {
-                        Log.w(TAG, "onServicesDiscovered received: "
-                                + getGattStatusString(status));
-                    }
+                } else {
+                    gatt.close();
+                }
+                boolean reconnect = false;
+                if (c.mBluetoothGatt == gatt) {
+                    reconnect = checkReconnect(c);
+                    stopSession(c);
+                    c.mBluetoothGatt = null;
+                    c.mConnectionState = BluetoothProfile.STATE_DISCONNECTED;
+                }
+                broadcastStatus(c, msg);
+                if (reconnect) {
+                    onUnexpectedDisconnect(c);
+                }
+                return;
+            }
+            String intentAction;
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                Log.i(TAG, "onConnectionStateChange: Connected to " +
+                        "GATT server " + c.mAddress);
+                // Stop any session
+                stopSession(c);
+                // End any outage
+                final long date = System.currentTimeMillis();
+                final long sessionStart = c.mResumeSessionStartTime;
+                mMainHandler.post(() -> endOutage(c, sessionStart, date,
+                        false));
+                intentAction = ACTION_GATT_CONNECTED;
+                c.mConnectionState = BluetoothProfile.STATE_CONNECTED;
+                broadcastUpdate(c, intentAction);
+                // Attempts to discover services after successful
+                // connection.
+                if (Build.VERSION.SDK_INT >= 31 &&
+                        checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT) !=
+                                PackageManager.PERMISSION_GRANTED) {
+                    Log.d(TAG, "BluetoothGattCallback: " +
+                            "onConnectionStateChange: " +
+                            "BLUETOOTH_CONNECT not granted");
+                    return;
                 }
+                Log.i(TAG,
+                        "onConnectionStateChange: Attempting to start"
+                                + " service discovery: "
+                                + gatt.discoverServices());
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                Log.i(TAG,
+                        "onConnectionStateChange: Disconnected from "
+                                + "GATT server " + c.mAddress);
+                boolean reconnect = checkReconnect(c);
+                // Stop any session
+                stopSession(c);
+                // Close the device. We are through with it.
+                if (device != null) {
+                    gatt.close();
+                }
+                c.mBluetoothGatt = null;
+                c.mConnectionState = BluetoothProfile.STATE_DISCONNECTED;
+                intentAction = ACTION_GATT_DISCONNECTED;
+                broadcastUpdate(c, intentAction);
+                if (reconnect) {
+                    onUnexpectedDisconnect(c);
+                }
+            }
+        }
 
-                @Override
-                public void onCharacteristicRead(BluetoothGatt gatt,
-                                                 BluetoothGattCharacteristic
-                                                         characteristic, int
-                                                         status) {
-                    characteristicReadQueue.remove();
-                    if (status == BluetoothGatt.GATT_SUCCESS) {
-                        broadcastCharisticUpdate(ACTION_DATA_AVAILABLE,
-                                characteristic);
-                    } else {
-                        Log.w(TAG, "onCharacteristicRead received: "
-                                + getGattStatusString(status));
-                    }
-                    if (characteristicReadQueue.size() > 0)
-                        if (Build.VERSION.SDK_INT >= 31 &&
-                                checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT) !=
-                                        PackageManager.PERMISSION_GRANTED) {
-                            Log.d(TAG, "BluetoothGattCallback: " +
-                                    "onCharacteristicRead: " +
-                                    "BLUETOOTH_CONNECT not granted");
-                            return;
-                        }
-                    mBluetoothGatt.readCharacteristic(characteristicReadQueue
-                            .element());
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int
+                status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                if (c.mResumeSessionStartTime != INVALID_DATE) {
+                    // Don't wait for the UI to restart it
+                    mMainHandler.post(() -> resumeSession(c, gatt));
                 }
+                broadcastUpdate(c, ACTION_GATT_SERVICES_DISCOVERED);
+            } else {
+                Log.w(TAG, "onServicesDiscovered received: "
+                        + getGattStatusString(status));
+            }
+        }
 
-                @Override
-                public void onCharacteristicChanged(BluetoothGatt gatt,
-                                                    BluetoothGattCharacteristic
-                                                            characteristic) {
-                    broadcastCharisticUpdate(ACTION_DATA_AVAILABLE,
-                            characteristic);
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         BluetoothGattCharacteristic
+                                                 characteristic, int
+                                                 status) {
+            c.characteristicReadQueue.poll();
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                broadcastCharisticUpdate(c, ACTION_DATA_AVAILABLE,
+                        characteristic);
+            } else {
+                Log.w(TAG, "onCharacteristicRead received: "
+                        + getGattStatusString(status));
+            }
+            if (c.characteristicReadQueue.size() > 0) {
+                if (Build.VERSION.SDK_INT >= 31 &&
+                        checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT) !=
+                                PackageManager.PERMISSION_GRANTED) {
+                    Log.d(TAG, "BluetoothGattCallback: " +
+                            "onCharacteristicRead: " +
+                            "BLUETOOTH_CONNECT not granted");
+                    return;
                 }
+                gatt.readCharacteristic(c.characteristicReadQueue
+                        .element());
+            }
+        }
 
-                @Override
-                public void onDescriptorWrite(BluetoothGatt gatt,
-                                              BluetoothGattDescriptor
-                                                      descriptor, int
-                                                      status) {
-                    if (status != BluetoothGatt.GATT_SUCCESS) {
-                        Log.d(TAG, "onDescriptorWrite: status="
-                                + getGattStatusString(status));
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic
+                                                    characteristic) {
+            if (UUID_HEART_RATE_MEASUREMENT.equals(
+                    characteristic.getUuid())) {
+                // Only timestamp and queue it here
+                offerHrValue(c, characteristic.getValue(),
+                        System.currentTimeMillis());
+            } else {
+                broadcastCharisticUpdate(c, ACTION_DATA_AVAILABLE,
+                        characteristic);
+            }
+        }
 
-                    }
-                    // Pop the item that we just finishing writing
-                    descriptorWriteQueue.remove();
-                    // Check if there is more to write
-                    if (descriptorWriteQueue.size() > 0) {
-                        if (Build.VERSION.SDK_INT >= 31 &&
-                                checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT) !=
-                                        PackageManager.PERMISSION_GRANTED) {
-                            Log.d(TAG, "BluetoothGattCallback: " +
-                                    "onDescriptorWrite: " +
-                                    "BLUETOOTH_CONNECT not granted");
-                            return;
-                        }
-                        mBluetoothGatt.writeDescriptor(descriptorWriteQueue
-                                .element());
-                    } else if (characteristicReadQueue.size() > 0) {
-                        mBluetoothGatt.readCharacteristic
-                                (characteristicReadQueue
-                                        .element());
-                    }
-                }
-            };
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt,
+                                      BluetoothGattDescriptor
+                                              descriptor, int
+                                              status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.d(TAG, "onDescriptorWrite: status="
+                        + getGattStatusString(status));
+
+            }
+            // Pop the item that we just finishing writing
+            c.descriptorWriteQueue.poll();
+            if (Build.VERSION.SDK_INT >= 31 &&
+                    checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT) !=
+                            PackageManager.PERMISSION_GRANTED) {
+                Log.d(TAG, "BluetoothGattCallback: " +
+                        "onDescriptorWrite: " +
+                        "BLUETOOTH_CONNECT not granted");
+                return;
+            }
+            // Check if there is more to write
+            if (c.descriptorWriteQueue.size() > 0) {
+                gatt.writeDescriptor(c.descriptorWriteQueue.element());
+            } else if (c.characteristicReadQueue.size() > 0) {
+                gatt.readCharacteristic(c.characteristicReadQueue
+                        .element());
+            }
+        }
+    }
 
     @Override
     public void onCreate() {
         super.onCreate();
+        // Start the persistence thread
+        mPersistenceThread = new HandlerThread("BCMPersistence",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mPersistenceThread.start();
+        mPersistenceHandler = new Handler(mPersistenceThread.getLooper());
+        mWriteQueue = new WriteBehindQueue(mPersistenceHandler,
+                DB_WRITE_BATCH_SIZE, DB_WRITE_BATCH_INTERVAL, mMetrics);
+        mSampleQueue = new SampleQueue<>(mPersistenceHandler,
+                SAMPLE_QUEUE_CAPACITY, SAMPLE_SLOT_SIZE,
+                SAMPLE_DELAY_THRESHOLD, this::processHrValue);
+        SharedPreferences prefs = PreferenceManager
+                .getDefaultSharedPreferences(this);
+        mUpdateInterval = getUpdateInterval(prefs);
+        mWriteQueue.setJournalDir(getJournalDir(prefs));
+        mReconnectScheduler = new ReconnectScheduler(mMainHandler,
+                RECONNECT_INITIAL_DELAY, RECONNECT_MAX_DELAY, this::connect);
+        prefs.registerOnSharedPreferenceChangeListener(mPrefsListener);
         // Post a notification the service is running
         String channnelId = createNotificationChannel(this);
         Intent activityIntent = new Intent(this, DeviceMonitorActivity.class);
@@ -323,6 +537,13 @@ public class BCMBleService extends Service implements IConstants {
 
     @Override
     public void onDestroy() {
+        stopReplays();
+        // Write anything still pending before the thread quits
+        mPersistenceHandler.post(this::flushPending);
+        PreferenceManager.getDefaultSharedPreferences(this)
+                .unregisterOnSharedPreferenceChangeListener(mPrefsListener);
+        mPersistenceThread.quitSafely();
+        Log.d(TAG, "onDestroy: " + mSampleQueue.getInfo());
         // Cancel the notification
         NotificationManagerCompat notificationManager =
                 NotificationManagerCompat
@@ -334,12 +555,17 @@ public class BCMBleService extends Service implements IConstants {
     /**
      * Broadcast a message using ACTION_STATUS.
      *
+     * @param c   The Connection the message is about or null if it is not
+     *            about a particular device.
      * @param msg The message.
      */
-    private void broadcastStatus(final String msg) {
+    private void broadcastStatus(Connection c, final String msg) {
         Log.d(TAG, "broadcastStatus: " + msg);
         final Intent intent = new Intent(ACTION_STATUS);
         intent.putExtra(EXTRA_MSG, msg);
+        if (c != null) {
+            intent.putExtra(EXTRA_DEVICE_ADDRESS, c.mAddress);
+        }
         sendBroadcast(intent);
     }
 
@@ -348,20 +574,23 @@ public class BCMBleService extends Service implements IConstants {
      * ACTION_GATT_CONNECTED, ACTION_GATT_DISCONNECTED,
      * and ACTION_GATT_SERVICES_DISCOVERED.
      *
+     * @param c      The Connection.
      * @param action The action string.
      */
-    private void broadcastUpdate(final String action) {
+    private void broadcastUpdate(Connection c, final String action) {
         final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_DEVICE_ADDRESS, c.mAddress);
         sendBroadcast(intent);
     }
 
     /**
      * Broadcasts an update for ACTION_DATA_AVAILABLE.
      *
+     * @param c              The Connection.
      * @param action         The action.
      * @param characteristic The characteristic.
      */
-    private void broadcastCharisticUpdate(final String action,
+    private void broadcastCharisticUpdate(Connection c, final String action,
                                           final BluetoothGattCharacteristic
                                                   characteristic) {
         Date now = new Date();
@@ -371,30 +600,22 @@ public class BCMBleService extends Service implements IConstants {
         // String dateStr = " @ " + millisecTimeFormater.format(now);
         String dateStr = "";
         final Intent intent = new Intent(action);
+        intent.putExtra(EXTRA_DEVICE_ADDRESS, c.mAddress);
         intent.putExtra(EXTRA_UUID, characteristic.getUuid().toString());
         intent.putExtra(EXTRA_DATE, date);
 
         if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            HeartRateValues values = new HeartRateValues(characteristic, date);
-            mLastHr = values.getHr();
-            mLastRr = values.getRr();
-            mLastHrDate = date;
-            // // DEBUG
-            // Log.d(TAG, String.format("Received heart rate measurement: %d",
-            // mLastHr));
-            if (mDbAdapter != null) {
-                mDbAdapter.createData(mLastHrDate, mSessionStartTime,
-                        mLastHr, mLastRr);
-            }
-            intent.putExtra(EXTRA_HR, values.getHr() + dateStr);
-            intent.putExtra(EXTRA_RR, values.getRr() + dateStr);
-            intent.putExtra(EXTRA_DATA, values.getInfo());
+            // Normally these come from onCharacteristicChanged and are
+            // queued, but handle one that was read
+            offerHrValue(c, characteristic.getValue(), date);
+            return;
         } else if (UUID_BATTERY_LEVEL.equals(characteristic.getUuid())) {
-            mLastBat = characteristic.getIntValue(
+            c.mLastBat = characteristic.getIntValue(
                     BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-            Log.d(TAG, String.format("Received battery level: %d", mLastBat));
-            intent.putExtra(EXTRA_BAT, mLastBat + dateStr);
-            intent.putExtra(EXTRA_DATA, "Battery Level: " + mLastBat);
+            Log.d(TAG, String.format("Received battery level: %d from %s",
+                    c.mLastBat, c.mAddress));
+            intent.putExtra(EXTRA_BAT, c.mLastBat + dateStr);
+            intent.putExtra(EXTRA_DATA, "Battery Level: " + c.mLastBat);
         } else {
             // For all other profiles, writes the data formatted in HEX.
             final byte[] data = characteristic.getValue();
@@ -418,11 +639,379 @@ public class BCMBleService extends Service implements IConstants {
         sendBroadcast(intent);
     }
 
+    /**
+     * Queues a Heart Rate Measurement value to be processed on
+     * mPersistenceThread, with the start date of the session it was
+     * received in. Values received when no session is in progress, like
+     * notifications that arrive after the session was stopped, are dropped.
+     *
+     * @param c    The Connection the value came from.
+     * @param data The raw value.
+     * @param date The date the value was received.
+     * @return If the value was queued.
+     */
+    private boolean offerHrValue(Connection c, byte[] data, long date) {
+        return offerHrValue(c, data, data == null ? 0 : data.length, date);
+    }
+
+    /**
+     * Queues a Heart Rate Measurement value to be processed on
+     * mPersistenceThread, with the start date of the session it was
+     * received in. Values received when no session is in progress are
+     * dropped.
+     *
+     * @param c      The Connection the value came from.
+     * @param data   The raw value.
+     * @param length The number of bytes of data.
+     * @param date   The date the value was received.
+     * @return If the value was queued.
+     */
+    private boolean offerHrValue(Connection c, byte[] data, int length,
+                                 long date) {
+        if (!c.mSessionInProgress) {
+            return false;
+        }
+        return mSampleQueue.offer(c, c.mSessionStartTime, data, length,
+                date);
+    }
+
+    /**
+     * Decodes a Heart Rate Measurement value, queues it to be written to the
+     * database, adds it to the sample ring buffer, and passes it to the
+     * connection's update coalescer. Called on mPersistenceThread.
+     *
+     * @param c         The Connection the value came from.
+     * @param startDate The start date of the session it was received in.
+     * @param data      The raw value.
+     * @param length    The number of bytes of data.
+     * @param date      The date the value was received.
+     */
+    private void processHrValue(Connection c, long startDate, byte[] data,
+                                int length, long date) {
+        if (startDate == c.mStoppedSessionStart) {
+            // Received just as the session was stopped
+            return;
+        }
+        HeartRateValues values = mHrValues;
+        values.decode(data, length, date);
+        c.mLastHr = values.getHr();
+        c.mLastHrDate = date;
+        // // DEBUG
+        // Log.d(TAG, String.format("Received heart rate measurement: %d",
+        // c.mLastHr));
+        mWriteQueue.add(date, startDate, c.mLastHr, c.mAddress,
+                values.getRrValues(), values.getRrCount());
+        mSampleRing.add(c.mId, date, c.mLastHr, values.getRrValues(),
+                values.getRrCount());
+        c.mUpdateCoalescer.add(date, c.mLastHr, values.getRrValues(),
+                values.getRrCount());
+        mMetrics.recordSample(date, System.currentTimeMillis());
+    }
+
+    /**
+     * Tells the UI about the HR samples received from a device since the
+     * last update. Ring buffer listeners are notified and read the samples
+     * themselves. Otherwise the samples are broadcast, with
+     * EXTRA_DEVICE_ADDRESS, EXTRA_DATE and EXTRA_HR for the last one,
+     * EXTRA_DATES and EXTRA_HRS for all of them, and EXTRA_RR holding the
+     * R-R values of all of them. Called on mPersistenceThread.
+     *
+     * @param c       The Connection.
+     * @param dates   The dates.
+     * @param hrs     The HRs.
+     * @param count   The number of samples.
+     * @param rr      The R-R values of all the samples.
+     * @param rrCount The number of R-R values or INVALID_INT.
+     */
+    private void dispatchUpdate(Connection c, long[] dates, int[] hrs,
+                                int count, int[] rr, int rrCount) {
+        if (mSampleRing.hasListeners()) {
+            mSampleRing.notifyListeners();
+            return;
+        }
+        // Compatibility path for receivers not using the ring buffer
+        c.mLastRr = HeartRateValues.formatRr(rr, 0, rrCount);
+        final Intent intent = new Intent(ACTION_DATA_AVAILABLE);
+        intent.putExtra(EXTRA_DEVICE_ADDRESS, c.mAddress);
+        intent.putExtra(EXTRA_UUID, UUID_HEART_RATE_MEASUREMENT.toString());
+        intent.putExtra(EXTRA_DATE, dates[count - 1]);
+        intent.putExtra(EXTRA_HR, Integer.toString(hrs[count - 1]));
+        intent.putExtra(EXTRA_RR, c.mLastRr);
+        intent.putExtra(EXTRA_DATES, Arrays.copyOf(dates, count));
+        intent.putExtra(EXTRA_HRS, Arrays.copyOf(hrs, count));
+        // EXTRA_DATA (values.getInfo()) is not used by any receiver and
+        // is not created here
+        sendBroadcast(intent);
+    }
+
+    /**
+     * Sends a broadcast and counts it in the metrics.
+     *
+     * @param intent The Intent to broadcast.
+     */
+    @Override
+    public void sendBroadcast(Intent intent) {
+        mMetrics.recordBroadcast();
+        super.sendBroadcast(intent);
+    }
+
+    /**
+     * Gets the UI update interval from the preferences.
+     *
+     * @param prefs The SharedPreferences.
+     * @return The interval (ms).
+     */
+    private static long getUpdateInterval(SharedPreferences prefs) {
+        String stringVal = prefs.getString(PREF_UPDATE_INTERVAL, null);
+        if (stringVal == null) {
+            return UPDATE_INTERVAL;
+        }
+        try {
+            return Math.max(0, Long.parseLong(stringVal.trim()));
+        } catch (Exception ex) {
+            return UPDATE_INTERVAL;
+        }
+    }
+
+    /**
+     * Gets the directory for the sample journals, the database directory,
+     * if they are used.
+     *
+     * @param prefs The SharedPreferences.
+     * @return The directory or null if journals are not used.
+     */
+    private File getJournalDir(SharedPreferences prefs) {
+        if (!prefs.getBoolean(PREF_DB_JOURNAL, false)) {
+            return null;
+        }
+        return getExternalFilesDir(null);
+    }
+
+    /**
+     * Processes any queued HR values and writes all pending data to the
+     * database. Called on mPersistenceThread.
+     */
+    private void flushPending() {
+        mSampleQueue.drain();
+        mWriteQueue.flush();
+        for (Connection c : mConnections.values()) {
+            c.mUpdateCoalescer.flush();
+        }
+    }
+
+    /**
+     * Gets information about the handling of received values.
+     *
+     * @return The information.
+     */
+    public String getSampleQueueInfo() {
+        return mSampleQueue.getInfo()
+                + "Samples Waiting To Be Written: "
+                + mWriteQueue.getPendingCount() + "\n";
+    }
+
+    /**
+     * Gets the latencies and throughput of the handling of received values.
+     * Consumers that display samples may record their latencies in it.
+     *
+     * @return The PerformanceMetrics.
+     */
+    public PerformanceMetrics getPerformanceMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Clears the performance metrics and the sample queue counters.
+     */
+    public void resetPerformanceMetrics() {
+        mMetrics.reset();
+        mSampleQueue.resetStats();
+    }
+
+    /**
+     * Gets information about reconnecting devices that dropped.
+     *
+     * @return The information.
+     */
+    public String getReconnectInfo() {
+        return mReconnectScheduler.getInfo();
+    }
+
+    /**
+     * Determines whether a device that has just disconnected should be
+     * reconnected, which is if a session was in progress or being resumed
+     * and disconnect was not called. Must be called before the session is
+     * stopped.
+     *
+     * @param c The Connection.
+     * @return If it should be reconnected.
+     */
+    private boolean checkReconnect(Connection c) {
+        if (c.mDisconnectRequested) {
+            return false;
+        }
+        if (c.mSessionInProgress) {
+            c.mResumeSessionStartTime = c.mSessionStartTime;
+            return true;
+        }
+        return c.mResumeSessionStartTime != INVALID_DATE;
+    }
+
+    /**
+     * Starts or continues reconnecting a device that dropped. When the
+     * outage starts a marker with an invalid HR is added to the ring
+     * buffer, so live plots do not join the samples on either side.
+     *
+     * @param c The Connection.
+     */
+    private void onUnexpectedDisconnect(final Connection c) {
+        final long date = System.currentTimeMillis();
+        mMainHandler.post(() -> {
+            if (c.mDisconnectRequested) {
+                return;
+            }
+            if (!mReconnectScheduler.isReconnecting(c.mAddress)) {
+                mPersistenceHandler.post(() -> markGap(c, date));
+            }
+            long delay = mReconnectScheduler.onDisconnected(c.mAddress, date);
+            if (delay > 0) {
+                broadcastStatus(c, String.format(Locale.US,
+                        "Disconnected, reconnecting in %.1f s",
+                        delay / 1000.));
+            }
+        });
+    }
+
+    /**
+     * Ends any outage for a device and records the gap in the session on
+     * mPersistenceThread. Called on the main thread.
+     *
+     * @param c            The Connection.
+     * @param sessionStart The start date of the session being resumed or
+     *                     INVALID_DATE.
+     * @param date         The end of the outage.
+     * @param cancel       Whether reconnecting was stopped rather than
+     *                     successful.
+     */
+    private void endOutage(Connection c, long sessionStart, long date,
+                           boolean cancel) {
+        long gapStart = cancel ? mReconnectScheduler.cancel(c.mAddress)
+                : mReconnectScheduler.onConnected(c.mAddress, date);
+        if (gapStart == INVALID_DATE || sessionStart == INVALID_DATE) {
+            return;
+        }
+        Log.d(TAG, "endOutage: " + c.mAddress + " gap of "
+                + (date - gapStart) + " ms");
+        mPersistenceHandler.post(() -> mWriteQueue.addGap(sessionStart,
+                c.mAddress, gapStart, date));
+    }
+
+    /**
+     * Adds a gap marker to the ring buffer. Called on mPersistenceThread.
+     * The ring buffer has a single producer, so this holds the sample
+     * queue's consumer lock, as processHrValue does.
+     *
+     * @param c    The Connection.
+     * @param date The start of the gap.
+     */
+    private void markGap(Connection c, long date) {
+        mSampleQueue.runExclusive(() -> mSampleRing.add(c.mId, date,
+                INVALID_INT, null, INVALID_INT));
+        if (mSampleRing.hasListeners()) {
+            mSampleRing.notifyListeners();
+        }
+    }
+
+    /**
+     * Restarts the session on a device that has reconnected after
+     * dropping. Called on the main thread.
+     *
+     * @param c    The Connection.
+     * @param gatt The BluetoothGatt.
+     */
+    private void resumeSession(Connection c, BluetoothGatt gatt) {
+        if (c.mBluetoothGatt != gatt
+                || c.mResumeSessionStartTime == INVALID_DATE) {
+            return;
+        }
+        BluetoothGattCharacteristic charHr = null, charBat = null;
+        BluetoothGattService service =
+                gatt.getService(UUID_HEART_RATE_SERVICE);
+        if (service != null) {
+            charHr = service.getCharacteristic(UUID_HEART_RATE_MEASUREMENT);
+        }
+        service = gatt.getService(UUID_BATTERY_SERVICE);
+        if (service != null) {
+            charBat = service.getCharacteristic(UUID_BATTERY_LEVEL);
+        }
+        if (charHr == null) {
+            Log.w(TAG, "resumeSession: No HR characteristic for "
+                    + c.mAddress);
+            return;
+        }
+        Log.d(TAG, "resumeSession: " + c.mAddress);
+        startSession(c.mAddress, charBat, charHr);
+    }
+
+    /**
+     * Gets a start date for a new session. Each is later than any
+     * returned before, so sessions on different devices that start at the
+     * same time still have different start dates.
+     *
+     * @return The start date.
+     */
+    private synchronized long newSessionStartTime() {
+        long now = new Date().getTime();
+        mLastSessionStartTime = Math.max(now, mLastSessionStartTime + 1);
+        return mLastSessionStartTime;
+    }
+
+    /**
+     * Gets the Connection for the given address, creating one if there is
+     * none.
+     *
+     * @param address The device address.
+     * @return The Connection.
+     */
+    private synchronized Connection getOrCreateConnection(String address) {
+        Connection c = mConnections.get(address);
+        if (c == null) {
+            c = new Connection(address, mNextConnectionId++);
+            mConnections.put(address, c);
+        }
+        return c;
+    }
+
+    /**
+     * Gets the number of devices that are connected or connecting.
+     *
+     * @return The number.
+     */
+    private int getActiveConnectionCount() {
+        int count = 0;
+        for (Connection c : mConnections.values()) {
+            if (c.isActive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
     class LocalBinder extends Binder {
         BCMBleService getService() {
             return BCMBleService.this;
         }
 
+        /**
+         * Gets the ring buffer of recent HR samples. Listeners added to it
+         * replace the ACTION_DATA_AVAILABLE broadcasts for HR.
+         *
+         * @return The ring buffer.
+         */
+        SampleRingBuffer getSampleRingBuffer() {
+            return mSampleRing;
+        }
+
     }
 
     @Override
@@ -474,19 +1063,153 @@ public class BCMBleService extends Service implements IConstants {
     public boolean startDatabase(BCMDbAdapter adapter) {
         Log.d(TAG, "startDatabase");
         mDbAdapter = adapter;
+        mWriteQueue.setDbAdapter(adapter);
+        if (adapter != null) {
+            // Replays any journals left from before, off the main thread
+            mPersistenceHandler.post(adapter::replayJournals);
+            scheduleCheckpoint(adapter.getDurability()
+                    .getCheckpointInterval());
+            scheduleRetention();
+        }
         return mDbAdapter != null;
     }
 
     /**
-     * Stops writing to the the database.
+     * Stops writing to the the database. Any pending data are written on
+     * mPersistenceThread first, and applying the retention policy is
+     * cancelled. Blocks until both are done, since the caller may close the
+     * adapter when this returns.
      */
     public void stopDatabase() {
         Log.d(TAG, "stopDatabase");
+        mPersistenceHandler.removeCallbacks(mCheckpointRunnable);
+        mPersistenceHandler.removeCallbacks(mRetentionRunnable);
+        final Thread[] retention = new Thread[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        boolean posted = mPersistenceHandler.post(() -> {
+            // Writes any pending data first
+            mSampleQueue.drain();
+            mWriteQueue.setDbAdapter(null);
+            retention[0] = cancelRetention();
+            done.countDown();
+        });
+        if (posted) {
+            try {
+                done.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            // The thread has quit
+            mWriteQueue.setDbAdapter(null);
+            retention[0] = cancelRetention();
+        }
+        if (retention[0] != null) {
+            // It stops at the next chunk
+            try {
+                retention[0].join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
         mDbAdapter = null;
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Schedules the periodic checkpoint of the database write-ahead log,
+     * replacing any that is scheduled.
+     *
+     * @param interval The interval (ms).
+     */
+    private void scheduleCheckpoint(long interval) {
+        mCheckpointInterval = interval;
+        mPersistenceHandler.removeCallbacks(mCheckpointRunnable);
+        mPersistenceHandler.postDelayed(mCheckpointRunnable, interval);
+    }
+
+    /**
+     * Checkpoints the database write-ahead log, so it does not grow while
+     * recording, and schedules the next one. Runs on mPersistenceThread
+     * between batch writes, and does not wait for readers.
+     */
+    private void checkpoint() {
+        if (mDbAdapter == null) {
+            return;
+        }
+        long start = SystemClock.elapsedRealtime();
+        int frames = mWriteQueue.checkpoint();
+        Log.d(TAG, "checkpoint: " + frames + " frames in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+        mPersistenceHandler.postDelayed(mCheckpointRunnable,
+                mCheckpointInterval);
+    }
+
+    /**
+     * Schedules applying the retention policy after RETENTION_INITIAL_DELAY,
+     * replacing any that is scheduled.
+     */
+    private void scheduleRetention() {
+        mPersistenceHandler.removeCallbacks(mRetentionRunnable);
+        mPersistenceHandler.postDelayed(mRetentionRunnable,
+                RETENTION_INITIAL_DELAY);
+    }
+
+    /**
+     * Starts applying the retention policy and schedules the next time.
+     * Moving old data out of the data table can take a while, so it is done
+     * on its own low-priority thread rather than mPersistenceThread, and
+     * writing new data goes on between the sessions it moves.
+     */
+    private void startRetention() {
+        final BCMDbAdapter adapter = mDbAdapter;
+        if (adapter == null) {
+            return;
+        }
+        mPersistenceHandler.postDelayed(mRetentionRunnable,
+                RETENTION_INTERVAL);
+        final BCMDbAdapter.RetentionPolicy policy =
+                BCMDbAdapter.RetentionPolicy.fromPreferences(PreferenceManager
+                        .getDefaultSharedPreferences(this));
+        if (!policy.isEnabled()
+                || (mRetentionThread != null && mRetentionThread.isAlive())) {
+            return;
+        }
+        final CancellationSignal signal = new CancellationSignal();
+        mRetentionSignal = signal;
+        mRetentionThread = new Thread(() -> {
+            try {
+                adapter.applyRetention(policy, System.currentTimeMillis(),
+                        signal);
+            } catch (OperationCanceledException ex) {
+                // stopDatabase was called. The rest is done next time.
+                Log.d(TAG, "Applying retention policy cancelled");
+            } catch (Exception ex) {
+                Log.e(TAG, "Error applying retention policy", ex);
+            }
+        }, "BCMRetention");
+        mRetentionThread.setPriority(Thread.MIN_PRIORITY);
+        mRetentionThread.start();
+    }
+
+    /**
+     * Cancels applying the retention policy, if it is in progress. Call on
+     * mPersistenceThread, or when it has quit.
+     *
+     * @return The thread applying it, to be joined, or null.
+     */
+    private Thread cancelRetention() {
+        Thread thread = mRetentionThread;
+        if (mRetentionSignal != null) {
+            mRetentionSignal.cancel();
+        }
+        mRetentionThread = null;
+        mRetentionSignal = null;
+        return thread;
+    }
+
+    /**
+     * Connects to the GATT server hosted on the Bluetooth LE device. Other
+     * devices that are connected stay connected.
      *
      * @param address The device address of the destination device.
      * @return Return true if the connection is initiated successfully. The
@@ -496,19 +1219,24 @@ public class BCMBleService extends Service implements IConstants {
      * callback.
      */
     public boolean connect(final String address) {
-        Log.d(TAG, "connect: mConnectionState="
-                + getGattNewStateString(mConnectionState));
+        Log.d(TAG, "connect: " + address);
         if (mBluetoothAdapter == null || address == null) {
             Log.w(TAG,
                     "connect: BluetoothAdapter not initialized or unspecified" +
                             " address");
             return false;
         }
+        if (address.equals(REPLAY_DEVICE_ADDRESS)) {
+            Log.w(TAG, "connect: Not a device, use startReplay");
+            return false;
+        }
+        Connection c = getOrCreateConnection(address);
+        c.mDisconnectRequested = false;
+        Log.d(TAG, "connect: mConnectionState="
+                + getGattNewStateString(c.mConnectionState));
 
         // Previously connected device. Try to reconnect.
-        if (mBluetoothDeviceAddress != null
-                && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null && mBluetoothGatt.getDevice() != null) {
+        if (c.mBluetoothGatt != null && c.mBluetoothGatt.getDevice() != null) {
             Log.d(TAG,
                     "connect: Trying to reconnect to an existing connection");
             if (Build.VERSION.SDK_INT >= 31 &&
@@ -518,11 +1246,11 @@ public class BCMBleService extends Service implements IConstants {
                         "BLUETOOTH_CONNECT not granted");
                 return false;
             }
-            BluetoothDevice device = mBluetoothGatt.getDevice();
+            BluetoothDevice device = c.mBluetoothGatt.getDevice();
             Log.d(TAG, "connect: Existing connection name is "
-                    + mBluetoothGatt.getDevice().getName());
-            if (mBluetoothGatt.connect()) {
-                mConnectionState =
+                    + device.getName());
+            if (c.mBluetoothGatt.connect()) {
+                c.mConnectionState =
                         mBluetoothManager.getConnectionState(device,
                                 BluetoothProfile.GATT);
                 return true;
@@ -531,13 +1259,13 @@ public class BCMBleService extends Service implements IConstants {
             }
         }
 
-        // Check if there is a connected device with a different address
-        if (!address.equals(mBluetoothDeviceAddress) && mBluetoothGatt != null) {
-            Log.d(TAG, "connect: Disconnecting and closing current device "
-                    + mBluetoothDeviceAddress);
-            mBluetoothGatt.disconnect();
-            mBluetoothGatt.close();
-            mBluetoothGatt = null;
+        // Check there is room for another connection
+        if (getActiveConnectionCount() >= MAX_CONNECTIONS) {
+            String msg = "Cannot connect to " + address + ", already "
+                    + MAX_CONNECTIONS + " devices connected";
+            Log.w(TAG, "connect: " + msg);
+            broadcastStatus(c, msg);
+            return false;
         }
 
         // Not previously connected
@@ -558,11 +1286,10 @@ public class BCMBleService extends Service implements IConstants {
         // We want to directly connect to the device, so we are setting the
         // autoConnect parameter to false and specifying TRANSPORT_LE
         // (default is AUTO)
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback,
+        c.mBluetoothGatt = device.connectGatt(this, false, c.mGattCallback,
                 BluetoothDevice.TRANSPORT_LE);
         Log.d(TAG, "Trying to create a new connection");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = mBluetoothManager.getConnectionState(device,
+        c.mConnectionState = mBluetoothManager.getConnectionState(device,
                 BluetoothProfile.GATT);
         return true;
     }
@@ -572,15 +1299,32 @@ public class BCMBleService extends Service implements IConstants {
      * The disconnection result is reported asynchronously through the
      * {@code BluetoothGattCallback#onConnectionStateChange(android
      * .bluetooth.BluetoothGatt, int, int)} callback.
+     *
+     * @param address The device address.
      */
-    public void disconnect() {
-        Log.d(TAG, "disconnect: mConnectionState="
-                + getGattNewStateString(mConnectionState));
+    public void disconnect(String address) {
+        Connection c = address == null ? null : mConnections.get(address);
+        Log.d(TAG, "disconnect: " + address + " mConnectionState="
+                + (c == null ? "none" :
+                getGattNewStateString(c.mConnectionState)));
+        if (c != null && c.mSampleSource != null) {
+            stopReplay(c);
+            return;
+        }
         if (mBluetoothAdapter == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        if (mBluetoothGatt == null) {
+        // Write any pending data
+        mPersistenceHandler.post(this::flushPending);
+        if (c != null) {
+            // Stop any reconnecting
+            c.mDisconnectRequested = true;
+            endOutage(c, c.mResumeSessionStartTime,
+                    System.currentTimeMillis(), true);
+            c.mResumeSessionStartTime = INVALID_DATE;
+        }
+        if (c == null || c.mBluetoothGatt == null) {
             Log.w(TAG, "disconnect: mBluetoothGatt is null, cannot disconnect");
             return;
         }
@@ -591,20 +1335,34 @@ public class BCMBleService extends Service implements IConstants {
                     "BLUETOOTH_CONNECT not granted");
             return;
         }
-        mBluetoothGatt.disconnect();
+        c.mBluetoothGatt.disconnect();
     }
 
     /**
-     * After using a given BLE device, the app must call this method to
-     * ensure
-     * resources are released properly.
+     * Disconnects all devices.
+     */
+    public void disconnectAll() {
+        Log.d(TAG, "disconnectAll");
+        for (String address : mConnections.keySet()) {
+            disconnect(address);
+        }
+    }
+
+    /**
+     * After using the BLE devices, the app must call this method to
+     * ensure resources are released properly. Closes all connections.
      */
     public void close() {
         Log.d(TAG, "close");
-        stopDatabase();
-        if (mBluetoothGatt == null) {
-            return;
+        stopReplays();
+        // Stop any reconnecting, recording the gaps
+        long now = System.currentTimeMillis();
+        for (Connection c : mConnections.values()) {
+            c.mDisconnectRequested = true;
+            endOutage(c, c.mResumeSessionStartTime, now, true);
+            c.mResumeSessionStartTime = INVALID_DATE;
         }
+        stopDatabase();
         if (Build.VERSION.SDK_INT >= 31 &&
                 checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT) !=
                         PackageManager.PERMISSION_GRANTED) {
@@ -612,19 +1370,132 @@ public class BCMBleService extends Service implements IConstants {
                     "BLUETOOTH_CONNECT not granted");
             return;
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        for (Connection c : mConnections.values()) {
+            if (c.mBluetoothGatt != null) {
+                c.mBluetoothGatt.close();
+                c.mBluetoothGatt = null;
+            }
+            c.mConnectionState = BluetoothProfile.STATE_DISCONNECTED;
+        }
+    }
+
+    /**
+     * Starts replaying values from a SampleSource as if they came from a
+     * device with the given address. A session is started, and the values
+     * are decoded, written to the database, and broadcast the same as
+     * values from a device. ACTION_GATT_CONNECTED and
+     * ACTION_GATT_DISCONNECTED are broadcast when the replay starts and
+     * stops. Call disconnect to stop it.
+     *
+     * @param address The address to use, typically REPLAY_DEVICE_ADDRESS.
+     * @param source  The SampleSource.
+     * @return If the replay was started.
+     */
+    public boolean startReplay(String address, final SampleSource source) {
+        Log.d(TAG, "startReplay: " + address + " " + source.getInfo());
+        if (address == null) {
+            return false;
+        }
+        final Connection c = getOrCreateConnection(address);
+        if (c.isActive()) {
+            Log.w(TAG, "startReplay: " + address + " is already in use");
+            return false;
+        }
+        if (getActiveConnectionCount() >= MAX_CONNECTIONS) {
+            Log.w(TAG, "startReplay: Already connected to "
+                    + MAX_CONNECTIONS + " devices");
+            return false;
+        }
+        c.mDisconnectRequested = false;
+        c.mSessionStartTime = newSessionStartTime();
+        postStartSession(c);
+        c.mLastBat = INVALID_INT;
+        c.mLastHr = INVALID_INT;
+        c.mLastRr = INVALID_STRING;
+        c.mLastHrDate = System.currentTimeMillis();
+        c.mSessionInProgress = true;
+        c.mConnectionState = BluetoothProfile.STATE_CONNECTED;
+        c.mSampleSource = source;
+        broadcastUpdate(c, ACTION_GATT_CONNECTED);
+        source.start(new SampleSource.Sink() {
+            @Override
+            public boolean onValue(byte[] data, int length, long date) {
+                return offerHrValue(c, data, length, date);
+            }
+
+            @Override
+            public void onFinished(final Exception error) {
+                mMainHandler.post(() -> {
+                    if (c.mSampleSource != source) {
+                        return;
+                    }
+                    stopReplay(c);
+                    if (error != null) {
+                        Log.e(TAG, "Replay failed", error);
+                        broadcastStatus(c, "Replay failed: " + error);
+                    } else {
+                        broadcastStatus(c, "Replay finished");
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Stops any replay on a Connection and its session.
+     *
+     * @param c The Connection.
+     */
+    private void stopReplay(Connection c) {
+        SampleSource source = c.mSampleSource;
+        if (source == null) {
+            return;
+        }
+        Log.d(TAG, "stopReplay: " + c.mAddress + " " + source.getInfo());
+        source.stop();
+        stopSession(c);
+        c.mSampleSource = null;
+        c.mConnectionState = BluetoothProfile.STATE_DISCONNECTED;
+        broadcastUpdate(c, ACTION_GATT_DISCONNECTED);
+    }
+
+    /**
+     * Stops all replays.
+     */
+    private void stopReplays() {
+        for (Connection c : mConnections.values()) {
+            stopReplay(c);
+        }
+    }
+
+    /**
+     * Gets information about the replays in progress.
+     *
+     * @return The information.
+     */
+    public String getReplayInfo() {
+        StringBuilder sb = new StringBuilder();
+        SampleSource source;
+        for (Connection c : mConnections.values()) {
+            source = c.mSampleSource;
+            if (source != null) {
+                sb.append("Replay: ").append(source.getInfo()).append("\n");
+            }
+        }
+        return sb.toString();
     }
 
     /**
      * Enables or disables notification on a given characteristic.
      *
+     * @param c              The Connection.
      * @param characteristic Characteristic to act on.
      * @param enabled        If true, enable notification. False otherwise.
      */
-    public void setCharacteristicNotification(
+    private void setCharacteristicNotification(Connection c,
             BluetoothGattCharacteristic characteristic, boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        if (mBluetoothAdapter == null || c.mBluetoothGatt == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
@@ -635,7 +1506,7 @@ public class BCMBleService extends Service implements IConstants {
                     + "BLUETOOTH_CONNECT not granted");
             return;
         }
-        boolean res = mBluetoothGatt.setCharacteristicNotification(
+        boolean res = c.mBluetoothGatt.setCharacteristicNotification(
                 characteristic, enabled);
         if (!res) {
             Log.d(TAG, "setCharacteristicNotification failed for "
@@ -645,36 +1516,66 @@ public class BCMBleService extends Service implements IConstants {
     }
 
     /**
-     * Retrieves a list of supported GATT services on the connected
+     * Retrieves a list of supported GATT services on a connected
      * device. This
      * should be invoked only after {@code BluetoothGatt#discoverServices()}
      * completes successfully.
      *
+     * @param address The device address.
      * @return A {@code List} of supported services.
      */
-    public List<BluetoothGattService> getSupportedGattServices() {
-        if (mBluetoothGatt == null)
+    public List<BluetoothGattService> getSupportedGattServices(String address) {
+        Connection c = address == null ? null : mConnections.get(address);
+        if (c == null || c.mBluetoothGatt == null)
             return null;
 
-        return mBluetoothGatt.getServices();
+        return c.mBluetoothGatt.getServices();
     }
 
     /**
-     * Returns the connection state.
+     * Returns the connection state for a device.
      *
+     * @param address The device address.
      * @return The connection state.
      */
-    public int getConnectionState() {
-        return mConnectionState;
+    public int getConnectionState(String address) {
+        Connection c = address == null ? null : mConnections.get(address);
+        if (c == null) {
+            return BluetoothProfile.STATE_DISCONNECTED;
+        }
+        return c.mConnectionState;
     }
 
     /**
-     * Returns the device address.
+     * Returns the connection id for a device. This is the source of its
+     * samples in the ring buffer and does not change while the service is
+     * running.
      *
-     * @return The device address (may be null).
+     * @param address The device address.
+     * @return The id or INVALID_INT if the device has never been connected.
      */
-    public String getDeviceAddress() {
-        return mBluetoothDeviceAddress;
+    public int getConnectionId(String address) {
+        Connection c = address == null ? null : mConnections.get(address);
+        if (c == null) {
+            return INVALID_INT;
+        }
+        return c.mId;
+    }
+
+    /**
+     * Returns the addresses of the devices that are connected or
+     * connecting.
+     *
+     * @return The device addresses.
+     */
+    public List<String> getConnectedDeviceAddresses() {
+        List<String> addresses = new ArrayList<>();
+        for (Connection c : mConnections.values()) {
+            if (c.isActive()) {
+                addresses.add(c.mAddress);
+            }
+        }
+        return addresses;
     }
 
     /**
@@ -748,28 +1649,48 @@ public class BCMBleService extends Service implements IConstants {
         }
     }
 
+
+    /**
+     * Returns if a session is in progress for a device.
+     *
+     * @param address The device address.
+     * @return If in progress.
+     */
+    public boolean getSessionInProgress(String address) {
+        Connection c = address == null ? null : mConnections.get(address);
+        return c != null && c.mSessionInProgress;
+    }
+
     /**
-     * Returns if a session is in progress
+     * Returns if a session is in progress for any device.
      *
      * @return If in progress.
      */
-    public boolean getSessionInProgress() {
-        return mSessionInProgress;
+    public boolean getAnySessionInProgress() {
+        for (Connection c : mConnections.values()) {
+            if (c.mSessionInProgress) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
-     * Initializes reading the battery level.
+     * Initializes reading the battery level for a device.
+     *
+     * @param address The device address.
      */
-    public void readBatteryLevel() {
-        if (mCharBat == null) {
+    public void readBatteryLevel(String address) {
+        Connection c = address == null ? null : mConnections.get(address);
+        if (c == null || c.mCharBat == null || c.mBluetoothGatt == null) {
             return;
         }
-        // Add it to the queueO
-        characteristicReadQueue.add(mCharBat);
+        // Add it to the queue
+        c.characteristicReadQueue.add(c.mCharBat);
         // Process the queue if this is the only pending item
         // Otherwise handle it asynchronously
-        if (descriptorWriteQueue.size() == 0
-                || characteristicReadQueue.size() == 1) {
+        if (c.descriptorWriteQueue.size() == 0
+                || c.characteristicReadQueue.size() == 1) {
             if (Build.VERSION.SDK_INT >= 31 &&
                     checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT) !=
                             PackageManager.PERMISSION_GRANTED) {
@@ -777,127 +1698,160 @@ public class BCMBleService extends Service implements IConstants {
                         "BLUETOOTH_CONNECT not granted");
                 return;
             }
-            mBluetoothGatt
-                    .readCharacteristic(characteristicReadQueue.element());
+            c.mBluetoothGatt
+                    .readCharacteristic(c.characteristicReadQueue.element());
         }
     }
 
     /**
-     * Starts a session.
+     * Starts a session on a device. Each device has its own session, with
+     * its own start date.
      *
+     * @param address The device address.
      * @param charBat The BAT characteristic.
      * @param charHr  The HR characteristic.
-     * @return If successful. (Always returns true)
+     * @return If successful.
      */
-    public boolean startSession(BluetoothGattCharacteristic charBat,
+    public boolean startSession(String address,
+                                BluetoothGattCharacteristic charBat,
                                 BluetoothGattCharacteristic charHr) {
-        Log.d(TAG, "startSession");
-        // Log.d(TAG, "startSession: mSessionState=" + mSessionState
-        // + " mTimeoutTimer=" + mTimeoutTimer);
-        // // DEBUG
-        // String batVal = mCharBat == null ? "null" : String.format("%8x",
-        // mCharBat.hashCode());
-        // String hrVal = mCharHr == null ? "null" : String.format("%8x",
-        // mCharHr.hashCode());
-        // String customVal = mCharCustom == null ? "null" :
-        // String.format("%8x",
-        // mCharCustom.hashCode());
-        // Log.d(TAG, "  mCharBat=" + batVal + " mCharHr=" + hrVal
-        // + " mCharCustom=" + customVal);
-        // batVal = charBat == null ? "null" : String.format("%8x",
-        // charBat.hashCode());
-        // hrVal = charHr == null ? "null" : String.format("%8x",
-        // charHr.hashCode());
-        // customVal = charCustom == null ? "null" : String.format("%8x",
-        // charCustom.hashCode());
-        // Log.d(TAG, "  charBat=" + batVal + " charHr=" + hrVal +
-        // " charCustom="
-        // + customVal);
-        // Log.d(TAG, "  mDoBat=" + mDoBat + " mDoHr=" + mDoHr + "
-        // mDoCustom="
-        // + mDoCustom);
-        if (!mSessionInProgress) {
-            mSessionStartTime = new Date().getTime();
+        Log.d(TAG, "startSession: " + address);
+        Connection c = address == null ? null : mConnections.get(address);
+        if (c == null || c.mBluetoothGatt == null) {
+            Log.w(TAG, "startSession: Not connected to " + address);
+            return false;
+        }
+        if (c.mSessionInProgress && c.mCharHr == charHr
+                && c.mCharBat == charBat) {
+            // Already started, possibly by resumeSession
+            return true;
+        }
+        if (!c.mSessionInProgress) {
+            // Continue the same session after reconnecting
+            if (c.mResumeSessionStartTime != INVALID_DATE) {
+                c.mSessionStartTime = c.mResumeSessionStartTime;
+                c.mResumeSessionStartTime = INVALID_DATE;
+            } else {
+                c.mSessionStartTime = newSessionStartTime();
+            }
+            postStartSession(c);
         }
 
         // // DEBUG Check permissions
         // checkPermissions(charBat, charHr, charCustom);
 
         // Stop notifying for existing characteristics
-        if (mCharHr != null) {
-            setCharacteristicNotification(mCharHr, false);
+        if (c.mCharHr != null) {
+            setCharacteristicNotification(c, c.mCharHr, false);
         }
 
         // Clear any queues
-        while (descriptorWriteQueue.size() > 0) {
-            descriptorWriteQueue.remove();
-        }
-        while (characteristicReadQueue.size() > 0) {
-            characteristicReadQueue.remove();
-        }
+        c.descriptorWriteQueue.clear();
+        c.characteristicReadQueue.clear();
 
         // Initialize for the new values
-        mCharBat = charBat;
-        mCharHr = charHr;
-        mLastBat = INVALID_INT;
-        mLastHr = INVALID_INT;
-        mLastRr = INVALID_STRING;
-        mLastHrDate = new Date().getTime();
+        c.mCharBat = charBat;
+        c.mCharHr = charHr;
+        c.mLastBat = INVALID_INT;
+        c.mLastHr = INVALID_INT;
+        c.mLastRr = INVALID_STRING;
+        c.mLastHrDate = new Date().getTime();
         BluetoothGattDescriptor descriptor;
-        if (mCharBat != null) {
-            characteristicReadQueue.add(mCharBat);
+        if (c.mCharBat != null) {
+            c.characteristicReadQueue.add(c.mCharBat);
         }
-        if (mCharHr != null) {
-            descriptor = mCharHr
+        if (c.mCharHr != null) {
+            descriptor = c.mCharHr
                     .getDescriptor(UUID_CLIENT_CHARACTERISTIC_CONFIG);
             descriptor
                     .setValue(BluetoothGattDescriptor
                             .ENABLE_NOTIFICATION_VALUE);
-            descriptorWriteQueue.add(descriptor);
-            setCharacteristicNotification(mCharHr, true);
+            c.descriptorWriteQueue.add(descriptor);
+            setCharacteristicNotification(c, c.mCharHr, true);
         }
 
         // Start the queues. Do writeDescriptors before any
         // readCharacteristics
-        if (descriptorWriteQueue.size() > 0) {
-            if (Build.VERSION.SDK_INT >= 31 &&
-                    checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT) !=
-                            PackageManager.PERMISSION_GRANTED) {
-                Log.d(TAG, "startSession: " +
-                        "BLUETOOTH_CONNECT not granted");
-                return false;
-            }
-            mBluetoothGatt.writeDescriptor(descriptorWriteQueue.element());
-        } else if (characteristicReadQueue.size() > 0) {
-            mBluetoothGatt
-                    .readCharacteristic(characteristicReadQueue.element());
+        if (Build.VERSION.SDK_INT >= 31 &&
+                checkSelfPermission(Manifest.permission.BLUETOOTH_CONNECT) !=
+                        PackageManager.PERMISSION_GRANTED) {
+            Log.d(TAG, "startSession: " +
+                    "BLUETOOTH_CONNECT not granted");
+            return false;
+        }
+        if (c.descriptorWriteQueue.size() > 0) {
+            c.mBluetoothGatt.writeDescriptor(c.descriptorWriteQueue.element());
+        } else if (c.characteristicReadQueue.size() > 0) {
+            c.mBluetoothGatt
+                    .readCharacteristic(c.characteristicReadQueue.element());
         }
 
-        mSessionInProgress = true;
+        c.mSessionInProgress = true;
         return true;
     }
 
     /**
-     * Stops a session.
+     * Adds the session for a Connection to the database on
+     * mPersistenceThread.
+     *
+     * @param c The Connection.
      */
-    public void stopSession() {
-        Log.d(TAG, "stopSession");
-        // Clear any queues
-        while (descriptorWriteQueue.size() > 0) {
-            descriptorWriteQueue.remove();
-        }
-        while (characteristicReadQueue.size() > 0) {
-            characteristicReadQueue.remove();
+    private void postStartSession(Connection c) {
+        final long startDate = c.mSessionStartTime;
+        final String address = c.mAddress;
+        mPersistenceHandler.post(() -> {
+            if (c.mStoppedSessionStart == startDate) {
+                // Resumed after being stopped
+                c.mStoppedSessionStart = INVALID_DATE;
+            }
+            mWriteQueue.startSession(startDate, address);
+        });
+    }
+
+    /**
+     * Stops the session on a device.
+     *
+     * @param address The device address.
+     */
+    public void stopSession(String address) {
+        Connection c = address == null ? null : mConnections.get(address);
+        if (c != null) {
+            stopSession(c);
         }
+    }
+
+    /**
+     * Stops the session on a Connection.
+     *
+     * @param c The Connection.
+     */
+    private void stopSession(Connection c) {
+        Log.d(TAG, "stopSession: " + c.mAddress);
+        // Write any pending data for the session and close it on
+        // mPersistenceThread, not on the calling GATT or main thread. Values
+        // received from now on are dropped.
+        final boolean inProgress = c.mSessionInProgress;
+        final long startDate = c.mSessionStartTime;
+        c.mSessionInProgress = false;
+        mPersistenceHandler.post(() -> {
+            mSampleQueue.drain();
+            if (inProgress) {
+                mWriteQueue.stopSession(startDate);
+                c.mStoppedSessionStart = startDate;
+            }
+            c.mUpdateCoalescer.flush();
+        });
+        // Clear any queues
+        c.descriptorWriteQueue.clear();
+        c.characteristicReadQueue.clear();
         // Stop notifying for existing characteristics
-        if (mSessionInProgress && mCharHr != null) {
-            setCharacteristicNotification(mCharHr, false);
+        if (inProgress && c.mCharHr != null) {
+            setCharacteristicNotification(c, c.mCharHr, false);
         }
-        mCharBat = null;
-        mCharHr = null;
-        mLastHr = -1;
-        mLastRr = null;
-        mSessionInProgress = false;
+        c.mCharBat = null;
+        c.mCharHr = null;
+        c.mLastHr = -1;
+        c.mLastRr = null;
     }
 
     /**
@@ -950,3 +1904,4 @@ public class BCMBleService extends Service implements IConstants {
         }
     }
 }
+
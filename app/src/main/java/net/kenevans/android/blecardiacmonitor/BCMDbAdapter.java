@@ -2,13 +2,30 @@ package net.kenevans.android.blecardiacmonitor;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MergeCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
 import android.util.Log;
 
+import androidx.preference.PreferenceManager;
+
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * Simple database access helper class, modified from the Notes example
@@ -18,15 +35,395 @@ public class BCMDbAdapter implements IConstants {
     private DatabaseHelper mDbHelper;
     private SQLiteDatabase mDb;
     private final Context mCtx;
+    private File mDataDir;
+    private Durability mDurability = Durability.BALANCED;
+    /**
+     * Compiled statements for the writes done for each sample, so they are
+     * not built and prepared each time. They are not thread safe, so the
+     * methods using them are synchronized.
+     */
+    private SQLiteStatement mInsertData;
+    private SQLiteStatement mUpdateData;
+    private SQLiteStatement mInsertSession;
+    private SQLiteStatement mUpdateSession;
+    private SQLiteStatement mInsertRollup;
+    private SQLiteStatement mUpdateRollup;
+    /**
+     * Reused to collect the rollups for the rows being written.
+     */
+    private final RollupAccumulator mRollups = new RollupAccumulator();
+    /**
+     * The archive databases that have been opened, by simple name. They
+     * stay open until they are deleted or the adapter is closed, since
+     * cursors over them may be in use.
+     */
+    private final Map<String, SQLiteDatabase> mArchives = new HashMap<>();
+    /**
+     * The decoded series for recently plotted sessions, shared by all the
+     * adapters in the process, so going back to a session does not read
+     * it again. Changes to the data for a session invalidate its series.
+     */
+    private static final SessionSeriesCache sSeriesCache =
+            new SessionSeriesCache(Math.min(SESSION_SERIES_CACHE_SIZE,
+                    Runtime.getRuntime().maxMemory() / 8));
 
     /**
      * Database creation SQL statement
      */
-    private static final String DB_CREATE_DATA_TABLE = "create table "
-            + DB_DATA_TABLE + " (_id integer primary key autoincrement, "
-            + COL_DATE + " integer not null, " + COL_START_DATE
-            + " integer not null, " + COL_HR + " integer not null, " + COL_RR
-            + " text not null);";
+    private static final String DB_CREATE_DATA_TABLE =
+            getCreateDataTableSql(DB_DATA_TABLE, DB_VERSION);
+    private static final String DB_CREATE_GAP_TABLE = "create table "
+            + DB_GAP_TABLE + " (_id integer primary key autoincrement, "
+            + COL_START_DATE + " integer not null, " + COL_DEVICE + " text, "
+            + COL_GAP_START + " integer not null, " + COL_GAP_END
+            + " integer not null);";
+    private static final String DB_CREATE_SESSION_TABLE = "create table "
+            + DB_SESSION_TABLE + " (_id integer primary key autoincrement, "
+            + COL_START_DATE + " integer not null unique, " + COL_END_DATE
+            + " integer not null, " + COL_DEVICE + " text, "
+            + COL_SAMPLE_COUNT + " integer not null default 0, "
+            + COL_HR_COUNT + " integer not null default 0, " + COL_HR_SUM
+            + " integer not null default 0, " + COL_HR_MIN + " integer, "
+            + COL_HR_MAX + " integer, " + COL_RR_TOTAL
+            + " integer not null default 0);";
+    /**
+     * The summary columns of the session table computed from the data
+     * table, in the order of SESSION_SUMMARY_COLUMNS. HR values that are
+     * not positive are not valid.
+     */
+    private static final String SESSION_SUMMARY_SELECT = COL_START_DATE
+            + ", MAX(" + COL_DATE + "), MAX(" + COL_DEVICE + "), COUNT(*), "
+            + "SUM(" + COL_HR + " > 0), "
+            + "SUM(CASE WHEN " + COL_HR + " > 0 THEN " + COL_HR
+            + " ELSE 0 END), "
+            + "MIN(CASE WHEN " + COL_HR + " > 0 THEN " + COL_HR + " END), "
+            + "MAX(CASE WHEN " + COL_HR + " > 0 THEN " + COL_HR + " END), "
+            + "SUM(CASE WHEN " + COL_RR_COUNT + " > 0 THEN " + COL_RR_COUNT
+            + " ELSE 0 END)";
+    private static final String DB_CREATE_ROLLUP_TABLE = "create table "
+            + DB_ROLLUP_TABLE + " (_id integer primary key autoincrement, "
+            + COL_START_DATE + " integer not null, " + COL_RESOLUTION
+            + " integer not null, " + COL_BUCKET + " integer not null, "
+            + COL_SAMPLE_COUNT + " integer not null default 0, "
+            + COL_HR_COUNT + " integer not null default 0, " + COL_HR_SUM
+            + " integer not null default 0, " + COL_HR_MIN + " integer, "
+            + COL_HR_MAX + " integer, " + COL_RR_TOTAL
+            + " integer not null default 0, " + COL_RR_SUM
+            + " integer not null default 0, " + COL_RR_MIN + " integer, "
+            + COL_RR_MAX + " integer, unique (" + COL_START_DATE + ", "
+            + COL_RESOLUTION + ", " + COL_BUCKET + "));";
+    /**
+     * One row for each month whose data have been moved out of the data
+     * table. The start and end dates bound the start dates of the sessions
+     * in the month. The file name is null if the data were deleted rather
+     * than archived.
+     */
+    private static final String DB_CREATE_ARCHIVE_TABLE = "create table "
+            + DB_ARCHIVE_TABLE + " (_id integer primary key autoincrement, "
+            + COL_MONTH + " integer not null unique, " + COL_START_DATE
+            + " integer not null, " + COL_END_DATE + " integer not null, "
+            + COL_FILE_NAME + " text);";
+    static final String INSERT_DATA_SQL = "INSERT INTO " + DB_DATA_TABLE
+            + " (" + COL_DATE + ", " + COL_START_DATE + ", " + COL_HR + ", "
+            + COL_RR + ", " + COL_RR_COUNT + ", " + COL_DEVICE
+            + ") VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String UPDATE_DATA_SQL = "UPDATE " + DB_DATA_TABLE
+            + " SET " + COL_DATE + "=?, " + COL_START_DATE + "=?, " + COL_HR
+            + "=?, " + COL_RR + "=?, " + COL_RR_COUNT + "=? WHERE " + COL_ID
+            + "=?";
+    private static final String INSERT_SESSION_SQL = "INSERT OR IGNORE INTO "
+            + DB_SESSION_TABLE + " (" + COL_START_DATE + ", " + COL_END_DATE
+            + ", " + COL_DEVICE + ") VALUES (?1, ?1, ?2)";
+    /**
+     * Adds a SessionSummary to a session. The HR min and max are null if
+     * there is no valid HR, which leaves them unchanged.
+     */
+    private static final String UPDATE_SESSION_SQL = "UPDATE "
+            + DB_SESSION_TABLE + " SET "
+            + COL_END_DATE + "=MAX(" + COL_END_DATE + ", ?1), "
+            + COL_SAMPLE_COUNT + "=" + COL_SAMPLE_COUNT + "+?2, "
+            + COL_HR_COUNT + "=" + COL_HR_COUNT + "+?3, "
+            + COL_HR_SUM + "=" + COL_HR_SUM + "+?4, "
+            + COL_HR_MIN + "=MIN(IFNULL(" + COL_HR_MIN + ", ?5), IFNULL(?5, "
+            + COL_HR_MIN + ")), "
+            + COL_HR_MAX + "=MAX(IFNULL(" + COL_HR_MAX + ", ?6), IFNULL(?6, "
+            + COL_HR_MAX + ")), "
+            + COL_RR_TOTAL + "=" + COL_RR_TOTAL + "+?7 WHERE "
+            + COL_START_DATE + "=?8";
+    private static final String INSERT_ROLLUP_SQL = "INSERT OR IGNORE INTO "
+            + DB_ROLLUP_TABLE + " (" + COL_START_DATE + ", " + COL_RESOLUTION
+            + ", " + COL_BUCKET + ") VALUES (?1, ?2, ?3)";
+    /**
+     * Adds a RollupAccumulator.Bucket to a bucket. The mins and maxes are
+     * null if there are no valid values, which leaves them unchanged.
+     */
+    private static final String UPDATE_ROLLUP_SQL = "UPDATE "
+            + DB_ROLLUP_TABLE + " SET "
+            + COL_SAMPLE_COUNT + "=" + COL_SAMPLE_COUNT + "+?4, "
+            + COL_HR_COUNT + "=" + COL_HR_COUNT + "+?5, "
+            + COL_HR_SUM + "=" + COL_HR_SUM + "+?6, "
+            + COL_HR_MIN + "=MIN(IFNULL(" + COL_HR_MIN + ", ?7), IFNULL(?7, "
+            + COL_HR_MIN + ")), "
+            + COL_HR_MAX + "=MAX(IFNULL(" + COL_HR_MAX + ", ?8), IFNULL(?8, "
+            + COL_HR_MAX + ")), "
+            + COL_RR_TOTAL + "=" + COL_RR_TOTAL + "+?9, "
+            + COL_RR_SUM + "=" + COL_RR_SUM + "+?10, "
+            + COL_RR_MIN + "=MIN(IFNULL(" + COL_RR_MIN + ", ?11), IFNULL(?11, "
+            + COL_RR_MIN + ")), "
+            + COL_RR_MAX + "=MAX(IFNULL(" + COL_RR_MAX + ", ?12), IFNULL(?12, "
+            + COL_RR_MAX + ")) WHERE "
+            + COL_START_DATE + "=?1 AND " + COL_RESOLUTION + "=?2 AND "
+            + COL_BUCKET + "=?3";
+    /**
+     * Copies a row to an archive, keeping the row id so copying a session
+     * again after an interruption does not duplicate it.
+     */
+    private static final String ARCHIVE_DATA_SQL = "INSERT OR REPLACE INTO "
+            + DB_DATA_TABLE + " (" + COL_ID + ", " + COL_DATE + ", "
+            + COL_START_DATE + ", " + COL_HR + ", " + COL_RR + ", "
+            + COL_RR_COUNT + ", " + COL_DEVICE
+            + ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String SESSION_SUMMARY_COLUMNS = COL_START_DATE
+            + ", " + COL_END_DATE + ", " + COL_DEVICE + ", "
+            + COL_SAMPLE_COUNT + ", " + COL_HR_COUNT + ", " + COL_HR_SUM
+            + ", " + COL_HR_MIN + ", " + COL_HR_MAX + ", " + COL_RR_TOTAL;
+    /**
+     * Index by session that includes all the columns used when reading a
+     * session or listing the sessions, so those queries are answered from
+     * the index alone, in date order.
+     */
+    private static final String DB_CREATE_SESSION_INDEX =
+            "create index if not exists " + DB_SESSION_INDEX + " on "
+                    + DB_DATA_TABLE + " (" + COL_START_DATE + ", " + COL_DATE
+                    + ", " + COL_HR + ", " + COL_RR + ", " + COL_RR_COUNT
+                    + ", " + COL_DEVICE + ");";
+    /**
+     * Index by date for the queries over a range of dates.
+     */
+    private static final String DB_CREATE_DATE_INDEX =
+            "create index if not exists " + DB_DATE_INDEX + " on "
+                    + DB_DATA_TABLE + " (" + COL_DATE + ");";
+
+    /**
+     * A step in upgrading the database from one version to the next. It
+     * runs in the upgrade transaction and must keep the existing data.
+     */
+    private interface Migration {
+        void migrate(SQLiteDatabase db);
+    }
+
+    /**
+     * The steps for upgrading the database, in order. Element i upgrades
+     * from version i + 1 to version i + 2. To change the schema, add a step
+     * here and increment DB_VERSION.
+     */
+    private static final Migration[] MIGRATIONS = {
+            // 1 -> 2
+            DatabaseHelper::upgradeToVersion2,
+            // 2 -> 3
+            DatabaseHelper::upgradeToVersion3,
+            // 3 -> 4
+            db -> db.execSQL(DB_CREATE_GAP_TABLE),
+            // 4 -> 5
+            BCMDbAdapter::createIndexes,
+            // 5 -> 6
+            db -> {
+                db.execSQL(DB_CREATE_SESSION_TABLE);
+                rebuildSessions(db);
+            },
+            // 6 -> 7
+            db -> {
+                db.execSQL(DB_CREATE_ROLLUP_TABLE);
+                rebuildRollups(db, null, null);
+            },
+            // 7 -> 8
+            db -> db.execSQL(DB_CREATE_ARCHIVE_TABLE),
+    };
+
+    /**
+     * Trade-offs between durability and write speed. The database always
+     * uses write-ahead logging, so reading old sessions does not block
+     * recording. The profiles set the synchronous level, the number of WAL
+     * pages at which a commit checkpoints automatically, and the interval
+     * of the background checkpoint. Background checkpoints are PASSIVE, so
+     * they never wait for readers or the writer.
+     */
+    public enum Durability {
+        /**
+         * Syncs on every commit. Nothing committed is lost on a power
+         * failure.
+         */
+        STRICT("FULL", 1000, 30000),
+        /**
+         * Syncs only at checkpoints. The last commits may be lost on a power
+         * failure, but the database stays consistent.
+         */
+        BALANCED("NORMAL", 1000, 60000),
+        /**
+         * Never syncs and checkpoints less often. A power failure or OS
+         * crash may lose data or corrupt the database.
+         */
+        THROUGHPUT("OFF", 4000, 120000);
+
+        private final String synchronous;
+        private final int autoCheckpointPages;
+        private final long checkpointInterval;
+
+        Durability(String synchronous, int autoCheckpointPages,
+                   long checkpointInterval) {
+            this.synchronous = synchronous;
+            this.autoCheckpointPages = autoCheckpointPages;
+            this.checkpointInterval = checkpointInterval;
+        }
+
+        /**
+         * Gets the interval between background checkpoints.
+         *
+         * @return The interval (ms).
+         */
+        public long getCheckpointInterval() {
+            return checkpointInterval;
+        }
+
+        /**
+         * Gets the profile for a preference value, which is the lower-case
+         * name of the profile.
+         *
+         * @param value The value.
+         * @return The profile or BALANCED if the value is null or unknown.
+         */
+        public static Durability fromPreference(String value) {
+            if (value == null) {
+                return BALANCED;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.US));
+            } catch (IllegalArgumentException ex) {
+                return BALANCED;
+            }
+        }
+
+        /**
+         * Gets the profile set in the preferences.
+         *
+         * @param prefs The SharedPreferences.
+         * @return The profile.
+         */
+        public static Durability fromPreferences(SharedPreferences prefs) {
+            return fromPreference(prefs.getString(PREF_DB_DURABILITY, null));
+        }
+    }
+
+    /**
+     * How long data are kept in the data table and what is done with them
+     * after that. Data are handled a month at a time, by the month the
+     * session started. The session and rollup tables are kept, so old
+     * sessions are still listed and can be plotted from the rollups.
+     */
+    public static class RetentionPolicy {
+        private final int months;
+        private final boolean compact;
+
+        /**
+         * Constructor.
+         *
+         * @param months  The number of months before the current one to keep
+         *                in the data table or 0 to keep everything.
+         * @param compact Whether to delete the old data rather than move
+         *                them to an archive database for each month.
+         */
+        public RetentionPolicy(int months, boolean compact) {
+            this.months = Math.max(0, months);
+            this.compact = compact;
+        }
+
+        public int getMonths() {
+            return months;
+        }
+
+        public boolean isCompact() {
+            return compact;
+        }
+
+        /**
+         * Gets whether any data are to be moved out of the data table.
+         *
+         * @return If so.
+         */
+        public boolean isEnabled() {
+            return months > 0;
+        }
+
+        /**
+         * Gets the policy set in the preferences. Invalid values keep
+         * everything.
+         *
+         * @param prefs The SharedPreferences.
+         * @return The RetentionPolicy.
+         */
+        public static RetentionPolicy fromPreferences(
+                SharedPreferences prefs) {
+            int months = 0;
+            String value = prefs.getString(PREF_RETENTION_MONTHS, null);
+            if (value != null) {
+                try {
+                    months = Integer.parseInt(value.trim());
+                } catch (NumberFormatException ex) {
+                    months = 0;
+                }
+            }
+            return new RetentionPolicy(months, RETENTION_COMPACT.equals(
+                    prefs.getString(PREF_RETENTION_ACTION,
+                            RETENTION_ARCHIVE)));
+        }
+
+        @Override
+        public String toString() {
+            return months + " months, "
+                    + (compact ? RETENTION_COMPACT : RETENTION_ARCHIVE);
+        }
+    }
+
+    /**
+     * Accumulates the summary of the rows written to one session in a
+     * batch.
+     */
+    private static class SessionSummary {
+        private final long startDate;
+        private final String device;
+        private long endDate;
+        private int sampleCount;
+        private int hrCount;
+        private long hrSum;
+        private int hrMin = Integer.MAX_VALUE;
+        private int hrMax = Integer.MIN_VALUE;
+        private long rrTotal;
+
+        private SessionSummary(long startDate, String device) {
+            this.startDate = startDate;
+            this.device = device;
+            this.endDate = startDate;
+        }
+
+        /**
+         * Adds a row.
+         *
+         * @param date    The date.
+         * @param hr      The HR.
+         * @param rrCount The number of R-R values or INVALID_INT.
+         */
+        private void add(long date, int hr, int rrCount) {
+            sampleCount++;
+            if (date > endDate) endDate = date;
+            if (hr > 0) {
+                hrCount++;
+                hrSum += hr;
+                if (hr < hrMin) hrMin = hr;
+                if (hr > hrMax) hrMax = hr;
+            }
+            if (rrCount > 0) rrTotal += rrCount;
+        }
+    }
 
     /**
      * Constructor - takes the context to allow the database to be
@@ -66,304 +463,2080 @@ public class BCMDbAdapter implements IConstants {
                     return null;
                 }
             }
+            mDataDir = dataDir;
             mDbHelper = new DatabaseHelper(mCtx, dataDir.getPath()
                     + File.separator + DB_NAME);
             mDb = mDbHelper.getWritableDatabase();
+            setDurability(Durability.fromPreferences(PreferenceManager
+                    .getDefaultSharedPreferences(mCtx)));
+            compileStatements();
         } catch (Exception ex) {
             Utils.excMsg(mCtx, "Error opening database at " + dataDir, ex);
         }
         return this;
     }
 
-    public void close() {
-        mDbHelper.close();
-    }
-
     /**
-     * Create new data using the parameters provided. If the data is
-     * successfully created return the new rowId for that entry, otherwise
-     * return a -1 to indicate failure.
+     * Sets the durability profile for writes through this adapter.
      *
-     * @param date The date.
-     * @param startDate The start date.
-     * @param hr The HR.
-     * @param rr The RR.
-     * @return RowId or -1 on failure.
+     * @param durability The Durability.
      */
-    public long createData(long date, long startDate, int hr, String rr) {
+    public void setDurability(Durability durability) {
+        mDurability = durability;
         if (mDb == null) {
-            Utils.errMsg(mCtx, "Failed to create data. Database is null.");
-            return -1;
+            return;
         }
-        ContentValues values = new ContentValues();
-        values.put(COL_DATE, date);
-        values.put(COL_START_DATE, startDate);
-        values.put(COL_HR, hr);
-        values.put(COL_RR, rr);
-
-        return mDb.insert(DB_DATA_TABLE, null, values);
+        mDb.execSQL("PRAGMA synchronous=" + durability.synchronous);
+        // Returns the new value, so it cannot use execSQL
+        DatabaseUtils.longForQuery(mDb, "PRAGMA wal_autocheckpoint="
+                + durability.autoCheckpointPages, null);
+        Log.d(TAG, "setDurability: " + durability + " wal="
+                + mDb.isWriteAheadLoggingEnabled());
     }
 
     /**
-     * Delete all the data and recreate the table.
+     * Gets the durability profile.
      *
+     * @return The Durability.
      */
-    public void recreateDataTable() {
-        mDb.execSQL("DROP TABLE IF EXISTS " + DB_DATA_TABLE);
-        mDb.execSQL(DB_CREATE_DATA_TABLE);
+    public Durability getDurability() {
+        return mDurability;
     }
 
     /**
-     * Return a Cursor over the list of all items in the database.
+     * Copies as much of the write-ahead log into the database as can be
+     * done without waiting for readers or the writer.
      *
-     * @return Cursor over items.
+     * @return The number of WAL frames that have been copied or -1 if the
+     * checkpoint could not be done.
      */
-    public Cursor fetchAllData(String filter) {
+    public int checkpoint() {
         if (mDb == null) {
-            return null;
+            return -1;
         }
-        return mDb.query(DB_DATA_TABLE, new String[]{COL_ID, COL_DATE,
-                        COL_START_DATE, COL_HR, COL_RR}, filter, null, null,
-                null,
-                SORT_ASCENDING);
+        try (Cursor cursor = mDb.rawQuery("PRAGMA wal_checkpoint(PASSIVE)",
+                null)) {
+            // The columns are busy, log frames, and checkpointed frames
+            if (cursor != null && cursor.moveToFirst()
+                    && cursor.getInt(0) == 0) {
+                return cursor.getInt(2);
+            }
+        }
+        return -1;
+    }
+
+    public synchronized void close() {
+        releaseStatements();
+        closeArchives();
+        mDbHelper.close();
     }
 
     /**
-     * Delete the data with the given rowId.
-     *
-     * @param rowId id of data to delete
-     * @return true if deleted, false otherwise.
+     * Compiles the statements used for each sample.
      */
-    public boolean deleteData(long rowId) {
-        return mDb.delete(DB_DATA_TABLE, COL_ID + "=" + rowId, null) > 0;
+    private synchronized void compileStatements() {
+        mInsertData = mDb.compileStatement(INSERT_DATA_SQL);
+        mUpdateData = mDb.compileStatement(UPDATE_DATA_SQL);
+        mInsertSession = mDb.compileStatement(INSERT_SESSION_SQL);
+        mUpdateSession = mDb.compileStatement(UPDATE_SESSION_SQL);
+        mInsertRollup = mDb.compileStatement(INSERT_ROLLUP_SQL);
+        mUpdateRollup = mDb.compileStatement(UPDATE_ROLLUP_SQL);
     }
 
     /**
-     * Return a Cursor positioned at the data that matches the given rowId
+     * Releases the compiled statements.
+     */
+    private synchronized void releaseStatements() {
+        SQLiteStatement[] statements = {mInsertData, mUpdateData,
+                mInsertSession, mUpdateSession, mInsertRollup,
+                mUpdateRollup};
+        for (SQLiteStatement statement : statements) {
+            if (statement != null) {
+                statement.close();
+            }
+        }
+        mInsertData = mUpdateData = mInsertSession = mUpdateSession = null;
+        mInsertRollup = mUpdateRollup = null;
+    }
+
+    /**
+     * Gets the given values as selection arguments.
      *
-     * @param rowId id of entry to retrieve.
-     * @return Cursor positioned to matching entry, if found.
-     * @throws SQLException if entry could not be found/retrieved.
+     * @param values The values.
+     * @return The arguments.
      */
-    public Cursor fetchData(long rowId) throws SQLException {
-        Cursor mCursor = mDb.query(true, DB_DATA_TABLE, new String[]{COL_ID,
-                COL_DATE, COL_START_DATE, COL_HR, COL_RR}, COL_ID + "="
-                + rowId, null, null, null, null, null);
-        if (mCursor != null) {
-            mCursor.moveToFirst();
+    private static String[] args(long... values) {
+        String[] args = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            args[i] = Long.toString(values[i]);
         }
-        return mCursor;
+        return args;
     }
 
     /**
-     * Update the data using the details provided. The data to be updated is
-     * specified using the rowId, and it is altered to use the values passed in.
+     * Create new data using the parameters provided. If the data is
+     * successfully created return the new rowId for that entry, otherwise
+     * return a -1 to indicate failure.
      *
-     * @param rowId The rowId.
      * @param date The date.
      * @param startDate The start date.
      * @param hr The HR.
-     * @param rr The RR.
-     * @return Ehether successful.
+     * @param rr The RR as text, space separated or INVALID_STRING.
+     * @return RowId or -1 on failure.
+     * @throws NumberFormatException If the RR is not valid.
      */
-    public boolean updateData(long rowId, long date, long startDate, int hr,
-                              String rr) {
-        ContentValues values = new ContentValues();
-        values.put(COL_DATE, date);
-        values.put(COL_START_DATE, startDate);
-        values.put(COL_HR, hr);
-        values.put(COL_RR, rr);
-
-        return mDb.update(DB_DATA_TABLE, values, COL_ID + "=" + rowId, null) > 0;
+    public long createData(long date, long startDate, int hr, String rr) {
+        return createData(date, startDate, hr, rr, null);
     }
 
     /**
-     * Return a Cursor over the list of start and ending times, sorted in
-     * reverse order.
+     * Create new data using the parameters provided. If the data is
+     * successfully created return the new rowId for that entry, otherwise
+     * return a -1 to indicate failure.
      *
-     * @return Cursor over items.
+     * @param date      The date.
+     * @param startDate The start date.
+     * @param hr        The HR.
+     * @param rr        The RR as text, space separated or INVALID_STRING.
+     * @param device    The device address or null if unknown.
+     * @return RowId or -1 on failure.
+     * @throws NumberFormatException If the RR is not valid.
      */
-    public Cursor fetchAllSessionStartEndData() {
+    public synchronized long createData(long date, long startDate, int hr,
+                                        String rr, String device) {
         if (mDb == null) {
-            return null;
+            Utils.errMsg(mCtx, "Failed to create data. Database is null.");
+            return -1;
+        }
+        byte[] blob = RrUtils.parseToBlob(rr);
+        long id;
+        mDb.beginTransaction();
+        try {
+            id = insertData(date, startDate, hr, blob, device);
+            if (id >= 0) {
+                SessionSummary summary = new SessionSummary(startDate,
+                        device);
+                summary.add(date, hr, RrUtils.getCount(blob));
+                addToSession(summary);
+                mRollups.clear();
+                mRollups.add(startDate, date, hr, RrUtils.decode(blob), 0,
+                        RrUtils.getCount(blob));
+                addToRollups(mDb, mRollups, mInsertRollup, mUpdateRollup);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
         }
-        return mDb.query(DB_DATA_TABLE, new String[]{COL_START_DATE,
-                        COL_END_DATE}, null, null, COL_START_DATE, null,
-                SORT_DESCENDING);
+        sSeriesCache.invalidate(startDate);
+        return id;
     }
 
-    // /////////////////////////////////////////////////////////////////////////
-    // Get data for start date only (ForStartDate) ////////////////////////////
-    // /////////////////////////////////////////////////////////////////////////
-
     /**
-     * Deletes all data in the database for the interval corresponding to the
-     * given the start date.
+     * Create new data for the first count entries of the given arrays in a
+     * single transaction. The RR values for entry i are the rrCounts[i]
+     * values starting at rrValues[rrOffsets[i]]. The session table is
+     * updated once for each session and the rollup table once for each
+     * bucket in the same transaction.
      *
-     * @param start The start date.
-     * @return Whether successful.
+     * @param dates      The dates.
+     * @param startDates The start dates.
+     * @param hrs        The HRs.
+     * @param devices    The device addresses.
+     * @param rrValues   The RR values for all entries.
+     * @param rrOffsets  The offset of the RR values for each entry.
+     * @param rrCounts   The number of RR values for each entry or
+     *                   INVALID_INT.
+     * @param count      The number of entries to write.
+     * @return The number of rows created.
      */
-    public boolean deleteAllDataForStartDate(long start) {
-        return mDb.delete(DB_DATA_TABLE,
-                COL_START_DATE + "=" + start, null) > 0;
+    public synchronized int createData(long[] dates, long[] startDates,
+                                       int[] hrs, String[] devices,
+                                       int[] rrValues, int[] rrOffsets,
+                                       int[] rrCounts, int count) {
+        if (mDb == null) {
+            Log.e(TAG, "Failed to create data. Database is null.");
+            return 0;
+        }
+        int nCreated = 0;
+        List<SessionSummary> summaries = new ArrayList<>(1);
+        SessionSummary summary = null;
+        mRollups.clear();
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                if (insertData(dates[i], startDates[i], hrs[i],
+                        RrUtils.encode(rrValues, rrOffsets[i], rrCounts[i]),
+                        devices[i]) >= 0) {
+                    nCreated++;
+                    if (summary == null || summary.startDate != startDates[i]) {
+                        summary = null;
+                        for (SessionSummary s : summaries) {
+                            if (s.startDate == startDates[i]) {
+                                summary = s;
+                                break;
+                            }
+                        }
+                        if (summary == null) {
+                            summary = new SessionSummary(startDates[i],
+                                    devices[i]);
+                            summaries.add(summary);
+                        }
+                    }
+                    summary.add(dates[i], hrs[i], rrCounts[i]);
+                    mRollups.add(startDates[i], dates[i], hrs[i], rrValues,
+                            rrOffsets[i], rrCounts[i]);
+                }
+            }
+            for (SessionSummary s : summaries) {
+                addToSession(s);
+            }
+            addToRollups(mDb, mRollups, mInsertRollup, mUpdateRollup);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        for (SessionSummary s : summaries) {
+            sSeriesCache.invalidate(s.startDate);
+        }
+        return nCreated;
     }
 
     /**
-     * Return a Cursor over the HR items in the database having the given the
-     * start date.
+     * Inserts a row in the data table with the compiled insert statement.
      *
-     * @param date The start date.
-     * @return Cursor over items.
+     * @param date      The date.
+     * @param startDate The start date.
+     * @param hr        The HR.
+     * @param blob      The RR BLOB or null if there is no RR.
+     * @param device    The device address or null if unknown.
+     * @return RowId or -1 on failure.
      */
-    public Cursor fetchAllHrDateDataForStartDate(long date) {
-        if (mDb == null) {
-            return null;
+    private long insertData(long date, long startDate, int hr, byte[] blob,
+                            String device) {
+        SQLiteStatement statement = mInsertData;
+        statement.bindLong(1, date);
+        statement.bindLong(2, startDate);
+        statement.bindLong(3, hr);
+        bindRr(statement, 4, blob);
+        if (device == null) {
+            statement.bindNull(6);
+        } else {
+            statement.bindString(6, device);
+        }
+        try {
+            return statement.executeInsert();
+        } catch (SQLException ex) {
+            Log.e(TAG, "insertData: Failed to insert data", ex);
+            return -1;
         }
-        return mDb.query(DB_DATA_TABLE, new String[]{COL_DATE, COL_HR},
-                COL_START_DATE + "=" + date, null, null, null,
-                SORT_ASCENDING);
     }
 
     /**
-     * Return a Cursor over the HR and RR items in the database having the given
-     * the start date
+     * Binds the RR BLOB and count to the given statement.
      *
-     * @param date The start date.
-     * @return Cursor over items.
+     * @param statement The SQLiteStatement.
+     * @param index     The index of the RR parameter. The count is the
+     *                  next one.
+     * @param blob      The RR BLOB or null if there is no RR.
      */
-    public Cursor fetchAllHrRrDateDataForStartDate(long date) {
-        if (mDb == null) {
-            return null;
+    private static void bindRr(SQLiteStatement statement, int index,
+                               byte[] blob) {
+        if (blob == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindBlob(index, blob);
         }
-        return mDb
-                .query(DB_DATA_TABLE,
-                        new String[]{COL_DATE, COL_HR, COL_RR},
-                        COL_START_DATE + "=" + date, null, null,
-                        null, SORT_ASCENDING);
+        statement.bindLong(index + 1, RrUtils.getCount(blob));
     }
 
-    // /////////////////////////////////////////////////////////////////////////
-    // Get data for start date through end date (ForDate) /////////////////////
-    // /////////////////////////////////////////////////////////////////////////
-
     /**
-     * Return a Cursor over the HR items in the database for a given start and
-     * end times.
+     * Delete all the data and recreate the table. The gaps, sessions,
+     * rollups, and archives are deleted as well.
      *
-     * @param start The start time.
-     * @param end The end time.
-     * @return Cursor over items.
      */
-    public Cursor fetchAllHrDateDataForDates(long start, long end) {
-        if (mDb == null) {
-            return null;
+    public void recreateDataTable() {
+        deleteArchives();
+        mDb.execSQL("DROP TABLE IF EXISTS " + DB_ARCHIVE_TABLE);
+        mDb.execSQL(DB_CREATE_ARCHIVE_TABLE);
+        mDb.execSQL("DROP TABLE IF EXISTS " + DB_DATA_TABLE);
+        mDb.execSQL(DB_CREATE_DATA_TABLE);
+        mDb.execSQL("DROP TABLE IF EXISTS " + DB_GAP_TABLE);
+        mDb.execSQL(DB_CREATE_GAP_TABLE);
+        mDb.execSQL("DROP TABLE IF EXISTS " + DB_SESSION_TABLE);
+        mDb.execSQL(DB_CREATE_SESSION_TABLE);
+        mDb.execSQL("DROP TABLE IF EXISTS " + DB_ROLLUP_TABLE);
+        mDb.execSQL(DB_CREATE_ROLLUP_TABLE);
+        createIndexes(mDb);
+        sSeriesCache.invalidateAll();
+    }
+
+    /**
+     * Writes the samples in sample journals left by a process that was
+     * killed, or kept after a batch failed, to the database and deletes the
+     * journals. Journals that are open in this process are being written by
+     * the service and are skipped. Called by the service on its persistence
+     * thread, not when the database is opened, since it may take a while.
+     */
+    public synchronized void replayJournals() {
+        if (mDb == null || mDataDir == null) {
+            return;
+        }
+        File[] files = mDataDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!SampleJournal.isJournal(file) || SampleJournal.isOpen(file)) {
+                continue;
+            }
+            try {
+                SampleJournal journal = new SampleJournal(file, INVALID_DATE,
+                        null);
+                int nRows = replayJournal(journal);
+                journal.delete();
+                Log.d(TAG, "replayJournals: " + nRows + " rows from "
+                        + file.getName());
+            } catch (Exception ex) {
+                Log.e(TAG, "replayJournals: Failed to replay " + file, ex);
+            }
         }
-        return mDb.query(DB_DATA_TABLE, new String[]{COL_DATE, COL_HR},
-                COL_DATE + ">=" + start + " AND " + COL_DATE
-                        + "<=" + end, null, null, null,
-                SORT_ASCENDING);
     }
 
     /**
-     * Return a Cursor over the HR and RR items in the database for a given
-     * start and end times.
+     * Writes the samples in a journal after the ones it records as written
+     * to the database. Samples already in the data table are skipped. They
+     * were written before the journal could record it, or in batches after
+     * one that failed.
      *
-     * @param start The start time.
-     * @param end The end time.
-     * @return Cursor over items.
+     * @param journal The SampleJournal.
+     * @return The number of rows created.
+     * @throws IOException If the journal cannot be read.
      */
-    public Cursor fetchAllHrRrDateDataForDates(long start, long end) {
-        if (mDb == null) {
-            return null;
+    private int replayJournal(SampleJournal journal) throws IOException {
+        long startDate = journal.getStartDate();
+        long[] written;
+        int size = DB_WRITE_BATCH_SIZE;
+        long[] dates = new long[size];
+        long[] startDates = new long[size];
+        int[] hrs = new int[size];
+        String[] devices = new String[size];
+        int[] rrValues = new int[SampleJournal.MAX_RR * size];
+        int[] rrOffsets = new int[size];
+        int[] rrCounts = new int[size];
+        Arrays.fill(startDates, startDate);
+        Arrays.fill(devices, journal.getDevice());
+        long from = journal.getIndexedCount();
+        int nRows = 0, nRead, n;
+        while ((nRead = journal.read(from, size, dates, hrs, rrValues,
+                rrOffsets, rrCounts)) > 0) {
+            from += nRead;
+            written = getDataDates(startDate, dates[0], dates[nRead - 1]);
+            n = 0;
+            for (int i = 0; i < nRead; i++) {
+                if (Arrays.binarySearch(written, dates[i]) >= 0) {
+                    continue;
+                }
+                dates[n] = dates[i];
+                hrs[n] = hrs[i];
+                rrOffsets[n] = rrOffsets[i];
+                rrCounts[n] = rrCounts[i];
+                n++;
+            }
+            nRows += createData(dates, startDates, hrs, devices, rrValues,
+                    rrOffsets, rrCounts, n);
+            journal.setIndexedCount(from);
         }
-        return mDb.query(DB_DATA_TABLE,
-                new String[]{COL_DATE, COL_HR, COL_RR}, COL_DATE + ">="
-                        + start + " AND " + COL_DATE + "<="
-                        + end, null, null, null, SORT_ASCENDING);
+        return nRows;
     }
 
-    // /////////////////////////////////////////////////////////////////////////
-    // Get data for start date and later (StartingAtDate) /////////////////////
-    // /////////////////////////////////////////////////////////////////////////
+    /**
+     * Gets the dates of the rows in the data table for a session in a range
+     * of dates.
+     *
+     * @param startDate The start date of the session.
+     * @param from      The first date.
+     * @param to        The last date.
+     * @return The dates in ascending order.
+     */
+    private long[] getDataDates(long startDate, long from, long to) {
+        try (Cursor cursor = mDb.query(DB_DATA_TABLE,
+                new String[]{COL_DATE}, COL_START_DATE + "=? AND "
+                        + COL_DATE + ">=? AND " + COL_DATE + "<=?",
+                args(startDate, from, to), null, null, COL_DATE
+                        + " ASC")) {
+            if (cursor == null) {
+                return new long[0];
+            }
+            long[] dates = new long[cursor.getCount()];
+            int i = 0;
+            while (cursor.moveToNext()) {
+                dates[i++] = cursor.getLong(0);
+            }
+            return dates;
+        }
+    }
 
     /**
-     * Return a Cursor over the list of all items in the database for a given
-     * time and later.
+     * Adds a session with no data to the session table if it is not there,
+     * so it is listed while it is in progress.
      *
-     * @param date The time.
-     * @return Cursor over items.
+     * @param startDate The start date.
+     * @param device    The device address or null if unknown.
      */
-    public Cursor fetchAllDataStartingAtDate(long date) {
+    public synchronized void createSession(long startDate, String device) {
         if (mDb == null) {
-            return null;
+            return;
         }
-        return mDb.query(DB_DATA_TABLE, new String[]{COL_ID, COL_DATE,
-                        COL_START_DATE, COL_HR, COL_RR},
-                COL_DATE + ">=" + date, null, null, null,
-                SORT_ASCENDING);
+        insertSession(startDate, device);
     }
 
     /**
-     * Return a Cursor over the HR and RR items in the database for a given time
-     * and later.
+     * Adds a session with no data to the session table if it is not there.
      *
-     * @param date The time.
-     * @return Cursor over items.
+     * @param startDate The start date.
+     * @param device    The device address or null if unknown.
      */
-    public Cursor fetchAllHrRrDateDataStartingAtDate(long date) {
-        if (mDb == null) {
-            return null;
+    private void insertSession(long startDate, String device) {
+        SQLiteStatement statement = mInsertSession;
+        statement.bindLong(1, startDate);
+        if (device == null) {
+            statement.bindNull(2);
+        } else {
+            statement.bindString(2, device);
         }
-        return mDb
-                .query(DB_DATA_TABLE,
-                        new String[]{COL_DATE, COL_HR, COL_RR}, COL_DATE
-                                + ">=" + date, null, null, null,
-                        SORT_ASCENDING);
+        statement.executeInsert();
     }
 
     /**
-     * Clears the working database, attaches the new one, copies all data,
-     * detaches the old one.
+     * Removes a session from the session table if it has no data. Call
+     * when a session stops.
      *
-     * @param newFileName Path to the new database.
-     * @param alias       Name for the new database or null to use "SourceDb"
+     * @param startDate The start date.
      */
-    public void replaceDatabase(String newFileName, String alias) {
-        if (alias == null) alias = "TEMP_DB";
-        // Clear the working database
-        recreateDataTable();
-        // Attach the new database
-        mDb.execSQL("ATTACH DATABASE '" + newFileName
-                + "' AS " + alias);
-        // Copy the data
-        mDb.execSQL("INSERT INTO " + DB_DATA_TABLE + " SELECT * FROM "
-                + alias + "." + DB_DATA_TABLE);
-        // Detach the new database
-        mDb.execSQL("DETACH DATABASE " + alias);
+    public void deleteSessionIfEmpty(long startDate) {
+        if (mDb == null) {
+            return;
+        }
+        mDb.delete(DB_SESSION_TABLE, COL_START_DATE + "=? AND "
+                + COL_SAMPLE_COUNT + "=0", args(startDate));
     }
 
     /**
-     * A SQLiteOpenHelper helper to help manage database creation and version
-     * management.
+     * Adds the summary of rows that have been written to a session to the
+     * session table, adding the session if it is not there.
+     *
+     * @param summary The SessionSummary.
      */
-    private static class DatabaseHelper extends SQLiteOpenHelper {
-        private DatabaseHelper(Context context, String dir) {
-            super(context, dir, null, DB_VERSION);
+    private void addToSession(SessionSummary summary) {
+        insertSession(summary.startDate, summary.device);
+        SQLiteStatement statement = mUpdateSession;
+        statement.bindLong(1, summary.endDate);
+        statement.bindLong(2, summary.sampleCount);
+        statement.bindLong(3, summary.hrCount);
+        statement.bindLong(4, summary.hrSum);
+        if (summary.hrCount > 0) {
+            statement.bindLong(5, summary.hrMin);
+            statement.bindLong(6, summary.hrMax);
+        } else {
+            statement.bindNull(5);
+            statement.bindNull(6);
+        }
+        statement.bindLong(7, summary.rrTotal);
+        statement.bindLong(8, summary.startDate);
+        statement.executeUpdateDelete();
+    }
+
+    /**
+     * Recomputes the session table from the data table. Used for databases
+     * from before there was a session table and after replacing the data.
+     * Sessions that have been archived would be lost, so only use when
+     * there are no archives.
+     *
+     * @param db The database.
+     */
+    private static void rebuildSessions(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            db.delete(DB_SESSION_TABLE, null, null);
+            db.execSQL("INSERT INTO " + DB_SESSION_TABLE + " ("
+                    + SESSION_SUMMARY_COLUMNS + ") SELECT "
+                    + SESSION_SUMMARY_SELECT + " FROM " + DB_DATA_TABLE
+                    + " GROUP BY " + COL_START_DATE);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Recomputes the entry in the session table for one session from the
+     * data table. The entry is removed if there is no data.
+     *
+     * @param startDate The start date.
+     */
+    private void rebuildSession(long startDate) {
+        mDb.delete(DB_SESSION_TABLE, COL_START_DATE + "=?", args(startDate));
+        mDb.execSQL("INSERT INTO " + DB_SESSION_TABLE + " ("
+                + SESSION_SUMMARY_COLUMNS + ") SELECT "
+                + SESSION_SUMMARY_SELECT + " FROM " + DB_DATA_TABLE
+                + " WHERE " + COL_START_DATE + "=? GROUP BY "
+                + COL_START_DATE, new Object[]{startDate});
+    }
+
+    /**
+     * Adds the buckets in a RollupAccumulator to the rollup table, adding
+     * any buckets that are not there.
+     *
+     * @param db       The database.
+     * @param rollups  The RollupAccumulator.
+     * @param insert   The compiled INSERT_ROLLUP_SQL.
+     * @param update   The compiled UPDATE_ROLLUP_SQL.
+     */
+    private static void addToRollups(SQLiteDatabase db,
+                                     RollupAccumulator rollups,
+                                     SQLiteStatement insert,
+                                     SQLiteStatement update) {
+        RollupAccumulator.Bucket b;
+        for (int i = 0; i < rollups.size(); i++) {
+            b = rollups.get(i);
+            insert.bindLong(1, b.startDate);
+            insert.bindLong(2, b.resolution);
+            insert.bindLong(3, b.bucket);
+            insert.executeInsert();
+            update.bindLong(1, b.startDate);
+            update.bindLong(2, b.resolution);
+            update.bindLong(3, b.bucket);
+            update.bindLong(4, b.sampleCount);
+            update.bindLong(5, b.hrCount);
+            update.bindLong(6, b.hrSum);
+            bindMinMax(update, 7, b.hrCount, b.hrMin, b.hrMax);
+            update.bindLong(9, b.rrCount);
+            update.bindLong(10, b.rrSum);
+            bindMinMax(update, 11, b.rrCount, b.rrMin, b.rrMax);
+            update.executeUpdateDelete();
+        }
+    }
+
+    /**
+     * Binds a min and max to consecutive parameters, or nulls if there are
+     * no values.
+     *
+     * @param statement The SQLiteStatement.
+     * @param index     The index of the min. The max is the next one.
+     * @param count     The number of values.
+     * @param min       The min.
+     * @param max       The max.
+     */
+    private static void bindMinMax(SQLiteStatement statement, int index,
+                                   int count, int min, int max) {
+        if (count > 0) {
+            statement.bindLong(index, min);
+            statement.bindLong(index + 1, max);
+        } else {
+            statement.bindNull(index);
+            statement.bindNull(index + 1);
+        }
+    }
+
+    /**
+     * Recomputes the rollup table from the data table for the rows that
+     * match a filter on the start date, or for all rows. The rows are read
+     * in chunks, so the whole table is never in a single cursor window.
+     *
+     * @param db     The database.
+     * @param filter The filter, which may only use the start date, or null
+     *               for all rows.
+     * @param args   The arguments for the filter.
+     */
+    private static void rebuildRollups(SQLiteDatabase db, String filter,
+                                       String[] args) {
+        long start = SystemClock.elapsedRealtime();
+        RollupAccumulator rollups = new RollupAccumulator();
+        int[] rrValues = new int[HeartRateValues.MAX_RR_VALUES];
+        long lastId = -1;
+        int nRows = 0, nChunk, rrCount;
+        byte[] blob;
+        String chunkFilter = COL_ID + ">?"
+                + (filter == null ? "" : " AND (" + filter + ")");
+        String[] chunkArgs = new String[1 + (args == null ? 0 : args.length)];
+        if (args != null) {
+            System.arraycopy(args, 0, chunkArgs, 1, args.length);
+        }
+        db.beginTransaction();
+        try (SQLiteStatement insert = db.compileStatement(INSERT_ROLLUP_SQL);
+             SQLiteStatement update = db.compileStatement(UPDATE_ROLLUP_SQL)) {
+            db.delete(DB_ROLLUP_TABLE, filter, args);
+            do {
+                nChunk = 0;
+                rollups.clear();
+                chunkArgs[0] = Long.toString(lastId);
+                try (Cursor cursor = db.query(DB_DATA_TABLE,
+                        new String[]{COL_ID, COL_DATE, COL_START_DATE, COL_HR,
+                                COL_RR}, chunkFilter, chunkArgs, null, null,
+                        COL_ID + " ASC",
+                        Integer.toString(DB_MIGRATION_CHUNK_SIZE))) {
+                    while (cursor.moveToNext()) {
+                        lastId = cursor.getLong(0);
+                        blob = cursor.getBlob(4);
+                        if (RrUtils.getCount(blob) > rrValues.length) {
+                            rrValues = new int[RrUtils.getCount(blob)];
+                        }
+                        rrCount = RrUtils.decode(blob, rrValues);
+                        rollups.add(cursor.getLong(2), cursor.getLong(1),
+                                cursor.getInt(3), rrValues, 0, rrCount);
+                        nChunk++;
+                    }
+                }
+                addToRollups(db, rollups, insert, update);
+                nRows += nChunk;
+            } while (nChunk > 0);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.d(TAG, "rebuildRollups: " + nRows + " rows in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    /**
+     * Recomputes the rollups for one session from the data table.
+     *
+     * @param startDate The start date.
+     */
+    private void rebuildRollups(long startDate) {
+        rebuildRollups(mDb, COL_START_DATE + "=?", args(startDate));
+    }
+
+    /**
+     * Gets the start date of the row with the given id.
+     *
+     * @param rowId The id.
+     * @return The start date or INVALID_DATE if there is no such row.
+     */
+    private long getStartDate(long rowId) {
+        try (Cursor cursor = mDb.query(DB_DATA_TABLE,
+                new String[]{COL_START_DATE}, COL_ID + "=?", args(rowId),
+                null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getLong(0);
+            }
+        }
+        return INVALID_DATE;
+    }
+
+    /**
+     * Creates the indexes on the data table if they do not exist.
+     *
+     * @param db The database.
+     */
+    static void createIndexes(SQLiteDatabase db) {
+        db.execSQL(DB_CREATE_SESSION_INDEX);
+        db.execSQL(DB_CREATE_DATE_INDEX);
+    }
+
+    /**
+     * Records a gap in the data for a session when the device was
+     * disconnected.
+     *
+     * @param startDate The start date of the session.
+     * @param device    The device address.
+     * @param gapStart  The date the device disconnected.
+     * @param gapEnd    The date it reconnected or reconnecting was stopped.
+     * @return RowId or -1 on failure.
+     */
+    public long createGap(long startDate, String device, long gapStart,
+                          long gapEnd) {
+        if (mDb == null) {
+            Log.e(TAG, "Failed to create gap. Database is null.");
+            return -1;
+        }
+        ContentValues values = new ContentValues();
+        values.put(COL_START_DATE, startDate);
+        values.put(COL_DEVICE, device);
+        values.put(COL_GAP_START, gapStart);
+        values.put(COL_GAP_END, gapEnd);
+
+        return mDb.insert(DB_GAP_TABLE, null, values);
+    }
+
+    /**
+     * Return a Cursor over the gaps for the session with the given start
+     * date, sorted by the start of the gap.
+     *
+     * @param date The start date.
+     * @return Cursor over items.
+     */
+    public Cursor fetchGapsForStartDate(long date) {
+        if (mDb == null) {
+            return null;
+        }
+        return mDb.query(DB_GAP_TABLE, new String[]{COL_GAP_START,
+                        COL_GAP_END}, COL_START_DATE + "=?", args(date), null,
+                null, COL_GAP_START + " ASC");
+    }
+
+    /**
+     * Return a Cursor over the gaps that end at the given time or later for
+     * the given device, sorted by the start of the gap.
+     *
+     * @param date   The time.
+     * @param device The device address or null for all devices.
+     * @return Cursor over items.
+     */
+    public Cursor fetchGapsStartingAtDate(long date, String device) {
+        if (mDb == null) {
+            return null;
+        }
+        String filter = COL_GAP_END + ">=?";
+        String[] args = args(date);
+        if (device != null) {
+            filter += " AND (" + COL_DEVICE + "=? OR " + COL_DEVICE
+                    + " IS NULL)";
+            args = new String[]{args[0], device};
+        }
+        return mDb.query(DB_GAP_TABLE, new String[]{COL_GAP_START,
+                        COL_GAP_END}, filter, args, null, null,
+                COL_GAP_START + " ASC");
+    }
+
+    /**
+     * Return a Cursor over the list of all items in the database, including
+     * the archives.
+     *
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllData(String filter) {
+        if (mDb == null) {
+            return null;
+        }
+        return queryData(new String[]{COL_ID, COL_DATE, COL_START_DATE,
+                        COL_HR, COL_RR, COL_RR_COUNT, COL_DEVICE}, filter,
+                null, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Delete the data with the given rowId.
+     *
+     * @param rowId id of data to delete
+     * @return true if deleted, false otherwise.
+     */
+    public boolean deleteData(long rowId) {
+        long startDate = getStartDate(rowId);
+        mDb.beginTransaction();
+        try {
+            boolean deleted = mDb.delete(DB_DATA_TABLE, COL_ID + "=?",
+                    args(rowId)) > 0;
+            if (deleted) {
+                rebuildSession(startDate);
+                rebuildRollups(startDate);
+            }
+            mDb.setTransactionSuccessful();
+            return deleted;
+        } finally {
+            mDb.endTransaction();
+            sSeriesCache.invalidate(startDate);
+        }
+    }
+
+    /**
+     * Return a Cursor positioned at the data that matches the given rowId
+     *
+     * @param rowId id of entry to retrieve.
+     * @return Cursor positioned to matching entry, if found.
+     * @throws SQLException if entry could not be found/retrieved.
+     */
+    public Cursor fetchData(long rowId) throws SQLException {
+        Cursor mCursor = mDb.query(true, DB_DATA_TABLE, new String[]{COL_ID,
+                COL_DATE, COL_START_DATE, COL_HR, COL_RR, COL_RR_COUNT,
+                COL_DEVICE}, COL_ID + "=?", args(rowId), null, null, null,
+                null);
+        if (mCursor != null) {
+            mCursor.moveToFirst();
+        }
+        return mCursor;
+    }
+
+    /**
+     * Update the data using the details provided. The data to be updated is
+     * specified using the rowId, and it is altered to use the values passed in.
+     *
+     * @param rowId The rowId.
+     * @param date The date.
+     * @param startDate The start date.
+     * @param hr The HR.
+     * @param rr The RR as text, space separated or INVALID_STRING.
+     * @return Ehether successful.
+     * @throws NumberFormatException If the RR is not valid.
+     */
+    public synchronized boolean updateData(long rowId, long date,
+                                           long startDate, int hr,
+                                           String rr) {
+        SQLiteStatement statement = mUpdateData;
+        statement.bindLong(1, date);
+        statement.bindLong(2, startDate);
+        statement.bindLong(3, hr);
+        bindRr(statement, 4, RrUtils.parseToBlob(rr));
+        statement.bindLong(6, rowId);
+
+        long oldStartDate = getStartDate(rowId);
+        mDb.beginTransaction();
+        try {
+            boolean updated = statement.executeUpdateDelete() > 0;
+            if (updated) {
+                rebuildSession(oldStartDate);
+                rebuildRollups(oldStartDate);
+                if (startDate != oldStartDate) {
+                    rebuildSession(startDate);
+                    rebuildRollups(startDate);
+                }
+            }
+            mDb.setTransactionSuccessful();
+            return updated;
+        } finally {
+            mDb.endTransaction();
+            sSeriesCache.invalidate(oldStartDate);
+            sSeriesCache.invalidate(startDate);
+        }
+    }
+
+    /**
+     * Return a Cursor over the list of start and ending times, devices, and
+     * summaries, sorted in reverse order. This reads the session table, so
+     * it is one row per session rather than a scan of the data.
+     *
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllSessionStartEndData() {
+        if (mDb == null) {
+            return null;
+        }
+        return mDb.query(DB_SESSION_TABLE, new String[]{COL_START_DATE,
+                        COL_END_DATE, COL_DEVICE, COL_SAMPLE_COUNT,
+                        COL_HR_COUNT, COL_HR_SUM, COL_HR_MIN, COL_HR_MAX,
+                        COL_RR_TOTAL}, null, null, null, null,
+                COL_START_DATE + " DESC");
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // Get data for start date only (ForStartDate) ////////////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Deletes all data in the database for the interval corresponding to the
+     * given the start date. A journal kept for the session is deleted too,
+     * so it is not replayed, unless the service is writing to it.
+     *
+     * @param start The start date.
+     * @return Whether successful.
+     */
+    public boolean deleteAllDataForStartDate(long start) {
+        if (mDataDir != null) {
+            File journal = SampleJournal.getFile(mDataDir, start);
+            if (journal.exists() && !SampleJournal.isOpen(journal)
+                    && !journal.delete()) {
+                Log.w(TAG, "deleteAllDataForStartDate: Failed to delete "
+                        + journal.getName());
+            }
+        }
+        String[] args = args(start);
+        SQLiteDatabase db = getDataDb(start);
+        boolean deleted = db != mDb
+                && db.delete(DB_DATA_TABLE, COL_START_DATE + "=?", args) > 0;
+        mDb.delete(DB_GAP_TABLE, COL_START_DATE + "=?", args);
+        mDb.delete(DB_SESSION_TABLE, COL_START_DATE + "=?", args);
+        mDb.delete(DB_ROLLUP_TABLE, COL_START_DATE + "=?", args);
+        deleted = mDb.delete(DB_DATA_TABLE, COL_START_DATE + "=?", args) > 0
+                || deleted;
+        sSeriesCache.invalidate(start);
+        return deleted;
+    }
+
+    /**
+     * Return a Cursor over the HR items in the database having the given the
+     * start date.
+     *
+     * @param date The start date.
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllHrDateDataForStartDate(long date) {
+        if (mDb == null) {
+            return null;
+        }
+        return getDataDb(date).query(DB_DATA_TABLE,
+                new String[]{COL_DATE, COL_HR}, COL_START_DATE + "=?",
+                args(date), null, null, SORT_ASCENDING);
+    }
+
+    /**
+     * Return a Cursor over the HR and RR items in the database having the given
+     * the start date
+     *
+     * @param date The start date.
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllHrRrDateDataForStartDate(long date) {
+        if (mDb == null) {
+            return null;
+        }
+        return getDataDb(date)
+                .query(DB_DATA_TABLE,
+                        new String[]{COL_DATE, COL_HR, COL_RR, COL_RR_COUNT},
+                        COL_START_DATE + "=?", args(date), null,
+                        null, SORT_ASCENDING);
+    }
+
+    /**
+     * Gets the end date of a session from the session table.
+     *
+     * @param startDate The start date.
+     * @return The end date or INVALID_DATE if the session is not there.
+     */
+    public long getSessionEndDate(long startDate) {
+        if (mDb == null) {
+            return INVALID_DATE;
+        }
+        try (Cursor cursor = mDb.query(DB_SESSION_TABLE,
+                new String[]{COL_END_DATE}, COL_START_DATE + "=?",
+                args(startDate), null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getLong(0);
+            }
+        }
+        return INVALID_DATE;
+    }
+
+    /**
+     * Return a Cursor over the rollups at the given resolution for the
+     * session with the given start date, sorted by bucket. Use
+     * RollupAccumulator.selectResolution to pick the resolution.
+     *
+     * @param date       The start date.
+     * @param resolution One of ROLLUP_RESOLUTIONS.
+     * @return Cursor over items.
+     */
+    public Cursor fetchRollupsForStartDate(long date, int resolution) {
+        if (mDb == null) {
+            return null;
+        }
+        return mDb.query(DB_ROLLUP_TABLE, new String[]{COL_BUCKET,
+                        COL_HR_COUNT, COL_HR_SUM, COL_HR_MIN, COL_HR_MAX,
+                        COL_RR_TOTAL, COL_RR_SUM, COL_RR_MIN, COL_RR_MAX},
+                COL_START_DATE + "=? AND " + COL_RESOLUTION + "=?",
+                args(date, resolution), null, null, COL_BUCKET + " ASC");
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // Get data for start date through end date (ForDate) /////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Return a Cursor over the HR items in the database for a given start and
+     * end times.
+     *
+     * @param start The start time.
+     * @param end The end time.
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllHrDateDataForDates(long start, long end) {
+        if (mDb == null) {
+            return null;
+        }
+        return queryData(new String[]{COL_DATE, COL_HR},
+                COL_DATE + ">=? AND " + COL_DATE + "<=?", args(start, end),
+                start, end);
+    }
+
+    /**
+     * Return a Cursor over the HR and RR items in the database for a given
+     * start and end times.
+     *
+     * @param start The start time.
+     * @param end The end time.
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllHrRrDateDataForDates(long start, long end) {
+        if (mDb == null) {
+            return null;
+        }
+        return queryData(
+                new String[]{COL_DATE, COL_HR, COL_RR, COL_RR_COUNT},
+                COL_DATE + ">=? AND " + COL_DATE + "<=?", args(start, end),
+                start, end);
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // Get data for start date and later (StartingAtDate) /////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Return a Cursor over the list of all items in the database for a given
+     * time and later.
+     *
+     * @param date The time.
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllDataStartingAtDate(long date) {
+        if (mDb == null) {
+            return null;
+        }
+        return queryData(new String[]{COL_ID, COL_DATE, COL_START_DATE,
+                        COL_HR, COL_RR, COL_RR_COUNT, COL_DEVICE},
+                COL_DATE + ">=?", args(date), date, Long.MAX_VALUE);
+    }
+
+    /**
+     * Return a Cursor over the HR and RR items in the database for a given time
+     * and later.
+     *
+     * @param date The time.
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllHrRrDateDataStartingAtDate(long date) {
+        if (mDb == null) {
+            return null;
+        }
+        return queryData(new String[]{COL_DATE, COL_HR, COL_RR,
+                        COL_RR_COUNT}, COL_DATE + ">=?", args(date), date,
+                Long.MAX_VALUE);
+    }
+
+    /**
+     * Return a Cursor over the HR and RR items in the database for a given time
+     * and later from the given device. Items with no device are included.
+     *
+     * @param date   The time.
+     * @param device The device address or null for all devices.
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllHrRrDateDataStartingAtDate(long date,
+                                                     String device) {
+        if (device == null) {
+            return fetchAllHrRrDateDataStartingAtDate(date);
+        }
+        if (mDb == null) {
+            return null;
+        }
+        return queryData(new String[]{COL_DATE, COL_HR, COL_RR,
+                        COL_RR_COUNT}, COL_DATE + ">=? AND (" + COL_DEVICE
+                        + "=? OR " + COL_DEVICE + " IS NULL)",
+                new String[]{Long.toString(date), device}, date,
+                Long.MAX_VALUE);
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // Read data in chunks (SessionReader) ////////////////////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Gets a SessionReader for the data with the given start date.
+     *
+     * @param date       The start date.
+     * @param windowSize The maximum number of rows in a chunk, typically
+     *                   SESSION_READER_WINDOW_SIZE.
+     * @return The SessionReader or null if the database is not open.
+     */
+    public SessionReader readSession(long date, int windowSize) {
+        if (mDb == null) {
+            return null;
+        }
+        return new SessionReader(Collections.singletonList(getDataDb(date)),
+                COL_START_DATE + "=?", args(date), windowSize);
+    }
+
+    /**
+     * Gets a SessionReader for all the data, including the archives, that
+     * also reads the start date and device of each row.
+     *
+     * @param windowSize The maximum number of rows in a chunk, typically
+     *                   SESSION_READER_WINDOW_SIZE.
+     * @return The SessionReader or null if the database is not open.
+     */
+    public SessionReader readAll(int windowSize) {
+        if (mDb == null) {
+            return null;
+        }
+        return new SessionReader(getDataDbs(Long.MIN_VALUE, Long.MAX_VALUE),
+                "1", new String[0], windowSize, true);
+    }
+
+    /**
+     * Gets a SessionReader for the data for a given time and later from the
+     * given device. Items with no device are included.
+     *
+     * @param date       The time.
+     * @param device     The device address or null for all devices.
+     * @param windowSize The maximum number of rows in a chunk, typically
+     *                   SESSION_READER_WINDOW_SIZE.
+     * @return The SessionReader or null if the database is not open.
+     */
+    public SessionReader readStartingAtDate(long date, String device,
+                                            int windowSize) {
+        if (mDb == null) {
+            return null;
+        }
+        if (device == null) {
+            return new SessionReader(getDataDbs(date, Long.MAX_VALUE),
+                    COL_DATE + ">=?", args(date), windowSize);
+        }
+        return new SessionReader(getDataDbs(date, Long.MAX_VALUE),
+                COL_DATE + ">=? AND (" + COL_DEVICE + "=? OR " + COL_DEVICE
+                        + " IS NULL)", new String[]{Long.toString(date),
+                device}, windowSize);
+    }
+
+    /**
+     * Gets the decoded series for a session at a resolution. It comes from
+     * the cache of recently used series if it is there, otherwise it is
+     * read from the data at resolution 0 or the rollups at other
+     * resolutions and put in the cache.
+     *
+     * @param date       The start date.
+     * @param resolution The resolution or 0 for the raw data.
+     * @return The SessionSeries or null if the database is not open.
+     */
+    public SessionSeries getSessionSeries(long date, int resolution) {
+        return getSessionSeries(date, resolution, null);
+    }
+
+    /**
+     * Gets the decoded series for a session at a resolution, as above, but
+     * reading may be cancelled between chunks, in which case nothing is put
+     * in the cache.
+     *
+     * @param date       The start date.
+     * @param resolution The resolution or 0 for the raw data.
+     * @param signal     The CancellationSignal or null.
+     * @return The SessionSeries or null if the database is not open.
+     * @throws android.os.OperationCanceledException If it is cancelled.
+     */
+    public SessionSeries getSessionSeries(long date, int resolution,
+                                          CancellationSignal signal) {
+        if (mDb == null) {
+            return null;
+        }
+        SessionSeries series = sSeriesCache.get(date, resolution);
+        if (series != null) {
+            return series;
+        }
+        long start = SystemClock.elapsedRealtime();
+        long generation = sSeriesCache.getGeneration();
+        if (resolution == 0) {
+            series = readSeries(readSession(date,
+                    SESSION_READER_WINDOW_SIZE), date, signal);
+        } else {
+            SessionSeries.Builder builder =
+                    new SessionSeries.Builder(date, resolution);
+            int[] rr = new int[2];
+            boolean hasHr;
+            try (Cursor cursor = fetchRollupsForStartDate(date, resolution)) {
+                // The columns are bucket, HR count, sum, min, max, and R-R
+                // count, sum, min, max
+                while (cursor.moveToNext()) {
+                    if (signal != null && cursor.getPosition()
+                            % SESSION_READER_WINDOW_SIZE == 0) {
+                        signal.throwIfCanceled();
+                    }
+                    hasHr = cursor.getInt(1) > 0;
+                    rr[0] = cursor.getInt(7);
+                    rr[1] = cursor.getInt(8);
+                    builder.add(cursor.getLong(0),
+                            hasHr ? cursor.getInt(3) : INVALID_INT,
+                            hasHr ? cursor.getInt(4) : INVALID_INT, rr, 0,
+                            cursor.getInt(5) > 0 ? 2 : 0);
+                }
+            }
+            series = builder.build();
+        }
+        sSeriesCache.put(series, generation);
+        Log.d(TAG, "getSessionSeries: " + series.size() + " items in "
+                + (SystemClock.elapsedRealtime() - start) + " ms, "
+                + sSeriesCache);
+        return series;
+    }
+
+    /**
+     * Gets the decoded series for the data for a given time and later from
+     * the given device. Items with no device are included. This is not
+     * cached, since the data are still being added to.
+     *
+     * @param date   The time.
+     * @param device The device address or null for all devices.
+     * @return The SessionSeries or null if the database is not open.
+     */
+    public SessionSeries getSeriesStartingAtDate(long date, String device) {
+        if (mDb == null) {
+            return null;
+        }
+        return readSeries(readStartingAtDate(date, device,
+                SESSION_READER_WINDOW_SIZE), date, null);
+    }
+
+    /**
+     * Reads all the chunks from a SessionReader into a SessionSeries at
+     * resolution 0.
+     *
+     * @param reader    The SessionReader.
+     * @param startDate The start date for the series.
+     * @param signal    The CancellationSignal, checked between chunks, or
+     *                  null.
+     * @return The SessionSeries.
+     * @throws android.os.OperationCanceledException If it is cancelled.
+     */
+    private static SessionSeries readSeries(SessionReader reader,
+                                            long startDate,
+                                            CancellationSignal signal) {
+        SessionSeries.Builder builder =
+                new SessionSeries.Builder(startDate, 0);
+        long[] dates = reader.getDates();
+        int[] hrs = reader.getHrs();
+        int[] rrOffsets = reader.getRrOffsets();
+        int[] rrCounts = reader.getRrCounts();
+        int n;
+        try {
+            while ((n = reader.next()) > 0) {
+                for (int i = 0; i < n; i++) {
+                    builder.add(dates[i], hrs[i], INVALID_INT,
+                            reader.getRrValues(), rrOffsets[i], rrCounts[i]);
+                }
+                if (signal != null) {
+                    signal.throwIfCanceled();
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return builder.build();
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // Archives ///////////////////////////////////////////////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Queries the data table and the archives that may have data in a range
+     * of dates. The archives come first, by month, then the data table, each
+     * sorted by date. Usually the range is recent and only the data table is
+     * read.
+     *
+     * @param columns       The columns.
+     * @param selection     The selection, which may only use data columns.
+     * @param selectionArgs The arguments for the selection.
+     * @param start         The start of the range.
+     * @param end           The end of the range.
+     * @return Cursor over items.
+     */
+    private Cursor queryData(String[] columns, String selection,
+                             String[] selectionArgs, long start, long end) {
+        List<SQLiteDatabase> dbs = getDataDbs(start, end);
+        if (dbs.size() == 1) {
+            return mDb.query(DB_DATA_TABLE, columns, selection,
+                    selectionArgs, null, null, SORT_ASCENDING);
+        }
+        Cursor[] cursors = new Cursor[dbs.size()];
+        for (int i = 0; i < cursors.length; i++) {
+            cursors[i] = dbs.get(i).query(DB_DATA_TABLE, columns, selection,
+                    selectionArgs, null, null, SORT_ASCENDING);
+        }
+        return new MergeCursor(cursors);
+    }
+
+    /**
+     * Gets the databases that may have data in a range of dates. These are
+     * the archives, by month, then the working database.
+     *
+     * @param start The start of the range.
+     * @param end   The end of the range.
+     * @return The databases.
+     */
+    private List<SQLiteDatabase> getDataDbs(long start, long end) {
+        List<SQLiteDatabase> dbs = new ArrayList<>();
+        String sessionStart = DB_SESSION_TABLE + "." + COL_START_DATE;
+        try (Cursor cursor = mDb.query(DB_ARCHIVE_TABLE,
+                new String[]{COL_FILE_NAME}, COL_FILE_NAME + " IS NOT NULL AND "
+                        + COL_START_DATE + "<=? AND EXISTS (SELECT 1 FROM "
+                        + DB_SESSION_TABLE + " WHERE " + sessionStart + ">="
+                        + DB_ARCHIVE_TABLE + "." + COL_START_DATE + " AND "
+                        + sessionStart + "<" + DB_ARCHIVE_TABLE + "."
+                        + COL_END_DATE + " AND " + DB_SESSION_TABLE + "."
+                        + COL_END_DATE + ">=?)", args(end, start), null, null,
+                COL_MONTH + " ASC")) {
+            SQLiteDatabase archive;
+            while (cursor.moveToNext()) {
+                archive = getArchive(cursor.getString(0), false);
+                if (archive != null) {
+                    dbs.add(archive);
+                }
+            }
+        }
+        dbs.add(mDb);
+        return dbs;
+    }
+
+    /**
+     * Gets the database with the data for a session. This is the archive
+     * for the month the session started if the session has been moved
+     * there, otherwise the working database.
+     *
+     * @param startDate The start date.
+     * @return The database.
+     */
+    private SQLiteDatabase getDataDb(long startDate) {
+        String fileName = null;
+        try (Cursor cursor = mDb.query(DB_ARCHIVE_TABLE,
+                new String[]{COL_FILE_NAME}, COL_FILE_NAME + " IS NOT NULL AND "
+                        + COL_START_DATE + "<=? AND " + COL_END_DATE + ">?",
+                args(startDate, startDate), null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                fileName = cursor.getString(0);
+            }
+        }
+        if (fileName != null) {
+            SQLiteDatabase archive = getArchive(fileName, false);
+            // The session may not have been moved yet
+            if (archive != null && hasData(archive, startDate)) {
+                return archive;
+            }
+        }
+        return mDb;
+    }
+
+    /**
+     * Gets whether there are data for a session, either in the data table
+     * or an archive. There are none for sessions that have been compacted,
+     * which can only be plotted from the rollups.
+     *
+     * @param startDate The start date.
+     * @return If there are.
+     */
+    public boolean hasData(long startDate) {
+        if (mDb == null) {
+            return false;
+        }
+        return hasData(getDataDb(startDate), startDate);
+    }
+
+    /**
+     * Gets whether there are data for a session in a database.
+     *
+     * @param db        The database.
+     * @param startDate The start date.
+     * @return If there are.
+     */
+    private static boolean hasData(SQLiteDatabase db, long startDate) {
+        return DatabaseUtils.longForQuery(db, "SELECT EXISTS (SELECT 1 FROM "
+                + DB_DATA_TABLE + " WHERE " + COL_START_DATE + "=?)",
+                args(startDate)) != 0;
+    }
+
+    /**
+     * Gets an archive database, opening it if necessary. A new archive has
+     * the data table and its indexes.
+     *
+     * @param fileName The simple name.
+     * @param create   Whether to create it if it does not exist.
+     * @return The database or null if it does not exist and is not to be
+     * created.
+     */
+    private synchronized SQLiteDatabase getArchive(String fileName,
+                                                   boolean create) {
+        SQLiteDatabase archive = mArchives.get(fileName);
+        if (archive != null && archive.isOpen()) {
+            return archive;
+        }
+        File file = new File(mDataDir, fileName);
+        if (!create && !file.exists()) {
+            Log.w(TAG, "getArchive: Missing " + file);
+            return null;
+        }
+        // Write-ahead logging, like the main database, so moving a session
+        // here does not block reading the archive
+        archive = SQLiteDatabase.openDatabase(file.getPath(), null,
+                SQLiteDatabase.CREATE_IF_NECESSARY
+                        | SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING);
+        if (getVersion(archive, "main") == 0) {
+            archive.execSQL(DB_CREATE_DATA_TABLE);
+            createIndexes(archive);
+            archive.setVersion(DB_VERSION);
+        }
+        mArchives.put(fileName, archive);
+        return archive;
+    }
+
+    /**
+     * Closes the archive databases that are open.
+     */
+    private synchronized void closeArchives() {
+        for (SQLiteDatabase archive : mArchives.values()) {
+            archive.close();
+        }
+        mArchives.clear();
+    }
+
+    /**
+     * Closes and deletes an archive database. This takes the same time
+     * however much data it has.
+     *
+     * @param fileName The simple name.
+     */
+    private synchronized void deleteArchive(String fileName) {
+        SQLiteDatabase archive = mArchives.remove(fileName);
+        if (archive != null) {
+            archive.close();
+        }
+        SQLiteDatabase.deleteDatabase(new File(mDataDir, fileName));
+    }
+
+    /**
+     * Gets the file names of the archive databases listed in the archive
+     * table.
+     *
+     * @return The simple names.
+     */
+    private List<String> getArchiveFileNames() {
+        List<String> fileNames = new ArrayList<>();
+        try (Cursor cursor = mDb.query(DB_ARCHIVE_TABLE,
+                new String[]{COL_FILE_NAME}, COL_FILE_NAME + " IS NOT NULL",
+                null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                fileNames.add(cursor.getString(0));
+            }
+        }
+        return fileNames;
+    }
+
+    /**
+     * Deletes all the archive databases listed in the archive table.
+     */
+    private void deleteArchives() {
+        for (String fileName : getArchiveFileNames()) {
+            deleteArchive(fileName);
+        }
+    }
+
+    /**
+     * Applies a retention policy. The data for each month before the ones
+     * to keep are moved to the archive for the month or deleted. When
+     * deleting, the archives for those months are deleted as well. Each
+     * session is deleted in chunks of DB_MIGRATION_CHUNK_SIZE rows, each in
+     * its own transaction, so writing new data is not held up for long.
+     * Takes a while for a month with a lot of data, so do not call on the
+     * UI thread.
+     *
+     * @param policy The RetentionPolicy.
+     * @param now    The current time.
+     * @param signal The CancellationSignal, checked between chunks, or null.
+     * @return The number of rows moved out of the data table.
+     * @throws android.os.OperationCanceledException If it is cancelled.
+     */
+    public int applyRetention(RetentionPolicy policy, long now,
+                              CancellationSignal signal) {
+        if (mDb == null || !policy.isEnabled()) {
+            return 0;
+        }
+        long start = SystemClock.elapsedRealtime();
+        long cutoff = getMonthStart(getMonth(now), -policy.getMonths());
+        // The sessions before the cutoff with data in the data table, in
+        // order, so each month is contiguous
+        List<Long> startDates = new ArrayList<>();
+        try (Cursor cursor = mDb.query(DB_SESSION_TABLE,
+                new String[]{COL_START_DATE}, COL_START_DATE
+                        + "<? AND EXISTS (SELECT 1 FROM " + DB_DATA_TABLE
+                        + " WHERE " + DB_DATA_TABLE + "." + COL_START_DATE
+                        + "=" + DB_SESSION_TABLE + "." + COL_START_DATE + ")",
+                args(cutoff), null, null, COL_START_DATE + " ASC")) {
+            while (cursor.moveToNext()) {
+                startDates.add(cursor.getLong(0));
+            }
+        }
+        int nRows = 0, nMonths = 0, month;
+        int first = 0;
+        while (first < startDates.size()) {
+            month = getMonth(startDates.get(first));
+            int last = first + 1;
+            while (last < startDates.size()
+                    && getMonth(startDates.get(last)) == month) {
+                last++;
+            }
+            nRows += moveMonth(month, startDates.subList(first, last),
+                    policy.isCompact(), signal);
+            nMonths++;
+            first = last;
+        }
+        if (policy.isCompact()) {
+            // Dropping an archive only deletes its file
+            List<String> fileNames = new ArrayList<>();
+            try (Cursor cursor = mDb.query(DB_ARCHIVE_TABLE,
+                    new String[]{COL_FILE_NAME}, COL_FILE_NAME
+                            + " IS NOT NULL AND " + COL_END_DATE + "<=?",
+                    args(cutoff), null, null, null)) {
+                while (cursor.moveToNext()) {
+                    fileNames.add(cursor.getString(0));
+                }
+            }
+            for (String fileName : fileNames) {
+                ContentValues values = new ContentValues();
+                values.putNull(COL_FILE_NAME);
+                mDb.update(DB_ARCHIVE_TABLE, values, COL_FILE_NAME + "=?",
+                        new String[]{fileName});
+                deleteArchive(fileName);
+            }
+            nMonths += fileNames.size();
+            // The raw data are gone
+            sSeriesCache.invalidateAll();
+        }
+        Log.d(TAG, "applyRetention: " + policy + ": " + nMonths
+                + " months, " + nRows + " rows in "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+        return nRows;
+    }
+
+    /**
+     * Moves the data for the given sessions in a month out of the data
+     * table, copying them to the archive for the month unless compacting.
+     * The month is listed in the archive table first, and a session is
+     * only deleted from the data table after it has been copied, so if
+     * this is interrupted no data are lost.
+     *
+     * @param month      The month as yyyymm.
+     * @param startDates The start dates of the sessions.
+     * @param compact    Whether to delete the data rather than archive them.
+     * @param signal     The CancellationSignal or null.
+     * @return The number of rows moved.
+     * @throws android.os.OperationCanceledException If it is cancelled.
+     */
+    private int moveMonth(int month, List<Long> startDates,
+                          boolean compact, CancellationSignal signal) {
+        SQLiteDatabase archive = null;
+        String fileName = null;
+        if (!compact) {
+            fileName = String.format(Locale.US, ARCHIVE_DB_NAME_TEMPLATE,
+                    month);
+            archive = getArchive(fileName, true);
+        }
+        mDb.execSQL("INSERT OR IGNORE INTO " + DB_ARCHIVE_TABLE + " ("
+                        + COL_MONTH + ", " + COL_START_DATE + ", "
+                        + COL_END_DATE + ") VALUES (?, ?, ?)",
+                new Object[]{month, getMonthStart(month, 0),
+                        getMonthStart(month, 1)});
+        if (fileName != null) {
+            mDb.execSQL("UPDATE " + DB_ARCHIVE_TABLE + " SET "
+                    + COL_FILE_NAME + "=? WHERE " + COL_MONTH + "=?",
+                    new Object[]{fileName, month});
+        }
+        int nRows = 0, nChunk;
+        for (long startDate : startDates) {
+            if (archive != null) {
+                copySession(archive, startDate, signal);
+            }
+            do {
+                if (signal != null) {
+                    signal.throwIfCanceled();
+                }
+                mDb.beginTransaction();
+                try {
+                    nChunk = mDb.delete(DB_DATA_TABLE, COL_ID + " IN (SELECT "
+                                    + COL_ID + " FROM " + DB_DATA_TABLE
+                                    + " WHERE " + COL_START_DATE + "=? LIMIT "
+                                    + DB_MIGRATION_CHUNK_SIZE + ")",
+                            args(startDate));
+                    mDb.setTransactionSuccessful();
+                } finally {
+                    mDb.endTransaction();
+                }
+                nRows += nChunk;
+            } while (nChunk > 0);
+        }
+        return nRows;
+    }
+
+    /**
+     * Copies the data for a session to an archive. The rows are read in
+     * chunks in date order, using the index by session.
+     *
+     * @param archive   The archive database.
+     * @param startDate The start date.
+     * @param signal    The CancellationSignal, checked between chunks, or
+     *                  null.
+     * @return The number of rows copied.
+     * @throws android.os.OperationCanceledException If it is cancelled.
+     */
+    private int copySession(SQLiteDatabase archive, long startDate,
+                            CancellationSignal signal) {
+        long lastDate = Long.MIN_VALUE, lastId = -1;
+        int nRows = 0, nChunk;
+        String device;
+        archive.beginTransaction();
+        try (SQLiteStatement statement =
+                     archive.compileStatement(ARCHIVE_DATA_SQL)) {
+            do {
+                if (signal != null) {
+                    signal.throwIfCanceled();
+                }
+                nChunk = 0;
+                try (Cursor cursor = mDb.query(DB_DATA_TABLE,
+                        new String[]{COL_ID, COL_DATE, COL_HR, COL_RR,
+                                COL_DEVICE}, COL_START_DATE + "=? AND ("
+                                + COL_DATE + ">? OR (" + COL_DATE + "=? AND "
+                                + COL_ID + ">?))",
+                        args(startDate, lastDate, lastDate, lastId), null,
+                        null, COL_DATE + " ASC, " + COL_ID + " ASC",
+                        Integer.toString(DB_MIGRATION_CHUNK_SIZE))) {
+                    while (cursor.moveToNext()) {
+                        lastId = cursor.getLong(0);
+                        lastDate = cursor.getLong(1);
+                        statement.bindLong(1, lastId);
+                        statement.bindLong(2, lastDate);
+                        statement.bindLong(3, startDate);
+                        statement.bindLong(4, cursor.getInt(2));
+                        bindRr(statement, 5, cursor.getBlob(3));
+                        device = cursor.getString(4);
+                        if (device == null) {
+                            statement.bindNull(7);
+                        } else {
+                            statement.bindString(7, device);
+                        }
+                        statement.executeInsert();
+                        nChunk++;
+                    }
+                }
+                nRows += nChunk;
+            } while (nChunk > 0);
+            archive.setTransactionSuccessful();
+        } finally {
+            archive.endTransaction();
+        }
+        return nRows;
+    }
+
+    /**
+     * Gets the month a date is in, in the local time zone.
+     *
+     * @param date The date.
+     * @return The month as yyyymm.
+     */
+    static int getMonth(long date) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(date);
+        return 100 * cal.get(Calendar.YEAR) + cal.get(Calendar.MONTH) + 1;
+    }
+
+    /**
+     * Gets the start of a month, or of a month before or after it.
+     *
+     * @param month  The month as yyyymm.
+     * @param offset The number of months after it, may be negative.
+     * @return The start date.
+     */
+    static long getMonthStart(int month, int offset) {
+        Calendar cal = Calendar.getInstance();
+        cal.clear();
+        cal.set(month / 100, month % 100 - 1 + offset, 1);
+        return cal.getTimeInMillis();
+    }
+
+    /**
+     * Receives the progress of replaceDatabase and lets it be cancelled.
+     */
+    public interface ReplaceProgress {
+        /**
+         * Called after each chunk of rows has been copied.
+         *
+         * @param nCopied The number of rows copied so far.
+         * @param nTotal  The number of rows to copy.
+         */
+        void onProgress(long nCopied, long nTotal);
+
+        /**
+         * Gets whether to stop. Checked between chunks.
+         *
+         * @return If so.
+         */
+        boolean isCancelled();
+    }
+
+    /**
+     * Replaces the data with those from another database.
+     *
+     * @param newFileName Path to the new database.
+     * @param alias       Name for the new database or null to use "TEMP_DB"
+     * @see #replaceDatabase(String, String, ReplaceProgress)
+     */
+    public void replaceDatabase(String newFileName, String alias) {
+        replaceDatabase(newFileName, alias, null);
+    }
+
+    /**
+     * Attaches the new database, checks that it has the tables and columns
+     * for its version, and copies its data to a staging table in chunks of
+     * DB_IMPORT_CHUNK_SIZE rows by id, each in its own transaction. The
+     * working data are not changed until all the data have been copied, so
+     * cancelling leaves them as they were. Then, in one transaction, the
+     * staging table replaces the data table, the gaps are copied, the
+     * indexes are built, and the session and rollup tables are rebuilt.
+     * Building the indexes after the data are copied is faster than updating
+     * them for each row. The archives are deleted. Data from a version 1
+     * database, with RR stored as text, is converted. Data from before
+     * version 3 has no device.
+     * Android turns off write-ahead logging for a connection that has
+     * attached a database, so the database is reopened afterward.
+     * Nothing else may use the adapter until this returns, so stop the
+     * service writing to it first.
+     * Takes a while for a large database, so do not call on the UI thread.
+     *
+     * @param newFileName Path to the new database.
+     * @param alias       Name for the new database or null to use "TEMP_DB"
+     * @param progress    ReplaceProgress to report to or null.
+     * @return Whether the data were replaced, false if cancelled.
+     * @throws SQLException If the new database cannot be read or does not
+     *                      have the expected tables.
+     */
+    public boolean replaceDatabase(String newFileName, String alias,
+                                   ReplaceProgress progress) {
+        if (alias == null) alias = "TEMP_DB";
+        String staging = DB_DATA_TABLE + "_import";
+        // Attach the new database
+        mDb.execSQL("ATTACH DATABASE ? AS " + alias,
+                new Object[]{newFileName});
+        try {
+            int version = getVersion(mDb, alias);
+            long nTotal = checkSource(mDb, alias, version);
+            Log.d(TAG, "replaceDatabase: version=" + version + " rows="
+                    + nTotal);
+            // Copy the data
+            mDb.execSQL("DROP TABLE IF EXISTS " + staging);
+            mDb.execSQL(getCreateDataTableSql(staging, DB_VERSION));
+            if (version < 2) {
+                copyVersion1Data(mDb, alias + "." + DB_DATA_TABLE, staging,
+                        progress, nTotal);
+            } else {
+                copyData(alias, staging, version, progress, nTotal);
+            }
+            if (progress != null && progress.isCancelled()) {
+                Log.d(TAG, "replaceDatabase: Cancelled");
+                mDb.execSQL("DROP TABLE " + staging);
+                return false;
+            }
+            // Replace the working data
+            List<String> archives = getArchiveFileNames();
+            mDb.beginTransaction();
+            try {
+                mDb.execSQL("DROP TABLE " + DB_DATA_TABLE);
+                mDb.execSQL("ALTER TABLE " + staging + " RENAME TO "
+                        + DB_DATA_TABLE);
+                createIndexes(mDb);
+                mDb.delete(DB_GAP_TABLE, null, null);
+                if (version >= 4) {
+                    // Only the columns checkSource checked, in that order
+                    String gapColumns = COL_START_DATE + ", " + COL_DEVICE
+                            + ", " + COL_GAP_START + ", " + COL_GAP_END;
+                    mDb.execSQL("INSERT INTO " + DB_GAP_TABLE + " ("
+                            + gapColumns + ") SELECT " + gapColumns
+                            + " FROM " + alias + "." + DB_GAP_TABLE);
+                }
+                mDb.delete(DB_ARCHIVE_TABLE, null, null);
+                rebuildSessions(mDb);
+                rebuildRollups(mDb, null, null);
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+            sSeriesCache.invalidateAll();
+            for (String fileName : archives) {
+                deleteArchive(fileName);
+            }
+            return true;
+        } finally {
+            // Detach the new database
+            mDb.execSQL("DETACH DATABASE " + alias);
+            reopen();
+        }
+    }
+
+    /**
+     * Checks that an attached database has the tables and columns for its
+     * version, so its data can replace the working data.
+     *
+     * @param db      The database.
+     * @param alias   The alias of the attached database.
+     * @param version Its version.
+     * @return The number of rows in its data table.
+     * @throws SQLException If it does not.
+     */
+    private static long checkSource(SQLiteDatabase db, String alias,
+                                    int version) {
+        if (version < 1 || version > DB_VERSION) {
+            throw new SQLException("Unsupported database version " + version
+                    + ", expected 1 to " + DB_VERSION);
+        }
+        List<String> columns = new ArrayList<>(Arrays.asList(COL_ID,
+                COL_DATE, COL_START_DATE, COL_HR, COL_RR));
+        if (version >= 2) columns.add(COL_RR_COUNT);
+        if (version >= 3) columns.add(COL_DEVICE);
+        checkColumns(db, alias, DB_DATA_TABLE, columns);
+        if (version >= 4) {
+            checkColumns(db, alias, DB_GAP_TABLE, Arrays.asList(
+                    COL_START_DATE, COL_DEVICE, COL_GAP_START, COL_GAP_END));
+        }
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM "
+                + alias + "." + DB_DATA_TABLE, null);
+    }
+
+    /**
+     * Checks that a table in an attached database has the given columns.
+     *
+     * @param db      The database.
+     * @param alias   The alias of the attached database.
+     * @param table   The table.
+     * @param columns The column names.
+     * @throws SQLException If it does not.
+     */
+    private static void checkColumns(SQLiteDatabase db, String alias,
+                                     String table, List<String> columns) {
+        List<String> found = new ArrayList<>();
+        try (Cursor cursor = db.rawQuery("PRAGMA " + alias + ".table_info("
+                + table + ")", null)) {
+            int indexName = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                found.add(cursor.getString(indexName));
+            }
+        }
+        if (found.isEmpty()) {
+            throw new SQLException("No " + table + " table");
+        }
+        for (String column : columns) {
+            if (!found.contains(column)) {
+                throw new SQLException("No " + column + " column in the "
+                        + table + " table");
+            }
+        }
+    }
+
+    /**
+     * Copies the data table of an attached database of version 2 or later
+     * to a table, keeping the row ids. The rows are copied in chunks of
+     * DB_IMPORT_CHUNK_SIZE by id, each in its own transaction, stopping if
+     * cancelled.
+     *
+     * @param alias    The alias of the attached database.
+     * @param to       The destination table.
+     * @param version  The version of the attached database.
+     * @param progress ReplaceProgress to report to or null.
+     * @param nTotal   The number of rows to copy.
+     * @return The number of rows copied.
+     */
+    private long copyData(String alias, String to, int version,
+                          ReplaceProgress progress, long nTotal) {
+        String from = alias + "." + DB_DATA_TABLE;
+        String cols = COL_ID + ", " + COL_DATE + ", " + COL_START_DATE
+                + ", " + COL_HR + ", " + COL_RR + ", " + COL_RR_COUNT;
+        if (version >= 3) {
+            cols += ", " + COL_DEVICE;
+        }
+        String insert = "INSERT INTO " + to + " (" + cols + ") SELECT "
+                + cols + " FROM " + from + " WHERE " + COL_ID + ">? AND "
+                + COL_ID + "<=?";
+        // The number of rows and the last id in the next chunk
+        String next = "SELECT COUNT(*), MAX(" + COL_ID + ") FROM (SELECT "
+                + COL_ID + " FROM " + from + " WHERE " + COL_ID
+                + ">? ORDER BY " + COL_ID + " LIMIT " + DB_IMPORT_CHUNK_SIZE
+                + ")";
+        long lastId = -1, nRows = 0, maxId;
+        int nChunk;
+        while (progress == null || !progress.isCancelled()) {
+            try (Cursor cursor = mDb.rawQuery(next, args(lastId))) {
+                cursor.moveToFirst();
+                nChunk = cursor.getInt(0);
+                maxId = cursor.getLong(1);
+            }
+            if (nChunk == 0) break;
+            mDb.beginTransaction();
+            try {
+                mDb.execSQL(insert, new Object[]{lastId, maxId});
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+            lastId = maxId;
+            nRows += nChunk;
+            if (progress != null) {
+                progress.onProgress(nRows, nTotal);
+            }
+        }
+        Log.d(TAG, "copyData: " + nRows + " rows from " + from + " to " + to);
+        return nRows;
+    }
+
+    /**
+     * Closes and reopens the database with the current durability profile.
+     */
+    private synchronized void reopen() {
+        releaseStatements();
+        mDbHelper.close();
+        mDb = mDbHelper.getWritableDatabase();
+        setDurability(mDurability);
+        compileStatements();
+    }
+
+    /**
+     * Gets the SQL to create a data table with the given name as it is in
+     * the given database version. Only versions 2 and later are supported.
+     *
+     * @param table   The table name.
+     * @param version The database version.
+     * @return The SQL.
+     */
+    static String getCreateDataTableSql(String table, int version) {
+        return "create table " + table
+                + " (_id integer primary key autoincrement, "
+                + COL_DATE + " integer not null, " + COL_START_DATE
+                + " integer not null, " + COL_HR + " integer not null, "
+                + COL_RR + " blob, " + COL_RR_COUNT + " integer not null"
+                + (version >= 3 ? ", " + COL_DEVICE + " text" : "") + ");";
+    }
+
+    /**
+     * Gets the user version of a database.
+     *
+     * @param db     The database.
+     * @param schema The schema name, "main" or the alias of an attached
+     *               database.
+     * @return The version.
+     */
+    private static int getVersion(SQLiteDatabase db, String schema) {
+        try (Cursor cursor = db.rawQuery("PRAGMA " + schema
+                + ".user_version", null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getInt(0);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Copies data with the RR stored as text (version 1) to a table with the
+     * RR stored as a BLOB (version 2), keeping the row ids. The rows are read
+     * in chunks so the whole table is never in a single cursor window. RR
+     * text that cannot be parsed is stored as no RR. Each chunk is written
+     * in its own transaction, stopping if cancelled.
+     *
+     * @param db       The database.
+     * @param from     The source table, possibly qualified with a schema
+     *                 name.
+     * @param to       The destination table.
+     * @param progress ReplaceProgress to report to or null.
+     * @param nTotal   The number of rows to copy, used for the progress.
+     * @return The number of rows copied.
+     */
+    private static int copyVersion1Data(SQLiteDatabase db, String from,
+                                        String to, ReplaceProgress progress,
+                                        long nTotal) {
+        long lastId = -1;
+        int nRows = 0, nErrors = 0, nChunk;
+        byte[] blob;
+        try (SQLiteStatement statement = db.compileStatement("INSERT INTO "
+                + to + " (" + COL_ID + ", " + COL_DATE + ", "
+                + COL_START_DATE + ", " + COL_HR + ", " + COL_RR + ", "
+                + COL_RR_COUNT + ") VALUES (?, ?, ?, ?, ?, ?)")) {
+            do {
+                if (progress != null && progress.isCancelled()) break;
+                nChunk = 0;
+                db.beginTransaction();
+                try (Cursor cursor = db.query(from, new String[]{COL_ID,
+                                COL_DATE, COL_START_DATE, COL_HR, COL_RR},
+                        COL_ID + ">?", args(lastId), null, null,
+                        COL_ID + " ASC",
+                        Integer.toString(DB_MIGRATION_CHUNK_SIZE))) {
+                    while (cursor.moveToNext()) {
+                        lastId = cursor.getLong(0);
+                        statement.bindLong(1, lastId);
+                        statement.bindLong(2, cursor.getLong(1));
+                        statement.bindLong(3, cursor.getLong(2));
+                        statement.bindLong(4, cursor.getInt(3));
+                        try {
+                            blob = RrUtils.parseToBlob(cursor.getString(4));
+                        } catch (NumberFormatException ex) {
+                            blob = null;
+                            nErrors++;
+                        }
+                        bindRr(statement, 5, blob);
+                        statement.executeInsert();
+                        nChunk++;
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                nRows += nChunk;
+                if (progress != null && nChunk > 0) {
+                    progress.onProgress(nRows, nTotal);
+                }
+            } while (nChunk > 0);
+        }
+        Log.d(TAG, "copyVersion1Data: " + nRows + " rows from " + from
+                + " to " + to + ", " + nErrors + " RR errors");
+        return nRows;
+    }
+
+    /**
+     * A SQLiteOpenHelper helper to help manage database creation and version
+     * management.
+     */
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+        private DatabaseHelper(Context context, String dir) {
+            super(context, dir, null, DB_VERSION);
+            // So reading does not block writing
+            setWriteAheadLoggingEnabled(true);
         }
 
         @Override
         public void onCreate(SQLiteDatabase db) {
             db.execSQL(DB_CREATE_DATA_TABLE);
+            db.execSQL(DB_CREATE_GAP_TABLE);
+            db.execSQL(DB_CREATE_SESSION_TABLE);
+            db.execSQL(DB_CREATE_ROLLUP_TABLE);
+            createIndexes(db);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            // TODO Re-do this so nothing is lost if there is a need to change
-            // the version
+            // This runs in a transaction, so if a step fails the database is
+            // left unchanged at the old version
             Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                    + newVersion + ", which will destroy all old data");
-            db.execSQL("DROP TABLE IF EXISTS " + DB_DATA_TABLE);
-            onCreate(db);
+                    + newVersion);
+            if (oldVersion < 1 || newVersion > MIGRATIONS.length + 1) {
+                throw new IllegalStateException("No upgrade from version "
+                        + oldVersion + " to " + newVersion);
+            }
+            for (int version = oldVersion; version < newVersion; version++) {
+                Log.d(TAG, "onUpgrade: Upgrading to version "
+                        + (version + 1));
+                MIGRATIONS[version - 1].migrate(db);
+            }
+        }
+
+        /**
+         * Converts the RR column from text to a BLOB and count in place.
+         *
+         * @param db The database.
+         */
+        private static void upgradeToVersion2(SQLiteDatabase db) {
+            String newTable = DB_DATA_TABLE + "_v2";
+            db.execSQL("DROP TABLE IF EXISTS " + newTable);
+            db.execSQL(getCreateDataTableSql(newTable, 2));
+            copyVersion1Data(db, DB_DATA_TABLE, newTable, null, 0);
+            db.execSQL("DROP TABLE " + DB_DATA_TABLE);
+            db.execSQL("ALTER TABLE " + newTable + " RENAME TO "
+                    + DB_DATA_TABLE);
+        }
+
+        /**
+         * Adds the device column. Existing rows get null.
+         *
+         * @param db The database.
+         */
+        private static void upgradeToVersion3(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + DB_DATA_TABLE + " ADD COLUMN "
+                    + COL_DEVICE + " text");
         }
     }
 
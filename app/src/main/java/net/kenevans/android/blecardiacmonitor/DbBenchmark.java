@@ -0,0 +1,271 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Measures the rate of inserts and reads on the data table in a scratch
+ * database, comparing a ContentValues per row with a reused compiled
+ * statement for inserts, and SQL with the values concatenated with bound
+ * arguments for reads. Inserts are done in transactions of
+ * DB_WRITE_BATCH_SIZE rows, as the service does.
+ */
+public class DbBenchmark implements IConstants {
+    private static final String TAG = "BCMDbBenchmark";
+    /**
+     * Simple name of the scratch database.
+     */
+    private static final String BENCHMARK_DB_NAME = "BCMBenchmark.db";
+    /**
+     * Number of rows inserted by each method.
+     */
+    private static final int DEFAULT_ROWS = 20000;
+    /**
+     * Number of reads done by each method.
+     */
+    private static final int DEFAULT_READS = 500;
+
+    private final File mFile;
+    private final int mRows;
+    private final int mReads;
+    private final long mStartDate = System.currentTimeMillis();
+    private final int[] mRr = new int[2];
+
+    /**
+     * Constructor.
+     *
+     * @param dir   The directory for the scratch database.
+     * @param rows  The number of rows inserted by each method.
+     * @param reads The number of reads done by each method.
+     */
+    public DbBenchmark(File dir, int rows, int reads) {
+        mFile = new File(dir, BENCHMARK_DB_NAME);
+        mRows = rows;
+        mReads = reads;
+    }
+
+    /**
+     * Constructor that uses the default numbers of rows and reads.
+     *
+     * @param dir The directory for the scratch database.
+     */
+    public DbBenchmark(File dir) {
+        this(dir, DEFAULT_ROWS, DEFAULT_READS);
+    }
+
+    /**
+     * Runs the benchmark. Takes several seconds, so do not call on the UI
+     * thread.
+     *
+     * @return A summary of the results.
+     */
+    public String run() {
+        SQLiteDatabase.deleteDatabase(mFile);
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(mFile, null);
+        try {
+            db.execSQL(BCMDbAdapter.getCreateDataTableSql(DB_DATA_TABLE,
+                    DB_VERSION));
+            BCMDbAdapter.createIndexes(db);
+            // Warm up, then time each method on an empty table
+            insertWithContentValues(db, mRows / 10);
+            insertWithStatement(db, mRows / 10);
+            db.delete(DB_DATA_TABLE, null, null);
+            long contentValuesTime = insertWithContentValues(db, mRows);
+            db.delete(DB_DATA_TABLE, null, null);
+            long statementTime = insertWithStatement(db, mRows);
+            long concatenatedTime = readConcatenated(db, mReads);
+            long boundTime = readBound(db, mReads);
+            String info = String.format(Locale.US,
+                    "Inserts (%d rows in batches of %d)\n"
+                            + "  ContentValues: %s\n"
+                            + "  Compiled statement: %s\n"
+                            + "Reads (%d queries)\n"
+                            + "  Concatenated SQL: %s\n"
+                            + "  Bound arguments: %s\n",
+                    mRows, DB_WRITE_BATCH_SIZE,
+                    rate(mRows, contentValuesTime, "rows"),
+                    rate(mRows, statementTime, "rows"),
+                    mReads,
+                    rate(mReads, concatenatedTime, "queries"),
+                    rate(mReads, boundTime, "queries"));
+            Log.d(TAG, "run:\n" + info);
+            return info;
+        } finally {
+            db.close();
+            SQLiteDatabase.deleteDatabase(mFile);
+        }
+    }
+
+    /**
+     * Inserts rows with a new ContentValues for each row.
+     *
+     * @param db    The database.
+     * @param count The number of rows.
+     * @return The elapsed time (ms).
+     */
+    private long insertWithContentValues(SQLiteDatabase db, int count) {
+        long start = SystemClock.elapsedRealtime();
+        int i = 0;
+        while (i < count) {
+            db.beginTransaction();
+            try {
+                for (int n = 0; n < DB_WRITE_BATCH_SIZE && i < count;
+                     n++, i++) {
+                    byte[] blob = rr(i);
+                    ContentValues values = new ContentValues();
+                    values.put(COL_DATE, mStartDate + 1000L * i);
+                    values.put(COL_START_DATE, mStartDate);
+                    values.put(COL_HR, hr(i));
+                    values.put(COL_RR, blob);
+                    values.put(COL_RR_COUNT, RrUtils.getCount(blob));
+                    values.put(COL_DEVICE, REPLAY_DEVICE_ADDRESS);
+                    db.insert(DB_DATA_TABLE, null, values);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    /**
+     * Inserts rows with a reused compiled statement, as BCMDbAdapter does.
+     *
+     * @param db    The database.
+     * @param count The number of rows.
+     * @return The elapsed time (ms).
+     */
+    private long insertWithStatement(SQLiteDatabase db, int count) {
+        long start = SystemClock.elapsedRealtime();
+        int i = 0;
+        try (SQLiteStatement statement =
+                     db.compileStatement(BCMDbAdapter.INSERT_DATA_SQL)) {
+            while (i < count) {
+                db.beginTransaction();
+                try {
+                    for (int n = 0; n < DB_WRITE_BATCH_SIZE && i < count;
+                         n++, i++) {
+                        byte[] blob = rr(i);
+                        statement.bindLong(1, mStartDate + 1000L * i);
+                        statement.bindLong(2, mStartDate);
+                        statement.bindLong(3, hr(i));
+                        statement.bindBlob(4, blob);
+                        statement.bindLong(5, RrUtils.getCount(blob));
+                        statement.bindString(6, REPLAY_DEVICE_ADDRESS);
+                        statement.executeInsert();
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    /**
+     * Reads a minute of data at a time with the dates in the SQL, so each
+     * query is prepared again.
+     *
+     * @param db    The database.
+     * @param count The number of queries.
+     * @return The elapsed time (ms).
+     */
+    private long readConcatenated(SQLiteDatabase db, int count) {
+        long start = SystemClock.elapsedRealtime();
+        long from, to;
+        for (int i = 0; i < count; i++) {
+            from = readStart(i);
+            to = from + 60000;
+            try (Cursor cursor = db.query(DB_DATA_TABLE,
+                    new String[]{COL_DATE, COL_HR},
+                    COL_DATE + ">=" + from + " AND " + COL_DATE + "<=" + to,
+                    null, null, null, SORT_ASCENDING)) {
+                while (cursor.moveToNext()) {
+                    cursor.getInt(1);
+                }
+            }
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    /**
+     * Reads a minute of data at a time with bound dates, so the prepared
+     * query is reused.
+     *
+     * @param db    The database.
+     * @param count The number of queries.
+     * @return The elapsed time (ms).
+     */
+    private long readBound(SQLiteDatabase db, int count) {
+        long start = SystemClock.elapsedRealtime();
+        long from;
+        for (int i = 0; i < count; i++) {
+            from = readStart(i);
+            try (Cursor cursor = db.query(DB_DATA_TABLE,
+                    new String[]{COL_DATE, COL_HR},
+                    COL_DATE + ">=? AND " + COL_DATE + "<=?",
+                    new String[]{Long.toString(from),
+                            Long.toString(from + 60000)},
+                    null, null, SORT_ASCENDING)) {
+                while (cursor.moveToNext()) {
+                    cursor.getInt(1);
+                }
+            }
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    /**
+     * Gets the start of the interval for a read, spread over the data.
+     *
+     * @param i The index of the read.
+     * @return The start date.
+     */
+    private long readStart(int i) {
+        return mStartDate + 1000L * ((i * 7919L) % Math.max(mRows, 1));
+    }
+
+    /**
+     * Gets a varying HR for a row.
+     *
+     * @param i The index of the row.
+     * @return The HR.
+     */
+    private static int hr(int i) {
+        return 60 + i % 40;
+    }
+
+    /**
+     * Gets an RR BLOB with two values for a row.
+     *
+     * @param i The index of the row.
+     * @return The BLOB.
+     */
+    private byte[] rr(int i) {
+        mRr[0] = 60 * 1024 / hr(i);
+        mRr[1] = mRr[0] + i % 8;
+        return RrUtils.encode(mRr, 0, 2);
+    }
+
+    /**
+     * Formats a rate.
+     *
+     * @param count   The number of operations.
+     * @param elapsed The elapsed time (ms).
+     * @param unit    The name of the operations.
+     * @return The formatted rate.
+     */
+    private static String rate(int count, long elapsed, String unit) {
+        return String.format(Locale.US, "%d ms, %.0f %s/s", elapsed,
+                1000. * count / Math.max(elapsed, 1), unit);
+    }
+}
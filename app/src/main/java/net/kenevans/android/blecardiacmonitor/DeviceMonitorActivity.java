@@ -1,6 +1,7 @@
 package net.kenevans.android.blecardiacmonitor;
 
 import android.Manifest;
+import android.app.ProgressDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
@@ -10,12 +11,14 @@ import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
@@ -27,11 +30,16 @@ import android.view.MenuItem;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
@@ -68,6 +76,21 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
 
     private boolean mServiceBound;
     private boolean mAllPermissionsAsked;
+    private boolean mResumed;
+
+    /**
+     * Ring buffer of HR samples from the service, null until bound.
+     */
+    private SampleRingBuffer mSampleRing;
+    private SampleRingBuffer.Sample mSample;
+    /**
+     * The sequence number of the next sample to look at in mSampleRing.
+     */
+    private long mNextSequence;
+    private ReplaceDatabaseTask mReplaceDatabaseTask;
+    private final Runnable mDisplaySampleRunnable = this::displayLatestSample;
+    private final SampleRingBuffer.Listener mSampleListener =
+            (buffer, nextSequence) -> runOnUiThread(mDisplaySampleRunnable);
 
     // Launcher for enabling Bluetooth
     private final ActivityResultLauncher<Intent> enableBluetoothLauncher =
@@ -163,37 +186,12 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
                             return;
                         }
                         if (mConnected) {
+                            // The service handles several devices, so leave
+                            // it connected. Use Disconnect All to stop it.
                             Log.d(TAG, mDeviceName + " is currently " +
-                                    "connected, disconnecting");
-                            disconnect();
-                            // This should really be set in the callback in the
-                            // broadcast receiver. However, we are currently
-                            // in the state where the old device is in the
-                            // process of being disconnected but not
-                            // disconnected. This makes the Connect/Disconnect
-                            // button temporarily not apply to the new device.
-                            // So force the options menu to change.
-                            mConnected = false;
+                                    "connected, leaving it connected");
                         }
-                        mDeviceName = deviceName;
-                        mDeviceAddress = deviceAddress;
-                        // Reset the data views
-                        resetDataViews();
-                        // Reset the name, address, and connection status;
-                        // Use this instead of getPreferences to be
-                        // application-wide
-                        SharedPreferences.Editor editor =
-                                PreferenceManager
-                                        .getDefaultSharedPreferences(this).edit();
-                        editor.putString(DEVICE_NAME_CODE, mDeviceName);
-                        editor.putString(DEVICE_ADDRESS_CODE,
-                                mDeviceAddress);
-                        editor.apply();
-                        ((TextView) findViewById(R.id.device_name))
-                                .setText(mDeviceName);
-                        ((TextView) findViewById(R.id.device_address))
-                                .setText(mDeviceAddress);
-                        invalidateOptionsMenu();
+                        setDevice(deviceName, deviceAddress);
                     });
 
     /**
@@ -206,17 +204,27 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
                                                IBinder service) {
                     Log.d(TAG, "onServiceConnected: " + mDeviceName + " "
                             + mDeviceAddress);
-                    mBcmBleService = ((BCMBleService.LocalBinder)
-                            service).getService();
+                    BCMBleService.LocalBinder binder =
+                            (BCMBleService.LocalBinder) service;
+                    mBcmBleService = binder.getService();
+                    mSampleRing = binder.getSampleRingBuffer();
+                    mSample = new SampleRingBuffer.Sample(
+                            mSampleRing.getMaxRr());
+                    mNextSequence = mSampleRing.getOldestSequence();
+                    if (mResumed) {
+                        mSampleRing.addListener(mSampleListener);
+                    }
+                    // Start the database first, so replays are recorded
+                    // even without Bluetooth
+                    if (mDbAdapter != null) {
+                        mBcmBleService.startDatabase(mDbAdapter);
+                    }
                     if (!mBcmBleService.initialize()) {
                         String msg = "Unable to initialize Bluetooth";
                         Log.e(TAG, msg);
                         Utils.errMsg(DeviceMonitorActivity.this, msg);
                         return;
                     }
-                    if (mDbAdapter != null) {
-                        mBcmBleService.startDatabase(mDbAdapter);
-                    }
                     // Automatically connects to the device upon successful
                     // start-up
                     // initialization.
@@ -239,6 +247,7 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
                 public void onServiceDisconnected(ComponentName componentName) {
                     Log.d(TAG, "onServiceDisconnected");
                     mBcmBleService = null;
+                    mSampleRing = null;
                 }
             };
 
@@ -257,6 +266,12 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
                 @Override
                 public void onReceive(Context context, Intent intent) {
                     final String action = intent.getAction();
+                    // Ignore broadcasts for other devices
+                    String address =
+                            intent.getStringExtra(EXTRA_DEVICE_ADDRESS);
+                    if (address != null && !address.equals(mDeviceAddress)) {
+                        return;
+                    }
                     if (BCMBleService.ACTION_GATT_CONNECTED.equals(action)) {
                         Log.d(TAG, "onReceive: " + action);
                         mConnected = true;
@@ -272,7 +287,8 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
                     } else if (BCMBleService.ACTION_GATT_SERVICES_DISCOVERED
                             .equals(action)) {
                         Log.d(TAG, "onReceive: " + action);
-                        onServicesDiscovered(mBcmBleService.getSupportedGattServices());
+                        onServicesDiscovered(mBcmBleService
+                                .getSupportedGattServices(mDeviceAddress));
                     } else if (BCMBleService.ACTION_DATA_AVAILABLE.equals(action)) {
                         // Log.d(TAG, "onReceive: " + action);
                         displayData(intent);
@@ -364,6 +380,7 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
                 + " mAllPermissionsAsked=" + mAllPermissionsAsked
         );
         super.onResume();
+        mResumed = true;
         if (!isAllPermissionsGranted(this)) {
             if (!mAllPermissionsAsked) {
                 mAllPermissionsAsked = true;
@@ -387,6 +404,9 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
                 PREF_MANUALLY_DISCONNECTED, false);
         Log.d(TAG, "Starting registerReceiver");
         registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
+        if (mSampleRing != null) {
+            mSampleRing.addListener(mSampleListener);
+        }
         if (!manuallyDisconnected && mDeviceAddress != null
                 && mBcmBleService != null) {
             Log.d(TAG, "Starting mBcmBleService.connect");
@@ -412,6 +432,10 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
     protected void onPause() {
         Log.d(TAG, this.getClass().getSimpleName() + ": onPause");
         super.onPause();
+        mResumed = false;
+        if (mSampleRing != null) {
+            mSampleRing.removeListener(mSampleListener);
+        }
         try {
             unregisterReceiver(mGattUpdateReceiver);
         } catch (Exception ex) {
@@ -475,14 +499,23 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
     protected void onDestroy() {
         Log.d(TAG, this.getClass().getSimpleName() + ": onDestroy");
         super.onDestroy();
+        // Make the service write any pending data before the database is
+        // closed, since onUnbind is not called until later
+        if (mBcmBleService != null) {
+            mBcmBleService.stopDatabase();
+        }
         if (mServiceBound) {
             unbindService(mServiceConnection);
         }
         mBcmBleService = null;
-        if (mDbAdapter != null) {
+        if (mReplaceDatabaseTask != null) {
+            // It is using the database, so it closes it when it stops
+            mReplaceDatabaseTask.closeWhenDone();
+            mReplaceDatabaseTask = null;
+        } else if (mDbAdapter != null) {
             mDbAdapter.close();
-            mDbAdapter = null;
         }
+        mDbAdapter = null;
     }
 
     @Override
@@ -504,6 +537,8 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
             menu.findItem(R.id.menu_connect).setVisible(true);
             menu.findItem(R.id.menu_disconnect).setVisible(false);
         }
+        // The benchmark is for development only
+        menu.findItem(R.id.menu_db_benchmark).setVisible(BuildConfig.DEBUG);
         return true;
     }
 
@@ -515,12 +550,18 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
         } else if (item.getItemId() == R.id.menu_disconnect) {
             disconnect();
             return true;
+        } else if (item.getItemId() == R.id.menu_disconnect_all) {
+            disconnectAll();
+            return true;
         } else if (item.getItemId() == android.R.id.home) {
             onBackPressed();
             return true;
         } else if (item.getItemId() == R.id.menu_select_device) {
             selectDevice();
             return true;
+        } else if (item.getItemId() == R.id.menu_replay) {
+            selectReplaySource();
+            return true;
         } else if (item.getItemId() == R.id.menu_session_manager) {
             startSessionManager();
             return true;
@@ -536,6 +577,17 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
         } else if (item.getItemId() == R.id.menu_save_database) {
             saveDatabase();
             return true;
+        } else if (item.getItemId() == R.id.menu_save_metrics) {
+            saveMetrics();
+            return true;
+        } else if (item.getItemId() == R.id.menu_reset_metrics) {
+            resetMetrics();
+            return true;
+        } else if (item.getItemId() == R.id.menu_db_benchmark) {
+            if (BuildConfig.DEBUG) {
+                runDbBenchmark();
+            }
+            return true;
         } else if (item.getItemId() == R.id.menu_replace_database) {
             checkReplaceDatabase();
             return true;
@@ -580,14 +632,9 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
         boolean newVal = mConnected;
         if (mDeviceAddress == null) return newVal;
         if (!mServiceBound || mBcmBleService == null) return newVal;
-        String address = mBcmBleService.getDeviceAddress();
-        if (address == null) return newVal;
-        int connectionState = mBcmBleService.getConnectionState();
-        boolean connected =
-                (connectionState == BluetoothProfile.STATE_CONNECTED);
-        if (mDeviceAddress.equals(address)) {
-            newVal = connected;
-        }
+        int connectionState =
+                mBcmBleService.getConnectionState(mDeviceAddress);
+        newVal = (connectionState == BluetoothProfile.STATE_CONNECTED);
         return newVal;
     }
 
@@ -610,11 +657,174 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
         Log.d(TAG, this.getClass().getSimpleName() + ": disconnect");
         mStatus.setText("");
         if (mServiceBound) {
-            mBcmBleService.disconnect();
+            mBcmBleService.disconnect(mDeviceAddress);
             setManuallyDisconnected(true);
         }
     }
 
+    /**
+     * Disconnects all devices, including ones selected before the current
+     * device.
+     */
+    private void disconnectAll() {
+        Log.d(TAG, this.getClass().getSimpleName() + ": disconnectAll");
+        mStatus.setText("");
+        if (mServiceBound && mBcmBleService != null) {
+            mBcmBleService.disconnectAll();
+            setManuallyDisconnected(true);
+        }
+    }
+
+    /**
+     * Makes the given device the current one, showing its values and saving
+     * it in the preferences.
+     *
+     * @param deviceName    The device name.
+     * @param deviceAddress The device address.
+     */
+    private void setDevice(String deviceName, String deviceAddress) {
+        mDeviceName = deviceName;
+        mDeviceAddress = deviceAddress;
+        // The new device may already be connected
+        mConnected = false;
+        mConnected = getIsConnectedFromService();
+        updateConnectionState();
+        // Reset the data views
+        resetDataViews();
+        // Reset the name, address, and connection status;
+        // Use this instead of getPreferences to be
+        // application-wide
+        SharedPreferences.Editor editor =
+                PreferenceManager.getDefaultSharedPreferences(this).edit();
+        editor.putString(DEVICE_NAME_CODE, mDeviceName);
+        editor.putString(DEVICE_ADDRESS_CODE, mDeviceAddress);
+        editor.apply();
+        ((TextView) findViewById(R.id.device_name)).setText(mDeviceName);
+        ((TextView) findViewById(R.id.device_address))
+                .setText(mDeviceAddress);
+        invalidateOptionsMenu();
+    }
+
+    /**
+     * Prompts for what to replay, generated values or one of the session
+     * CSV files in the data directory, and then for the speed.
+     */
+    private void selectReplaySource() {
+        if (mBcmBleService == null) {
+            Utils.errMsg(this, "The service is not running");
+            return;
+        }
+        final List<UriUtils.UriData> children = new ArrayList<>();
+        SharedPreferences prefs = getPreferences(MODE_PRIVATE);
+        String treeUriStr = prefs.getString(PREF_TREE_URI, null);
+        if (treeUriStr != null) {
+            children.addAll(UriUtils.getChildren(this,
+                    Uri.parse(treeUriStr), ".csv"));
+            // Sort them by date with newest first
+            Collections.sort(children,
+                    (data1, data2) -> Long.compare(data2.modifiedTime,
+                            data1.modifiedTime));
+        }
+        final CharSequence[] items = new CharSequence[children.size() + 1];
+        items[0] = getString(R.string.replay_generated);
+        String displayName;
+        UriUtils.UriData uriData;
+        for (int i = 0; i < children.size(); i++) {
+            uriData = children.get(i);
+            displayName = uriData.displayName;
+            if (displayName == null) {
+                displayName = uriData.uri.getLastPathSegment();
+            }
+            items[i + 1] = displayName;
+        }
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(getText(R.string.select_replay_source));
+        builder.setSingleChoiceItems(items, 0,
+                (dialog, item) -> {
+                    dialog.dismiss();
+                    if (item < 0 || item >= items.length) {
+                        Utils.errMsg(DeviceMonitorActivity.this,
+                                "Invalid item");
+                        return;
+                    }
+                    if (item == 0) {
+                        selectReplaySpeed(null, items[0].toString());
+                    } else {
+                        selectReplaySpeed(children.get(item - 1).uri,
+                                items[item].toString());
+                    }
+                });
+        AlertDialog alert = builder.create();
+        alert.show();
+    }
+
+    /**
+     * Prompts for the replay speed and starts the replay.
+     *
+     * @param uri  The Uri of the session CSV file or null for generated
+     *             values.
+     * @param name The name of the source.
+     */
+    private void selectReplaySpeed(final Uri uri, final String name) {
+        final CharSequence[] items = {"1x", "10x",
+                getString(R.string.replay_max_speed)};
+        final double[] speeds = {1, 10, ReplaySampleSource.MAX_SPEED};
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(getText(R.string.select_replay_speed));
+        builder.setSingleChoiceItems(items, 0,
+                (dialog, item) -> {
+                    dialog.dismiss();
+                    if (item < 0 || item >= speeds.length) {
+                        Utils.errMsg(DeviceMonitorActivity.this,
+                                "Invalid item");
+                        return;
+                    }
+                    startReplay(uri, name, speeds[item]);
+                });
+        AlertDialog alert = builder.create();
+        alert.show();
+    }
+
+    /**
+     * Starts a replay in the service and makes the replay the current
+     * device.
+     *
+     * @param uri   The Uri of the session CSV file or null for generated
+     *              values.
+     * @param name  The name of the source.
+     * @param speed The speed.
+     */
+    private void startReplay(Uri uri, String name, double speed) {
+        if (mBcmBleService == null) {
+            Utils.errMsg(this, "The service is not running");
+            return;
+        }
+        InputStream in = null;
+        try {
+            SampleSource source;
+            if (uri == null) {
+                source = ReplaySampleSource.generated(REPLAY_GENERATED_HR,
+                        REPLAY_GENERATED_DURATION, speed);
+            } else {
+                in = getContentResolver().openInputStream(uri);
+                source = ReplaySampleSource.fromSessionCsv(name,
+                        new InputStreamReader(in), speed);
+            }
+            setDevice(REPLAY_DEVICE_NAME, REPLAY_DEVICE_ADDRESS);
+            if (!mBcmBleService.startReplay(REPLAY_DEVICE_ADDRESS, source)) {
+                if (in != null) {
+                    in.close();
+                }
+                Utils.errMsg(this, "Could not start the replay. It may "
+                        + "already be running.");
+            }
+        } catch (Exception ex) {
+            String msg = "Error starting the replay";
+            Utils.excMsg(this, msg, ex);
+            Log.e(TAG, msg, ex);
+        }
+    }
+
     /**
      * Calls an activity to select the device.
      */
@@ -627,7 +837,7 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
 
     public void readBatteryLevel() {
         if (mBcmBleService != null) {
-            mBcmBleService.readBatteryLevel();
+            mBcmBleService.readBatteryLevel(mDeviceAddress);
         }
     }
 
@@ -652,6 +862,19 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
             info.append("Device Address: ").append(mDeviceAddress).append("\n");
             info.append("Connected: ").append(mConnected).append("\n");
             info.append("Battery: ").append(mBat.getText()).append("\n");
+            if (mBcmBleService != null) {
+                List<String> addresses =
+                        mBcmBleService.getConnectedDeviceAddresses();
+                info.append("Connected Devices: ").append(addresses.size())
+                        .append("\n");
+                for (String address : addresses) {
+                    info.append("  ").append(address).append("\n");
+                }
+                info.append(mBcmBleService.getSampleQueueInfo());
+                info.append(mBcmBleService.getPerformanceMetrics().getInfo());
+                info.append(mBcmBleService.getReconnectInfo());
+                info.append(mBcmBleService.getReplayInfo());
+            }
             SharedPreferences prefs = getPreferences(MODE_PRIVATE);
             info.append(UriUtils.getRequestedPermissionsInfo(this));
             String treeUriStr = prefs.getString(PREF_TREE_URI, null);
@@ -758,6 +981,41 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
         }
     }
 
+    /**
+     * Displays the most recent sample for the current device from the
+     * service's ring buffer, which holds samples from all connected devices.
+     */
+    private void displayLatestSample() {
+        if (mSampleRing == null || mBcmBleService == null) {
+            return;
+        }
+        int source = mBcmBleService.getConnectionId(mDeviceAddress);
+        long latest = INVALID_INT;
+        while (mSampleRing.read(mNextSequence, mSample)) {
+            mNextSequence = mSample.getSequence() + 1;
+            if (mSample.getSource() == source) {
+                latest = mSample.getSequence();
+            }
+        }
+        if (latest == INVALID_INT || !mSampleRing.read(latest, mSample)
+                || mSample.getSequence() != latest) {
+            return;
+        }
+        if (mSample.getHr() == INVALID_INT) {
+            // Marks a gap where the device dropped
+            mHr.setText(R.string.not_available);
+            mRr.setText("");
+            return;
+        }
+        mHr.setText(String.valueOf(mSample.getHr()));
+        if (mSample.getRrCount() == INVALID_INT) {
+            mRr.setText("");
+        } else {
+            mRr.setText(HeartRateValues.formatRr(mSample.getRrValues(), 0,
+                    mSample.getRrCount()));
+        }
+    }
+
     /**
      * Displays the error from an ACTION_STATUS callback.
      *
@@ -804,7 +1062,8 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
      */
     boolean startSession() {
         Log.d(TAG, "  mCharBat=" + mCharBat + " mCharHr=" + mCharHr);
-        return mBcmBleService.startSession(mCharBat, mCharHr);
+        return mBcmBleService.startSession(mDeviceAddress, mCharBat,
+                mCharHr);
     }
 
     /**
@@ -868,6 +1127,87 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
         }
     }
 
+    /**
+     * Saves the performance metrics from the service as a CSV file in the
+     * data directory.
+     */
+    private void saveMetrics() {
+        if (mBcmBleService == null) {
+            Utils.errMsg(this, "The service is not running");
+            return;
+        }
+        SharedPreferences prefs = getPreferences(MODE_PRIVATE);
+        String treeUriStr = prefs.getString(PREF_TREE_URI, null);
+        if (treeUriStr == null) {
+            Utils.errMsg(this, "There is no data directory set");
+            return;
+        }
+        try {
+            String format = "yyyy-MM-dd-HHmmss";
+            SimpleDateFormat df = new SimpleDateFormat(format, Locale.US);
+            String fileName = String.format(saveMetricsTemplate,
+                    df.format(new Date()));
+            Uri treeUri = Uri.parse(treeUriStr);
+            String treeDocumentId =
+                    DocumentsContract.getTreeDocumentId(treeUri);
+            Uri docTreeUri =
+                    DocumentsContract.buildDocumentUriUsingTree(treeUri,
+                            treeDocumentId);
+            ContentResolver resolver = this.getContentResolver();
+            Uri docUri = DocumentsContract.createDocument(resolver, docTreeUri,
+                    "text/csv", fileName);
+            if (docUri == null) {
+                Utils.errMsg(this, "Could not create document Uri");
+                return;
+            }
+            ParcelFileDescriptor pfd = getContentResolver().
+                    openFileDescriptor(docUri, "w");
+            try (FileWriter writer =
+                         new FileWriter(pfd.getFileDescriptor());
+                 BufferedWriter out = new BufferedWriter(writer)) {
+                mBcmBleService.getPerformanceMetrics().writeCsv(out);
+            }
+            Utils.infoMsg(this, "Wrote " + docUri.getLastPathSegment());
+        } catch (Exception ex) {
+            String msg = "Error saving performance metrics";
+            Utils.excMsg(this, msg, ex);
+            Log.e(TAG, msg, ex);
+        }
+    }
+
+    /**
+     * Runs the database benchmark in the background on a scratch database
+     * and shows the results.
+     */
+    private void runDbBenchmark() {
+        Toast.makeText(this, R.string.db_benchmark_running,
+                Toast.LENGTH_SHORT).show();
+        final File dir = getCacheDir();
+        new Thread(() -> {
+            try {
+                final String info = new DbBenchmark(dir).run();
+                runOnUiThread(() -> Utils.infoMsg(DeviceMonitorActivity.this,
+                        info));
+            } catch (final Exception ex) {
+                Log.e(TAG, "Error running database benchmark", ex);
+                runOnUiThread(() -> Utils.excMsg(DeviceMonitorActivity.this,
+                        "Error running database benchmark", ex));
+            }
+        }, "BCMBenchmark").start();
+    }
+
+    /**
+     * Clears the performance metrics in the service.
+     */
+    private void resetMetrics() {
+        if (mBcmBleService == null) {
+            Utils.errMsg(this, "The service is not running");
+            return;
+        }
+        mBcmBleService.resetPerformanceMetrics();
+        Utils.infoMsg(this, "Performance metrics have been reset");
+    }
+
     /**
      * Does the preliminary checking for restoring the database, prompts if
      * it is OK to delete the current one, and call restoreDatabase to
@@ -958,40 +1298,174 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
             Utils.errMsg(this, msg);
             return;
         }
-        // Copy the data base to app storage
-        File dest = null;
-        try {
-            String destFileName = UriUtils.getFileNameFromUri(uri);
-            dest = new File(getExternalFilesDir(null), destFileName);
-            dest.createNewFile();
-            ParcelFileDescriptor pfd = getContentResolver().
-                    openFileDescriptor(uri, "rw");
-            try (FileChannel in =
-                         new FileInputStream(pfd.getFileDescriptor()).getChannel();
-                 FileChannel out =
-                         new FileOutputStream(dest).getChannel()) {
-                out.transferFrom(in, 0, in.size());
+        if (mReplaceDatabaseTask != null) {
+            // Don't do anything if we are replacing
+            Log.d(TAG, "replaceDatabase: replaceDatabaseTask is not null for "
+                    + lastSeg);
+            return;
+        }
+        if (mBcmBleService != null
+                && mBcmBleService.getAnySessionInProgress()) {
+            Utils.errMsg(this, "Cannot replace the database while a "
+                    + "session is in progress. Disconnect first.");
+            return;
+        }
+        mReplaceDatabaseTask = new ReplaceDatabaseTask(uri, mDbAdapter);
+        mReplaceDatabaseTask.execute();
+    }
+
+    /**
+     * Copies a database to app storage and replaces the data with it in the
+     * background, showing the progress. It can be cancelled until all the
+     * data have been copied, which leaves the data as they were. The
+     * service stops writing to the database until it is done, since
+     * replacing it reopens the connection.
+     */
+    private class ReplaceDatabaseTask extends AsyncTask<Void, Integer,
+            Boolean> implements BCMDbAdapter.ReplaceProgress {
+        private ProgressDialog mDialog;
+        private final Uri mUri;
+        private final BCMDbAdapter mAdapter;
+        private String mExceptionMsg;
+        private Exception mException;
+        /**
+         * Whether the activity has been destroyed, and the adapter is to be
+         * closed when this stops.
+         */
+        private boolean mCloseWhenDone;
+
+        private ReplaceDatabaseTask(Uri uri, BCMDbAdapter adapter) {
+            super();
+            this.mUri = uri;
+            this.mAdapter = adapter;
+        }
+
+        /**
+         * Cancels this and closes the adapter when it stops, instead of
+         * showing the result. Call on the UI thread when the activity is
+         * destroyed.
+         */
+        private void closeWhenDone() {
+            mCloseWhenDone = true;
+            mDialog.dismiss();
+            cancel(false);
+        }
+
+        /**
+         * Closes the adapter if closeWhenDone was called, else lets the
+         * service write to it again.
+         *
+         * @return Whether the adapter was closed.
+         */
+        private boolean finish() {
+            if (mCloseWhenDone) {
+                mAdapter.close();
+                return true;
+            }
+            mDialog.dismiss();
+            mReplaceDatabaseTask = null;
+            if (mBcmBleService != null) {
+                mBcmBleService.startDatabase(mAdapter);
+            }
+            return false;
+        }
+
+        @Override
+        protected void onPreExecute() {
+            // Stop the service writing while the database is replaced
+            if (mBcmBleService != null) {
+                mBcmBleService.stopDatabase();
+            }
+            mDialog = new ProgressDialog(DeviceMonitorActivity.this);
+            mDialog.setMessage(getString(R.string
+                    .replacing_database_progress_text));
+            mDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            mDialog.setMax(100);
+            mDialog.setCancelable(false);
+            mDialog.setButton(DialogInterface.BUTTON_NEGATIVE,
+                    getString(R.string.cancel),
+                    (dialog, which) -> cancel(false));
+            mDialog.show();
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... dummy) {
+            // Copy the database to app storage
+            File dest = null;
+            try {
+                String destFileName = UriUtils.getFileNameFromUri(mUri);
+                dest = new File(getExternalFilesDir(null), destFileName);
+                dest.createNewFile();
+                try (ParcelFileDescriptor pfd = getContentResolver().
+                        openFileDescriptor(mUri, "r");
+                     FileChannel in = new FileInputStream(
+                             pfd.getFileDescriptor()).getChannel();
+                     FileChannel out =
+                             new FileOutputStream(dest).getChannel()) {
+                    out.transferFrom(in, 0, in.size());
+                }
             } catch (Exception ex) {
-                String msg = "Error copying source database from "
-                        + uri.getLastPathSegment() + " to "
-                        + dest.getPath();
-                Log.e(TAG, msg, ex);
-                Utils.excMsg(this, msg, ex);
+                mExceptionMsg = "Error copying source database from "
+                        + mUri.getLastPathSegment() + " to " + dest;
+                mException = ex;
+                if (dest != null) dest.delete();
+                return false;
+            }
+            try {
+                // Replace (Use null for default alias)
+                return mAdapter.replaceDatabase(dest.getPath(), null, this);
+            } catch (Exception ex) {
+                mExceptionMsg = "Error replacing data from " + dest.getPath();
+                mException = ex;
+                return false;
+            } finally {
+                dest.delete();
             }
-        } catch (Exception ex) {
-            String msg = "Error getting source database" + uri;
-            Log.e(TAG, msg, ex);
-            Utils.excMsg(this, msg, ex);
         }
-        try {
-            // Replace (Use null for default alias)
-            mDbAdapter.replaceDatabase(dest.getPath(), null);
-            Utils.infoMsg(this,
-                    "Restored database from " + uri.getLastPathSegment());
-        } catch (Exception ex) {
-            String msg = "Error replacing data from " + dest.getPath();
-            Log.e(TAG, msg, ex);
-            Utils.excMsg(this, msg, ex);
+
+        @Override
+        public void onProgress(long nCopied, long nTotal) {
+            publishProgress((int) (100 * nCopied / Math.max(nTotal, 1)));
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            mDialog.setProgress(values[0]);
+        }
+
+        @Override
+        protected void onPostExecute(Boolean result) {
+            Log.d(TAG, this.getClass().getSimpleName()
+                    + ": onPostExecute: result=" + result);
+            if (finish()) {
+                return;
+            }
+            if (mException != null) {
+                Log.e(TAG, mExceptionMsg, mException);
+                Utils.excMsg(DeviceMonitorActivity.this, mExceptionMsg,
+                        mException);
+            } else if (result) {
+                Utils.infoMsg(DeviceMonitorActivity.this,
+                        "Restored database from "
+                                + mUri.getLastPathSegment());
+            }
+        }
+
+        @Override
+        protected void onCancelled(Boolean result) {
+            Log.d(TAG, this.getClass().getSimpleName()
+                    + ": onCancelled: result=" + result);
+            if (Boolean.TRUE.equals(result) || mException != null) {
+                // Finished or failed before the cancel was seen
+                onPostExecute(result);
+                return;
+            }
+            if (finish()) {
+                return;
+            }
+            Utils.infoMsg(DeviceMonitorActivity.this,
+                    "Cancelled replacing the database. The data were not "
+                            + "changed.");
         }
     }
 
@@ -2,86 +2,117 @@ package net.kenevans.android.blecardiacmonitor;
 
 import android.bluetooth.BluetoothGattCharacteristic;
 
+/**
+ * Holds the values from a Heart Rate Measurement characteristic. An instance
+ * may be reused by calling {@link #decode(byte[], long)} for each new value,
+ * in which case decoding does not allocate. The String forms of the values
+ * are only created when asked for.
+ */
 public class HeartRateValues implements IConstants {
+    /**
+     * Maximum number of R-R values that fit in one characteristic value.
+     */
+    public static final int MAX_RR_VALUES = 256;
+
     private long date;
     private int hr = INVALID_INT;
     private int sensorContact = INVALID_INT;
     private int ee = INVALID_INT;
-    private String rr = INVALID_STRING;
+    /**
+     * The number of R-R values or INVALID_INT if R-R is not present.
+     */
+    private int rrCount = INVALID_INT;
+    private final int[] rr = new int[MAX_RR_VALUES];
+    private String rrString;
     private String info;
 
+    /**
+     * Constructor for a reusable instance. Use decode to set the values.
+     */
+    HeartRateValues() {
+    }
+
     HeartRateValues(BluetoothGattCharacteristic characteristic, long
             date) {
         this.date = date;
         if (!characteristic.getUuid().equals(UUID_HEART_RATE_MEASUREMENT)) {
             return;
         }
-        String string = "";
-        int flag =
-                characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-        int format;
+        decode(characteristic.getValue(), date);
+    }
+
+    /**
+     * Decodes a Heart Rate Measurement value into this instance.
+     *
+     * @param data The raw characteristic value.
+     * @param date The date.
+     * @return If the value was valid.
+     */
+    public boolean decode(byte[] data, long date) {
+        return decode(data, data == null ? 0 : data.length, date);
+    }
+
+    /**
+     * Decodes a Heart Rate Measurement value into this instance.
+     *
+     * @param data   The raw characteristic value.
+     * @param length The number of bytes of data to use.
+     * @param date   The date.
+     * @return If the value was valid.
+     */
+    public boolean decode(byte[] data, int length, long date) {
+        this.date = date;
+        hr = INVALID_INT;
+        sensorContact = INVALID_INT;
+        ee = INVALID_INT;
+        rrCount = INVALID_INT;
+        rrString = null;
+        info = null;
+        if (data == null || length < 2) {
+            return false;
+        }
+        int flag = data[0] & 0xFF;
         int offset = 1;
         if ((flag & 0x01) != 0) {
-            format = BluetoothGattCharacteristic.FORMAT_UINT16;
+            if (length < 3) {
+                return false;
+            }
+            hr = uint16(data, offset);
             offset += 2;
         } else {
-            format = BluetoothGattCharacteristic.FORMAT_UINT8;
+            hr = data[offset] & 0xFF;
             offset += 1;
         }
-        hr = characteristic.getIntValue(format, 1);
-        string += "Heart Rate: " + hr;
         // Sensor Contact
         sensorContact = (flag >> 1) & 0x3;
-        switch (sensorContact) {
-            case 0:
-            case 1:
-                string += "\nSensor contact not supported";
-                break;
-            case 2:
-                string += "\nSensor contact not detected";
-                break;
-            case 3:
-                string += "\nSensor contact detected";
-                break;
-        }
         // Energy Expended
         if ((flag & 0x08) != 0) {
-            ee = characteristic.getIntValue(
-                    BluetoothGattCharacteristic.FORMAT_UINT16, offset);
+            if (offset + 2 <= length) {
+                ee = uint16(data, offset);
+            }
             offset += 2;
-            string += "\nEnergy Expended: " + ee;
-        } else {
-            string += "\nEnergy Expended: NA";
         }
         // R-R
         if ((flag & 0x10) != 0) {
-            int len = characteristic.getValue().length;
             // There may be more than 1 R-R value
-            int iVal;
-            String rrString = "";
-            StringBuilder sb = new StringBuilder();
-            while (offset < len) {
-                iVal = characteristic.getIntValue(
-                        BluetoothGattCharacteristic.FORMAT_UINT16, offset);
+            rrCount = 0;
+            while (offset + 2 <= length && rrCount < MAX_RR_VALUES) {
+                rr[rrCount++] = uint16(data, offset);
                 offset += 2;
-                sb.append(" ");
-                sb.append(iVal);
             }
-            rr = sb.toString().trim();
-            string += "\nR-R: " + rrString;
-        } else {
-            string += "\nR-R: NA";
         }
-        // // DEBUG
-        // final byte[] data = characteristic.getValue();
-        // if (data != null && data.length > 0) {
-        // final StringBuilder stringBuilder = new StringBuilder(data.length);
-        // for (byte byteChar : data) {
-        // stringBuilder.append(String.format("%02X ", byteChar));
-        // }
-        // info += "\n" + stringBuilder.toString();
-        // }
-        this.info = string;
+        return true;
+    }
+
+    /**
+     * Gets an unsigned little-endian 16-bit value.
+     *
+     * @param data   The data.
+     * @param offset The offset.
+     * @return The value.
+     */
+    private static int uint16(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
     }
 
     /**
@@ -124,13 +155,35 @@ public class HeartRateValues implements IConstants {
         return ee;
     }
 
+    /**
+     * Gets the number of R-R values.
+     *
+     * @return The number of R-R values or INVALID_INT if there are none.
+     */
+    public int getRrCount() {
+        return rrCount;
+    }
+
+    /**
+     * Gets the R-R values. Only the first getRrCount() are valid. The array
+     * is reused by the next decode.
+     *
+     * @return The R-R values.
+     */
+    public int[] getRrValues() {
+        return rr;
+    }
+
     /**
      * Gets the R-R values.
      *
      * @return The R-R values.
      */
     public String getRr() {
-        return rr;
+        if (rrString == null) {
+            rrString = formatRr(rr, 0, rrCount);
+        }
+        return rrString;
     }
 
     /**
@@ -139,7 +192,63 @@ public class HeartRateValues implements IConstants {
      * @return The info.
      */
     public String getInfo() {
+        if (info != null) {
+            return info;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("Heart Rate: ").append(hr);
+        switch (sensorContact) {
+            case 0:
+            case 1:
+                sb.append("\nSensor contact not supported");
+                break;
+            case 2:
+                sb.append("\nSensor contact not detected");
+                break;
+            case 3:
+                sb.append("\nSensor contact detected");
+                break;
+        }
+        sb.append("\nEnergy Expended: ");
+        if (ee == INVALID_INT) {
+            sb.append("NA");
+        } else {
+            sb.append(ee);
+        }
+        sb.append("\nR-R: ");
+        if (rrCount == INVALID_INT) {
+            sb.append("NA");
+        } else {
+            sb.append(getRr());
+        }
+        info = sb.toString();
         return info;
     }
 
+    /**
+     * Formats R-R values as they are stored in the database, space
+     * separated.
+     *
+     * @param values The values.
+     * @param offset The offset of the first value.
+     * @param count  The number of values or INVALID_INT if R-R is not
+     *               present.
+     * @return The formatted values or INVALID_STRING.
+     */
+    public static String formatRr(int[] values, int offset, int count) {
+        if (count == INVALID_INT) {
+            return INVALID_STRING;
+        }
+        if (count == 0) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(5 * count);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(values[offset + i]);
+        }
+        return sb.toString();
+    }
 }
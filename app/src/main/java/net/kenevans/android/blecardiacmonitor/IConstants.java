@@ -114,6 +114,12 @@ public interface IConstants {
     String PREF_PLOT_ACT = "plotActPreference";
     String PREF_PLOT_PA = "plotPaPreference";
     String PREF_PLOT_INTERVAL = "plotIntervalPreference";
+    String PREF_UPDATE_INTERVAL = "updateIntervalPreference";
+    String PREF_PLOT_FPS = "plotFpsPreference";
+    String PREF_DB_DURABILITY = "dbDurabilityPreference";
+    String PREF_DB_JOURNAL = "dbJournalPreference";
+    String PREF_RETENTION_MONTHS = "retentionMonthsPreference";
+    String PREF_RETENTION_ACTION = "retentionActionPreference";
     String PREF_MANUALLY_DISCONNECTED = "manuallyDisconnected";
     String PREF_TREE_URI = "tree_uri";
 
@@ -177,9 +183,50 @@ public interface IConstants {
      */
     String DB_DATA_TABLE = "data";
     /**
-     * The database version
+     * Simple name of the table of gaps in the data when a device was
+     * disconnected during a session.
      */
-    int DB_VERSION = 1;
+    String DB_GAP_TABLE = "gaps";
+    /**
+     * Simple name of the table with a summary of each session, kept up to
+     * date as data is written.
+     */
+    String DB_SESSION_TABLE = "sessions";
+    /**
+     * Simple name of the table with the HR and R-R summarized over fixed
+     * intervals for plotting long sessions.
+     */
+    String DB_ROLLUP_TABLE = "rollups";
+    /**
+     * Simple name of the table listing the months whose data have been
+     * moved out of the data table.
+     */
+    String DB_ARCHIVE_TABLE = "archives";
+    /**
+     * Template for the simple name of the database holding the archived
+     * data for a month. The argument is the month as yyyymm.
+     */
+    String ARCHIVE_DB_NAME_TEMPLATE = "BCMArchive.%06d.db";
+    /**
+     * Template for the simple name of the sample journal for a session. The
+     * argument is the start date.
+     */
+    String JOURNAL_NAME_TEMPLATE = "BCMJournal.%d.jnl";
+    /**
+     * Name of the index on the data table by session.
+     */
+    String DB_SESSION_INDEX = "data_startdate_idx";
+    /**
+     * Name of the index on the data table by date.
+     */
+    String DB_DATE_INDEX = "data_date_idx";
+    /**
+     * The database version. Version 2 stores the R-R as a BLOB. Version 3
+     * adds the device. Version 4 adds the gap table. Version 5 adds the
+     * indexes. Version 6 adds the session table. Version 7 adds the rollup
+     * table. Version 8 adds the archive table.
+     */
+    int DB_VERSION = 8;
     /**
      * Database column for the id. Identifies the row.
      */
@@ -193,21 +240,208 @@ public interface IConstants {
      */
     String COL_START_DATE = "startdate";
     /**
-     * Database column for the end date.
+     * Session table column for the end date, the date of the last sample.
      */
-    String COL_END_DATE = "MAX(" + COL_DATE + ")";
+    String COL_END_DATE = "enddate";
     /**
      * Database column for the heart rate.
      */
     String COL_HR = "hr";
     /**
-     * Database column for the R-R.
+     * Database column for the R-R. A BLOB of little-endian unsigned 16-bit
+     * values in units of 1/1024 sec or null if there is no R-R.
      */
     String COL_RR = "rr";
+    /**
+     * Database column for the number of R-R values or INVALID_INT if there
+     * is no R-R.
+     */
+    String COL_RR_COUNT = "rrcount";
+    /**
+     * Database column for the address of the device. Null for data recorded
+     * before there could be more than one device.
+     */
+    String COL_DEVICE = "device";
+    /**
+     * Gap table column for the date the device disconnected.
+     */
+    String COL_GAP_START = "gapstart";
+    /**
+     * Gap table column for the date the device reconnected or the
+     * reconnecting was stopped.
+     */
+    String COL_GAP_END = "gapend";
+    /**
+     * Session table column for the number of samples.
+     */
+    String COL_SAMPLE_COUNT = "samplecount";
+    /**
+     * Session table column for the number of samples with a valid HR.
+     */
+    String COL_HR_COUNT = "hrcount";
+    /**
+     * Session table column for the sum of the valid HR values.
+     */
+    String COL_HR_SUM = "hrsum";
+    /**
+     * Session table column for the minimum valid HR or null if there is
+     * none.
+     */
+    String COL_HR_MIN = "hrmin";
+    /**
+     * Session table column for the maximum valid HR or null if there is
+     * none.
+     */
+    String COL_HR_MAX = "hrmax";
+    /**
+     * Session table column for the total number of R-R values.
+     */
+    String COL_RR_TOTAL = "rrtotal";
+    /**
+     * Rollup table column for the length of the buckets (ms).
+     */
+    String COL_RESOLUTION = "resolution";
+    /**
+     * Rollup table column for the date of the start of the bucket.
+     */
+    String COL_BUCKET = "bucket";
+    /**
+     * Rollup table column for the sum of the valid R-R values.
+     */
+    String COL_RR_SUM = "rrsum";
+    /**
+     * Rollup table column for the minimum valid R-R value or null if there
+     * is none.
+     */
+    String COL_RR_MIN = "rrmin";
+    /**
+     * Rollup table column for the maximum valid R-R value or null if there
+     * is none.
+     */
+    String COL_RR_MAX = "rrmax";
+    /**
+     * The lengths of the rollup buckets, finest first (ms).
+     */
+    int[] ROLLUP_RESOLUTIONS = {5000, 60000, 600000};
+    /**
+     * Database column for a month as yyyymm.
+     */
+    String COL_MONTH = "month";
+    /**
+     * Database column for the simple name of an archive database, null if
+     * the data have been deleted.
+     */
+    String COL_FILE_NAME = "filename";
+    /**
+     * Retention action that moves old data to an archive database for each
+     * month.
+     */
+    String RETENTION_ARCHIVE = "archive";
+    /**
+     * Retention action that deletes old data, keeping the session and
+     * rollup tables.
+     */
+    String RETENTION_COMPACT = "compact";
+    /**
+     * Delay after starting the database before applying the retention
+     * policy (ms).
+     */
+    long RETENTION_INITIAL_DELAY = 60000;
+    /**
+     * Interval between applying the retention policy (ms).
+     */
+    long RETENTION_INTERVAL = 24 * 3600000L;
+    /**
+     * Number of rows read at a time when converting data between database
+     * versions.
+     */
+    int DB_MIGRATION_CHUNK_SIZE = 1000;
+    /**
+     * Number of rows copied in each transaction when replacing the
+     * database.
+     */
+    int DB_IMPORT_CHUNK_SIZE = 10000;
+    /**
+     * Default number of rows in each chunk read by a SessionReader.
+     */
+    int SESSION_READER_WINDOW_SIZE = 2048;
+    /**
+     * Maximum number of bytes of decoded session series to cache. It is
+     * also limited to 1/8 of the heap.
+     */
+    long SESSION_SERIES_CACHE_SIZE = 16 * 1024 * 1024;
+    /**
+     * Maximum number of samples held before they are written to the
+     * database in one transaction.
+     */
+    int DB_WRITE_BATCH_SIZE = 30;
+    /**
+     * Maximum time a sample is held before it is written to the database
+     * (ms).
+     */
+    long DB_WRITE_BATCH_INTERVAL = 10000;
+    /**
+     * Maximum number of received values waiting to be processed. More are
+     * dropped.
+     */
+    int SAMPLE_QUEUE_CAPACITY = 256;
+    /**
+     * Maximum size of a received value (the maximum attribute length).
+     */
+    int SAMPLE_SLOT_SIZE = 512;
+    /**
+     * Received values waiting longer than this to be processed are counted
+     * as delayed (ms).
+     */
+    long SAMPLE_DELAY_THRESHOLD = 1000;
+    /**
+     * Number of recent HR samples held for consumers in this process.
+     */
+    int SAMPLE_RING_CAPACITY = 1024;
+    /**
+     * Maximum number of R-R values held for a sample in the ring buffer.
+     * At most about 3 arrive with each HR value.
+     */
+    int SAMPLE_RING_MAX_RR = 16;
+    /**
+     * Maximum number of devices that may be connected at the same time.
+     * Android typically allows 7 to 15 concurrent LE connections.
+     */
+    int MAX_CONNECTIONS = 10;
+    /**
+     * Address used for values replayed rather than received from a device.
+     */
+    String REPLAY_DEVICE_ADDRESS = "00:00:00:00:00:00";
+    /**
+     * Device name used for values replayed rather than received from a
+     * device.
+     */
+    String REPLAY_DEVICE_NAME = "Replay";
+    /**
+     * Mean HR for generated replay values.
+     */
+    int REPLAY_GENERATED_HR = 70;
+    /**
+     * Length of generated replay values (ms).
+     */
+    long REPLAY_GENERATED_DURATION = 3600000;
+    /**
+     * Delay before the first attempt to reconnect a device that was
+     * disconnected during a session (ms). Doubles for each failed attempt.
+     */
+    long RECONNECT_INITIAL_DELAY = 1000;
+    /**
+     * Maximum delay between attempts to reconnect a device (ms).
+     */
+    long RECONNECT_MAX_DELAY = 60000;
     // /** Database column for the temporary flag. */
     //  String COL_TMP = "temporary";
 
     String saveDatabaseTemplate = "BCMMonitor.%s.db";
+    /**
+     * Template for the file name for saving the performance metrics.
+     */
+    String saveMetricsTemplate = "BCMMetrics.%s.csv";
     /**
      * Prefix for the file name for saving the database.
      */
@@ -231,6 +465,11 @@ public interface IConstants {
      * Delimiter for saving session files.
      */
     String SAVE_SESSION_DELIM = ",";
+    /**
+     * Number of samples in each block of a session archive, the unit for
+     * seeking.
+     */
+    int SESSION_ARCHIVE_BLOCK_SIZE = 1024;
     /**
      * Delimiter for saving the database.
      */
@@ -325,6 +564,14 @@ public interface IConstants {
      * The intent code for the R-R values.
      */
     String EXTRA_RR = PACKAGE_NAME + ".extraRr";
+    /**
+     * Intent code for the dates of coalesced samples (long[]).
+     */
+    String EXTRA_DATES = PACKAGE_NAME + ".extraDates";
+    /**
+     * Intent code for the HRs of coalesced samples (int[]).
+     */
+    String EXTRA_HRS = PACKAGE_NAME + ".extraHrs";
     /**
      * The intent code for the battery level.
      */
@@ -333,6 +580,10 @@ public interface IConstants {
      * The intent code for a message.
      */
     String EXTRA_MSG = PACKAGE_NAME + ".extraMessage";
+    /**
+     * The intent code for the address of the device a broadcast is for.
+     */
+    String EXTRA_DEVICE_ADDRESS = PACKAGE_NAME + ".extraDeviceAddress";
     /**
      * The intent code for device name.
      */
@@ -377,6 +628,19 @@ public interface IConstants {
      * Maximum item age for real-time plot, in ms.
      */
     int PLOT_MAXIMUM_AGE = 300000;
+    /**
+     * The number of points per pixel of plot width that session series are
+     * downsampled to.
+     */
+    int PLOT_POINTS_PER_PIXEL = 2;
+    /**
+     * Default minimum time between live UI updates, in ms.
+     */
+    long UPDATE_INTERVAL = 1000;
+    /**
+     * Default maximum number of plot redraws per second, 0 for every frame.
+     */
+    int PLOT_MAX_FPS = 10;
 
     // Formatters
     /**
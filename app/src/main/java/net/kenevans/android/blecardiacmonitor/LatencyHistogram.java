@@ -0,0 +1,246 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A histogram of latencies that uses a fixed amount of memory, in the
+ * manner of HdrHistogram. Values below 2^precisionBits are counted exactly.
+ * Above that each power of two is split into 2^(precisionBits - 1) equal
+ * buckets, so the relative error is at most 2^-(precisionBits - 1). Values
+ * above the highest trackable value are counted as that value.
+ * <p>
+ * The unit of the values is up to the caller. All methods are thread safe.
+ */
+public class LatencyHistogram {
+    private final long mHighestTrackableValue;
+    private final int mPrecisionBits;
+    private final int mSubBucketCount;
+    private final int mSubBucketHalfCount;
+    private final long[] mCounts;
+
+    private long mTotalCount;
+    private long mTotal;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax;
+
+    /**
+     * Constructor.
+     *
+     * @param highestTrackableValue The highest value that is counted as
+     *                              itself.
+     * @param precisionBits         The number of bits of precision. Must be
+     *                              between 2 and 16.
+     */
+    public LatencyHistogram(long highestTrackableValue, int precisionBits) {
+        if (precisionBits < 2 || precisionBits > 16) {
+            throw new IllegalArgumentException("Invalid precision bits: "
+                    + precisionBits);
+        }
+        if (highestTrackableValue < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid highest trackable value: "
+                            + highestTrackableValue);
+        }
+        mHighestTrackableValue = highestTrackableValue;
+        mPrecisionBits = precisionBits;
+        mSubBucketCount = 1 << precisionBits;
+        mSubBucketHalfCount = mSubBucketCount / 2;
+        mCounts = new long[getIndex(highestTrackableValue) + 1];
+    }
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     *
+     * @param value The value.
+     */
+    public synchronized void record(long value) {
+        if (value < 0) {
+            value = 0;
+        } else if (value > mHighestTrackableValue) {
+            value = mHighestTrackableValue;
+        }
+        mCounts[getIndex(value)]++;
+        mTotalCount++;
+        mTotal += value;
+        if (value < mMin) mMin = value;
+        if (value > mMax) mMax = value;
+    }
+
+    /**
+     * Clears all the counts.
+     */
+    public synchronized void reset() {
+        Arrays.fill(mCounts, 0);
+        mTotalCount = 0;
+        mTotal = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    /**
+     * Gets the number of values recorded.
+     *
+     * @return The count.
+     */
+    public synchronized long getTotalCount() {
+        return mTotalCount;
+    }
+
+    /**
+     * Gets the smallest value recorded.
+     *
+     * @return The minimum or 0 if there are no values.
+     */
+    public synchronized long getMin() {
+        return mTotalCount == 0 ? 0 : mMin;
+    }
+
+    /**
+     * Gets the largest value recorded.
+     *
+     * @return The maximum or 0 if there are no values.
+     */
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    /**
+     * Gets the mean of the values recorded.
+     *
+     * @return The mean or 0 if there are no values.
+     */
+    public synchronized double getMean() {
+        return mTotalCount == 0 ? 0 : (double) mTotal / mTotalCount;
+    }
+
+    /**
+     * Gets the value at or below which the given percentage of the values
+     * fall, to the precision of the histogram.
+     *
+     * @param percentile The percentile (0 to 100).
+     * @return The value or 0 if there are no values.
+     */
+    public synchronized long getValueAtPercentile(double percentile) {
+        if (mTotalCount == 0) {
+            return 0;
+        }
+        double fraction = Math.min(Math.max(percentile, 0), 100) / 100;
+        long target = Math.max(1, (long) Math.ceil(fraction * mTotalCount));
+        long cumulative = 0;
+        for (int i = 0; i < mCounts.length; i++) {
+            cumulative += mCounts[i];
+            if (cumulative >= target) {
+                return Math.min(getHighestEquivalentValue(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * Gets a one-line summary.
+     *
+     * @param unit The unit of the values, used as a label.
+     * @return The summary.
+     */
+    public synchronized String getSummary(String unit) {
+        if (mTotalCount == 0) {
+            return "None";
+        }
+        return String.format(Locale.US,
+                "n=%d p50=%d p90=%d p99=%d max=%d %s",
+                mTotalCount, getValueAtPercentile(50),
+                getValueAtPercentile(90), getValueAtPercentile(99), mMax,
+                unit);
+    }
+
+    /**
+     * Writes a line with the summary statistics. The fields are the name,
+     * count, min, mean, p50, p90, p99, p99.9, and max.
+     *
+     * @param out   The Writer.
+     * @param name  The name to use for the first field.
+     * @param delim The delimiter.
+     * @throws IOException On an error writing.
+     */
+    public synchronized void writeSummaryCsv(Writer out, String name,
+                                             String delim)
+            throws IOException {
+        out.write(String.format(Locale.US,
+                "%s%s%d%s%d%s%.3f%s%d%s%d%s%d%s%d%s%d\n",
+                name, delim, mTotalCount, delim, getMin(), delim, getMean(),
+                delim, getValueAtPercentile(50), delim,
+                getValueAtPercentile(90), delim, getValueAtPercentile(99),
+                delim, getValueAtPercentile(99.9), delim, mMax));
+    }
+
+    /**
+     * Writes a line for each bucket with a non-zero count. The fields are the
+     * name, the lowest and highest values in the bucket, and the count.
+     *
+     * @param out   The Writer.
+     * @param name  The name to use for the first field.
+     * @param delim The delimiter.
+     * @throws IOException On an error writing.
+     */
+    public synchronized void writeBucketsCsv(Writer out, String name,
+                                             String delim)
+            throws IOException {
+        for (int i = 0; i < mCounts.length; i++) {
+            if (mCounts[i] == 0) {
+                continue;
+            }
+            out.write(name + delim + getLowestEquivalentValue(i) + delim
+                    + getHighestEquivalentValue(i) + delim + mCounts[i]
+                    + "\n");
+        }
+    }
+
+    /**
+     * Gets the index of the bucket holding a value.
+     *
+     * @param value The value, which must not be negative.
+     * @return The index.
+     */
+    private int getIndex(long value) {
+        if (value < mSubBucketCount) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value)
+                - (mPrecisionBits - 1);
+        return shift * mSubBucketHalfCount + (int) (value >>> shift);
+    }
+
+    /**
+     * Gets the shift for the values in a bucket.
+     *
+     * @param index The index.
+     * @return The shift.
+     */
+    private int getShift(int index) {
+        return index < mSubBucketCount ? 0 : index / mSubBucketHalfCount - 1;
+    }
+
+    /**
+     * Gets the lowest value counted in a bucket.
+     *
+     * @param index The index.
+     * @return The value.
+     */
+    private long getLowestEquivalentValue(int index) {
+        int shift = getShift(index);
+        return (long) (index - shift * mSubBucketHalfCount) << shift;
+    }
+
+    /**
+     * Gets the highest value counted in a bucket.
+     *
+     * @param index The index.
+     * @return The value.
+     */
+    private long getHighestEquivalentValue(int index) {
+        return getLowestEquivalentValue(index) + (1L << getShift(index)) - 1;
+    }
+}
@@ -0,0 +1,236 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Latencies and throughput counters for the path HR samples take from the
+ * GATT notification to the database and the plot. Latencies are measured
+ * from the date the notification was received and are in ms. All methods
+ * are thread safe.
+ */
+public class PerformanceMetrics implements IConstants {
+    /**
+     * Precision of the latency histograms, about 1.6%.
+     */
+    private static final int PRECISION_BITS = 7;
+    /**
+     * Latencies above this are counted as this (ms).
+     */
+    private static final long HIGHEST_LATENCY = 3600000;
+    /**
+     * Number of seconds over which the recent sample rate is computed.
+     */
+    private static final int RATE_WINDOW = 60;
+
+    /**
+     * Notification to decoded and queued for writing.
+     */
+    private final LatencyHistogram mProcessLatency =
+            new LatencyHistogram(HIGHEST_LATENCY, PRECISION_BITS);
+    /**
+     * Notification to committed in the database.
+     */
+    private final LatencyHistogram mCommitLatency =
+            new LatencyHistogram(HIGHEST_LATENCY, PRECISION_BITS);
+    /**
+     * Notification to drawn in the plot.
+     */
+    private final LatencyHistogram mDisplayLatency =
+            new LatencyHistogram(HIGHEST_LATENCY, PRECISION_BITS);
+
+    private long mStartTime = System.currentTimeMillis();
+    private long mSamples;
+    private long mRowsWritten;
+    private long mTransactions;
+    private long mBytesWritten;
+    private long mBroadcasts;
+    private long mMaxSamplesPerSecond;
+
+    /**
+     * Samples per second for the last RATE_WINDOW seconds, indexed by the
+     * second modulo RATE_WINDOW.
+     */
+    private final long[] mSecondCounts = new long[RATE_WINDOW];
+    private final long[] mSeconds = new long[RATE_WINDOW];
+
+    /**
+     * Records that a sample has been processed.
+     *
+     * @param date The date the sample was received.
+     * @param now  The current date.
+     */
+    public void recordSample(long date, long now) {
+        mProcessLatency.record(now - date);
+        synchronized (this) {
+            mSamples++;
+            long second = now / 1000;
+            int slot = (int) (second % RATE_WINDOW);
+            if (mSeconds[slot] != second) {
+                mSeconds[slot] = second;
+                mSecondCounts[slot] = 0;
+            }
+            mSecondCounts[slot]++;
+            if (mSecondCounts[slot] > mMaxSamplesPerSecond) {
+                mMaxSamplesPerSecond = mSecondCounts[slot];
+            }
+        }
+    }
+
+    /**
+     * Records that samples have been committed to the database.
+     *
+     * @param dates The dates the samples were received.
+     * @param count The number of samples.
+     * @param bytes The approximate number of bytes of data written.
+     * @param now   The current date.
+     */
+    public void recordCommit(long[] dates, int count, long bytes, long now) {
+        for (int i = 0; i < count; i++) {
+            mCommitLatency.record(now - dates[i]);
+        }
+        synchronized (this) {
+            mRowsWritten += count;
+            mTransactions++;
+            mBytesWritten += bytes;
+        }
+    }
+
+    /**
+     * Records that samples have been drawn.
+     *
+     * @param dates The dates the samples were received.
+     * @param count The number of samples.
+     * @param now   The current date.
+     */
+    public void recordDisplay(long[] dates, int count, long now) {
+        for (int i = 0; i < count; i++) {
+            mDisplayLatency.record(now - dates[i]);
+        }
+    }
+
+    /**
+     * Records that a broadcast has been sent.
+     */
+    public synchronized void recordBroadcast() {
+        mBroadcasts++;
+    }
+
+    /**
+     * Clears all the latencies and counters.
+     */
+    public void reset() {
+        mProcessLatency.reset();
+        mCommitLatency.reset();
+        mDisplayLatency.reset();
+        synchronized (this) {
+            mStartTime = System.currentTimeMillis();
+            mSamples = mRowsWritten = mTransactions = mBytesWritten = 0;
+            mBroadcasts = mMaxSamplesPerSecond = 0;
+            for (int i = 0; i < RATE_WINDOW; i++) {
+                mSeconds[i] = 0;
+                mSecondCounts[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * Gets the mean samples per second over the last RATE_WINDOW complete
+     * seconds.
+     *
+     * @param now The current date.
+     * @return The rate.
+     */
+    private synchronized double getRecentRate(long now) {
+        long second = now / 1000;
+        long first = Math.max(second - RATE_WINDOW, mStartTime / 1000);
+        if (first >= second) {
+            return 0;
+        }
+        long total = 0;
+        for (int i = 0; i < RATE_WINDOW; i++) {
+            if (mSeconds[i] >= first && mSeconds[i] < second) {
+                total += mSecondCounts[i];
+            }
+        }
+        return (double) total / (second - first);
+    }
+
+    /**
+     * Gets the mean samples per second since the start or the last reset.
+     *
+     * @param now The current date.
+     * @return The rate.
+     */
+    private synchronized double getMeanRate(long now) {
+        long elapsed = now - mStartTime;
+        return elapsed <= 0 ? 0 : 1000. * mSamples / elapsed;
+    }
+
+    /**
+     * Gets a summary of the metrics.
+     *
+     * @return The summary.
+     */
+    public synchronized String getInfo() {
+        long now = System.currentTimeMillis();
+        return String.format(Locale.US,
+                "Samples Processed: %d\n"
+                        + "Samples/s: mean %.2f, last %d s %.2f, max %d\n"
+                        + "Rows Written: %d in %d transactions\n"
+                        + "Bytes Written: %d\n"
+                        + "Broadcasts Sent: %d\n",
+                mSamples, getMeanRate(now), RATE_WINDOW, getRecentRate(now),
+                mMaxSamplesPerSecond, mRowsWritten, mTransactions,
+                mBytesWritten, mBroadcasts)
+                + "Notify To Processed: " + mProcessLatency.getSummary("ms")
+                + "\n"
+                + "Notify To Committed: " + mCommitLatency.getSummary("ms")
+                + "\n"
+                + "Notify To Plotted: " + mDisplayLatency.getSummary("ms")
+                + "\n";
+    }
+
+    /**
+     * Writes the metrics as CSV. The first field of each line says what the
+     * line holds:<br>
+     * counter,name,value<br>
+     * latency,name,count,min,mean,p50,p90,p99,p99.9,max<br>
+     * bucket,name,lowest,highest,count<br>
+     * Latencies are in ms.
+     *
+     * @param out The Writer.
+     * @throws IOException On an error writing.
+     */
+    public synchronized void writeCsv(Writer out) throws IOException {
+        final String delim = SAVE_DATABASE_DELIM;
+        long now = System.currentTimeMillis();
+        String prefix = "counter" + delim;
+        out.write(prefix + "startDate" + delim + mStartTime + "\n");
+        out.write(prefix + "endDate" + delim + now + "\n");
+        out.write(prefix + "samples" + delim + mSamples + "\n");
+        out.write(String.format(Locale.US, "%s%s%s%.3f\n", prefix,
+                "meanSamplesPerSecond", delim, getMeanRate(now)));
+        out.write(prefix + "maxSamplesPerSecond" + delim
+                + mMaxSamplesPerSecond + "\n");
+        out.write(prefix + "rowsWritten" + delim + mRowsWritten + "\n");
+        out.write(prefix + "transactions" + delim + mTransactions + "\n");
+        out.write(prefix + "bytesWritten" + delim + mBytesWritten + "\n");
+        out.write(prefix + "broadcasts" + delim + mBroadcasts + "\n");
+        prefix = "latency" + delim;
+        mProcessLatency.writeSummaryCsv(out, prefix + "notifyToProcessed",
+                delim);
+        mCommitLatency.writeSummaryCsv(out, prefix + "notifyToCommitted",
+                delim);
+        mDisplayLatency.writeSummaryCsv(out, prefix + "notifyToPlotted",
+                delim);
+        prefix = "bucket" + delim;
+        mProcessLatency.writeBucketsCsv(out, prefix + "notifyToProcessed",
+                delim);
+        mCommitLatency.writeBucketsCsv(out, prefix + "notifyToCommitted",
+                delim);
+        mDisplayLatency.writeBucketsCsv(out, prefix + "notifyToPlotted",
+                delim);
+    }
+}
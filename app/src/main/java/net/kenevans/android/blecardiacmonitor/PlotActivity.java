@@ -2,22 +2,31 @@ package net.kenevans.android.blecardiacmonitor;
 
 import android.app.Activity;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.graphics.Color;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.IBinder;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.MotionEvent;
+import android.view.ViewTreeObserver;
 import android.view.WindowManager;
 
 import com.androidplot.xy.BoundaryMode;
 import com.androidplot.xy.LineAndPointFormatter;
 import com.androidplot.xy.PanZoom;
-import com.androidplot.xy.SimpleXYSeries;
+import com.androidplot.xy.RectRegion;
 import com.androidplot.xy.StepMode;
 import com.androidplot.xy.XYGraphWidget;
 import com.androidplot.xy.XYPlot;
@@ -44,6 +53,10 @@ import androidx.preference.PreferenceManager;
 public class PlotActivity extends AppCompatActivity implements IConstants,
         PlotterListener {
     private static final String TAG = "BCMPlot";
+    /**
+     * The maximum number of undrawn live samples to record the latency of.
+     */
+    private static final int MAX_UNDRAWN_DATES = 1024;
     private XYPlot mPlot;
 
     private boolean mPlotHr = true;
@@ -54,16 +67,111 @@ public class PlotActivity extends AppCompatActivity implements IConstants,
     private long mPlotStartTime = INVALID_DATE;
     private long mPlotSessionStart = INVALID_DATE;
     private boolean mIsSession = false;
-    private long mLastRrUpdateTime = INVALID_DATE;
-    private long mLastRrTime = INVALID_DATE;
 
     private final double RR_SCALE = .1;  // to 100 ms to use same axis
 
     private XYSeriesFormatter<XYRegionFormatter> hrFormatter;
     private XYSeriesFormatter<XYRegionFormatter> rrFormatter;
-    private SimpleXYSeries hrSeries;
-    private SimpleXYSeries rrSeries;
+    private RingXYSeries hrSeries;
+    private RingXYSeries rrSeries;
+    /**
+     * The full resolution points for a session, from which the series are
+     * downsampled to the part in view. Null in live mode, where the values
+     * are added to the series directly. Only used on the UI thread.
+     */
+    private PlotPoints mPlotHrPoints;
+    private PlotPoints mPlotRrPoints;
+    /**
+     * Adds the values to the series in live mode. Null for a session, where
+     * mLoadSessionTask uses its own. Only used on the UI thread.
+     */
+    private SeriesBuilder mLiveBuilder;
+    /**
+     * Loads the series when plotting a session.
+     */
+    private LoadSessionTask mLoadSessionTask;
 
+    private boolean mServiceBound;
+    private BCMBleService mBcmBleService;
+    /**
+     * The address of the device being plotted in live mode.
+     */
+    private String mDeviceAddress;
+    /**
+     * The source id of the samples for mDeviceAddress in mSampleRing or
+     * INVALID_INT if not known yet.
+     */
+    private int mSampleSource = INVALID_INT;
+    /**
+     * Ring buffer of HR samples from the service, null until bound.
+     */
+    private SampleRingBuffer mSampleRing;
+    private SampleRingBuffer.Sample mSample;
+    /**
+     * The sequence number of the next sample to read from mSampleRing.
+     */
+    private long mNextSequence;
+    private final Runnable mPollSamplesRunnable = this::pollSamples;
+    /**
+     * Paces the redraws to the display frames, so they do not follow the
+     * rate of the notifications. Created in onCreate.
+     */
+    private RedrawScheduler mRedrawScheduler;
+    private final Runnable mRequestRedrawRunnable = () -> {
+        if (mRedrawScheduler != null) {
+            mRedrawScheduler.requestRedraw();
+        }
+    };
+    private final SampleRingBuffer.Listener mSampleListener =
+            (buffer, nextSequence) -> runOnUiThread(mPollSamplesRunnable);
+    /**
+     * The dates of the live samples that have not been drawn yet, so each
+     * one drawn in a frame is recorded, not just the newest.
+     */
+    private final long[] mUndrawnDates = new long[MAX_UNDRAWN_DATES];
+    private int mUndrawnCount;
+    /**
+     * Records in the service's metrics how long it took for live samples to
+     * be drawn.
+     */
+    private final ViewTreeObserver.OnDrawListener mDrawListener = () -> {
+        if (mUndrawnCount > 0 && mBcmBleService != null) {
+            mBcmBleService.getPerformanceMetrics().recordDisplay(
+                    mUndrawnDates, mUndrawnCount,
+                    System.currentTimeMillis());
+        }
+        mUndrawnCount = 0;
+    };
+
+    /**
+     * Gets the ring buffer from the service when in live mode.
+     */
+    private final ServiceConnection mServiceConnection = new
+            ServiceConnection() {
+                @Override
+                public void onServiceConnected(ComponentName componentName,
+                                               IBinder service) {
+                    Log.d(TAG, "onServiceConnected");
+                    BCMBleService.LocalBinder binder =
+                            (BCMBleService.LocalBinder) service;
+                    mBcmBleService = binder.getService();
+                    mSampleSource = INVALID_INT;
+                    mSampleRing = binder.getSampleRingBuffer();
+                    mSample = new SampleRingBuffer.Sample(
+                            mSampleRing.getMaxRr());
+                    // Get anything newer than what is in the database
+                    mNextSequence = mSampleRing.getOldestSequence();
+                    mSampleRing.addListener(mSampleListener);
+                    pollSamples();
+                }
+
+                @Override
+                public void onServiceDisconnected(ComponentName componentName) {
+                    Log.d(TAG, "onServiceDisconnected");
+                    mBcmBleService = null;
+                    mSampleRing = null;
+                }
+            };
 
     /**
      * Handles various events fired by the Service.
@@ -81,10 +189,20 @@ public class PlotActivity extends AppCompatActivity implements IConstants,
                 @Override
                 public void onReceive(Context context, Intent intent) {
                     final String action = intent.getAction();
+                    // Ignore broadcasts for other devices
+                    String address =
+                            intent.getStringExtra(EXTRA_DEVICE_ADDRESS);
+                    if (address != null && mDeviceAddress != null
+                            && !address.equals(mDeviceAddress)) {
+                        return;
+                    }
                     if (BCMBleService.ACTION_DATA_AVAILABLE.equals(action)) {
 //                        Log.d(TAG, "mGattUpdateReceiver:onReceive: " +
 //                                action);
-                        addValues(intent);
+                        // Only used if not getting them from the ring buffer
+                        if (mSampleRing == null) {
+                            addValues(intent);
+                        }
                     } else if (BCMBleService.ACTION_STATUS.equals(action)) {
 //                        Log.d(TAG, "mGattUpdateReceiver:onReceive: " +
 //                                action);
@@ -119,6 +237,11 @@ public class PlotActivity extends AppCompatActivity implements IConstants,
         }
         setContentView(R.layout.activity_plot);
         mPlot = findViewById(R.id.plot);
+        mRedrawScheduler = new RedrawScheduler(() -> {
+            if (mPlot != null) {
+                mPlot.redraw();
+            }
+        }, PLOT_MAX_FPS);
 
         // Get whether to plot a session or current
         Bundle extras = getIntent().getExtras();
@@ -142,6 +265,19 @@ public class PlotActivity extends AppCompatActivity implements IConstants,
         setResult(Activity.RESULT_CANCELED);
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Only redraw when visible
+        mRedrawScheduler.resume();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        mRedrawScheduler.pause();
+    }
+
     @Override
     protected void onResume() {
         Log.d(TAG, this.getClass().getSimpleName() + ": onResume: " + "mPlot="
@@ -153,6 +289,7 @@ public class PlotActivity extends AppCompatActivity implements IConstants,
                 .getDefaultSharedPreferences(this);
         mPlotHr = prefs.getBoolean(PREF_PLOT_HR, true);
         mPlotRr = prefs.getBoolean(PREF_PLOT_RR, true);
+        mDeviceAddress = prefs.getString(DEVICE_ADDRESS_CODE, null);
         String stringVal = prefs.getString(PREF_PLOT_INTERVAL, null);
         if (stringVal == null) {
             mPlotInterval = PLOT_MAXIMUM_AGE;
@@ -163,6 +300,16 @@ public class PlotActivity extends AppCompatActivity implements IConstants,
                 mPlotInterval = PLOT_MAXIMUM_AGE;
             }
         }
+        stringVal = prefs.getString(PREF_PLOT_FPS, null);
+        int maxFps = PLOT_MAX_FPS;
+        if (stringVal != null) {
+            try {
+                maxFps = Math.max(0, Integer.parseInt(stringVal.trim()));
+            } catch (Exception ex) {
+                // Use the default
+            }
+        }
+        mRedrawScheduler.setMaxFps(maxFps);
         if (mPlot != null) {
             createPlot();
         } else {
@@ -174,7 +321,15 @@ public class PlotActivity extends AppCompatActivity implements IConstants,
         if (!mIsSession) {
             Log.d(TAG, "onResume: Starting registerReceiver");
             registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
+            // Use the ring buffer if the service is running, but don't
+            // start it
+            mServiceBound = bindService(new Intent(this,
+                    BCMBleService.class), mServiceConnection, 0);
             mPlotStartTime = new Date().getTime() - mPlotInterval;
+            if (mPlot != null) {
+                mUndrawnCount = 0;
+                mPlot.getViewTreeObserver().addOnDrawListener(mDrawListener);
+            }
             // Make it keep the screen on
             getWindow()
                     .addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
@@ -191,8 +346,26 @@ public class PlotActivity extends AppCompatActivity implements IConstants,
     protected void onPause() {
         Log.d(TAG, this.getClass().getSimpleName() + ": onPause");
         super.onPause();
+        // It is loaded again in onResume
+        if (mLoadSessionTask != null) {
+            mLoadSessionTask.cancelLoad();
+            mLoadSessionTask = null;
+        }
         if (!mIsSession) {
             unregisterReceiver(mGattUpdateReceiver);
+            if (mPlot != null) {
+                mPlot.getViewTreeObserver()
+                        .removeOnDrawListener(mDrawListener);
+            }
+        }
+        if (mSampleRing != null) {
+            mSampleRing.removeListener(mSampleListener);
+            mSampleRing = null;
+        }
+        mBcmBleService = null;
+        if (mServiceBound) {
+            unbindService(mServiceConnection);
+            mServiceBound = false;
         }
     }
 
@@ -224,6 +397,7 @@ public class PlotActivity extends AppCompatActivity implements IConstants,
                 mPlot.setRangeBoundaries(50, 100, BoundaryMode.AUTO);
                 mPlot.setDomainBoundaries(0, 24 * 3600 * 1000,
                         BoundaryMode.AUTO);
+                resample(true);
                 update();
             }
             return true;
@@ -278,6 +452,11 @@ public class PlotActivity extends AppCompatActivity implements IConstants,
     private void refresh() {
         // The logic for whether it is a session or not is in this method
         createSeries();
+        // Add anything newer from the ring buffer
+        if (mSampleRing != null) {
+            mNextSequence = mSampleRing.getOldestSequence();
+            pollSamples();
+        }
     }
 
     private void createPlot() {
@@ -325,7 +504,19 @@ public class PlotActivity extends AppCompatActivity implements IConstants,
 
 
         // Pan and Zoom
-        PanZoom.attach(mPlot, PanZoom.Pan.BOTH, PanZoom.Zoom.STRETCH_BOTH);
+        final PanZoom panZoom = PanZoom.attach(mPlot, PanZoom.Pan.BOTH,
+                PanZoom.Zoom.STRETCH_BOTH);
+        // Downsample again for the new view when a gesture ends
+        mPlot.setOnTouchListener((view, event) -> {
+            boolean res = panZoom.onTouch(view, event);
+            int action = event.getActionMasked();
+            if (action == MotionEvent.ACTION_UP
+                    || action == MotionEvent.ACTION_CANCEL) {
+                resample(false);
+                update();
+            }
+            return res;
+        });
     }
 
     /**
@@ -336,99 +527,150 @@ public class PlotActivity extends AppCompatActivity implements IConstants,
         if (!mPlotHr && !mPlotRr) {
             Utils.errMsg(this, "Neither HR nor RR is selected to be plotted");
         }
+        // Remove the old ones, so refreshing does not accumulate them
+        removeSeries(hrSeries);
+        removeSeries(rrSeries);
+        // In live mode hold the plot interval at about 1 HR and up to 4 R-R
+        // values per second, dropping older values
         if (mPlotHr) {
-            hrSeries = new SimpleXYSeries("HR");
-//            if (!mIsSession) {
-//                mHrSeries.setMaximumItemAge(mPlotInterval);
-//            }
+            hrSeries = newSeries("HR", mPlotInterval / 1000);
         } else {
             hrSeries = null;
         }
         if (mPlotRr) {
-            rrSeries = new SimpleXYSeries("RR");
-//            if (!mIsSession) {
-//                mRrSeries.setMaximumItemAge(mPlotInterval);
-//            }
+            rrSeries = newSeries("RR", mPlotInterval / 250);
         } else {
             rrSeries = null;
         }
-        mLastRrTime = INVALID_DATE;
-        mLastRrUpdateTime = INVALID_DATE;
-        Cursor cursor = null;
-        int nHrItems = 0, nRrItems = 0;
-        int nErrors = 0;
-        boolean res;
-        try {
-            if (mDbAdapter != null) {
-                if (mIsSession) {
-                    cursor = mDbAdapter
-                            .fetchAllHrRrDateDataForStartDate
-                                    (mPlotSessionStart);
-                } else {
-                    cursor = mDbAdapter
-                            .fetchAllHrRrDateDataStartingAtDate
-                                    (mPlotStartTime);
+        mPlotHrPoints = null;
+        mPlotRrPoints = null;
+        mLiveBuilder = null;
+        if (mLoadSessionTask != null) {
+            mLoadSessionTask.cancelLoad();
+            mLoadSessionTask = null;
+        }
+        if (mIsSession) {
+            // Load in the background, the series start out empty
+            mLoadSessionTask = new LoadSessionTask(getPlotWidth());
+            mLoadSessionTask.execute();
+        } else {
+            mLiveBuilder = new SeriesBuilder(hrSeries, rrSeries);
+            int nErrors = 0;
+            try {
+                SessionSeries series = null;
+                if (mDbAdapter != null) {
+                    series = mDbAdapter.getSeriesStartingAtDate(
+                            mPlotStartTime, mDeviceAddress);
                 }
-                int indexDate = cursor.getColumnIndex(COL_DATE);
-                int indexHr = mPlotHr ? cursor.getColumnIndex(COL_HR) : -1;
-                int indexRr = mPlotRr ? cursor.getColumnIndex(COL_RR) : -1;
-
-                // Loop over items
-                cursor.moveToFirst();
-                long date;
-                double hr;
-                String rrString;
-                while (!cursor.isAfterLast()) {
-                    date = cursor.getLong(indexDate);
-                    if (indexHr > -1) {
-                        hr = cursor.getInt(indexHr);
-                        if (hr == INVALID_INT) {
-                            hr = Double.NaN;
-                        }
-                        hrSeries.addLast(date, hr);
-                        nHrItems++;
-                    }
-                    if (indexRr > -1) {
-                        rrString = cursor.getString(indexRr);
-                        if (nRrItems == 0) {
-                            mLastRrUpdateTime = date;
-                            mLastRrTime = date - INITIAL_RR_START_TIME;
-                        }
-                        res = addRrValues(date, rrString);
-                        nRrItems++;
-                        if (!res) {
-                            nErrors++;
-                        }
-                    }
-                    cursor.moveToNext();
+                if (series != null) {
+                    nErrors = mLiveBuilder.addSamples(series);
                 }
-            }
-        } catch (Exception ex) {
-            Utils.excMsg(this, "Error creating datasets", ex);
-        } finally {
-            try {
-                if (cursor != null) cursor.close();
             } catch (Exception ex) {
-                // Do nothing
+                Utils.excMsg(this, "Error creating datasets", ex);
+            }
+            if (nErrors > 0) {
+                Utils.errMsg(this, nErrors + " error(s) creating RR series");
             }
-        }
-        if (nErrors > 0) {
-            Utils.errMsg(this, nErrors + " error(s) creating RR series");
         }
         if (mPlotHr) {
-            Log.d(TAG, "HR series created with " + nHrItems + " items");
             mPlot.addSeries(hrSeries, hrFormatter);
+            mPlot.addListener(hrSeries);
         }
         if (mPlotRr) {
-            Log.d(TAG, "RR series created with " + nRrItems
-                    + " items with nErrors=" + nErrors);
             mPlot.addSeries(rrSeries, rrFormatter);
+            mPlot.addListener(rrSeries);
+        }
+    }
+
+    /**
+     * Gets the width of the plot.
+     *
+     * @return The width or the width of the display if the plot is not laid
+     * out yet.
+     */
+    private int getPlotWidth() {
+        int width = mPlot.getWidth();
+        if (width <= 0) {
+            width = getResources().getDisplayMetrics().widthPixels;
+        }
+        return width;
+    }
+
+    /**
+     * Sets the points for a session that the series are downsampled from
+     * and shows them, fitting the view to them.
+     *
+     * @param hrPoints The HR points or null.
+     * @param rrPoints The R-R points or null.
+     */
+    private void showPoints(PlotPoints hrPoints, PlotPoints rrPoints) {
+        mPlotHrPoints = hrPoints;
+        mPlotRrPoints = rrPoints;
+        resample(true);
+        update();
+    }
+
+    /**
+     * Creates a series. In live mode it drops values older than the plot
+     * interval before the newest, so it stays the same size however long
+     * the plot is shown. For a session it holds the downsampled values.
+     *
+     * @param title    The title.
+     * @param capacity The initial capacity in live mode.
+     * @return The series.
+     */
+    private RingXYSeries newSeries(String title, int capacity) {
+        if (mIsSession) {
+            return new RingXYSeries(title, 1024);
+        }
+        RingXYSeries series = new RingXYSeries(title, capacity);
+        series.setMaxAge(mPlotInterval);
+        return series;
+    }
+
+    /**
+     * Removes a series from the plot.
+     *
+     * @param series The series or null.
+     */
+    private void removeSeries(RingXYSeries series) {
+        if (series != null && mPlot != null) {
+            mPlot.removeSeries(series);
+            mPlot.removeListener(series);
+        }
+    }
+
+    /**
+     * Gets the rollup resolution to plot the session at, from the length of
+     * the session and the width of the plot. The finest resolution is used
+     * if the raw data have been deleted by the retention policy.
+     *
+     * @param width The width of the plot.
+     * @return The resolution or 0 to plot the raw data.
+     */
+    private int getSessionResolution(int width) {
+        if (mDbAdapter == null) {
+            return 0;
+        }
+        long endDate = mDbAdapter.getSessionEndDate(mPlotSessionStart);
+        if (endDate == INVALID_DATE) {
+            return 0;
         }
+        int resolution = RollupAccumulator.selectResolution(
+                endDate - mPlotSessionStart, width);
+        if (resolution == 0 && !mDbAdapter.hasData(mPlotSessionStart)) {
+            resolution = ROLLUP_RESOLUTIONS[0];
+        }
+        Log.d(TAG, "getSessionResolution: span="
+                + (endDate - mPlotSessionStart) + " width=" + width
+                + " resolution=" + resolution);
+        return resolution;
     }
 
     /**
      * Add new values to the plot when received from the Gatt broadcast
-     * receiver.  This only happens when not in a session.
+     * receiver.  This only happens when not in a session and the service's
+     * ring buffer is not available.
      *
      * @param intent Intent from the mGattUpdateReceiver.
      */
@@ -436,112 +678,655 @@ public class PlotActivity extends AppCompatActivity implements IConstants,
 //        Log.d(TAG, this.getClass().getSimpleName() + ": addValues: mPlotHr="
 //                + mPlotHr + " mPlotRr=" + mPlotRr);
         String strValue;
-        double value;
         long date = intent.getLongExtra(EXTRA_DATE, INVALID_DATE);
         if (date == INVALID_DATE) {
             Log.d(TAG, this.getClass().getSimpleName() + ": addValues: " +
                     "INVALID_DATE");
             return;
         }
-        //
-        if (mPlotHr) {
-            strValue = intent.getStringExtra(EXTRA_HR);
-            if (strValue != null && strValue.length() > 0) {
-                try {
-                    value = Double.parseDouble(strValue);
-                } catch (NumberFormatException ex) {
-                    value = Double.NaN;
-                }
-                if (value == INVALID_INT) {
-                    value = Double.NaN;
-                }
-                hrSeries.addLast(date, value);
+        int hr = INVALID_INT;
+        strValue = intent.getStringExtra(EXTRA_HR);
+        if (strValue != null && strValue.length() > 0) {
+            try {
+                hr = Integer.parseInt(strValue.trim());
+            } catch (NumberFormatException ex) {
+                // Do nothing
             }
         }
-        if (mPlotRr) {
-            if (mLastRrUpdateTime == INVALID_DATE) {
-                mLastRrUpdateTime = date;
-                mLastRrTime = date;
+        int[] rr = null;
+        strValue = intent.getStringExtra(EXTRA_RR);
+        if (strValue != null && strValue.length() > 0) {
+            // Don't check for errors here to avoid error storms
+            try {
+                rr = RrUtils.parse(strValue);
+            } catch (NumberFormatException ex) {
+                // Do nothing
             }
-            strValue = intent.getStringExtra(EXTRA_RR);
-            if (strValue != null && strValue.length() > 0) {
-                // boolean res = addRrValues(mRrSeries, date, strValue);
-                // Don't check for errors here to avoid error storms
-                addRrValues(date, strValue);
+        }
+        // Coalesced samples have the HR for each and the R-R for all
+        long[] dates = intent.getLongArrayExtra(EXTRA_DATES);
+        int[] hrs = intent.getIntArrayExtra(EXTRA_HRS);
+        if (dates != null && hrs != null && dates.length == hrs.length) {
+            for (int i = 0; i < dates.length - 1; i++) {
+                addValues(dates[i], hrs[i], null, 0);
             }
+        }
+        addValues(date, hr, rr, rr == null ? INVALID_INT : rr.length);
+        update();
+    }
 
-            if (mLastRrUpdateTime == INVALID_DATE) {
-                mLastRrUpdateTime = date;
-                mLastRrTime = date;
+    /**
+     * Reads any new samples for the device from the service's ring buffer
+     * and adds them to the plot. Called on the UI thread.
+     */
+    private void pollSamples() {
+        if (mSampleRing == null) {
+            return;
+        }
+        if (mSampleSource == INVALID_INT && mBcmBleService != null) {
+            // Not known until the device has been connected
+            mSampleSource = mBcmBleService.getConnectionId(mDeviceAddress);
+        }
+        boolean added = false;
+        while (mSampleRing.read(mNextSequence, mSample)) {
+            mNextSequence = mSample.getSequence() + 1;
+            if (mSample.getSource() != mSampleSource) {
+                continue;
             }
+            added |= addValues(mSample.getDate(), mSample.getHr(),
+                    mSample.getRrValues(), mSample.getRrCount());
+        }
+        if (added) {
+            update();
         }
-        update();
     }
 
     /**
-     * Parses the RR String and adds items to the series at the appropriate
-     * times.
+     * Adds new values to the series in live mode. Values not newer than the
+     * last ones added or older than the plot start time are skipped.
      *
-     * @param updateTime The time of this update.
-     * @param strValue   The RR String from the database.
-     * @return If the operation was successful.
-     */
-    private boolean addRrValues(long updateTime,
-                                String strValue) {
-        if (strValue.length() == 0) {
-            // Do nothing
-            return true;
+     * @param date    The date.
+     * @param hr      The HR or INVALID_INT.
+     * @param rr      The R-R values.
+     * @param rrCount The number of R-R values or INVALID_INT if there is no
+     *                R-R.
+     * @return If the values were added.
+     */
+    private boolean addValues(long date, int hr, int[] rr, int rrCount) {
+        if (mLiveBuilder == null || date < mPlotStartTime
+                || !mLiveBuilder.add(date, hr, rr, rrCount)) {
+            return false;
         }
-        if (strValue.equals(INVALID_STRING)) {
-            mLastRrUpdateTime = updateTime;
-            mLastRrTime = updateTime - INITIAL_RR_START_TIME;
-            return true;
+        // Until it is drawn. If nothing is drawn for a long time, the
+        // newer ones are not recorded.
+        if (mUndrawnCount < mUndrawnDates.length) {
+            mUndrawnDates[mUndrawnCount++] = date;
         }
-        String[] tokens;
-        tokens = strValue.trim().split("\\s+");
-        int nRrValues = tokens.length;
-        if (nRrValues == 0) {
-            return false;
+        return true;
+    }
+
+    /**
+     * Gets the gaps for the session or the current device from the
+     * database.
+     *
+     * @return The start and end of each gap, in pairs, sorted by start.
+     */
+    private long[] fetchGaps() {
+        long[] gaps = new long[0];
+        if (mDbAdapter == null) {
+            return gaps;
+        }
+        try (Cursor cursor = mIsSession ?
+                mDbAdapter.fetchGapsForStartDate(mPlotSessionStart) :
+                mDbAdapter.fetchGapsStartingAtDate(mPlotStartTime,
+                        mDeviceAddress)) {
+            if (cursor == null) {
+                return gaps;
+            }
+            gaps = new long[2 * cursor.getCount()];
+            int i = 0;
+            while (cursor.moveToNext()) {
+                gaps[i++] = cursor.getLong(0);
+                gaps[i++] = cursor.getLong(1);
+            }
+        } catch (Exception ex) {
+            Log.e(TAG, "Error getting gaps", ex);
+        }
+        return gaps;
+    }
+
+    /**
+     * Sets the series for a session to its points downsampled to about
+     * PLOT_POINTS_PER_PIXEL per pixel of the plot width, so drawing does
+     * not depend on the length of the session. The part in view and a view
+     * width on each side are used, so panning has something to show until
+     * the gesture ends and this is called again. Does nothing in live mode.
+     *
+     * @param all Whether to use all the points, as when the view will be
+     *            fit to the data.
+     */
+    private void resample(boolean all) {
+        if (mPlotHrPoints == null && mPlotRrPoints == null) {
+            return;
+        }
+        long minX = Long.MIN_VALUE, maxX = Long.MAX_VALUE;
+        int nPixels = 1;
+        if (!all) {
+            RectRegion bounds = mPlot.getBounds();
+            if (bounds == null || bounds.getMinX() == null
+                    || bounds.getMaxX() == null) {
+                return;
+            }
+            minX = bounds.getMinX().longValue();
+            maxX = bounds.getMaxX().longValue();
+            long span = maxX - minX;
+            minX -= span;
+            maxX += span;
+            nPixels = 3;
+        }
+        nPixels *= getPlotWidth();
+        long start = System.currentTimeMillis();
+        int nHr = resample(hrSeries, mPlotHrPoints, minX, maxX, nPixels);
+        int nRr = resample(rrSeries, mPlotRrPoints, minX, maxX, nPixels);
+        Log.d(TAG, "resample: all=" + all + " HR " + nHr + " of "
+                + (mPlotHrPoints == null ? 0 : mPlotHrPoints.size())
+                + " RR " + nRr + " of "
+                + (mPlotRrPoints == null ? 0 : mPlotRrPoints.size())
+                + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Sets a series to its points in a range, downsampled.
+     *
+     * @param series  The series.
+     * @param points  The points or null if the series is not plotted.
+     * @param minX    The start of the range.
+     * @param maxX    The end of the range.
+     * @param nPixels The number of pixels for the range.
+     * @return The number of items in the series.
+     */
+    private int resample(RingXYSeries series, PlotPoints points,
+                         long minX, long maxX, int nPixels) {
+        if (series == null || points == null) {
+            return 0;
+        }
+        int n = points.downsample(minX, maxX,
+                PLOT_POINTS_PER_PIXEL * nPixels);
+        long[] x = points.getOutX();
+        double[] y = points.getOutY();
+        series.clear();
+        for (int i = 0; i < n; i++) {
+            series.add(x[i], y[i]);
+        }
+        return n;
+    }
+
+    /**
+     * Loads the series for a session in the background, so nothing large
+     * is read on the UI thread. It first shows an overview from the next
+     * coarser rollups, which have fewer buckets than the plot has pixels,
+     * so something is shown quickly however long the session is, then
+     * replaces it with the series at the resolution for the plot. It can be
+     * cancelled while reading or building the points, as when the user
+     * leaves. The points are built with a SeriesBuilder of its own and only
+     * handed to the activity in onProgressUpdate and onPostExecute.
+     */
+    private class LoadSessionTask extends AsyncTask<Void, SeriesBuilder,
+            SeriesBuilder> {
+        private final CancellationSignal mSignal = new CancellationSignal();
+        private final int mWidth;
+        private final boolean mHr;
+        private final boolean mRr;
+        private int mErrors;
+        private Exception mException;
+
+        private LoadSessionTask(int width) {
+            super();
+            mWidth = width;
+            mHr = mPlotHr;
+            mRr = mPlotRr;
+        }
+
+        /**
+         * Cancels the task, including any read or build in progress.
+         */
+        private void cancelLoad() {
+            cancel(false);
+            mSignal.cancel();
         }
-        long[] times = new long[nRrValues];
-        double[] values = new double[nRrValues];
-        long lastRrTime = mLastRrTime;
-        double val;
-        for (int i = 0; i < nRrValues; i++) {
+
+        @Override
+        protected SeriesBuilder doInBackground(Void... dummy) {
+            if (mDbAdapter == null) {
+                return null;
+            }
             try {
-                val = Double.parseDouble(tokens[i]);
-            } catch (NumberFormatException ex) {
+                long start = SystemClock.elapsedRealtime();
+                int resolution = getSessionResolution(mWidth);
+                int overview = 0;
+                for (int res : ROLLUP_RESOLUTIONS) {
+                    if (res > resolution) {
+                        overview = res;
+                        break;
+                    }
+                }
+                SessionSeries series;
+                if (overview > 0) {
+                    series = mDbAdapter.getSessionSeries(mPlotSessionStart,
+                            overview, mSignal);
+                    if (series != null && series.size() > 0) {
+                        publishProgress(buildPoints(series));
+                        Log.d(TAG, "LoadSessionTask: overview at "
+                                + overview + " in "
+                                + (SystemClock.elapsedRealtime() - start)
+                                + " ms");
+                    }
+                }
+                series = mDbAdapter.getSessionSeries(mPlotSessionStart,
+                        resolution, mSignal);
+                if (series == null) {
+                    return null;
+                }
+                SeriesBuilder builder = buildPoints(series);
+                Log.d(TAG, "LoadSessionTask: " + series.size()
+                        + " items at " + resolution + " in "
+                        + (SystemClock.elapsedRealtime() - start) + " ms");
+                return builder;
+            } catch (OperationCanceledException ex) {
+                return null;
+            } catch (Exception ex) {
+                mException = ex;
+                return null;
+            }
+        }
+
+        /**
+         * Builds new points from a SessionSeries.
+         *
+         * @param series The SessionSeries.
+         * @return The SeriesBuilder holding the points.
+         * @throws OperationCanceledException If the task is cancelled.
+         */
+        private SeriesBuilder buildPoints(SessionSeries series) {
+            SeriesBuilder builder = new SeriesBuilder(mHr, mRr, mSignal);
+            if (series.getResolution() > 0) {
+                builder.addRollups(series);
+                mErrors = 0;
+            } else {
+                mErrors = builder.addSamples(series);
+            }
+            return builder;
+        }
+
+        @Override
+        protected void onProgressUpdate(SeriesBuilder... builders) {
+            // May still be delivered after the task was cancelled
+            if (isCancelled() || mLoadSessionTask != this) {
+                return;
+            }
+            showPoints(builders[0].getHrPoints(), builders[0].getRrPoints());
+        }
+
+        @Override
+        protected void onPostExecute(SeriesBuilder builder) {
+            if (mLoadSessionTask != this) {
+                return;
+            }
+            mLoadSessionTask = null;
+            if (mException != null) {
+                Utils.excMsg(PlotActivity.this, "Error creating datasets",
+                        mException);
+                return;
+            }
+            if (mErrors > 0) {
+                Utils.errMsg(PlotActivity.this, mErrors
+                        + " error(s) creating RR series");
+            }
+            if (builder != null) {
+                showPoints(builder.getHrPoints(), builder.getRrPoints());
+            }
+        }
+    }
+
+    /**
+     * Adds values to the HR and R-R series or, for a session, to the points
+     * they are downsampled from, keeping what is needed to place the R-R
+     * values in time. In live mode the activity has one that adds to the
+     * series on the UI thread. For a session LoadSessionTask makes one for
+     * each set of points it builds. It does not touch the series or the
+     * state of the activity, so it can be used off the UI thread.
+     */
+    private class SeriesBuilder {
+        private final RingXYSeries mHrSeries;
+        private final RingXYSeries mRrSeries;
+        private final PlotPoints mHrPoints;
+        private final PlotPoints mRrPoints;
+        private final boolean mHr;
+        private final boolean mRr;
+        /**
+         * Signal to check while adding or null if it cannot be cancelled.
+         */
+        private final CancellationSignal mSignal;
+        private long mLastRrUpdateTime = INVALID_DATE;
+        private long mLastRrTime = INVALID_DATE;
+        /**
+         * The date of the last value added.
+         */
+        private long mLastDate = INVALID_DATE;
+        /**
+         * Buffer for the times of R-R values, reused for each row.
+         */
+        private long[] mRrTimes = new long[HeartRateValues.MAX_RR_VALUES];
+
+        /**
+         * Constructor for adding to the series in live mode.
+         *
+         * @param hrSeries The HR series or null if HR is not plotted.
+         * @param rrSeries The R-R series or null if R-R is not plotted.
+         */
+        private SeriesBuilder(RingXYSeries hrSeries, RingXYSeries rrSeries) {
+            mHrSeries = hrSeries;
+            mRrSeries = rrSeries;
+            mHrPoints = null;
+            mRrPoints = null;
+            mHr = hrSeries != null;
+            mRr = rrSeries != null;
+            mSignal = null;
+        }
+
+        /**
+         * Constructor for building new points for a session.
+         *
+         * @param hr     Whether to build HR points.
+         * @param rr     Whether to build R-R points.
+         * @param signal Signal to check while adding or null.
+         */
+        private SeriesBuilder(boolean hr, boolean rr,
+                              CancellationSignal signal) {
+            mHrSeries = null;
+            mRrSeries = null;
+            mHrPoints = hr ? new PlotPoints() : null;
+            mRrPoints = rr ? new PlotPoints() : null;
+            mHr = hr;
+            mRr = rr;
+            mSignal = signal;
+        }
+
+        /**
+         * Gets the HR points built for a session.
+         *
+         * @return The points or null.
+         */
+        private PlotPoints getHrPoints() {
+            return mHrPoints;
+        }
+
+        /**
+         * Gets the R-R points built for a session.
+         *
+         * @return The points or null.
+         */
+        private PlotPoints getRrPoints() {
+            return mRrPoints;
+        }
+
+        /**
+         * Gets the date of the last value added.
+         *
+         * @return The date or INVALID_DATE if none has been added.
+         */
+        private long getLastDate() {
+            return mLastDate;
+        }
+
+        /**
+         * Throws if the signal has been cancelled. Checked every
+         * SESSION_READER_WINDOW_SIZE items, as the reads are.
+         *
+         * @param i The index of the item.
+         * @throws OperationCanceledException If it has been cancelled.
+         */
+        private void checkCanceled(int i) {
+            if (mSignal != null && i % SESSION_READER_WINDOW_SIZE == 0) {
+                mSignal.throwIfCanceled();
+            }
+        }
+
+        /**
+         * Adds samples.
+         *
+         * @param series The SessionSeries for the samples at resolution 0.
+         * @return The number of errors.
+         * @throws OperationCanceledException If the signal is cancelled.
+         */
+        private int addSamples(SessionSeries series) {
+            int nHrItems = 0, nRrItems = 0;
+            int nErrors = 0;
+            // Start and end of each gap, where the device was disconnected
+            long[] gaps = fetchGaps();
+            int gapIndex = 0;
+
+            // Loop over items
+            long[] dates = series.getDates();
+            int[] hrs = series.getHrs();
+            int[] rrValues = series.getRrValues();
+            int[] rrOffsets = series.getRrOffsets();
+            int[] rrCounts = series.getRrCounts();
+            long date;
+            for (int i = 0; i < series.size(); i++) {
+                checkCanceled(i);
+                date = dates[i];
+                while (gapIndex < gaps.length && gaps[gapIndex] < date) {
+                    if (mLastDate != INVALID_DATE
+                            && gaps[gapIndex] > mLastDate) {
+                        addGap(gaps[gapIndex], gaps[gapIndex + 1]);
+                    }
+                    gapIndex += 2;
+                }
+                mLastDate = date;
+                if (mHr) {
+                    addHr(date, hrs[i] == INVALID_INT ? Double.NaN : hrs[i]);
+                    nHrItems++;
+                }
+                if (mRr) {
+                    if (nRrItems == 0) {
+                        mLastRrUpdateTime = date;
+                        mLastRrTime = date - INITIAL_RR_START_TIME;
+                    }
+                    if (!addRrValues(date, rrValues, rrOffsets[i],
+                            rrCounts[i])) {
+                        nErrors++;
+                    }
+                    nRrItems++;
+                }
+            }
+            Log.d(TAG, "addSamples: HR " + nHrItems + " items, RR "
+                    + nRrItems + " items with nErrors=" + nErrors);
+            return nErrors;
+        }
+
+        /**
+         * Adds the rollups for the session. Each bucket is plotted as its
+         * minimum at the start of the bucket and its maximum at the middle,
+         * so the envelope of the raw data is kept.
+         *
+         * @param series The SessionSeries for the rollups.
+         * @return The number of buckets.
+         * @throws OperationCanceledException If the signal is cancelled.
+         */
+        private int addRollups(SessionSeries series) {
+            int resolution = series.getResolution();
+            long[] gaps = fetchGaps();
+            int gapIndex = 0;
+            long[] buckets = series.getDates();
+            int[] hrMins = series.getHrs();
+            int[] hrMaxs = series.getHrMaxs();
+            int[] rrValues = series.getRrValues();
+            int[] rrOffsets = series.getRrOffsets();
+            int[] rrCounts = series.getRrCounts();
+            long bucket;
+            for (int i = 0; i < series.size(); i++) {
+                checkCanceled(i);
+                bucket = buckets[i];
+                while (gapIndex < gaps.length && gaps[gapIndex] < bucket) {
+                    if (mLastDate != INVALID_DATE
+                            && gaps[gapIndex + 1] > mLastDate) {
+                        addGap(Math.max(gaps[gapIndex], mLastDate),
+                                gaps[gapIndex + 1]);
+                    }
+                    gapIndex += 2;
+                }
+                if (mHr && hrMins[i] != INVALID_INT) {
+                    addHr(bucket, hrMins[i]);
+                    addHr(bucket + resolution / 2, hrMaxs[i]);
+                }
+                if (mRr && rrCounts[i] > 0) {
+                    addRr(bucket, RR_SCALE * rrValues[rrOffsets[i]] / 1.024);
+                    addRr(bucket + resolution / 2,
+                            RR_SCALE * rrValues[rrOffsets[i] + 1] / 1.024);
+                }
+                mLastDate = bucket + resolution / 2;
+            }
+            return series.size();
+        }
+
+        /**
+         * Adds new values. Values not newer than the last ones added are
+         * skipped.
+         *
+         * @param date    The date.
+         * @param hr      The HR or INVALID_INT.
+         * @param rr      The R-R values.
+         * @param rrCount The number of R-R values or INVALID_INT if there is
+         *                no R-R.
+         * @return If the values were added.
+         */
+        private boolean add(long date, int hr, int[] rr, int rrCount) {
+            if (date <= mLastDate) {
                 return false;
             }
-            lastRrTime += val;
-            times[i] = lastRrTime;
-            values[i] = val / 1.024;
+            mLastDate = date;
+            if (hr == INVALID_INT && rrCount == INVALID_INT) {
+                // A gap marker or an invalid value, don't connect across it
+                addGap(date, date);
+                return true;
+            }
+            if (mHr) {
+                addHr(date, hr == INVALID_INT ? Double.NaN : hr);
+            }
+            if (mRr) {
+                if (mLastRrUpdateTime == INVALID_DATE) {
+                    mLastRrUpdateTime = date;
+                    mLastRrTime = date;
+                }
+                // Don't check for errors here to avoid error storms
+                addRrValues(date, rr, 0, rrCount);
+            }
+            return true;
         }
-        // Make first rr time be >= mLastRrUpdateTime
-        long deltaTime;
-        long firstTime = times[0];
-        if (firstTime < mLastRrUpdateTime) {
-            deltaTime = mLastRrUpdateTime - firstTime;
-            for (int i = 0; i < nRrValues; i++) {
-                times[i] += deltaTime;
+
+        /**
+         * Adds a break, so the lines do not join the values on either side
+         * of a gap, and restarts the R-R timing after the gap.
+         *
+         * @param gapStart The start of the gap.
+         * @param gapEnd   The end of the gap.
+         */
+        private void addGap(long gapStart, long gapEnd) {
+            if (mHr) {
+                addHr(gapStart, Double.NaN);
+            }
+            if (mRr) {
+                addRr(gapStart, Double.NaN);
+                mLastRrUpdateTime = gapEnd;
+                mLastRrTime = gapEnd - INITIAL_RR_START_TIME;
             }
         }
-        // Make all times be <= updateTime. Overrides previous if necessary.
-        long lastTime = times[nRrValues - 1];
-        if (times[nRrValues - 1] > updateTime) {
-            deltaTime = lastTime - updateTime;
+
+        /**
+         * Adds R-R values at the appropriate times.
+         *
+         * @param updateTime The time of this update.
+         * @param rrValues   Array holding the R-R values in units of 1/1024
+         *                   sec.
+         * @param rrOffset   The offset of the R-R values in the array.
+         * @param nRrValues  The number of R-R values or INVALID_INT if there
+         *                   is no R-R.
+         * @return If the operation was successful.
+         */
+        private boolean addRrValues(long updateTime, int[] rrValues,
+                                    int rrOffset, int nRrValues) {
+            if (nRrValues == 0) {
+                // Do nothing
+                return true;
+            }
+            if (nRrValues < 0) {
+                mLastRrUpdateTime = updateTime;
+                mLastRrTime = updateTime - INITIAL_RR_START_TIME;
+                return true;
+            }
+            if (nRrValues > mRrTimes.length) {
+                mRrTimes = new long[nRrValues];
+            }
+            long[] times = mRrTimes;
+            long lastRrTime = mLastRrTime;
             for (int i = 0; i < nRrValues; i++) {
-                times[i] -= deltaTime;
+                lastRrTime += rrValues[rrOffset + i];
+                times[i] = lastRrTime;
+            }
+            // Make first rr time be >= mLastRrUpdateTime
+            long deltaTime;
+            long firstTime = times[0];
+            if (firstTime < mLastRrUpdateTime) {
+                deltaTime = mLastRrUpdateTime - firstTime;
+                for (int i = 0; i < nRrValues; i++) {
+                    times[i] += deltaTime;
+                }
+            }
+            // Make all times be <= updateTime. Overrides previous if
+            // necessary.
+            long lastTime = times[nRrValues - 1];
+            if (times[nRrValues - 1] > updateTime) {
+                deltaTime = lastTime - updateTime;
+                for (int i = 0; i < nRrValues; i++) {
+                    times[i] -= deltaTime;
+                }
+            }
+            for (int i = 0; i < nRrValues; i++) {
+                addRr(times[i], RR_SCALE * rrValues[rrOffset + i] / 1.024);
+            }
+            mLastRrUpdateTime = updateTime;
+            mLastRrTime = times[nRrValues - 1];
+            return true;
+        }
+
+        /**
+         * Adds an HR value to the points or, in live mode, the series.
+         *
+         * @param date  The date.
+         * @param value The value or NaN for a break.
+         */
+        private void addHr(long date, double value) {
+            if (mHrPoints != null) {
+                mHrPoints.add(date, value);
+            } else {
+                mHrSeries.add(date, value);
             }
         }
-        double rr;
-        for (int i = 0; i < nRrValues; i++) {
-            rr = RR_SCALE * values[i];
-            rrSeries.addLast(times[i], rr);
+
+        /**
+         * Adds an R-R value to the points or, in live mode, the series.
+         *
+         * @param date  The date.
+         * @param value The value or NaN for a break.
+         */
+        private void addRr(long date, double value) {
+            if (mRrPoints != null) {
+                mRrPoints.add(date, value);
+            } else {
+                mRrSeries.add(date, value);
+            }
         }
-        mLastRrUpdateTime = updateTime;
-        mLastRrTime = times[nRrValues - 1];
-        return true;
     }
 
     /**
@@ -566,23 +1351,23 @@ public class PlotActivity extends AppCompatActivity implements IConstants,
         sb.append("Graph Width=").append(mPlot.getGraph().getSize().getWidth().getValue()).append(LF);
         sb.append("Graph Height=").append(mPlot.getGraph().getSize().getHeight().getValue()).append(LF);
         if (hrSeries != null) {
-            if (hrSeries.getxVals() != null) {
-                sb.append("hrSeries Size=").append(hrSeries.getxVals().size()).append(LF);
-            }
+            sb.append("hrSeries Size=").append(hrSeries.size()).append(LF);
         } else {
             sb.append("hrSeries=Null").append(LF);
         }
         if (rrSeries != null) {
-            if (rrSeries.getxVals() != null) {
-                sb.append("rrSeries Size=").append(rrSeries.getxVals().size()).append(LF);
-            }
+            sb.append("rrSeries Size=").append(rrSeries.size()).append(LF);
         } else {
             sb.append("rrSeries=Null").append(LF);
         }
         return sb.toString();
     }
 
+    /**
+     * Requests a redraw, which is done on a coming display frame if the
+     * plot is visible. Requests made before then are coalesced.
+     */
     public void update() {
-        runOnUiThread(() -> mPlot.redraw());
+        runOnUiThread(mRequestRedrawRunnable);
     }
 }
@@ -0,0 +1,213 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.util.Arrays;
+
+/**
+ * The full resolution points of a plot series in primitive arrays, sorted
+ * by x, from which the points in view are downsampled to about the width
+ * of the plot. A y of NaN is a break, where the line is not drawn across.
+ * <p>
+ * Downsampling uses Largest-Triangle-Three-Buckets (Steinarsson 2013). The
+ * points are divided into buckets, and from each bucket the point that
+ * makes the largest triangle with the point kept from the previous bucket
+ * and the average of the next bucket is kept. This keeps the shape of the
+ * line, including single spikes like ectopic beats, which averaging or
+ * taking every nth point would lose. Each run of points between breaks is
+ * downsampled separately, with a share of the points in proportion to its
+ * length, and the breaks are kept.
+ */
+public class PlotPoints {
+    private long[] mX = new long[1024];
+    private double[] mY = new double[1024];
+    private int mSize;
+    private long[] mOutX = new long[0];
+    private double[] mOutY = new double[0];
+
+    /**
+     * Adds a point.
+     *
+     * @param x The x value.
+     * @param y The y value or NaN for a break.
+     */
+    public void add(long x, double y) {
+        if (mSize == mX.length) {
+            mX = Arrays.copyOf(mX, 2 * mSize);
+            mY = Arrays.copyOf(mY, 2 * mSize);
+        }
+        mX[mSize] = x;
+        mY[mSize] = y;
+        mSize++;
+    }
+
+    /**
+     * Gets the number of points.
+     *
+     * @return The number of points.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Removes all the points.
+     */
+    public void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * Downsamples the points with x in a range, plus the one on each side so
+     * the lines go to the edges, to at most about threshold points. If there
+     * are not more than that they are all used.
+     *
+     * @param minX      The start of the range.
+     * @param maxX      The end of the range.
+     * @param threshold The number of points to keep, at least 3.
+     * @return The number of points in getOutX and getOutY.
+     */
+    public int downsample(long minX, long maxX, int threshold) {
+        int from = Math.max(0, search(minX, false) - 1);
+        int to = Math.min(mSize, search(maxX, true) + 1);
+        threshold = Math.max(3, threshold);
+        int nValues = 0;
+        for (int i = from; i < to; i++) {
+            if (!Double.isNaN(mY[i])) nValues++;
+        }
+        int nOut = 0, start, nKeep;
+        int i = from;
+        while (i < to) {
+            if (Double.isNaN(mY[i])) {
+                // Keep the break, but not several in a row
+                if (nOut > 0 && !Double.isNaN(mOutY[nOut - 1])) {
+                    nOut = put(nOut, mX[i], Double.NaN);
+                }
+                i++;
+                continue;
+            }
+            start = i;
+            while (i < to && !Double.isNaN(mY[i])) i++;
+            nKeep = (int) Math.max(2,
+                    Math.round((double) threshold * (i - start) / nValues));
+            nOut = lttb(start, i, nKeep, nOut);
+        }
+        return nOut;
+    }
+
+    /**
+     * Downsamples a run of points with no breaks to the output.
+     *
+     * @param from      The index of the first point.
+     * @param to        The index after the last point.
+     * @param threshold The number of points to keep.
+     * @param nOut      The number of points in the output so far.
+     * @return The number of points in the output.
+     */
+    private int lttb(int from, int to, int threshold, int nOut) {
+        int n = to - from;
+        if (threshold >= n || threshold < 3) {
+            if (threshold < 3 && n > 2) {
+                // Just the ends
+                nOut = put(nOut, mX[from], mY[from]);
+                return put(nOut, mX[to - 1], mY[to - 1]);
+            }
+            for (int i = from; i < to; i++) {
+                nOut = put(nOut, mX[i], mY[i]);
+            }
+            return nOut;
+        }
+        // Use x relative to the first point to keep the precision
+        long x0 = mX[from];
+        double bucketSize = (double) (n - 2) / (threshold - 2);
+        int a = from, next = from;
+        int rangeStart, rangeEnd, avgStart, avgEnd;
+        double avgX, avgY, ax, ay, area, maxArea;
+        nOut = put(nOut, mX[from], mY[from]);
+        for (int bucket = 0; bucket < threshold - 2; bucket++) {
+            // The average of the next bucket
+            avgStart = from + (int) ((bucket + 1) * bucketSize) + 1;
+            avgEnd = Math.min(from + (int) ((bucket + 2) * bucketSize) + 1,
+                    to);
+            avgX = avgY = 0;
+            for (int i = avgStart; i < avgEnd; i++) {
+                avgX += mX[i] - x0;
+                avgY += mY[i];
+            }
+            avgX /= avgEnd - avgStart;
+            avgY /= avgEnd - avgStart;
+            // The point in this bucket with the largest triangle
+            rangeStart = from + (int) (bucket * bucketSize) + 1;
+            rangeEnd = from + (int) ((bucket + 1) * bucketSize) + 1;
+            ax = mX[a] - x0;
+            ay = mY[a];
+            maxArea = -1;
+            for (int i = rangeStart; i < rangeEnd; i++) {
+                area = Math.abs((ax - avgX) * (mY[i] - ay)
+                        - (ax - (mX[i] - x0)) * (avgY - ay));
+                if (area > maxArea) {
+                    maxArea = area;
+                    next = i;
+                }
+            }
+            nOut = put(nOut, mX[next], mY[next]);
+            a = next;
+        }
+        return put(nOut, mX[to - 1], mY[to - 1]);
+    }
+
+    /**
+     * Puts a point in the output, growing it if necessary.
+     *
+     * @param nOut The number of points in the output.
+     * @param x    The x value.
+     * @param y    The y value.
+     * @return The new number of points in the output.
+     */
+    private int put(int nOut, long x, double y) {
+        if (nOut == mOutX.length) {
+            mOutX = Arrays.copyOf(mOutX, Math.max(16, 2 * nOut));
+            mOutY = Arrays.copyOf(mOutY, Math.max(16, 2 * nOut));
+        }
+        mOutX[nOut] = x;
+        mOutY[nOut] = y;
+        return nOut + 1;
+    }
+
+    /**
+     * Gets the index of the first point with x at or after, or just after,
+     * the given value.
+     *
+     * @param x     The value.
+     * @param after Whether to find the first point after the value.
+     * @return The index or size() if there is none.
+     */
+    private int search(long x, boolean after) {
+        int lo = 0, hi = mSize, mid;
+        while (lo < hi) {
+            mid = (lo + hi) >>> 1;
+            if (mX[mid] < x || (after && mX[mid] == x)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Gets the x values from the last downsample.
+     *
+     * @return The values. Only the number returned by downsample are used.
+     */
+    public long[] getOutX() {
+        return mOutX;
+    }
+
+    /**
+     * Gets the y values from the last downsample, NaN for a break.
+     *
+     * @return The values. Only the number returned by downsample are used.
+     */
+    public double[] getOutY() {
+        return mOutY;
+    }
+}
@@ -0,0 +1,247 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Schedules attempts to reconnect devices that were disconnected without
+ * being asked to. The delay between attempts grows exponentially from the
+ * initial delay up to the maximum delay. Each delay is chosen at random
+ * between half and all of the nominal delay, so several devices that drop
+ * at the same time do not all retry at once. Keeps statistics on how long
+ * it takes to reconnect.
+ * <p>
+ * All methods must be called on the Handler's thread.
+ */
+public class ReconnectScheduler implements IConstants {
+    private static final String TAG = "BCMReconnect";
+
+    /**
+     * Makes a reconnect attempt.
+     */
+    public interface Reconnector {
+        /**
+         * Starts connecting to a device.
+         *
+         * @param address The device address.
+         * @return If the attempt was started. If not, another is scheduled.
+         */
+        boolean reconnect(String address);
+    }
+
+    /**
+     * The state of one outage.
+     */
+    private static class Outage {
+        private final String address;
+        private final long start;
+        private int attempts;
+        private Runnable runnable;
+
+        private Outage(String address, long start) {
+            this.address = address;
+            this.start = start;
+        }
+    }
+
+    private final Handler mHandler;
+    private final long mInitialDelay;
+    private final long mMaxDelay;
+    private final Reconnector mReconnector;
+    private final Random mRandom = new Random();
+    private final Map<String, Outage> mOutages = new HashMap<>();
+
+    private int mReconnects;
+    private int mAbandoned;
+    private long mTotalLatency;
+    private long mMinLatency = Long.MAX_VALUE;
+    private long mMaxLatency;
+    private long mLastLatency = INVALID_DATE;
+    private int mMaxAttempts;
+
+    /**
+     * Constructor.
+     *
+     * @param handler      Handler for the thread on which to reconnect.
+     * @param initialDelay The delay before the first attempt (ms).
+     * @param maxDelay     The maximum delay between attempts (ms).
+     * @param reconnector  The Reconnector.
+     */
+    public ReconnectScheduler(Handler handler, long initialDelay,
+                              long maxDelay, Reconnector reconnector) {
+        mHandler = handler;
+        mInitialDelay = initialDelay;
+        mMaxDelay = maxDelay;
+        mReconnector = reconnector;
+    }
+
+    /**
+     * Called when a device has disconnected unexpectedly or a reconnect
+     * attempt has failed. Starts an outage if there is none and schedules
+     * the next attempt.
+     *
+     * @param address The device address.
+     * @param date    The date of the disconnect.
+     * @return The delay until the next attempt (ms).
+     */
+    public long onDisconnected(String address, long date) {
+        Outage outage = mOutages.get(address);
+        if (outage == null) {
+            outage = new Outage(address, date);
+            mOutages.put(address, outage);
+        }
+        if (outage.runnable != null) {
+            // Already scheduled
+            return 0;
+        }
+        long delay = getDelay(outage.attempts);
+        final Outage fOutage = outage;
+        outage.runnable = () -> attempt(fOutage);
+        mHandler.postDelayed(outage.runnable, delay);
+        Log.d(TAG, "onDisconnected: " + address + " attempt "
+                + (outage.attempts + 1) + " in " + delay + " ms");
+        return delay;
+    }
+
+    /**
+     * Called when a device has connected. Ends any outage and records how
+     * long it took.
+     *
+     * @param address The device address.
+     * @param date    The date of the connect.
+     * @return The start of the outage or INVALID_DATE if there was none.
+     */
+    public long onConnected(String address, long date) {
+        Outage outage = remove(address);
+        if (outage == null) {
+            return INVALID_DATE;
+        }
+        long latency = date - outage.start;
+        mReconnects++;
+        mTotalLatency += latency;
+        mLastLatency = latency;
+        if (latency < mMinLatency) mMinLatency = latency;
+        if (latency > mMaxLatency) mMaxLatency = latency;
+        if (outage.attempts > mMaxAttempts) mMaxAttempts = outage.attempts;
+        Log.d(TAG, "onConnected: " + address + " after " + latency + " ms, "
+                + outage.attempts + " attempts");
+        return outage.start;
+    }
+
+    /**
+     * Stops trying to reconnect a device.
+     *
+     * @param address The device address.
+     * @return The start of the outage or INVALID_DATE if there was none.
+     */
+    public long cancel(String address) {
+        Outage outage = remove(address);
+        if (outage == null) {
+            return INVALID_DATE;
+        }
+        mAbandoned++;
+        Log.d(TAG, "cancel: " + address + " after " + outage.attempts
+                + " attempts");
+        return outage.start;
+    }
+
+    /**
+     * Returns if a device is being reconnected.
+     *
+     * @param address The device address.
+     * @return If there is an outage.
+     */
+    public boolean isReconnecting(String address) {
+        return mOutages.containsKey(address);
+    }
+
+    /**
+     * Gets a summary of the reconnect statistics.
+     *
+     * @return The summary.
+     */
+    public String getInfo() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Reconnects: ").append(mReconnects);
+        if (mAbandoned > 0) {
+            sb.append(" (").append(mAbandoned).append(" abandoned)");
+        }
+        sb.append("\n");
+        if (mReconnects > 0) {
+            sb.append(String.format(Locale.US,
+                    "Reconnect Time: last %.1f s, mean %.1f s, "
+                            + "min %.1f s, max %.1f s\n",
+                    mLastLatency / 1000.,
+                    mTotalLatency / 1000. / mReconnects,
+                    mMinLatency / 1000., mMaxLatency / 1000.));
+            sb.append("Maximum Reconnect Attempts: ").append(mMaxAttempts)
+                    .append("\n");
+        }
+        if (!mOutages.isEmpty()) {
+            sb.append("Reconnecting: ").append(mOutages.size()).append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Makes an attempt. Called from the Handler.
+     *
+     * @param outage The Outage.
+     */
+    private void attempt(Outage outage) {
+        outage.runnable = null;
+        if (mOutages.get(outage.address) != outage) {
+            return;
+        }
+        outage.attempts++;
+        boolean res;
+        try {
+            res = mReconnector.reconnect(outage.address);
+        } catch (Exception ex) {
+            Log.e(TAG, "attempt: Error reconnecting " + outage.address, ex);
+            res = false;
+        }
+        Log.d(TAG, "attempt: " + outage.address + " attempt "
+                + outage.attempts + " started=" + res);
+        if (!res) {
+            onDisconnected(outage.address, outage.start);
+        }
+    }
+
+    /**
+     * Removes the outage for a device and cancels any pending attempt.
+     *
+     * @param address The device address.
+     * @return The Outage or null if there was none.
+     */
+    private Outage remove(String address) {
+        Outage outage = mOutages.remove(address);
+        if (outage != null && outage.runnable != null) {
+            mHandler.removeCallbacks(outage.runnable);
+            outage.runnable = null;
+        }
+        return outage;
+    }
+
+    /**
+     * Gets the delay before the next attempt.
+     *
+     * @param attempts The number of attempts already made.
+     * @return The delay (ms).
+     */
+    private long getDelay(int attempts) {
+        long delay = mInitialDelay;
+        for (int i = 0; i < attempts && delay < mMaxDelay; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, mMaxDelay);
+        // Jitter between half and all of the delay
+        long half = delay / 2;
+        return half + (long) (mRandom.nextDouble() * (delay - half));
+    }
+}
@@ -0,0 +1,118 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.view.Choreographer;
+
+/**
+ * Schedules redraws on display frames from the Choreographer. Requests are
+ * coalesced, so however often they are made there is at most one redraw per
+ * frame, and not more than a maximum number per second. Nothing is drawn
+ * while it is paused, and a redraw requested then is done on resume.
+ * <p>
+ * Must be created and used on the UI thread.
+ */
+public class RedrawScheduler implements Choreographer.FrameCallback {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private final Choreographer mChoreographer = Choreographer.getInstance();
+    private final Runnable mRedraw;
+    /**
+     * The minimum time between redraws, in ns.
+     */
+    private long mMinInterval;
+    /**
+     * The frame time of the last redraw, in ns.
+     */
+    private long mLastFrameTime;
+    /**
+     * Whether a redraw has been requested and not done.
+     */
+    private boolean mDirty;
+    /**
+     * Whether a frame callback has been posted.
+     */
+    private boolean mPosted;
+    private boolean mPaused = true;
+
+    /**
+     * Constructor. It starts out paused.
+     *
+     * @param redraw What to run to redraw.
+     * @param maxFps The maximum number of redraws per second or 0 for one
+     *               every frame.
+     */
+    public RedrawScheduler(Runnable redraw, int maxFps) {
+        mRedraw = redraw;
+        setMaxFps(maxFps);
+    }
+
+    /**
+     * Sets the maximum number of redraws per second.
+     *
+     * @param maxFps The maximum or 0 for one every frame.
+     */
+    public void setMaxFps(int maxFps) {
+        mMinInterval = maxFps > 0 ? NANOS_PER_SECOND / maxFps : 0;
+    }
+
+    /**
+     * Requests a redraw on a coming frame.
+     */
+    public void requestRedraw() {
+        mDirty = true;
+        post(0);
+    }
+
+    /**
+     * Resumes redrawing, doing any requested while paused.
+     */
+    public void resume() {
+        mPaused = false;
+        if (mDirty) {
+            post(0);
+        }
+    }
+
+    /**
+     * Pauses redrawing. Requests are remembered but not done.
+     */
+    public void pause() {
+        mPaused = true;
+        if (mPosted) {
+            mChoreographer.removeFrameCallback(this);
+            mPosted = false;
+        }
+    }
+
+    /**
+     * Posts the frame callback if it is not already posted.
+     *
+     * @param delay The delay in ms.
+     */
+    private void post(long delay) {
+        if (mPaused || mPosted) {
+            return;
+        }
+        mPosted = true;
+        if (delay > 0) {
+            mChoreographer.postFrameCallbackDelayed(this, delay);
+        } else {
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mPosted = false;
+        if (mPaused || !mDirty) {
+            return;
+        }
+        long wait = mLastFrameTime + mMinInterval - frameTimeNanos;
+        if (mLastFrameTime != 0 && wait > 0) {
+            // Too soon, try again on the first frame after the wait
+            post(wait / 1000000);
+            return;
+        }
+        mDirty = false;
+        mLastFrameTime = frameTimeNanos;
+        mRedraw.run();
+    }
+}
@@ -0,0 +1,335 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * A SampleSource that replays recorded or generated HR and R-R values on
+ * its own thread, at the original rate, a multiple of it, or as fast as the
+ * Sink accepts them. The values are encoded as Heart Rate Measurement
+ * values. The dates sent are the times the values are sent, so the
+ * recorded intervals are kept at 1x and compressed at higher speeds.
+ */
+public class ReplaySampleSource implements SampleSource, IConstants {
+    /**
+     * Speed to send values as fast as the Sink accepts them. At this speed
+     * values the Sink does not accept are retried rather than dropped.
+     */
+    public static final double MAX_SPEED = 0;
+    /**
+     * Maximum number of R-R values sent in one value. More are ignored.
+     */
+    public static final int MAX_RR = 32;
+
+    /**
+     * One value to replay.
+     */
+    public static class Record {
+        public long date;
+        public int hr;
+        public final int[] rr = new int[MAX_RR];
+        /**
+         * The number of R-R values or INVALID_INT if there is no R-R.
+         */
+        public int rrCount = INVALID_INT;
+    }
+
+    /**
+     * Provides the values to replay.
+     */
+    public interface RecordReader {
+        /**
+         * Reads the next value.
+         *
+         * @param record The Record to fill in.
+         * @return If there was a value, false at the end.
+         * @throws IOException On an error reading.
+         */
+        boolean read(Record record) throws IOException;
+
+        /**
+         * Releases any resources.
+         */
+        void close();
+    }
+
+    private final String mName;
+    private final RecordReader mReader;
+    private final double mSpeed;
+    private final Record mRecord = new Record();
+    private final byte[] mData = new byte[3 + 2 * MAX_RR];
+    private Thread mThread;
+    private volatile boolean mRunning;
+    private volatile boolean mStopped;
+    private volatile long mSent;
+    private volatile long mDropped;
+
+    /**
+     * Constructor.
+     *
+     * @param name   A name for the source.
+     * @param reader The RecordReader.
+     * @param speed  The speed relative to the recorded rate or MAX_SPEED.
+     */
+    public ReplaySampleSource(String name, RecordReader reader,
+                              double speed) {
+        mName = name;
+        mReader = reader;
+        mSpeed = speed;
+    }
+
+    /**
+     * Creates a source that replays a session saved as CSV by the session
+     * manager. Lines that cannot be parsed are skipped.
+     *
+     * @param name  A name for the source.
+     * @param in    The Reader for the CSV. It is closed when done.
+     * @param speed The speed relative to the recorded rate or MAX_SPEED.
+     * @return The source.
+     */
+    public static ReplaySampleSource fromSessionCsv(String name, Reader in,
+                                                    double speed) {
+        return new ReplaySampleSource(name, new SessionCsvReader(in), speed);
+    }
+
+    /**
+     * Creates a source that sends generated values about once a second. The
+     * HR varies slowly around the mean, and the R-R values are consistent
+     * with it.
+     *
+     * @param meanHr   The mean HR.
+     * @param duration The length of the generated data (ms).
+     * @param speed    The speed relative to real time or MAX_SPEED.
+     * @return The source.
+     */
+    public static ReplaySampleSource generated(int meanHr, long duration,
+                                               double speed) {
+        return new ReplaySampleSource("Generated",
+                new GeneratedReader(meanHr, duration), speed);
+    }
+
+    @Override
+    public synchronized void start(final Sink sink) {
+        if (mThread != null) {
+            throw new IllegalStateException("Already started");
+        }
+        mRunning = true;
+        mThread = new Thread(() -> run(sink), "BCMReplay");
+        mThread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        mStopped = true;
+        if (mThread != null) {
+            mThread.interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    @Override
+    public String getInfo() {
+        String speed;
+        if (mSpeed == MAX_SPEED) {
+            speed = "max speed";
+        } else if (mSpeed == Math.rint(mSpeed)) {
+            speed = String.format(Locale.US, "%.0fx", mSpeed);
+        } else {
+            speed = String.format(Locale.US, "%.2fx", mSpeed);
+        }
+        return String.format(Locale.US, "%s at %s: %d sent, %d dropped%s",
+                mName, speed, mSent, mDropped, mRunning ? "" : " (done)");
+    }
+
+    /**
+     * Reads and sends the values. Runs on the source's thread.
+     *
+     * @param sink The Sink.
+     */
+    private void run(Sink sink) {
+        Exception error = null;
+        long firstDate = INVALID_DATE;
+        long startTime = 0;
+        long date, wait;
+        int length;
+        try {
+            while (!mStopped && mReader.read(mRecord)) {
+                if (firstDate == INVALID_DATE) {
+                    firstDate = mRecord.date;
+                    startTime = System.currentTimeMillis();
+                }
+                length = encode(mRecord, mData);
+                if (mSpeed > 0) {
+                    date = startTime
+                            + (long) ((mRecord.date - firstDate) / mSpeed);
+                    wait = date - System.currentTimeMillis();
+                    if (wait > 0) {
+                        Thread.sleep(wait);
+                    }
+                    if (sink.onValue(mData, length, date)) {
+                        mSent++;
+                    } else {
+                        mDropped++;
+                    }
+                } else {
+                    // Wait for the Sink rather than drop
+                    while (!sink.onValue(mData, length,
+                            System.currentTimeMillis())) {
+                        Thread.sleep(1);
+                    }
+                    mSent++;
+                }
+            }
+        } catch (InterruptedException ex) {
+            // Stopped
+        } catch (Exception ex) {
+            error = ex;
+        } finally {
+            mReader.close();
+            mRunning = false;
+        }
+        if (!mStopped) {
+            sink.onFinished(error);
+        }
+    }
+
+    /**
+     * Encodes a Record as a Heart Rate Measurement value.
+     *
+     * @param record The Record.
+     * @param data   Array to hold the value. Must hold at least
+     *               3 + 2 * MAX_RR bytes.
+     * @return The number of bytes used.
+     */
+    public static int encode(Record record, byte[] data) {
+        // Sensor contact supported and detected
+        int flags = 0x06;
+        int offset = 1;
+        if (record.hr > 0xFF) {
+            flags |= 0x01;
+            data[offset++] = (byte) record.hr;
+            data[offset++] = (byte) (record.hr >> 8);
+        } else {
+            data[offset++] = (byte) record.hr;
+        }
+        if (record.rrCount != INVALID_INT) {
+            flags |= 0x10;
+            int count = Math.min(record.rrCount, MAX_RR);
+            for (int i = 0; i < count; i++) {
+                data[offset++] = (byte) record.rr[i];
+                data[offset++] = (byte) (record.rr[i] >> 8);
+            }
+        }
+        data[0] = (byte) flags;
+        return offset;
+    }
+
+    /**
+     * Reads the CSV written by the session manager, which has the date
+     * formatted with sessionSaveFormatter, the HR, and the space-separated
+     * R-R values or INVALID_STRING on each line.
+     */
+    private static class SessionCsvReader implements RecordReader {
+        private final BufferedReader mIn;
+        // SimpleDateFormat is not thread safe, so use a copy
+        private final SimpleDateFormat mFormatter =
+                (SimpleDateFormat) sessionSaveFormatter.clone();
+
+        private SessionCsvReader(Reader in) {
+            mIn = new BufferedReader(in);
+        }
+
+        @Override
+        public boolean read(Record record) throws IOException {
+            String line;
+            String[] tokens;
+            int[] rr;
+            while ((line = mIn.readLine()) != null) {
+                tokens = line.trim().split(SAVE_SESSION_DELIM);
+                if (tokens.length < 2) {
+                    continue;
+                }
+                try {
+                    record.date = mFormatter.parse(tokens[0]).getTime();
+                    record.hr = Integer.parseInt(tokens[1].trim());
+                    rr = tokens.length > 2 ? RrUtils.parse(tokens[2]) : null;
+                } catch (Exception ex) {
+                    continue;
+                }
+                if (record.hr < 0) {
+                    continue;
+                }
+                if (rr == null) {
+                    record.rrCount = INVALID_INT;
+                } else {
+                    record.rrCount = Math.min(rr.length, MAX_RR);
+                    System.arraycopy(rr, 0, record.rr, 0, record.rrCount);
+                }
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void close() {
+            try {
+                mIn.close();
+            } catch (IOException ex) {
+                // Do nothing
+            }
+        }
+    }
+
+    /**
+     * Generates values about once a second. The HR varies by 10 around the
+     * mean over a minute with some noise, and each R-R value is the beat
+     * interval for the HR in units of 1/1024 s with some noise.
+     */
+    private static class GeneratedReader implements RecordReader {
+        private final Random mRandom = new Random();
+        private final int mMeanHr;
+        private final long mDuration;
+        private long mTime;
+
+        private GeneratedReader(int meanHr, long duration) {
+            mMeanHr = Math.max(meanHr, 20);
+            mDuration = duration;
+        }
+
+        @Override
+        public boolean read(Record record) {
+            if (mTime >= mDuration) {
+                return false;
+            }
+            double hr = mMeanHr
+                    + 10 * Math.sin(2 * Math.PI * mTime / 60000.)
+                    + mRandom.nextGaussian();
+            hr = Math.max(hr, 20);
+            long elapsed = 0;
+            int rr;
+            record.rrCount = 0;
+            while (elapsed < 1000 && record.rrCount < MAX_RR) {
+                rr = (int) Math.round(60 * 1024 / hr
+                        * (1 + .03 * mRandom.nextGaussian()));
+                record.rr[record.rrCount++] = rr;
+                elapsed += rr * 1000L / 1024;
+            }
+            mTime += elapsed;
+            record.date = mTime;
+            record.hr = (int) Math.round(hr);
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.graphics.Canvas;
+
+import com.androidplot.Plot;
+import com.androidplot.PlotListener;
+import com.androidplot.xy.FastXYSeries;
+import com.androidplot.xy.OrderedXYSeries;
+import com.androidplot.xy.RectRegion;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An XYSeries holding its values in primitive ring buffers, for points
+ * added in order of increasing x. Adding is O(1) and does not allocate, and
+ * if a maximum age is set the points older than that before the newest
+ * are dropped as points are added, so a series that is added to for hours
+ * stays the same size. A y of NaN is a break and is returned as null.
+ * <p>
+ * Like SimpleXYSeries, it should be added as a listener to the plot, so it
+ * is not changed while it is being drawn.
+ */
+public class RingXYSeries implements FastXYSeries, OrderedXYSeries,
+        PlotListener {
+    private final String mTitle;
+    private final ReentrantReadWriteLock mLock =
+            new ReentrantReadWriteLock(true);
+    private long[] mX;
+    private float[] mY;
+    /**
+     * The index in the arrays of the oldest point.
+     */
+    private int mHead;
+    private int mSize;
+    /**
+     * The maximum age of points relative to the newest or 0 for no
+     * maximum.
+     */
+    private long mMaxAge;
+
+    /**
+     * Constructor.
+     *
+     * @param title    The title.
+     * @param capacity The initial capacity. It grows as needed.
+     */
+    public RingXYSeries(String title, int capacity) {
+        mTitle = title;
+        mX = new long[Math.max(16, capacity)];
+        mY = new float[mX.length];
+    }
+
+    /**
+     * Sets the maximum age of points, relative to the newest.
+     *
+     * @param maxAge The maximum age or 0 for no maximum.
+     */
+    public void setMaxAge(long maxAge) {
+        mMaxAge = maxAge;
+    }
+
+    /**
+     * Adds a point, dropping those that are too old.
+     *
+     * @param x The x value, not less than that of the last point.
+     * @param y The y value or NaN for a break.
+     */
+    public void add(long x, double y) {
+        mLock.writeLock().lock();
+        try {
+            if (mMaxAge > 0) {
+                long oldest = x - mMaxAge;
+                while (mSize > 0 && mX[mHead] < oldest) {
+                    mHead = (mHead + 1) % mX.length;
+                    mSize--;
+                }
+            }
+            if (mSize == mX.length) {
+                grow();
+            }
+            int index = (mHead + mSize) % mX.length;
+            mX[index] = x;
+            mY[index] = (float) y;
+            mSize++;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Doubles the capacity, moving the oldest point to the start.
+     */
+    private void grow() {
+        long[] x = new long[2 * mX.length];
+        float[] y = new float[x.length];
+        int nFirst = mX.length - mHead;
+        System.arraycopy(mX, mHead, x, 0, nFirst);
+        System.arraycopy(mY, mHead, y, 0, nFirst);
+        System.arraycopy(mX, 0, x, nFirst, mHead);
+        System.arraycopy(mY, 0, y, nFirst, mHead);
+        mX = x;
+        mY = y;
+        mHead = 0;
+    }
+
+    /**
+     * Removes all the points. The capacity is kept.
+     */
+    public void clear() {
+        mLock.writeLock().lock();
+        try {
+            mHead = 0;
+            mSize = 0;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of points the series can hold before it grows.
+     *
+     * @return The capacity.
+     */
+    public int getCapacity() {
+        return mX.length;
+    }
+
+    @Override
+    public String getTitle() {
+        return mTitle;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public Number getX(int index) {
+        return mX[(mHead + index) % mX.length];
+    }
+
+    @Override
+    public Number getY(int index) {
+        float y = mY[(mHead + index) % mY.length];
+        return Float.isNaN(y) ? null : y;
+    }
+
+    @Override
+    public XOrder getXOrder() {
+        return XOrder.ASCENDING;
+    }
+
+    /**
+     * Gets the bounds of the points, without boxing each of them.
+     *
+     * @return The bounds or null if there are no points.
+     */
+    @Override
+    public RectRegion minMax() {
+        if (mSize == 0) {
+            return null;
+        }
+        float minY = Float.NaN, maxY = Float.NaN, y;
+        for (int i = 0; i < mSize; i++) {
+            y = mY[(mHead + i) % mY.length];
+            if (Float.isNaN(y)) {
+                continue;
+            }
+            if (Float.isNaN(minY) || y < minY) {
+                minY = y;
+            }
+            if (Float.isNaN(maxY) || y > maxY) {
+                maxY = y;
+            }
+        }
+        long minX = mX[mHead];
+        long maxX = mX[(mHead + mSize - 1) % mX.length];
+        if (Float.isNaN(minY)) {
+            return new RectRegion(minX, maxX, null, null);
+        }
+        return new RectRegion(minX, maxX, minY, maxY);
+    }
+
+    @Override
+    public void onBeforeDraw(Plot source, Canvas canvas) {
+        mLock.readLock().lock();
+    }
+
+    @Override
+    public void onAfterDraw(Plot source, Canvas canvas) {
+        mLock.readLock().unlock();
+    }
+
+    @Override
+    public String toString() {
+        return "RingXYSeries " + mTitle + ": " + mSize + " of "
+                + mX.length + (mSize == 0 ? "" : " from " + mX[mHead]
+                + " to " + mX[(mHead + mSize - 1) % mX.length]);
+    }
+}
@@ -0,0 +1,178 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.util.ArrayList;
+
+/**
+ * Accumulates HR and R-R summaries for the rollup buckets that samples fall
+ * in, at each of the resolutions in ROLLUP_RESOLUTIONS. Buckets are aligned
+ * to the start of the session. The Bucket objects are reused after clear,
+ * so adding does not allocate once enough buckets have been created.
+ */
+public class RollupAccumulator implements IConstants {
+    /**
+     * The summary of the samples in one bucket. HR values that are not
+     * positive and R-R values that are not positive are not counted.
+     */
+    public static class Bucket {
+        public long startDate;
+        public int resolution;
+        /**
+         * The date of the start of the bucket.
+         */
+        public long bucket;
+        public int sampleCount;
+        public int hrCount;
+        public long hrSum;
+        public int hrMin;
+        public int hrMax;
+        public int rrCount;
+        public long rrSum;
+        public int rrMin;
+        public int rrMax;
+
+        private void reset(long startDate, int resolution, long bucket) {
+            this.startDate = startDate;
+            this.resolution = resolution;
+            this.bucket = bucket;
+            sampleCount = hrCount = rrCount = 0;
+            hrSum = rrSum = 0;
+            hrMin = rrMin = Integer.MAX_VALUE;
+            hrMax = rrMax = Integer.MIN_VALUE;
+        }
+
+        private void add(int hr, int[] rrValues, int rrOffset, int rrCount) {
+            sampleCount++;
+            if (hr > 0) {
+                hrCount++;
+                hrSum += hr;
+                if (hr < hrMin) hrMin = hr;
+                if (hr > hrMax) hrMax = hr;
+            }
+            int rr;
+            for (int i = 0; i < rrCount; i++) {
+                rr = rrValues[rrOffset + i];
+                if (rr <= 0) continue;
+                this.rrCount++;
+                rrSum += rr;
+                if (rr < rrMin) rrMin = rr;
+                if (rr > rrMax) rrMax = rr;
+            }
+        }
+    }
+
+    private final ArrayList<Bucket> mBuckets = new ArrayList<>();
+    private int mCount;
+
+    /**
+     * Adds a sample to the buckets for each resolution.
+     *
+     * @param startDate The start date of the session.
+     * @param date      The date of the sample.
+     * @param hr        The HR.
+     * @param rrValues  Array holding the R-R values.
+     * @param rrOffset  The offset of the R-R values in the array.
+     * @param rrCount   The number of R-R values or INVALID_INT if there is
+     *                  no R-R.
+     */
+    public void add(long startDate, long date, int hr, int[] rrValues,
+                    int rrOffset, int rrCount) {
+        if (rrCount < 0 || rrValues == null) {
+            rrCount = 0;
+        }
+        for (int resolution : ROLLUP_RESOLUTIONS) {
+            getBucket(startDate, resolution,
+                    getBucketStart(startDate, resolution, date))
+                    .add(hr, rrValues, rrOffset, rrCount);
+        }
+    }
+
+    /**
+     * Gets the bucket for the given key, starting a new one if there is none.
+     * The last buckets are checked first since samples mostly arrive in
+     * order.
+     *
+     * @param startDate  The start date of the session.
+     * @param resolution The resolution.
+     * @param bucket     The start of the bucket.
+     * @return The bucket.
+     */
+    private Bucket getBucket(long startDate, int resolution, long bucket) {
+        Bucket b;
+        for (int i = mCount - 1; i >= 0; i--) {
+            b = mBuckets.get(i);
+            if (b.bucket == bucket && b.resolution == resolution
+                    && b.startDate == startDate) {
+                return b;
+            }
+        }
+        if (mCount == mBuckets.size()) {
+            mBuckets.add(new Bucket());
+        }
+        b = mBuckets.get(mCount++);
+        b.reset(startDate, resolution, bucket);
+        return b;
+    }
+
+    /**
+     * Gets the number of buckets.
+     *
+     * @return The number of buckets.
+     */
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Gets a bucket.
+     *
+     * @param i The index, less than size().
+     * @return The bucket. It is reused after clear.
+     */
+    public Bucket get(int i) {
+        return mBuckets.get(i);
+    }
+
+    /**
+     * Removes all the buckets.
+     */
+    public void clear() {
+        mCount = 0;
+    }
+
+    /**
+     * Gets the start of the bucket a date is in.
+     *
+     * @param startDate  The start date of the session.
+     * @param resolution The resolution.
+     * @param date       The date.
+     * @return The start of the bucket.
+     */
+    public static long getBucketStart(long startDate, int resolution,
+                                      long date) {
+        return startDate
+                + Math.floorDiv(date - startDate, resolution) * resolution;
+    }
+
+    /**
+     * Picks the resolution to plot a time span at. This is the coarsest one
+     * that still gives at least one bucket per pixel, so no detail is lost.
+     * If even the finest one gives fewer buckets than pixels, the raw data
+     * are small enough to plot.
+     *
+     * @param span  The visible time span (ms).
+     * @param width The width of the plot (pixels).
+     * @return The resolution or 0 for the raw data.
+     */
+    public static int selectResolution(long span, int width) {
+        if (width <= 0) {
+            return 0;
+        }
+        int selected = 0;
+        for (int resolution : ROLLUP_RESOLUTIONS) {
+            if (span / resolution >= width) {
+                selected = resolution;
+            }
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,147 @@
+package net.kenevans.android.blecardiacmonitor;
+
+/**
+ * Utilities for R-R values. In the database the R-R values for a row are
+ * stored as a BLOB of little-endian unsigned 16-bit values, in the units of
+ * the Heart Rate Measurement characteristic (1/1024 sec), together with a
+ * count column. A count of INVALID_INT means the measurement had no R-R
+ * values and the BLOB is null.
+ */
+public class RrUtils implements IConstants {
+    /**
+     * Encodes R-R values as a BLOB.
+     *
+     * @param values The values.
+     * @param offset The offset of the first value.
+     * @param count  The number of values or INVALID_INT if there is no R-R.
+     * @return The BLOB or null if count is INVALID_INT.
+     */
+    public static byte[] encode(int[] values, int offset, int count) {
+        if (count < 0) {
+            return null;
+        }
+        byte[] blob = new byte[2 * count];
+        int val;
+        for (int i = 0; i < count; i++) {
+            val = values[offset + i];
+            blob[2 * i] = (byte) val;
+            blob[2 * i + 1] = (byte) (val >> 8);
+        }
+        return blob;
+    }
+
+    /**
+     * Gets the number of values in a BLOB.
+     *
+     * @param blob The BLOB.
+     * @return The number of values or INVALID_INT if blob is null.
+     */
+    public static int getCount(byte[] blob) {
+        if (blob == null) {
+            return INVALID_INT;
+        }
+        return blob.length / 2;
+    }
+
+    /**
+     * Decodes a BLOB into the given array, which must hold at least
+     * getCount(blob) values.
+     *
+     * @param blob   The BLOB.
+     * @param values The array to receive the values.
+     * @return The number of values or INVALID_INT if blob is null.
+     */
+    public static int decode(byte[] blob, int[] values) {
+        return decode(blob, values, 0);
+    }
+
+    /**
+     * Decodes a BLOB into the given array starting at the given offset. The
+     * array must hold at least offset + getCount(blob) values.
+     *
+     * @param blob   The BLOB.
+     * @param values The array to receive the values.
+     * @param offset The offset of the first value in the array.
+     * @return The number of values or INVALID_INT if blob is null.
+     */
+    public static int decode(byte[] blob, int[] values, int offset) {
+        if (blob == null) {
+            return INVALID_INT;
+        }
+        int count = blob.length / 2;
+        for (int i = 0; i < count; i++) {
+            values[offset + i] = (blob[2 * i] & 0xFF)
+                    | ((blob[2 * i + 1] & 0xFF) << 8);
+        }
+        return count;
+    }
+
+    /**
+     * Decodes a BLOB into a new array.
+     *
+     * @param blob The BLOB.
+     * @return The values or null if blob is null.
+     */
+    public static int[] decode(byte[] blob) {
+        if (blob == null) {
+            return null;
+        }
+        int[] values = new int[blob.length / 2];
+        decode(blob, values);
+        return values;
+    }
+
+    /**
+     * Formats a BLOB the way R-R values were stored as text, space separated
+     * or INVALID_STRING.
+     *
+     * @param blob The BLOB.
+     * @return The String.
+     */
+    public static String format(byte[] blob) {
+        int[] values = decode(blob);
+        return HeartRateValues.formatRr(values, 0,
+                values == null ? INVALID_INT : values.length);
+    }
+
+    /**
+     * Parses R-R values stored as text, space separated or INVALID_STRING.
+     *
+     * @param string The String.
+     * @return The values or null if the String is null or INVALID_STRING.
+     * @throws NumberFormatException If a value is not an integer.
+     */
+    public static int[] parse(String string) {
+        if (string == null) {
+            return null;
+        }
+        string = string.trim();
+        if (string.equals(INVALID_STRING)) {
+            return null;
+        }
+        if (string.length() == 0) {
+            return new int[0];
+        }
+        String[] tokens = string.split("\\s+");
+        int[] values = new int[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            values[i] = (int) Math.round(Double.parseDouble(tokens[i]));
+        }
+        return values;
+    }
+
+    /**
+     * Parses R-R values stored as text and encodes them as a BLOB.
+     *
+     * @param string The String.
+     * @return The BLOB or null if the String is null or INVALID_STRING.
+     * @throws NumberFormatException If a value is not an integer.
+     */
+    public static byte[] parseToBlob(String string) {
+        int[] values = parse(string);
+        if (values == null) {
+            return null;
+        }
+        return encode(values, 0, values.length);
+    }
+}
@@ -0,0 +1,370 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * An append-only journal of the samples for one session in a memory-mapped
+ * file, so a sample is safe once it is appended even if the process is
+ * killed before it is written to the database. Appending is a few stores
+ * to memory. The file grows a chunk of records at a time.
+ * <p>
+ * The header records how many records have been written to the database.
+ * The ones after that are replayed into the database the next time the
+ * service starts writing to it, if the journal is no longer open.
+ * <p>
+ * Layout, big-endian:
+ * <pre>
+ * Header (HEADER_SIZE bytes): int MAGIC, int FORMAT_VERSION,
+ *     int RECORD_SIZE, long startDate, long indexed count,
+ *     short device length, device as UTF-8 (at most MAX_DEVICE_LENGTH)
+ * Records (RECORD_SIZE bytes): long date, int hr, short R-R count + 1
+ *     (0 for no R-R), short COMMIT, MAX_RR unsigned short R-R values
+ * </pre>
+ * COMMIT is stored last, so a record that was being written when the
+ * process was killed is not used. Only the first MAX_RR R-R values are
+ * kept. A Heart Rate Measurement notification holds at most 9.
+ */
+public class SampleJournal implements Closeable, IConstants {
+    /**
+     * "BCMJ"
+     */
+    public static final int MAGIC = 0x42434D4A;
+    public static final int FORMAT_VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int MAX_RR = 16;
+    public static final int RECORD_SIZE = 16 + 2 * MAX_RR;
+    private static final int MAX_DEVICE_LENGTH = HEADER_SIZE - 30;
+    private static final short COMMIT = 0x4A4A;
+    private static final int OFFSET_START_DATE = 12;
+    private static final int OFFSET_INDEXED = 20;
+    private static final int OFFSET_DEVICE = 28;
+    /**
+     * The number of records the file grows by.
+     */
+    private static final int CHUNK_RECORDS = 4096;
+    private static final Pattern FILE_NAME_PATTERN =
+            Pattern.compile("BCMJournal\\.-?\\d+\\.jnl");
+    /**
+     * The paths of the journals open in this process, which must not be
+     * replayed.
+     */
+    private static final Set<String> sOpenPaths = new HashSet<>();
+
+    private final File mFile;
+    private final RandomAccessFile mRaf;
+    private final FileChannel mChannel;
+    private final MappedByteBuffer mHeader;
+    /**
+     * The chunk being appended to.
+     */
+    private MappedByteBuffer mChunk;
+    private long mChunkStart = -1;
+    private final long mStartDate;
+    private final String mDevice;
+    private long mCount;
+    private long mIndexedCount;
+
+    /**
+     * Opens a journal, creating it if it does not exist. An existing
+     * journal keeps its records, and new ones are appended after the last
+     * complete one.
+     *
+     * @param file      The file.
+     * @param startDate The start date of the session, used if it is created.
+     * @param device    The device address or null, used if it is created.
+     * @throws IOException If it cannot be opened or is not a journal.
+     */
+    public SampleJournal(File file, long startDate, String device)
+            throws IOException {
+        mFile = file;
+        boolean exists = file.exists() && file.length() >= HEADER_SIZE;
+        mRaf = new RandomAccessFile(file, "rw");
+        try {
+            mChannel = mRaf.getChannel();
+            mHeader = mChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE);
+            if (exists) {
+                if (mHeader.getInt(0) != MAGIC
+                        || mHeader.getInt(4) != FORMAT_VERSION
+                        || mHeader.getInt(8) != RECORD_SIZE) {
+                    throw new IOException("Not a sample journal: " + file);
+                }
+                mStartDate = mHeader.getLong(OFFSET_START_DATE);
+                mIndexedCount = mHeader.getLong(OFFSET_INDEXED);
+                int length = mHeader.getShort(OFFSET_DEVICE);
+                if (length < 0) {
+                    mDevice = null;
+                } else {
+                    byte[] bytes = new byte[length];
+                    for (int i = 0; i < length; i++) {
+                        bytes[i] = mHeader.get(OFFSET_DEVICE + 2 + i);
+                    }
+                    mDevice = new String(bytes, StandardCharsets.UTF_8);
+                }
+                mCount = countRecords();
+            } else {
+                mStartDate = startDate;
+                mDevice = device;
+                mHeader.putInt(0, MAGIC);
+                mHeader.putInt(4, FORMAT_VERSION);
+                mHeader.putInt(8, RECORD_SIZE);
+                mHeader.putLong(OFFSET_START_DATE, startDate);
+                mHeader.putLong(OFFSET_INDEXED, 0);
+                byte[] bytes = device == null ? null
+                        : device.getBytes(StandardCharsets.UTF_8);
+                if (bytes != null && bytes.length > MAX_DEVICE_LENGTH) {
+                    throw new IOException("Device too long: " + device);
+                }
+                mHeader.putShort(OFFSET_DEVICE,
+                        (short) (bytes == null ? -1 : bytes.length));
+                for (int i = 0; bytes != null && i < bytes.length; i++) {
+                    mHeader.put(OFFSET_DEVICE + 2 + i, bytes[i]);
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            mRaf.close();
+            throw ex;
+        }
+        synchronized (sOpenPaths) {
+            sOpenPaths.add(file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Gets the file for the journal for a session.
+     *
+     * @param dir       The directory.
+     * @param startDate The start date of the session.
+     * @return The file.
+     */
+    public static File getFile(File dir, long startDate) {
+        return new File(dir, String.format(Locale.US,
+                JOURNAL_NAME_TEMPLATE, startDate));
+    }
+
+    /**
+     * Gets whether a file is a journal, from its name.
+     *
+     * @param file The file.
+     * @return If so.
+     */
+    public static boolean isJournal(File file) {
+        return FILE_NAME_PATTERN.matcher(file.getName()).matches();
+    }
+
+    /**
+     * Gets whether a journal is open in this process.
+     *
+     * @param file The file.
+     * @return If so.
+     */
+    public static boolean isOpen(File file) {
+        synchronized (sOpenPaths) {
+            return sOpenPaths.contains(file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Counts the complete records in an existing file.
+     *
+     * @return The number of records.
+     * @throws IOException If the file cannot be mapped.
+     */
+    private long countRecords() throws IOException {
+        long capacity = (mChannel.size() - HEADER_SIZE) / RECORD_SIZE;
+        long count = 0;
+        while (count < capacity && mapRecord(count)
+                .getShort(recordOffset(count) + 14) == COMMIT) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Makes sure the chunk with a record is mapped, growing the file if
+     * necessary.
+     *
+     * @param index The index of the record.
+     * @return The chunk.
+     * @throws IOException If it cannot be mapped.
+     */
+    private MappedByteBuffer mapRecord(long index) throws IOException {
+        long chunkStart = index / CHUNK_RECORDS * CHUNK_RECORDS;
+        if (chunkStart != mChunkStart) {
+            // Mapping past the end of the file grows it with zeros
+            mChunk = mChannel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + chunkStart * RECORD_SIZE,
+                    (long) CHUNK_RECORDS * RECORD_SIZE);
+            mChunkStart = chunkStart;
+        }
+        return mChunk;
+    }
+
+    /**
+     * Gets the offset of a record in its chunk.
+     *
+     * @param index The index of the record.
+     * @return The offset.
+     */
+    private static int recordOffset(long index) {
+        return (int) (index % CHUNK_RECORDS) * RECORD_SIZE;
+    }
+
+    /**
+     * Appends a sample.
+     *
+     * @param date     The date.
+     * @param hr       The HR.
+     * @param rrValues Array holding the R-R values.
+     * @param rrOffset The offset of the R-R values in the array.
+     * @param rrCount  The number of R-R values or INVALID_INT if there is
+     *                 no R-R.
+     * @throws IOException If the file cannot be grown.
+     */
+    public void append(long date, int hr, int[] rrValues, int rrOffset,
+                       int rrCount) throws IOException {
+        MappedByteBuffer chunk = mapRecord(mCount);
+        int offset = recordOffset(mCount);
+        if (rrValues == null || rrCount < 0) {
+            rrCount = INVALID_INT;
+        } else if (rrCount > MAX_RR) {
+            rrCount = MAX_RR;
+        }
+        chunk.putLong(offset, date);
+        chunk.putInt(offset + 8, hr);
+        chunk.putShort(offset + 12, (short) (rrCount + 1));
+        for (int i = 0; i < rrCount; i++) {
+            chunk.putShort(offset + 16 + 2 * i,
+                    (short) rrValues[rrOffset + i]);
+        }
+        chunk.putShort(offset + 14, COMMIT);
+        mCount++;
+    }
+
+    /**
+     * Reads records into arrays in the form used by
+     * BCMDbAdapter.createData.
+     *
+     * @param from      The index of the first record.
+     * @param max       The maximum number of records, at most the length
+     *                  of the arrays.
+     * @param dates     Array to receive the dates.
+     * @param hrs       Array to receive the HRs.
+     * @param rrValues  Array to receive the R-R values, at least MAX_RR
+     *                  times max long.
+     * @param rrOffsets Array to receive the offset of the R-R values for
+     *                  each record.
+     * @param rrCounts  Array to receive the number of R-R values for each
+     *                  record, INVALID_INT if there is no R-R.
+     * @return The number of records read.
+     * @throws IOException If the file cannot be mapped.
+     */
+    public int read(long from, int max, long[] dates, int[] hrs,
+                    int[] rrValues, int[] rrOffsets, int[] rrCounts)
+            throws IOException {
+        int n = 0, rrLength = 0, rrCount, offset;
+        MappedByteBuffer chunk;
+        for (long index = from; index < mCount && n < max; index++, n++) {
+            chunk = mapRecord(index);
+            offset = recordOffset(index);
+            dates[n] = chunk.getLong(offset);
+            hrs[n] = chunk.getInt(offset + 8);
+            rrCount = chunk.getShort(offset + 12) - 1;
+            rrOffsets[n] = rrLength;
+            rrCounts[n] = rrCount;
+            for (int i = 0; i < rrCount; i++) {
+                rrValues[rrLength++] =
+                        chunk.getShort(offset + 16 + 2 * i) & 0xFFFF;
+            }
+        }
+        return n;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public long getStartDate() {
+        return mStartDate;
+    }
+
+    /**
+     * Gets the device address.
+     *
+     * @return The address or null if unknown.
+     */
+    public String getDevice() {
+        return mDevice;
+    }
+
+    /**
+     * Gets the number of records.
+     *
+     * @return The number of records.
+     */
+    public long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Gets the number of records that have been written to the database.
+     *
+     * @return The number of records.
+     */
+    public long getIndexedCount() {
+        return mIndexedCount;
+    }
+
+    /**
+     * Records that the records up to the given one have been written to
+     * the database.
+     *
+     * @param count The number of records.
+     */
+    public void setIndexedCount(long count) {
+        mIndexedCount = count;
+        mHeader.putLong(OFFSET_INDEXED, count);
+    }
+
+    /**
+     * Writes the journal to the storage device. Not needed for the records
+     * to survive the process being killed, only for a power loss.
+     */
+    public void force() {
+        mHeader.force();
+        if (mChunk != null) {
+            mChunk.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (sOpenPaths) {
+            sOpenPaths.remove(mFile.getAbsolutePath());
+        }
+        mChunk = null;
+        mChannel.close();
+        mRaf.close();
+    }
+
+    /**
+     * Closes and deletes the journal.
+     *
+     * @return Whether it was deleted.
+     * @throws IOException If it cannot be closed.
+     */
+    public boolean delete() throws IOException {
+        close();
+        return mFile.delete();
+    }
+}
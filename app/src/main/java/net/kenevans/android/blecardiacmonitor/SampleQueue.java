@@ -0,0 +1,287 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * A bounded queue of raw characteristic values that hands them off from
+ * the threads that receive them to a single consumer thread. The values are
+ * copied into preallocated slots, so adding does not allocate. Each value
+ * keeps the session it was received in, so it is not attributed to a
+ * session started by the time it is processed. If the queue
+ * is full the new value is dropped. Values that wait longer than the delay
+ * threshold before being processed are counted as delayed.
+ *
+ * @param <T> The type of the source of the values.
+ */
+public class SampleQueue<T> implements IConstants {
+    private static final String TAG = "BCMSampleQueue";
+
+    /**
+     * Processes values taken from the queue. Called on the consumer thread.
+     */
+    public interface Processor<T> {
+        /**
+         * Processes a value. The data array is reused after this returns.
+         *
+         * @param source  The source of the value.
+         * @param session The start date of the session the value was
+         *                received in.
+         * @param data    The data.
+         * @param length  The number of bytes of data.
+         * @param date    The date the value was received.
+         */
+        void process(T source, long session, byte[] data, int length,
+                     long date);
+    }
+
+    private final Handler mHandler;
+    private final Processor<T> mProcessor;
+    private final long mDelayThreshold;
+    private final int mCapacity;
+
+    private final Object[] mSources;
+    private final byte[][] mData;
+    private final int[] mLengths;
+    private final long[] mSessions;
+    private final long[] mDates;
+    private final long[] mEnqueueTimes;
+    private int mHead;
+    private int mCount;
+    private boolean mDrainPosted;
+
+    /**
+     * Lock held while processing so processing is never concurrent.
+     */
+    private final Object mConsumerLock = new Object();
+    private final byte[] mConsumerData;
+
+    private long mOffered;
+    private long mDropped;
+    private long mTruncated;
+    private long mDelayed;
+    private long mMaxDelay;
+    private int mMaxDepth;
+
+    private final Runnable mDrainRunnable = this::drain;
+
+    /**
+     * Constructor.
+     *
+     * @param handler        Handler for the consumer thread.
+     * @param capacity       The maximum number of values held.
+     * @param slotSize       The maximum size of a value. Longer values are
+     *                       truncated.
+     * @param delayThreshold Values waiting longer than this are counted as
+     *                       delayed (ms).
+     * @param processor      The Processor.
+     */
+    public SampleQueue(Handler handler, int capacity, int slotSize,
+                       long delayThreshold, Processor<T> processor) {
+        mHandler = handler;
+        mCapacity = capacity;
+        mDelayThreshold = delayThreshold;
+        mProcessor = processor;
+        mSources = new Object[capacity];
+        mData = new byte[capacity][slotSize];
+        mLengths = new int[capacity];
+        mSessions = new long[capacity];
+        mDates = new long[capacity];
+        mEnqueueTimes = new long[capacity];
+        mConsumerData = new byte[slotSize];
+    }
+
+    /**
+     * Adds a value and schedules processing on the consumer thread.
+     *
+     * @param source  The source of the value.
+     * @param session The start date of the session it was received in.
+     * @param data    The data. It is copied.
+     * @param date    The date the value was received.
+     * @return If the value was added, false if it was dropped.
+     */
+    public boolean offer(T source, long session, byte[] data, long date) {
+        return offer(source, session, data, data == null ? 0 : data.length,
+                date);
+    }
+
+    /**
+     * Adds a value and schedules processing on the consumer thread.
+     *
+     * @param source  The source of the value.
+     * @param session The start date of the session it was received in.
+     * @param data    The data. It is copied.
+     * @param length  The number of bytes of data.
+     * @param date    The date the value was received.
+     * @return If the value was added, false if it was dropped.
+     */
+    public boolean offer(T source, long session, byte[] data, int length,
+                         long date) {
+        boolean post;
+        synchronized (this) {
+            mOffered++;
+            if (mCount == mCapacity) {
+                mDropped++;
+                return false;
+            }
+            int tail = (mHead + mCount) % mCapacity;
+            if (data == null) {
+                length = 0;
+            }
+            byte[] slot = mData[tail];
+            if (length > slot.length) {
+                mTruncated++;
+                length = slot.length;
+            }
+            if (length > 0) {
+                System.arraycopy(data, 0, slot, 0, length);
+            }
+            mSources[tail] = source;
+            mLengths[tail] = length;
+            mSessions[tail] = session;
+            mDates[tail] = date;
+            mEnqueueTimes[tail] = SystemClock.elapsedRealtime();
+            mCount++;
+            if (mCount > mMaxDepth) {
+                mMaxDepth = mCount;
+            }
+            post = !mDrainPosted;
+            mDrainPosted = true;
+        }
+        if (post) {
+            mHandler.post(mDrainRunnable);
+        }
+        return true;
+    }
+
+    /**
+     * Processes all the values in the queue. Normally called on the consumer
+     * thread, but may be called from another thread to make sure everything
+     * received so far has been processed.
+     */
+    @SuppressWarnings("unchecked")
+    public void drain() {
+        synchronized (mConsumerLock) {
+            T source;
+            int length;
+            long session, date, delay;
+            while (true) {
+                synchronized (this) {
+                    if (mCount == 0) {
+                        mDrainPosted = false;
+                        return;
+                    }
+                    source = (T) mSources[mHead];
+                    mSources[mHead] = null;
+                    length = mLengths[mHead];
+                    session = mSessions[mHead];
+                    date = mDates[mHead];
+                    delay = SystemClock.elapsedRealtime()
+                            - mEnqueueTimes[mHead];
+                    System.arraycopy(mData[mHead], 0, mConsumerData, 0,
+                            length);
+                    mHead = (mHead + 1) % mCapacity;
+                    mCount--;
+                    if (delay > mDelayThreshold) {
+                        mDelayed++;
+                    }
+                    if (delay > mMaxDelay) {
+                        mMaxDelay = delay;
+                    }
+                }
+                try {
+                    mProcessor.process(source, session, mConsumerData,
+                            length, date);
+                } catch (Exception ex) {
+                    Log.e(TAG, "drain: Error processing value", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs something with the consumer lock held, so it is never concurrent
+     * with processing values. Used for other producers to what the
+     * Processor writes to.
+     *
+     * @param runnable The Runnable.
+     */
+    public void runExclusive(Runnable runnable) {
+        synchronized (mConsumerLock) {
+            runnable.run();
+        }
+    }
+
+    /**
+     * Gets the number of values offered.
+     *
+     * @return The number offered.
+     */
+    public synchronized long getOfferedCount() {
+        return mOffered;
+    }
+
+    /**
+     * Gets the number of values dropped because the queue was full.
+     *
+     * @return The number dropped.
+     */
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Gets the number of values that waited longer than the delay threshold.
+     *
+     * @return The number delayed.
+     */
+    public synchronized long getDelayedCount() {
+        return mDelayed;
+    }
+
+    /**
+     * Gets the longest time a value has waited (ms).
+     *
+     * @return The maximum delay.
+     */
+    public synchronized long getMaxDelay() {
+        return mMaxDelay;
+    }
+
+    /**
+     * Gets the largest number of values that have been waiting at one time.
+     *
+     * @return The maximum depth.
+     */
+    public synchronized int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    /**
+     * Resets the counters.
+     */
+    public synchronized void resetStats() {
+        mOffered = mDropped = mTruncated = mDelayed = mMaxDelay = 0;
+        mMaxDepth = mCount;
+    }
+
+    /**
+     * Gets a summary of the counters.
+     *
+     * @return The summary.
+     */
+    public synchronized String getInfo() {
+        return String.format(Locale.US, "Samples Received: %d\n"
+                        + "Samples Dropped: %d\n"
+                        + "Samples Delayed (>%d ms): %d\n"
+                        + "Maximum Delay: %d ms\n"
+                        + "Maximum Queue Depth: %d of %d\n",
+                mOffered, mDropped, mDelayThreshold, mDelayed, mMaxDelay,
+                mMaxDepth, mCapacity)
+                + (mTruncated > 0 ? "Samples Truncated: " + mTruncated + "\n"
+                : "");
+    }
+}
@@ -0,0 +1,312 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A ring buffer of the most recent HR samples for consumers in this
+ * process. There is a single producer and any number of consumers. Each
+ * consumer keeps its own sequence number and reads without locking. If a
+ * consumer falls more than the capacity behind, it continues with the oldest
+ * sample still held. Nothing is allocated when adding or reading.
+ * <p>
+ * Each slot has a stamp that holds the sequence number of the sample in it,
+ * or -1 while it is being written. A reader checks the stamp before and after
+ * reading the slot and retries if it changed.
+ */
+public class SampleRingBuffer implements IConstants {
+    /**
+     * Notified when samples have been added. Called on the producer thread,
+     * so it should return quickly. The producer decides how often to notify,
+     * so there may be several new samples.
+     */
+    public interface Listener {
+        /**
+         * Called after samples have been added.
+         *
+         * @param buffer       The buffer.
+         * @param nextSequence The sequence number the next sample will have.
+         */
+        void onSamplesAdded(SampleRingBuffer buffer, long nextSequence);
+    }
+
+    /**
+     * Holds a sample read from the buffer. Reuse it for each read.
+     */
+    public static class Sample {
+        private long sequence = INVALID_INT;
+        private int source = INVALID_INT;
+        private long date = INVALID_DATE;
+        private int hr = INVALID_INT;
+        private int rrCount = INVALID_INT;
+        private final int[] rr;
+
+        /**
+         * Constructor.
+         *
+         * @param maxRr The maximum number of R-R values, normally
+         *              SampleRingBuffer.getMaxRr().
+         */
+        public Sample(int maxRr) {
+            rr = new int[maxRr];
+        }
+
+        /**
+         * Gets the sequence number.
+         *
+         * @return The sequence number.
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * Gets the id of the source of the sample.
+         *
+         * @return The source id.
+         */
+        public int getSource() {
+            return source;
+        }
+
+        /**
+         * Gets the date.
+         *
+         * @return The date.
+         */
+        public long getDate() {
+            return date;
+        }
+
+        /**
+         * Gets the heart rate.
+         *
+         * @return The heart rate.
+         */
+        public int getHr() {
+            return hr;
+        }
+
+        /**
+         * Gets the number of R-R values.
+         *
+         * @return The number of R-R values or INVALID_INT if there are none.
+         */
+        public int getRrCount() {
+            return rrCount;
+        }
+
+        /**
+         * Gets the R-R values. Only the first getRrCount() are valid.
+         *
+         * @return The R-R values.
+         */
+        public int[] getRrValues() {
+            return rr;
+        }
+    }
+
+    private final int mCapacity;
+    private final int mMask;
+    private final int mMaxRr;
+    private final AtomicLongArray mStamps;
+    private final AtomicIntegerArray mSources;
+    private final AtomicLongArray mDates;
+    private final AtomicIntegerArray mHrs;
+    private final AtomicIntegerArray mRrCounts;
+    private final AtomicIntegerArray mRr;
+    /**
+     * The sequence number the next sample will have.
+     */
+    private volatile long mNextSequence;
+    private final CopyOnWriteArrayList<Listener> mListeners =
+            new CopyOnWriteArrayList<>();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The number of samples held. Rounded up to a power of
+     *                 2.
+     * @param maxRr    The maximum number of R-R values held for a sample.
+     *                 Any more are not kept.
+     */
+    public SampleRingBuffer(int capacity, int maxRr) {
+        int size = Integer.highestOneBit(Math.max(capacity, 1));
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mCapacity = size;
+        mMask = size - 1;
+        mMaxRr = maxRr;
+        mStamps = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mStamps.set(i, -1);
+        }
+        mSources = new AtomicIntegerArray(size);
+        mDates = new AtomicLongArray(size);
+        mHrs = new AtomicIntegerArray(size);
+        mRrCounts = new AtomicIntegerArray(size);
+        mRr = new AtomicIntegerArray(size * maxRr);
+    }
+
+    /**
+     * Adds a sample. Must only be called from the producer thread.
+     *
+     * @param source  An id for the source of the sample, such as the
+     *                device.
+     * @param date    The date.
+     * @param hr      The HR or INVALID_INT to mark a gap.
+     * @param rr      Array holding the R-R values. May be null if there are
+     *                none.
+     * @param rrCount The number of R-R values or INVALID_INT if there is no
+     *                R-R.
+     */
+    public void add(int source, long date, int hr, int[] rr, int rrCount) {
+        long sequence = mNextSequence;
+        int index = (int) (sequence & mMask);
+        mStamps.set(index, -1);
+        mSources.set(index, source);
+        mDates.set(index, date);
+        mHrs.set(index, hr);
+        int count = Math.min(rrCount, mMaxRr);
+        mRrCounts.set(index, count);
+        int offset = index * mMaxRr;
+        for (int i = 0; i < count; i++) {
+            mRr.set(offset + i, rr[i]);
+        }
+        mStamps.set(index, sequence);
+        mNextSequence = sequence + 1;
+    }
+
+    /**
+     * Notifies the listeners that samples have been added. Must only be
+     * called from the producer thread.
+     */
+    public void notifyListeners() {
+        long nextSequence = mNextSequence;
+        for (Listener listener : mListeners) {
+            listener.onSamplesAdded(this, nextSequence);
+        }
+    }
+
+    /**
+     * Reads the sample with the given sequence number or, if that is no
+     * longer held, the oldest one that is.
+     *
+     * @param sequence The sequence number.
+     * @param sample   Holder for the sample. Its sequence number is set to
+     *                 the one actually read. Continue with that plus 1.
+     * @return If a sample was read, false if there is none at or after the
+     * sequence number yet.
+     */
+    public boolean read(long sequence, Sample sample) {
+        long next, stamp;
+        int index, count, offset;
+        while (true) {
+            next = mNextSequence;
+            if (sequence >= next) {
+                return false;
+            }
+            if (sequence < next - mCapacity) {
+                sequence = next - mCapacity;
+            }
+            if (sequence < 0) {
+                sequence = 0;
+            }
+            index = (int) (sequence & mMask);
+            stamp = mStamps.get(index);
+            if (stamp != sequence) {
+                // Being overwritten, start over
+                sequence++;
+                continue;
+            }
+            sample.source = mSources.get(index);
+            sample.date = mDates.get(index);
+            sample.hr = mHrs.get(index);
+            count = mRrCounts.get(index);
+            offset = index * mMaxRr;
+            for (int i = 0; i < count && i < sample.rr.length; i++) {
+                sample.rr[i] = mRr.get(offset + i);
+            }
+            sample.rrCount = Math.min(count, sample.rr.length);
+            if (mStamps.get(index) == sequence) {
+                sample.sequence = sequence;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Reads the most recent sample.
+     *
+     * @param sample Holder for the sample.
+     * @return If a sample was read, false if there are none.
+     */
+    public boolean readLatest(Sample sample) {
+        return read(mNextSequence - 1, sample);
+    }
+
+    /**
+     * Gets the sequence number the next sample will have.
+     *
+     * @return The sequence number.
+     */
+    public long getNextSequence() {
+        return mNextSequence;
+    }
+
+    /**
+     * Gets the sequence number of the oldest sample held.
+     *
+     * @return The sequence number.
+     */
+    public long getOldestSequence() {
+        return Math.max(0, mNextSequence - mCapacity);
+    }
+
+    /**
+     * Gets the number of samples held.
+     *
+     * @return The capacity.
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Gets the maximum number of R-R values held for a sample.
+     *
+     * @return The maximum.
+     */
+    public int getMaxRr() {
+        return mMaxRr;
+    }
+
+    /**
+     * Adds a listener.
+     *
+     * @param listener The listener.
+     */
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Removes a listener.
+     *
+     * @param listener The listener.
+     */
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Gets whether there are any listeners.
+     *
+     * @return If there are listeners.
+     */
+    public boolean hasListeners() {
+        return !mListeners.isEmpty();
+    }
+}
@@ -0,0 +1,60 @@
+package net.kenevans.android.blecardiacmonitor;
+
+/**
+ * A source of Heart Rate Measurement values other than a BLE device. The
+ * values are raw characteristic values, so they go through the same
+ * decoding, persistence, and broadcasting as values from a device.
+ */
+public interface SampleSource {
+    /**
+     * Receives the values from a SampleSource. Called on the source's
+     * thread.
+     */
+    interface Sink {
+        /**
+         * Receives a value.
+         *
+         * @param data   The raw Heart Rate Measurement value. It is reused
+         *               after this returns.
+         * @param length The number of bytes of data.
+         * @param date   The date the value was received.
+         * @return If the value was accepted, false if it was dropped.
+         */
+        boolean onValue(byte[] data, int length, long date);
+
+        /**
+         * Called when there are no more values or the source failed. Not
+         * called if the source is stopped.
+         *
+         * @param error The error or null if the source finished normally.
+         */
+        void onFinished(Exception error);
+    }
+
+    /**
+     * Starts sending values to the Sink.
+     *
+     * @param sink The Sink.
+     */
+    void start(Sink sink);
+
+    /**
+     * Stops sending values. Does not wait for the source to finish.
+     */
+    void stop();
+
+    /**
+     * Returns if the source has been started and has not finished or been
+     * stopped.
+     *
+     * @return If running.
+     */
+    boolean isRunning();
+
+    /**
+     * Gets a description of the source and its progress.
+     *
+     * @return The information.
+     */
+    String getInfo();
+}
@@ -6,6 +6,12 @@ public class Session implements IConstants {
     private String name;
     private long startDate = INVALID_DATE;
     private long endDate = INVALID_DATE;
+    private String device;
+    private int sampleCount;
+    private int hrMin = INVALID_INT;
+    private int hrMax = INVALID_INT;
+    private double hrMean = Double.NaN;
+    private long rrCount;
     private boolean checked = false;
     private CheckBox checkBox;
 
@@ -39,6 +45,54 @@ public class Session implements IConstants {
         this.endDate = endDate;
     }
 
+    public String getDevice() {
+        return device;
+    }
+
+    public void setDevice(String device) {
+        this.device = device;
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public void setSampleCount(int sampleCount) {
+        this.sampleCount = sampleCount;
+    }
+
+    public int getHrMin() {
+        return hrMin;
+    }
+
+    public void setHrMin(int hrMin) {
+        this.hrMin = hrMin;
+    }
+
+    public int getHrMax() {
+        return hrMax;
+    }
+
+    public void setHrMax(int hrMax) {
+        this.hrMax = hrMax;
+    }
+
+    public double getHrMean() {
+        return hrMean;
+    }
+
+    public void setHrMean(double hrMean) {
+        this.hrMean = hrMean;
+    }
+
+    public long getRrCount() {
+        return rrCount;
+    }
+
+    public void setRrCount(long rrCount) {
+        this.rrCount = rrCount;
+    }
+
     public long getDuration() {
         return endDate - startDate;
     }
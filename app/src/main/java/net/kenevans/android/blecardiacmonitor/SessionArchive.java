@@ -0,0 +1,528 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A compact binary format for the data of one session. Samples are stored
+ * in blocks of a fixed number of samples, each of which can be decoded on
+ * its own, followed by an index of the blocks for seeking.
+ * <p>
+ * Within a block the date is stored as the change in the interval from the
+ * previous sample (delta of delta), the HR as the change from the previous
+ * HR, and each R-R value as the change from the previous R-R value, all as
+ * zigzag varints. Since samples arrive about once a second and HR and R-R
+ * change slowly, most of these take a single byte. The number of R-R values
+ * is stored as a varint of the count plus one, so no R-R (INVALID_INT) is 0.
+ * <p>
+ * Layout, with fixed-size values big-endian:
+ * <pre>
+ * Header:  int MAGIC, byte FORMAT_VERSION, long startDate,
+ *          varint blockSize, varint device length + 1 (0 for null),
+ *          device as UTF-8
+ * Blocks:  the samples, in date order
+ * Index:   varint number of blocks, varint number of samples, then for
+ *          each block zigzag first date - previous first date (the start
+ *          date for the first), varint offset - previous offset, varint
+ *          number of samples
+ * Trailer: long offset of the index, int INDEX_MAGIC
+ * </pre>
+ */
+public class SessionArchive implements IConstants {
+    /**
+     * "BCMA"
+     */
+    public static final int MAGIC = 0x42434D41;
+    /**
+     * "BCMI"
+     */
+    public static final int INDEX_MAGIC = 0x42434D49;
+    public static final int FORMAT_VERSION = 1;
+    /**
+     * The length of the trailer.
+     */
+    private static final int TRAILER_SIZE = 12;
+    /**
+     * The length of the fixed part of the header.
+     */
+    private static final int HEADER_SIZE = 13;
+
+    /**
+     * Writes a session archive to an OutputStream. Samples must be added in
+     * date order. Each block is written when it is full, so memory use does
+     * not depend on the length of the session.
+     */
+    public static class Writer implements Closeable {
+        private final OutputStream mOut;
+        private final long mStartDate;
+        private final int mBlockSize;
+        private byte[] mBuf = new byte[4096];
+        private int mLength;
+        /**
+         * The number of bytes written to mOut.
+         */
+        private long mOffset;
+        private long[] mBlockDates = new long[16];
+        private long[] mBlockOffsets = new long[16];
+        private int[] mBlockCounts = new int[16];
+        private int mNBlocks;
+        private long mSampleCount;
+        private long mPrevDate;
+        private long mPrevDelta;
+        private int mPrevHr;
+        private int mPrevRr;
+        private boolean mClosed;
+
+        /**
+         * Constructor. Writes the header.
+         *
+         * @param out       The OutputStream. It is closed by close.
+         * @param startDate The start date of the session.
+         * @param device    The device address or null if unknown.
+         * @param blockSize The number of samples in each block.
+         * @throws IOException If the header cannot be written.
+         */
+        public Writer(OutputStream out, long startDate, String device,
+                      int blockSize) throws IOException {
+            if (blockSize <= 0) {
+                throw new IllegalArgumentException("Invalid block size "
+                        + blockSize);
+            }
+            mOut = out;
+            mStartDate = startDate;
+            mBlockSize = blockSize;
+            putFixed(MAGIC, 4);
+            ensure(1);
+            mBuf[mLength++] = (byte) FORMAT_VERSION;
+            putFixed(startDate, 8);
+            putVarLong(blockSize);
+            if (device == null) {
+                putVarLong(0);
+            } else {
+                byte[] bytes = device.getBytes(StandardCharsets.UTF_8);
+                putVarLong(bytes.length + 1);
+                ensure(bytes.length);
+                System.arraycopy(bytes, 0, mBuf, mLength, bytes.length);
+                mLength += bytes.length;
+            }
+        }
+
+        /**
+         * Adds a sample.
+         *
+         * @param date     The date.
+         * @param hr       The HR.
+         * @param rrValues Array holding the R-R values.
+         * @param rrOffset The offset of the R-R values in the array.
+         * @param rrCount  The number of R-R values or INVALID_INT if there
+         *                 is no R-R.
+         * @throws IOException If a full block cannot be written.
+         */
+        public void add(long date, int hr, int[] rrValues, int rrOffset,
+                        int rrCount) throws IOException {
+            if (mNBlocks == 0 || mBlockCounts[mNBlocks - 1] == mBlockSize) {
+                startBlock(date);
+            }
+            long delta = date - mPrevDate;
+            putZigZag(delta - mPrevDelta);
+            mPrevDate = date;
+            mPrevDelta = delta;
+            putZigZag(hr - mPrevHr);
+            mPrevHr = hr;
+            if (rrValues == null || rrCount < 0) {
+                putVarLong(0);
+            } else {
+                putVarLong(rrCount + 1);
+                int rr;
+                for (int i = 0; i < rrCount; i++) {
+                    rr = rrValues[rrOffset + i];
+                    putZigZag(rr - mPrevRr);
+                    mPrevRr = rr;
+                }
+            }
+            mBlockCounts[mNBlocks - 1]++;
+            mSampleCount++;
+        }
+
+        /**
+         * Writes the previous block and starts a new one. The encoding
+         * starts over, so the block can be decoded without the ones before
+         * it.
+         *
+         * @param date The date of the first sample.
+         * @throws IOException If the previous block cannot be written.
+         */
+        private void startBlock(long date) throws IOException {
+            flushBuffer();
+            if (mNBlocks == mBlockDates.length) {
+                int size = 2 * mNBlocks;
+                mBlockDates = Arrays.copyOf(mBlockDates, size);
+                mBlockOffsets = Arrays.copyOf(mBlockOffsets, size);
+                mBlockCounts = Arrays.copyOf(mBlockCounts, size);
+            }
+            mBlockDates[mNBlocks] = date;
+            mBlockOffsets[mNBlocks] = mOffset;
+            mBlockCounts[mNBlocks] = 0;
+            mNBlocks++;
+            mPrevDate = date;
+            mPrevDelta = 0;
+            mPrevHr = 0;
+            mPrevRr = 0;
+        }
+
+        /**
+         * Gets the number of samples added.
+         *
+         * @return The number of samples.
+         */
+        public long getSampleCount() {
+            return mSampleCount;
+        }
+
+        /**
+         * Gets the number of bytes written. The total once closed.
+         *
+         * @return The number of bytes.
+         */
+        public long getSize() {
+            return mOffset + mLength;
+        }
+
+        /**
+         * Writes the last block, the index, and the trailer, and closes the
+         * OutputStream.
+         *
+         * @throws IOException If they cannot be written.
+         */
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                long indexOffset = mOffset + mLength;
+                putVarLong(mNBlocks);
+                putVarLong(mSampleCount);
+                long prevDate = mStartDate, prevOffset = 0;
+                for (int i = 0; i < mNBlocks; i++) {
+                    putZigZag(mBlockDates[i] - prevDate);
+                    putVarLong(mBlockOffsets[i] - prevOffset);
+                    putVarLong(mBlockCounts[i]);
+                    prevDate = mBlockDates[i];
+                    prevOffset = mBlockOffsets[i];
+                }
+                putFixed(indexOffset, 8);
+                putFixed(INDEX_MAGIC, 4);
+                flushBuffer();
+                mOut.flush();
+            } finally {
+                mOut.close();
+            }
+        }
+
+        /**
+         * Writes the buffered bytes to the OutputStream.
+         *
+         * @throws IOException If they cannot be written.
+         */
+        private void flushBuffer() throws IOException {
+            mOut.write(mBuf, 0, mLength);
+            mOffset += mLength;
+            mLength = 0;
+        }
+
+        /**
+         * Makes sure the buffer has room for more bytes.
+         *
+         * @param count The number of bytes.
+         */
+        private void ensure(int count) {
+            if (mLength + count > mBuf.length) {
+                mBuf = Arrays.copyOf(mBuf, Math.max(2 * mBuf.length,
+                        mLength + count));
+            }
+        }
+
+        /**
+         * Buffers a value as a fixed number of bytes, big-endian.
+         *
+         * @param value The value.
+         * @param size  The number of bytes.
+         */
+        private void putFixed(long value, int size) {
+            ensure(size);
+            for (int i = size - 1; i >= 0; i--) {
+                mBuf[mLength++] = (byte) (value >>> (8 * i));
+            }
+        }
+
+        /**
+         * Buffers a value as an unsigned varint, 7 bits to a byte, low bits
+         * first.
+         *
+         * @param value The value.
+         */
+        private void putVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                mBuf[mLength++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            mBuf[mLength++] = (byte) value;
+        }
+
+        /**
+         * Buffers a signed value as a zigzag varint, so values near zero
+         * take few bytes.
+         *
+         * @param value The value.
+         */
+        private void putZigZag(long value) {
+            putVarLong((value << 1) ^ (value >> 63));
+        }
+    }
+
+    /**
+     * Reads a session archive from a ByteBuffer, which may be a file mapped
+     * into memory. Samples are read in order with next. A corrupted archive
+     * may cause a java.nio.BufferUnderflowException.
+     */
+    public static class Reader {
+        private final ByteBuffer mBuf;
+        private final long mStartDate;
+        private final String mDevice;
+        private final int mBlockSize;
+        private final long mSampleCount;
+        private final long[] mBlockDates;
+        private final int[] mBlockOffsets;
+        private final int[] mBlockCounts;
+        private int mBlock = -1;
+        /**
+         * The number of samples left in the current block.
+         */
+        private int mRemaining;
+        /**
+         * Whether next returns the current sample again, after seek.
+         */
+        private boolean mPending;
+        private long mDate;
+        private long mDelta;
+        private int mHr;
+        private int mPrevRr;
+        private int mRrCount = INVALID_INT;
+        private int[] mRrValues = new int[HeartRateValues.MAX_RR_VALUES];
+
+        /**
+         * Constructor. Reads the header and the index.
+         *
+         * @param buf The ByteBuffer, from position 0 to the limit. It is not
+         *            modified.
+         * @throws IOException If it is not a session archive.
+         */
+        public Reader(ByteBuffer buf) throws IOException {
+            mBuf = buf.duplicate();
+            mBuf.order(ByteOrder.BIG_ENDIAN);
+            int limit = mBuf.limit();
+            if (limit < HEADER_SIZE + TRAILER_SIZE
+                    || mBuf.getInt(0) != MAGIC
+                    || mBuf.getInt(limit - 4) != INDEX_MAGIC) {
+                throw new IOException("Not a session archive");
+            }
+            if (mBuf.get(4) != FORMAT_VERSION) {
+                throw new IOException("Unsupported session archive version "
+                        + mBuf.get(4));
+            }
+            mStartDate = mBuf.getLong(5);
+            mBuf.position(HEADER_SIZE);
+            mBlockSize = (int) getVarLong();
+            int deviceLength = (int) getVarLong() - 1;
+            if (deviceLength < 0) {
+                mDevice = null;
+            } else {
+                byte[] bytes = new byte[deviceLength];
+                mBuf.get(bytes);
+                mDevice = new String(bytes, StandardCharsets.UTF_8);
+            }
+            long indexOffset = mBuf.getLong(limit - TRAILER_SIZE);
+            if (indexOffset < HEADER_SIZE
+                    || indexOffset > limit - TRAILER_SIZE) {
+                throw new IOException("Invalid session archive index");
+            }
+            mBuf.position((int) indexOffset);
+            int nBlocks = (int) getVarLong();
+            mSampleCount = getVarLong();
+            mBlockDates = new long[nBlocks];
+            mBlockOffsets = new int[nBlocks];
+            mBlockCounts = new int[nBlocks];
+            long date = mStartDate, offset = 0;
+            for (int i = 0; i < nBlocks; i++) {
+                date += getZigZag();
+                offset += getVarLong();
+                mBlockDates[i] = date;
+                mBlockOffsets[i] = (int) offset;
+                mBlockCounts[i] = (int) getVarLong();
+            }
+        }
+
+        public long getStartDate() {
+            return mStartDate;
+        }
+
+        /**
+         * Gets the device address.
+         *
+         * @return The address or null if unknown.
+         */
+        public String getDevice() {
+            return mDevice;
+        }
+
+        public int getBlockSize() {
+            return mBlockSize;
+        }
+
+        public long getSampleCount() {
+            return mSampleCount;
+        }
+
+        public int getBlockCount() {
+            return mBlockDates.length;
+        }
+
+        /**
+         * Moves to the next sample.
+         *
+         * @return Whether there is one.
+         */
+        public boolean next() {
+            if (mPending) {
+                mPending = false;
+                return true;
+            }
+            while (mRemaining == 0) {
+                if (mBlock + 1 >= mBlockDates.length) {
+                    return false;
+                }
+                startBlock(mBlock + 1);
+            }
+            mDelta += getZigZag();
+            mDate += mDelta;
+            mHr += (int) getZigZag();
+            mRrCount = (int) getVarLong() - 1;
+            if (mRrCount > mRrValues.length) {
+                mRrValues = new int[mRrCount];
+            }
+            for (int i = 0; i < mRrCount; i++) {
+                mPrevRr += (int) getZigZag();
+                mRrValues[i] = mPrevRr;
+            }
+            mRemaining--;
+            return true;
+        }
+
+        /**
+         * Positions the reader so next moves to the first sample at the
+         * given date or later. Only the block it is in is decoded.
+         *
+         * @param date The date.
+         */
+        public void seek(long date) {
+            int index = Arrays.binarySearch(mBlockDates, date);
+            if (index < 0) {
+                // The block before the insertion point
+                index = Math.max(0, -index - 2);
+            } else {
+                // The first block starting at the date
+                while (index > 0 && mBlockDates[index - 1] == date) {
+                    index--;
+                }
+            }
+            mPending = false;
+            if (mBlockDates.length == 0) {
+                return;
+            }
+            startBlock(index);
+            while (next()) {
+                if (mDate >= date) {
+                    mPending = true;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Starts decoding a block.
+         *
+         * @param index The index of the block.
+         */
+        private void startBlock(int index) {
+            mBlock = index;
+            mBuf.position(mBlockOffsets[index]);
+            mRemaining = mBlockCounts[index];
+            mDate = mBlockDates[index];
+            mDelta = 0;
+            mHr = 0;
+            mPrevRr = 0;
+        }
+
+        public long getDate() {
+            return mDate;
+        }
+
+        public int getHr() {
+            return mHr;
+        }
+
+        /**
+         * Gets the number of R-R values for the current sample.
+         *
+         * @return The number of values or INVALID_INT if there is no R-R.
+         */
+        public int getRrCount() {
+            return mRrCount;
+        }
+
+        /**
+         * Gets the R-R values for the current sample. The array is reused,
+         * and only the first getRrCount values are valid.
+         *
+         * @return The values.
+         */
+        public int[] getRrValues() {
+            return mRrValues;
+        }
+
+        /**
+         * Reads an unsigned varint.
+         *
+         * @return The value.
+         */
+        private long getVarLong() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = mBuf.get();
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+
+        /**
+         * Reads a zigzag varint.
+         *
+         * @return The value.
+         */
+        private long getZigZag() {
+            long value = getVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+}
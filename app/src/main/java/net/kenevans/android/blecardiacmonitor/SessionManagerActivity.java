@@ -26,12 +26,20 @@ import android.widget.CheckBox;
 import android.widget.ListView;
 import android.widget.TextView;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
@@ -119,6 +127,9 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
         } else if (item.getItemId() == R.id.menu_save_gpx) {
             saveSessionsAsGpx();
             return true;
+        } else if (item.getItemId() == R.id.menu_save_archive) {
+            saveSessionsAsArchive();
+            return true;
         } else if (item.getItemId() == R.id.menu_refresh) {
             refresh();
             return true;
@@ -345,35 +356,189 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
      */
     private int writeSessionDataToCvsFile(long startDate, BufferedWriter out) {
         int nErrors = 0;
-        try (Cursor cursor =
-                     mDbAdapter.fetchAllHrRrDateDataForStartDate(startDate)) {
-            int indexDate = cursor.getColumnIndex(COL_DATE);
-            int indexHr = cursor.getColumnIndex(COL_HR);
-            int indexRr = cursor.getColumnIndex(COL_RR);
+        try (SessionReader reader = mDbAdapter.readSession(startDate,
+                SESSION_READER_WINDOW_SIZE)) {
+            long[] dates = reader.getDates();
+            int[] hrs = reader.getHrs();
+            int[] rrOffsets = reader.getRrOffsets();
+            int[] rrCounts = reader.getRrCounts();
             // Loop over items
-            cursor.moveToFirst();
-            String dateStr, hrStr, rrStr, line;
-            long dateNum;
-            while (!cursor.isAfterLast()) {
-                dateStr = INVALID_STRING;
-                if (indexDate > -1) {
-                    dateNum = cursor.getLong(indexDate);
-                    dateStr = sessionSaveFormatter.format(new Date(dateNum));
+            String line;
+            int n;
+            while ((n = reader.next()) > 0) {
+                for (int i = 0; i < n; i++) {
+                    line = sessionSaveFormatter.format(new Date(dates[i]))
+                            + SAVE_SESSION_DELIM + hrs[i] + SAVE_SESSION_DELIM
+                            + HeartRateValues.formatRr(reader.getRrValues(),
+                            rrOffsets[i], rrCounts[i]) + "\n";
+                    out.write(line);
                 }
-                hrStr = INVALID_STRING;
-                if (indexHr > -1) {
-                    hrStr = cursor.getString(indexHr);
+            }
+        } catch (Exception ex) {
+            nErrors++;
+        }
+        return nErrors;
+    }
+
+    /**
+     * Saves the selected sessions as session archives. Each one is read
+     * back and checked against the database.
+     */
+    public void saveSessionsAsArchive() {
+        ArrayList<Session> checkedSessions = mSessionListAdapter
+                .getCheckedSessions();
+        if (checkedSessions.size() == 0) {
+            Utils.errMsg(this, "There are no sessions to save");
+            return;
+        }
+        // Get the saved tree Uri
+        SharedPreferences prefs = getSharedPreferences(MAIN_ACTIVITY,
+                MODE_PRIVATE);
+        String treeUriStr = prefs.getString(PREF_TREE_URI, null);
+        if (treeUriStr == null) {
+            Utils.errMsg(this, "There is no data directory set");
+            return;
+        }
+        // Get a docTree Uri
+        Uri treeUri = Uri.parse(treeUriStr);
+        String treeDocumentId = DocumentsContract.getTreeDocumentId(treeUri);
+        int nErrors = 0;
+        long nSamples, nVerifyErrors;
+        String errMsg = "Error saving sessions:\n";
+        String fileNames = "Saved to:\n";
+        String fileName;
+        long startDate;
+        for (Session session : checkedSessions) {
+            try {
+                startDate = session.getStartDate();
+                fileName = session.getName() + ".bcma";
+                Uri docTreeUri =
+                        DocumentsContract.buildDocumentUriUsingTree(treeUri,
+                                treeDocumentId);
+                // Create the document
+                ContentResolver resolver = this.getContentResolver();
+                Uri docUri = DocumentsContract.createDocument(resolver,
+                        docTreeUri, "application/octet-stream", fileName);
+                try (ParcelFileDescriptor pfd =
+                             resolver.openFileDescriptor(docUri, "w")) {
+                    nSamples = writeSessionArchive(startDate,
+                            session.getDevice(), new BufferedOutputStream(
+                                    new FileOutputStream(
+                                            pfd.getFileDescriptor())));
                 }
-                rrStr = INVALID_STRING;
-                if (indexRr > -1) {
-                    rrStr = cursor.getString(indexRr);
+                // Read it back
+                try (ParcelFileDescriptor pfd =
+                             resolver.openFileDescriptor(docUri, "r");
+                     FileInputStream in =
+                             new FileInputStream(pfd.getFileDescriptor())) {
+                    FileChannel channel = in.getChannel();
+                    nVerifyErrors = verifySessionArchive(startDate,
+                            channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                    channel.size()));
+                    if (nVerifyErrors > 0) {
+                        nErrors++;
+                        errMsg += "  " + session.getName() + ": "
+                                + nVerifyErrors + " samples differ\n";
+                    }
+                    fileNames += "  " + docUri.getLastPathSegment() + " ("
+                            + nSamples + " samples, " + channel.size()
+                            + " bytes)\n";
                 }
-                line = dateStr + SAVE_SESSION_DELIM + hrStr
-                        + SAVE_SESSION_DELIM + rrStr + "\n";
-                out.write(line);
-                cursor.moveToNext();
+            } catch (Exception ex) {
+                nErrors++;
+                errMsg += "  " + session.getName() + "\n";
+                Log.e(TAG, "Error saving session archive", ex);
             }
-        } catch (Exception ex) {
+        }
+        String msg = "";
+        if (nErrors > 0) {
+            msg += errMsg;
+        }
+        msg += fileNames;
+        if (nErrors > 0) {
+            Utils.errMsg(this, msg);
+        } else {
+            Utils.infoMsg(this, msg);
+        }
+    }
+
+    /**
+     * Writes the session data for the given startDate as a session archive.
+     *
+     * @param startDate The startDate.
+     * @param device    The device address or null if unknown.
+     * @param out       The OutputStream. It is closed.
+     * @return The number of samples written.
+     * @throws IOException If the archive cannot be written.
+     */
+    private long writeSessionArchive(long startDate, String device,
+                                     OutputStream out) throws IOException {
+        try (SessionArchive.Writer writer = new SessionArchive.Writer(out,
+                startDate, device, SESSION_ARCHIVE_BLOCK_SIZE);
+             SessionReader reader = mDbAdapter.readSession(startDate,
+                     SESSION_READER_WINDOW_SIZE)) {
+            long[] dates = reader.getDates();
+            int[] hrs = reader.getHrs();
+            int[] rrOffsets = reader.getRrOffsets();
+            int[] rrCounts = reader.getRrCounts();
+            int n;
+            while ((n = reader.next()) > 0) {
+                for (int i = 0; i < n; i++) {
+                    writer.add(dates[i], hrs[i], reader.getRrValues(),
+                            rrOffsets[i], rrCounts[i]);
+                }
+            }
+            return writer.getSampleCount();
+        }
+    }
+
+    /**
+     * Checks a session archive against the session data in the database.
+     *
+     * @param startDate The startDate.
+     * @param buf       The archive.
+     * @return The number of samples that differ, are missing, or are extra.
+     * @throws IOException If it is not a session archive.
+     */
+    private long verifySessionArchive(long startDate, ByteBuffer buf)
+            throws IOException {
+        SessionArchive.Reader reader = new SessionArchive.Reader(buf);
+        if (reader.getStartDate() != startDate) {
+            throw new IOException("Wrong start date in session archive");
+        }
+        long nErrors = 0;
+        int rrOffset, rrCount, n;
+        boolean same;
+        try (SessionReader sessionReader = mDbAdapter.readSession(startDate,
+                SESSION_READER_WINDOW_SIZE)) {
+            long[] dates = sessionReader.getDates();
+            int[] hrs = sessionReader.getHrs();
+            int[] rrOffsets = sessionReader.getRrOffsets();
+            int[] rrCounts = sessionReader.getRrCounts();
+            int[] rrValues;
+            while ((n = sessionReader.next()) > 0) {
+                rrValues = sessionReader.getRrValues();
+                for (int i = 0; i < n; i++) {
+                    if (!reader.next()) {
+                        nErrors++;
+                        continue;
+                    }
+                    rrOffset = rrOffsets[i];
+                    rrCount = rrCounts[i];
+                    same = reader.getDate() == dates[i]
+                            && reader.getHr() == hrs[i]
+                            && reader.getRrCount() == rrCount;
+                    for (int j = 0; same && j < rrCount; j++) {
+                        same = reader.getRrValues()[j]
+                                == rrValues[rrOffset + j];
+                    }
+                    if (!same) {
+                        nErrors++;
+                    }
+                }
+            }
+        }
+        while (reader.next()) {
             nErrors++;
         }
         return nErrors;
@@ -436,32 +601,27 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
                 try (FileWriter writer =
                              new FileWriter(pfd.getFileDescriptor());
                      BufferedWriter out = new BufferedWriter(writer);
-                     Cursor cursor =
-                             mDbAdapter.fetchAllHrDateDataForStartDate(startDate)) {
+                     SessionReader reader = mDbAdapter.readSession(startDate,
+                             SESSION_READER_WINDOW_SIZE)) {
                     // Write the beginning lines
                     out.write(String.format(GPXUtils.GPX_FILE_START_LINES, name,
                             formatter.format(new Date())));
-                    int indexDate = cursor.getColumnIndex(COL_DATE);
-                    int indexHr = cursor.getColumnIndex(COL_HR);
+                    long[] dates = reader.getDates();
+                    int[] hrs = reader.getHrs();
                     // Loop over items
-                    cursor.moveToFirst();
-                    String hrStr, line;
-                    long dateNum = INVALID_DATE;
-                    while (!cursor.isAfterLast()) {
-                        if (indexDate > -1) {
-                            dateNum = cursor.getLong(indexDate);
-                        }
-                        hrStr = INVALID_STRING;
-                        if (indexHr > -1) {
-                            hrStr = cursor.getString(indexHr);
-                        }
-                        if (hrStr.equals(INVALID_STRING)) {
-                            continue;
+                    String line;
+                    int n;
+                    while ((n = reader.next()) > 0) {
+                        for (int i = 0; i < n; i++) {
+                            if (hrs[i] == INVALID_INT) {
+                                continue;
+                            }
+                            line = String.format(
+                                    GPXUtils.GPX_FILE_TRACK_LINES,
+                                    formatter.format(new Date(dates[i])),
+                                    Integer.toString(hrs[i]));
+                            out.write(line);
                         }
-                        line = String.format(GPXUtils.GPX_FILE_TRACK_LINES,
-                                formatter.format(new Date(dateNum)), hrStr);
-                        out.write(line);
-                        cursor.moveToNext();
                     }
                     out.write(GPXUtils.GPX_FILE_END_LINES);
                     fileNames += "  " + docUri.getLastPathSegment() + "\n";
@@ -564,59 +724,39 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
             try (FileWriter writer =
                          new FileWriter(pfd.getFileDescriptor());
                  BufferedWriter out = new BufferedWriter(writer);
-                 Cursor cursor = mDbAdapter.fetchAllData(null)) {
-                int indexDate = cursor.getColumnIndex(COL_DATE);
-                int indexStartDate = cursor.getColumnIndex(COL_START_DATE);
-                int indexHr = cursor.getColumnIndex(COL_HR);
-                int indexRr = cursor.getColumnIndex(COL_RR);
+                 SessionReader reader =
+                         mDbAdapter.readAll(SESSION_READER_WINDOW_SIZE)) {
+                if (reader == null) {
+                    Utils.errMsg(this, "Database is not open");
+                    return;
+                }
+                long[] dates = reader.getDates();
+                long[] startDates = reader.getStartDates();
+                int[] hrs = reader.getHrs();
+                String[] devices = reader.getDevices();
+                int[] rrOffsets = reader.getRrOffsets();
+                int[] rrCounts = reader.getRrCounts();
                 // Loop over items
-                cursor.moveToFirst();
                 String rr, info;
-                long dateNum, startDateNum;
-                int hr;
-                while (!cursor.isAfterLast()) {
-                    dateNum = startDateNum = INVALID_DATE;
-                    hr = INVALID_INT;
-                    rr = " ";
-                    if (indexDate > -1) {
-                        try {
-                            dateNum = cursor.getLong(indexDate);
-                        } catch (Exception ex) {
-                            // Do nothing
-                        }
-                    }
-                    if (indexStartDate > -1) {
-                        try {
-                            startDateNum = cursor.getLong(indexStartDate);
-                        } catch (Exception ex) {
-                            // Do nothing
-                        }
-                    }
-                    if (indexHr > -1) {
-                        try {
-                            hr = cursor.getInt(indexHr);
-                        } catch (Exception ex) {
-                            // Do nothing
-                        }
-                    }
-                    if (indexRr > -1) {
-                        try {
-                            rr = cursor.getString(indexRr);
-                        } catch (Exception ex) {
-                            // Do nothing
-                        }
+                int n;
+                while ((n = reader.next()) > 0) {
+                    for (int i = 0; i < n; i++) {
+                        rr = HeartRateValues.formatRr(reader.getRrValues(),
+                                rrOffsets[i], rrCounts[i]);
                         // Need to do this, or it isn't recognized as a token
                         if (rr.length() == 0) {
                             rr = " ";
                         }
+                        // The device is last and empty if not known, so the
+                        // file can be read by older versions
+                        info = String.format(Locale.US,
+                                "%d%s%d%s%d%s%s%s%s\n", dates[i],
+                                SAVE_DATABASE_DELIM, startDates[i],
+                                SAVE_DATABASE_DELIM, hrs[i],
+                                SAVE_DATABASE_DELIM, rr, SAVE_DATABASE_DELIM,
+                                devices[i] == null ? "" : devices[i]);
+                        out.write(info);
                     }
-                    info = String.format(Locale.US, "%d%s%d%s%d%s%s%s\n",
-                            dateNum,
-                            SAVE_DATABASE_DELIM, startDateNum,
-                            SAVE_DATABASE_DELIM,
-                            hr, SAVE_DATABASE_DELIM, rr, SAVE_DATABASE_DELIM);
-                    out.write(info);
-                    cursor.moveToNext();
                 }
                 Utils.infoMsg(this, "Wrote " + docUri.getLastPathSegment());
             }
@@ -789,6 +929,17 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
         private int mErrors;
         private int mLineNumber;
         private String mExceptionMsg;
+        // The rows to write in the next batch, in the form used by
+        // BCMDbAdapter.createData
+        private final long[] mDates = new long[DB_WRITE_BATCH_SIZE];
+        private final long[] mStartDates = new long[DB_WRITE_BATCH_SIZE];
+        private final int[] mHrs = new int[DB_WRITE_BATCH_SIZE];
+        private final String[] mDevices = new String[DB_WRITE_BATCH_SIZE];
+        private final int[] mRrOffsets = new int[DB_WRITE_BATCH_SIZE];
+        private final int[] mRrCounts = new int[DB_WRITE_BATCH_SIZE];
+        private int[] mRrValues = new int[16 * DB_WRITE_BATCH_SIZE];
+        private int mBatchSize;
+        private int mRrSize;
 
         private RestoreTask(Context context, Uri uri) {
             super();
@@ -818,7 +969,8 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
                      BufferedReader in =
                              new BufferedReader(inputStreamReader)) {
                     // Read the file and get the data to restore
-                    String rr;
+                    String device;
+                    int[] rr;
                     long dateNum, startDateNum;
                     int hr;
                     String[] tokens;
@@ -867,15 +1019,24 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
                             Log.d(TAG, "Integer.parseInt failed for hr @ line "
                                     + mLineNumber);
                         }
-                        rr = tokens[3].trim();
-                        // Write the row
-                        long id = mDbAdapter.createData(dateNum, startDateNum
-                                , hr,
-                                rr);
-                        if (id < 0) {
+                        try {
+                            rr = RrUtils.parse(tokens[3]);
+                        } catch (NumberFormatException ex) {
+                            Log.d(TAG, "Invalid rr @ line " + mLineNumber);
                             mErrors++;
+                            continue;
+                        }
+                        device = null;
+                        if (tokens.length > 4 && tokens[4].trim().length() > 0) {
+                            device = tokens[4].trim();
+                        }
+                        // Add the row to the batch
+                        addRow(dateNum, startDateNum, hr, rr, device);
+                        if (mBatchSize == DB_WRITE_BATCH_SIZE) {
+                            writeBatch();
                         }
                     }
+                    writeBatch();
                 }
             } catch (Exception ex) {
                 mExceptionMsg = "Got Exception restoring at line "
@@ -884,6 +1045,51 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
             return true;
         }
 
+        /**
+         * Adds a row to the batch to be written.
+         *
+         * @param date      The date.
+         * @param startDate The start date.
+         * @param hr        The HR.
+         * @param rr        The RR values or null if there is no RR.
+         * @param device    The device address or null if unknown.
+         */
+        private void addRow(long date, long startDate, int hr, int[] rr,
+                            String device) {
+            int i = mBatchSize++;
+            mDates[i] = date;
+            mStartDates[i] = startDate;
+            mHrs[i] = hr;
+            mDevices[i] = device;
+            mRrOffsets[i] = mRrSize;
+            if (rr == null) {
+                mRrCounts[i] = INVALID_INT;
+                return;
+            }
+            mRrCounts[i] = rr.length;
+            if (mRrSize + rr.length > mRrValues.length) {
+                mRrValues = Arrays.copyOf(mRrValues,
+                        Math.max(2 * mRrValues.length, mRrSize + rr.length));
+            }
+            System.arraycopy(rr, 0, mRrValues, mRrSize, rr.length);
+            mRrSize += rr.length;
+        }
+
+        /**
+         * Writes the rows in the batch in a single transaction, rather than
+         * one for each row.
+         */
+        private void writeBatch() {
+            if (mBatchSize == 0) {
+                return;
+            }
+            int nCreated = mDbAdapter.createData(mDates, mStartDates, mHrs,
+                    mDevices, mRrValues, mRrOffsets, mRrCounts, mBatchSize);
+            mErrors += mBatchSize - nCreated;
+            mBatchSize = 0;
+            mRrSize = 0;
+        }
+
         @Override
         protected void onPostExecute(Boolean result) {
             Log.d(TAG, this.getClass().getSimpleName()
@@ -964,17 +1170,30 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
                             .getColumnIndexOrThrow(COL_START_DATE);
                     int indexEndDate = cursor
                             .getColumnIndexOrThrow(COL_END_DATE);
+                    int indexDevice = cursor.getColumnIndex(COL_DEVICE);
+                    int indexSampleCount = cursor
+                            .getColumnIndexOrThrow(COL_SAMPLE_COUNT);
+                    int indexHrCount = cursor
+                            .getColumnIndexOrThrow(COL_HR_COUNT);
+                    int indexHrSum = cursor.getColumnIndexOrThrow(COL_HR_SUM);
+                    int indexHrMin = cursor.getColumnIndexOrThrow(COL_HR_MIN);
+                    int indexHrMax = cursor.getColumnIndexOrThrow(COL_HR_MAX);
+                    int indexRrTotal = cursor
+                            .getColumnIndexOrThrow(COL_RR_TOTAL);
                     // int indexTmp = cursor.getColumnIndexOrThrow(COL_TMP);
 
                     // Loop over items
                     cursor.moveToFirst();
                     long startDate;
                     long endDate;
-                    String name;
+                    String name, device;
+                    int hrCount;
                     while (!cursor.isAfterLast()) {
                         nItems++;
                         startDate = cursor.getLong(indexStartDate);
                         endDate = cursor.getLong(indexEndDate);
+                        device = indexDevice > -1 ?
+                                cursor.getString(indexDevice) : null;
 
                         // // DEBUG
                         // double duration = endDate - startDate;
@@ -994,7 +1213,20 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
                         // name = "Temporary Session ";
                         // }
                         name = sessionNameFromDate(startDate);
-                        addSession(new Session(name, startDate, endDate));
+                        Session session = new Session(name, startDate,
+                                endDate);
+                        session.setDevice(device);
+                        session.setSampleCount(cursor.getInt(indexSampleCount));
+                        session.setRrCount(cursor.getLong(indexRrTotal));
+                        hrCount = cursor.getInt(indexHrCount);
+                        if (hrCount > 0) {
+                            session.setHrMin(cursor.getInt(indexHrMin));
+                            session.setHrMax(cursor.getInt(indexHrMax));
+                            session.setHrMean(
+                                    (double) cursor.getLong(indexHrSum)
+                                            / hrCount);
+                        }
+                        addSession(session);
                         cursor.moveToNext();
                     }
                 }
@@ -1101,6 +1333,14 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
                     durString += durationMin + " min ";
                 }
                 durString += durationSec + " sec";
+                if (session.getHrMin() != INVALID_INT) {
+                    durString += String.format(Locale.US,
+                            "  HR %d-%d (%.0f)", session.getHrMin(),
+                            session.getHrMax(), session.getHrMean());
+                }
+                if (session.getDevice() != null) {
+                    startStr += " " + session.getDevice();
+                }
                 viewHolder.sessionStart.setText(startStr);
                 viewHolder.sessionDuration.setText(durString);
             } else {
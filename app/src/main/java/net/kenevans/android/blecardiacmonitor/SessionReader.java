@@ -0,0 +1,266 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.Closeable;
+import java.util.List;
+
+/**
+ * Reads data from the database in chunks of primitive arrays, sorted by
+ * date. The arrays are in the form used by BCMDbAdapter.createData and
+ * SampleJournal.read and are reused for each chunk, so reading does not
+ * allocate for each row. Each chunk is one query, continuing after the
+ * date and row id of the last row of the previous chunk, so no cursor is
+ * held between chunks and a long session is never in a single cursor
+ * window.
+ * <p>
+ * Get one from BCMDbAdapter.readSession, readStartingAtDate, or readAll,
+ * then call next until it returns 0:
+ * <pre>
+ * while ((n = reader.next()) &gt; 0) {
+ *     for (int i = 0; i &lt; n; i++) {
+ *         ... reader.getDates()[i], reader.getHrs()[i],
+ *             reader.getRrValues() from reader.getRrOffsets()[i] for
+ *             reader.getRrCounts()[i] values
+ *     }
+ * }
+ * </pre>
+ */
+public class SessionReader implements Closeable, IConstants {
+    private static final String[] COLUMNS = {COL_ID, COL_DATE, COL_HR,
+            COL_RR};
+    private static final String[] COLUMNS_WITH_SESSION = {COL_ID, COL_DATE,
+            COL_HR, COL_RR, COL_START_DATE, COL_DEVICE};
+    private static final String ORDER = COL_DATE + " ASC, " + COL_ID
+            + " ASC";
+
+    /**
+     * The databases to read, in order, usually just the working one.
+     */
+    private final List<SQLiteDatabase> mDbs;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+    private final int mWindowSize;
+    private final String mLimit;
+    private final String[] mColumns;
+    private int mDbIndex;
+    /**
+     * The date and row id of the last row read from the current database.
+     */
+    private long mLastDate = Long.MIN_VALUE;
+    private long mLastId = Long.MIN_VALUE;
+
+    private final long[] mDates;
+    private final int[] mHrs;
+    private int[] mRrValues;
+    private final int[] mRrOffsets;
+    private final int[] mRrCounts;
+    /**
+     * The start dates and devices, or null if they are not read.
+     */
+    private final long[] mStartDates;
+    private final String[] mDevices;
+    private int mCount;
+
+    /**
+     * Constructor.
+     *
+     * @param dbs           The databases to read, in order.
+     * @param selection     The selection, which may only use data columns.
+     * @param selectionArgs The arguments for the selection.
+     * @param windowSize    The maximum number of rows in a chunk.
+     */
+    SessionReader(List<SQLiteDatabase> dbs, String selection,
+                  String[] selectionArgs, int windowSize) {
+        this(dbs, selection, selectionArgs, windowSize, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param dbs           The databases to read, in order.
+     * @param selection     The selection, which may only use data columns.
+     * @param selectionArgs The arguments for the selection.
+     * @param windowSize    The maximum number of rows in a chunk.
+     * @param readSession   Whether to also read the start date and device
+     *                      of each row. The device is a String, so this
+     *                      allocates for each row.
+     */
+    SessionReader(List<SQLiteDatabase> dbs, String selection,
+                  String[] selectionArgs, int windowSize,
+                  boolean readSession) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Invalid window size: "
+                    + windowSize);
+        }
+        mDbs = dbs;
+        mSelection = "(" + selection + ") AND " + COL_DATE + ">=? AND ("
+                + COL_DATE + ">? OR " + COL_ID + ">?)";
+        mSelectionArgs = new String[selectionArgs.length + 3];
+        System.arraycopy(selectionArgs, 0, mSelectionArgs, 0,
+                selectionArgs.length);
+        mWindowSize = windowSize;
+        mLimit = Integer.toString(windowSize);
+        mDates = new long[windowSize];
+        mHrs = new int[windowSize];
+        mRrOffsets = new int[windowSize];
+        mRrCounts = new int[windowSize];
+        mRrValues = new int[4 * windowSize];
+        mColumns = readSession ? COLUMNS_WITH_SESSION : COLUMNS;
+        mStartDates = readSession ? new long[windowSize] : null;
+        mDevices = readSession ? new String[windowSize] : null;
+    }
+
+    /**
+     * Reads the next chunk.
+     *
+     * @return The number of rows read, 0 when there are no more.
+     */
+    public int next() {
+        mCount = 0;
+        while (mDbIndex < mDbs.size()) {
+            if (read(mDbs.get(mDbIndex)) == mWindowSize) {
+                return mCount;
+            }
+            // This database is done
+            mDbIndex++;
+            mLastDate = mLastId = Long.MIN_VALUE;
+            if (mCount > 0) {
+                return mCount;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Reads a chunk from a database, after the last row read from it.
+     *
+     * @param db The database.
+     * @return The number of rows read.
+     */
+    private int read(SQLiteDatabase db) {
+        int n = mSelectionArgs.length;
+        mSelectionArgs[n - 3] = Long.toString(mLastDate);
+        mSelectionArgs[n - 2] = mSelectionArgs[n - 3];
+        mSelectionArgs[n - 1] = Long.toString(mLastId);
+        int rrLength = 0, rrCount;
+        byte[] blob;
+        try (Cursor cursor = db.query(DB_DATA_TABLE, mColumns, mSelection,
+                mSelectionArgs, null, null, ORDER, mLimit)) {
+            while (cursor.moveToNext()) {
+                mLastId = cursor.getLong(0);
+                mLastDate = cursor.getLong(1);
+                mDates[mCount] = mLastDate;
+                mHrs[mCount] = cursor.getInt(2);
+                blob = cursor.getBlob(3);
+                rrCount = RrUtils.getCount(blob);
+                if (rrLength + rrCount > mRrValues.length) {
+                    int[] rrValues = new int[Math.max(2 * mRrValues.length,
+                            rrLength + rrCount)];
+                    System.arraycopy(mRrValues, 0, rrValues, 0, rrLength);
+                    mRrValues = rrValues;
+                }
+                mRrOffsets[mCount] = rrLength;
+                mRrCounts[mCount] = RrUtils.decode(blob, mRrValues,
+                        rrLength);
+                if (rrCount > 0) {
+                    rrLength += rrCount;
+                }
+                if (mStartDates != null) {
+                    mStartDates[mCount] = cursor.getLong(4);
+                    mDevices[mCount] = cursor.getString(5);
+                }
+                mCount++;
+            }
+        }
+        return mCount;
+    }
+
+    /**
+     * Gets the number of rows in the current chunk.
+     *
+     * @return The number of rows.
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Gets the dates. Only the first getCount() are for the current chunk.
+     *
+     * @return The dates.
+     */
+    public long[] getDates() {
+        return mDates;
+    }
+
+    /**
+     * Gets the HRs. Only the first getCount() are for the current chunk.
+     *
+     * @return The HRs.
+     */
+    public int[] getHrs() {
+        return mHrs;
+    }
+
+    /**
+     * Gets the R-R values for all the rows in the current chunk. The array
+     * may be replaced by a larger one when the next chunk is read.
+     *
+     * @return The R-R values.
+     */
+    public int[] getRrValues() {
+        return mRrValues;
+    }
+
+    /**
+     * Gets the offset of the R-R values in getRrValues() for each row.
+     *
+     * @return The offsets.
+     */
+    public int[] getRrOffsets() {
+        return mRrOffsets;
+    }
+
+    /**
+     * Gets the number of R-R values for each row, INVALID_INT if there is
+     * no R-R.
+     *
+     * @return The counts.
+     */
+    public int[] getRrCounts() {
+        return mRrCounts;
+    }
+
+    /**
+     * Gets the start dates, if they are read. Only the first getCount() are
+     * for the current chunk.
+     *
+     * @return The start dates or null if they are not read.
+     */
+    public long[] getStartDates() {
+        return mStartDates;
+    }
+
+    /**
+     * Gets the device addresses, if they are read. Only the first
+     * getCount() are for the current chunk.
+     *
+     * @return The addresses, null where unknown, or null if they are not
+     * read.
+     */
+    public String[] getDevices() {
+        return mDevices;
+    }
+
+    /**
+     * Stops reading. No cursor is held between chunks, so this only makes
+     * next return 0.
+     */
+    @Override
+    public void close() {
+        mDbIndex = mDbs.size();
+        mCount = 0;
+    }
+}
@@ -0,0 +1,192 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.util.Arrays;
+
+/**
+ * The decoded data for a session, or for a time and later, in primitive
+ * arrays, ready to be plotted. It does not change once built, so it can be
+ * shared, and the arrays must not be modified.
+ * <p>
+ * At resolution 0 there is one item per sample, in the form used by
+ * BCMDbAdapter.createData: the date, the HR, and the R-R values. At a
+ * rollup resolution there is one item per bucket: the date is the start of
+ * the bucket, the HR is the minimum HR and the HR max is the maximum, and
+ * the R-R values are the minimum and maximum R-R. The HR is INVALID_INT if
+ * there is none, and the R-R count is 0 if there are none in the bucket.
+ */
+public class SessionSeries implements IConstants {
+    private final long mStartDate;
+    private final int mResolution;
+    private final int mSize;
+    private final long[] mDates;
+    private final int[] mHrs;
+    private final int[] mHrMaxs;
+    private final int[] mRrValues;
+    private final int[] mRrOffsets;
+    private final int[] mRrCounts;
+
+    private SessionSeries(Builder builder) {
+        mStartDate = builder.mStartDate;
+        mResolution = builder.mResolution;
+        mSize = builder.mSize;
+        mDates = Arrays.copyOf(builder.mDates, mSize);
+        mHrs = Arrays.copyOf(builder.mHrs, mSize);
+        mHrMaxs = mResolution > 0 ? Arrays.copyOf(builder.mHrMaxs, mSize)
+                : null;
+        mRrValues = Arrays.copyOf(builder.mRrValues, builder.mRrLength);
+        mRrOffsets = Arrays.copyOf(builder.mRrOffsets, mSize);
+        mRrCounts = Arrays.copyOf(builder.mRrCounts, mSize);
+    }
+
+    /**
+     * Gets the start date of the session.
+     *
+     * @return The start date or the time the data start at if it is not
+     * for a session.
+     */
+    public long getStartDate() {
+        return mStartDate;
+    }
+
+    /**
+     * Gets the resolution.
+     *
+     * @return The resolution or 0 for the raw data.
+     */
+    public int getResolution() {
+        return mResolution;
+    }
+
+    /**
+     * Gets the number of items.
+     *
+     * @return The number of items.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public long[] getDates() {
+        return mDates;
+    }
+
+    public int[] getHrs() {
+        return mHrs;
+    }
+
+    /**
+     * Gets the maximum HR for each bucket.
+     *
+     * @return The values or null at resolution 0.
+     */
+    public int[] getHrMaxs() {
+        return mHrMaxs;
+    }
+
+    public int[] getRrValues() {
+        return mRrValues;
+    }
+
+    public int[] getRrOffsets() {
+        return mRrOffsets;
+    }
+
+    /**
+     * Gets the number of R-R values for each item, INVALID_INT if there is
+     * no R-R.
+     *
+     * @return The counts.
+     */
+    public int[] getRrCounts() {
+        return mRrCounts;
+    }
+
+    /**
+     * Gets the approximate number of bytes used.
+     *
+     * @return The number of bytes.
+     */
+    public long getByteSize() {
+        return 64 + 8L * mDates.length + 4L * (mHrs.length
+                + (mHrMaxs == null ? 0 : mHrMaxs.length) + mRrValues.length
+                + mRrOffsets.length + mRrCounts.length);
+    }
+
+    /**
+     * Collects the items for a SessionSeries. The arrays grow as items are
+     * added and are trimmed by build.
+     */
+    public static class Builder {
+        private final long mStartDate;
+        private final int mResolution;
+        private int mSize;
+        private int mRrLength;
+        private long[] mDates = new long[1024];
+        private int[] mHrs = new int[1024];
+        private int[] mHrMaxs;
+        private int[] mRrValues = new int[4096];
+        private int[] mRrOffsets = new int[1024];
+        private int[] mRrCounts = new int[1024];
+
+        /**
+         * Constructor.
+         *
+         * @param startDate  The start date of the session or the time the
+         *                   data start at.
+         * @param resolution The resolution or 0 for the raw data.
+         */
+        public Builder(long startDate, int resolution) {
+            mStartDate = startDate;
+            mResolution = resolution;
+            if (resolution > 0) {
+                mHrMaxs = new int[1024];
+            }
+        }
+
+        /**
+         * Adds an item.
+         *
+         * @param date     The date.
+         * @param hr       The HR or minimum HR.
+         * @param hrMax    The maximum HR, not used at resolution 0.
+         * @param rrValues Array holding the R-R values.
+         * @param rrOffset The offset of the R-R values in the array.
+         * @param rrCount  The number of R-R values or INVALID_INT if there
+         *                 is no R-R.
+         */
+        public void add(long date, int hr, int hrMax, int[] rrValues,
+                        int rrOffset, int rrCount) {
+            if (mSize == mDates.length) {
+                int length = 2 * mSize;
+                mDates = Arrays.copyOf(mDates, length);
+                mHrs = Arrays.copyOf(mHrs, length);
+                if (mHrMaxs != null) {
+                    mHrMaxs = Arrays.copyOf(mHrMaxs, length);
+                }
+                mRrOffsets = Arrays.copyOf(mRrOffsets, length);
+                mRrCounts = Arrays.copyOf(mRrCounts, length);
+            }
+            if (rrCount > 0 && mRrLength + rrCount > mRrValues.length) {
+                mRrValues = Arrays.copyOf(mRrValues, Math.max(
+                        2 * mRrValues.length, mRrLength + rrCount));
+            }
+            mDates[mSize] = date;
+            mHrs[mSize] = hr;
+            if (mHrMaxs != null) {
+                mHrMaxs[mSize] = hrMax;
+            }
+            mRrOffsets[mSize] = mRrLength;
+            mRrCounts[mSize] = rrCount;
+            if (rrCount > 0) {
+                System.arraycopy(rrValues, rrOffset, mRrValues, mRrLength,
+                        rrCount);
+                mRrLength += rrCount;
+            }
+            mSize++;
+        }
+
+        public SessionSeries build() {
+            return new SessionSeries(this);
+        }
+    }
+}
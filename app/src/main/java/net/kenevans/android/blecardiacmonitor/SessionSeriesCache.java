@@ -0,0 +1,179 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache of SessionSeries, keyed by start date and
+ * resolution, holding at most a given number of bytes. It is thread safe.
+ * <p>
+ * Each invalidation increments a generation. A series read from the
+ * database is only put in the cache if its session has not been
+ * invalidated since the generation gotten before reading it, so a series
+ * that missed a change is not cached. Invalidating the session being
+ * recorded does not keep other sessions from being cached.
+ */
+public class SessionSeriesCache {
+    private final long mMaxBytes;
+    private long mBytes;
+    private long mGeneration;
+    /**
+     * The generation of the last invalidateAll.
+     */
+    private long mAllGeneration;
+    /**
+     * The generation of the last invalidation of each start date since
+     * then.
+     */
+    private final Map<Long, Long> mInvalidated = new HashMap<>();
+    private int mHits;
+    private int mMisses;
+    /**
+     * The series in access order, least recently used first.
+     */
+    private final LinkedHashMap<Key, SessionSeries> mMap =
+            new LinkedHashMap<>(16, .75f, true);
+
+    /**
+     * The key for a series.
+     */
+    private static class Key {
+        private final long startDate;
+        private final int resolution;
+
+        private Key(long startDate, int resolution) {
+            this.startDate = startDate;
+            this.resolution = resolution;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) obj;
+            return key.startDate == startDate
+                    && key.resolution == resolution;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (startDate ^ (startDate >>> 32))
+                    + resolution;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxBytes The maximum number of bytes to hold.
+     */
+    public SessionSeriesCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Gets a series, making it the most recently used.
+     *
+     * @param startDate  The start date.
+     * @param resolution The resolution.
+     * @return The series or null if it is not in the cache.
+     */
+    public synchronized SessionSeries get(long startDate, int resolution) {
+        SessionSeries series = mMap.get(new Key(startDate, resolution));
+        if (series == null) {
+            mMisses++;
+        } else {
+            mHits++;
+        }
+        return series;
+    }
+
+    /**
+     * Gets the generation to pass to put for a series about to be read.
+     *
+     * @return The generation.
+     */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Puts a series in the cache, removing the least recently used ones
+     * to stay within the size. It is not put if it is larger than the size
+     * or if its session has been invalidated since the given generation.
+     *
+     * @param series     The series.
+     * @param generation The generation gotten before it was read.
+     * @return Whether it was put.
+     */
+    public synchronized boolean put(SessionSeries series, long generation) {
+        long bytes = series.getByteSize();
+        Long invalidated = mInvalidated.get(series.getStartDate());
+        if (generation < mAllGeneration || (invalidated != null
+                && generation < invalidated) || bytes > mMaxBytes) {
+            return false;
+        }
+        SessionSeries old = mMap.put(new Key(series.getStartDate(),
+                series.getResolution()), series);
+        if (old != null) {
+            mBytes -= old.getByteSize();
+        }
+        mBytes += bytes;
+        Iterator<SessionSeries> iterator = mMap.values().iterator();
+        while (mBytes > mMaxBytes && iterator.hasNext()) {
+            mBytes -= iterator.next().getByteSize();
+            iterator.remove();
+        }
+        return true;
+    }
+
+    /**
+     * Removes the series for a session at all resolutions.
+     *
+     * @param startDate The start date.
+     */
+    public synchronized void invalidate(long startDate) {
+        mGeneration++;
+        mInvalidated.put(startDate, mGeneration);
+        Iterator<Map.Entry<Key, SessionSeries>> iterator =
+                mMap.entrySet().iterator();
+        Map.Entry<Key, SessionSeries> entry;
+        while (iterator.hasNext()) {
+            entry = iterator.next();
+            if (entry.getKey().startDate == startDate) {
+                mBytes -= entry.getValue().getByteSize();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all the series.
+     */
+    public synchronized void invalidateAll() {
+        mGeneration++;
+        mAllGeneration = mGeneration;
+        mInvalidated.clear();
+        mMap.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Gets the number of bytes held.
+     *
+     * @return The number of bytes.
+     */
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SessionSeriesCache: " + mMap.size() + " series, " + mBytes
+                + " of " + mMaxBytes + " bytes, " + mHits + " hits, "
+                + mMisses + " misses";
+    }
+}
@@ -0,0 +1,134 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.Arrays;
+
+/**
+ * Merges HR samples so the UI is updated at most once per update interval.
+ * The samples received since the last update are kept, and the R-R values
+ * of all of them are concatenated, so no beats are lost.
+ */
+public class UpdateCoalescer implements IConstants {
+    /**
+     * Receives the merged samples. Called on the Handler's thread. The
+     * arrays are reused after this returns.
+     */
+    public interface Dispatcher {
+        /**
+         * Dispatches merged samples.
+         *
+         * @param dates   The dates.
+         * @param hrs     The HRs.
+         * @param count   The number of samples.
+         * @param rr      The R-R values of all the samples.
+         * @param rrCount The number of R-R values or INVALID_INT if no
+         *                sample had R-R.
+         */
+        void dispatch(long[] dates, int[] hrs, int count, int[] rr,
+                      int rrCount);
+    }
+
+    private final Handler mHandler;
+    private final Dispatcher mDispatcher;
+    private volatile long mInterval;
+
+    private long[] mDates = new long[16];
+    private int[] mHrs = new int[16];
+    private int mCount;
+    private int[] mRr = new int[64];
+    private int mRrCount = INVALID_INT;
+    private boolean mPosted;
+    private long mLastDispatchTime;
+
+    private final Runnable mDispatchRunnable = this::flush;
+
+    /**
+     * Constructor.
+     *
+     * @param handler    Handler for the thread on which to dispatch.
+     * @param interval   The minimum time between updates (ms). 0 dispatches
+     *                   each sample when it is added.
+     * @param dispatcher The Dispatcher.
+     */
+    public UpdateCoalescer(Handler handler, long interval,
+                           Dispatcher dispatcher) {
+        mHandler = handler;
+        mInterval = interval;
+        mDispatcher = dispatcher;
+    }
+
+    /**
+     * Sets the minimum time between updates.
+     *
+     * @param interval The interval (ms).
+     */
+    public void setInterval(long interval) {
+        mInterval = interval;
+    }
+
+    /**
+     * Gets the minimum time between updates.
+     *
+     * @return The interval (ms).
+     */
+    public long getInterval() {
+        return mInterval;
+    }
+
+    /**
+     * Adds a sample and schedules an update if one is not already
+     * scheduled.
+     *
+     * @param date    The date.
+     * @param hr      The HR.
+     * @param rr      Array holding the R-R values.
+     * @param rrCount The number of R-R values or INVALID_INT if there is no
+     *                R-R.
+     */
+    public synchronized void add(long date, int hr, int[] rr, int rrCount) {
+        if (mCount == mDates.length) {
+            mDates = Arrays.copyOf(mDates, 2 * mCount);
+            mHrs = Arrays.copyOf(mHrs, 2 * mCount);
+        }
+        mDates[mCount] = date;
+        mHrs[mCount] = hr;
+        mCount++;
+        if (rrCount >= 0) {
+            int oldCount = Math.max(mRrCount, 0);
+            if (oldCount + rrCount > mRr.length) {
+                mRr = Arrays.copyOf(mRr,
+                        Math.max(2 * mRr.length, oldCount + rrCount));
+            }
+            System.arraycopy(rr, 0, mRr, oldCount, rrCount);
+            mRrCount = oldCount + rrCount;
+        }
+        if (mPosted) {
+            return;
+        }
+        long delay = mLastDispatchTime + mInterval
+                - SystemClock.uptimeMillis();
+        if (delay <= 0) {
+            flush();
+        } else {
+            mPosted = true;
+            mHandler.postDelayed(mDispatchRunnable, delay);
+        }
+    }
+
+    /**
+     * Dispatches any pending samples now.
+     */
+    public synchronized void flush() {
+        mHandler.removeCallbacks(mDispatchRunnable);
+        mPosted = false;
+        if (mCount == 0) {
+            return;
+        }
+        mLastDispatchTime = SystemClock.uptimeMillis();
+        mDispatcher.dispatch(mDates, mHrs, mCount, mRr, mRrCount);
+        mCount = 0;
+        mRrCount = INVALID_INT;
+    }
+}
@@ -0,0 +1,394 @@
+package net.kenevans.android.blecardiacmonitor;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects HR and RR samples and writes them to the database in a single
+ * transaction when either the batch is full or the batch interval has
+ * elapsed since the first pending sample was added.
+ * <p>
+ * Optionally each sample is also appended to a SampleJournal for its
+ * session when it is added, so pending samples are not lost if the process
+ * is killed or a batch fails to be written. They are replayed when the
+ * service next starts writing to the database.
+ */
+public class WriteBehindQueue implements IConstants {
+    private static final String TAG = "BCMWriteQueue";
+
+    private final Handler mHandler;
+    private final int mBatchSize;
+    private final long mBatchInterval;
+    private final PerformanceMetrics mMetrics;
+    private BCMDbAdapter mDbAdapter;
+
+    private final long[] mDates;
+    private final long[] mStartDates;
+    private final int[] mHrs;
+    private final String[] mDevices;
+    private final int[] mRrOffsets;
+    private final int[] mRrCounts;
+    private int[] mRrValues;
+    private int mRrLength;
+    private int mCount;
+    /**
+     * Approximate number of bytes of data in the pending samples.
+     */
+    private long mPendingBytes;
+
+    /**
+     * The directory for the journals or null to not use journals.
+     */
+    private File mJournalDir;
+    /**
+     * The open journals, by session start date.
+     */
+    private final Map<Long, SampleJournal> mJournals = new HashMap<>();
+    /**
+     * The start dates of the sessions with samples in a batch that failed to
+     * be written. Their journals are not marked as written after that, so
+     * the samples are replayed from them.
+     */
+    private final Set<Long> mFailedSessions = new HashSet<>();
+
+    private final Runnable mFlushRunnable = this::flush;
+
+    /**
+     * Constructor.
+     *
+     * @param handler       Handler used to schedule the time-based flush.
+     * @param batchSize     The maximum number of samples to hold before
+     *                      writing.
+     * @param batchInterval The maximum time in ms a sample is held before
+     *                      writing.
+     * @param metrics       PerformanceMetrics to record commits in or null.
+     */
+    public WriteBehindQueue(Handler handler, int batchSize,
+                            long batchInterval, PerformanceMetrics metrics) {
+        mHandler = handler;
+        mBatchSize = batchSize;
+        mBatchInterval = batchInterval;
+        mMetrics = metrics;
+        mDates = new long[batchSize];
+        mStartDates = new long[batchSize];
+        mHrs = new int[batchSize];
+        mDevices = new String[batchSize];
+        mRrOffsets = new int[batchSize];
+        mRrCounts = new int[batchSize];
+        mRrValues = new int[4 * batchSize];
+    }
+
+    /**
+     * Sets the adapter to write to. Any pending samples are written to the
+     * previous adapter first.
+     *
+     * @param adapter The adapter or null to stop writing.
+     */
+    public synchronized void setDbAdapter(BCMDbAdapter adapter) {
+        flush();
+        if (adapter == null) {
+            closeJournals();
+        }
+        mDbAdapter = adapter;
+    }
+
+    /**
+     * Sets the directory for the sample journals. Any pending samples are
+     * written first.
+     *
+     * @param dir The directory or null to not use journals.
+     */
+    public synchronized void setJournalDir(File dir) {
+        flush();
+        closeJournals();
+        mJournalDir = dir;
+    }
+
+    /**
+     * Adds a sample. Samples are dropped if there is no database. The RR
+     * values are copied.
+     *
+     * @param date      The date.
+     * @param startDate The start date.
+     * @param hr        The HR.
+     * @param device    The device address.
+     * @param rr        Array holding the RR values.
+     * @param rrCount   The number of RR values or INVALID_INT if there is
+     *                  no RR.
+     */
+    public synchronized void add(long date, long startDate, int hr,
+                                 String device, int[] rr, int rrCount) {
+        if (mDbAdapter == null) {
+            return;
+        }
+        if (mJournalDir != null) {
+            appendToJournal(date, startDate, hr, device, rr, rrCount);
+        }
+        mDates[mCount] = date;
+        mStartDates[mCount] = startDate;
+        mHrs[mCount] = hr;
+        mDevices[mCount] = device;
+        mRrOffsets[mCount] = mRrLength;
+        mRrCounts[mCount] = rrCount;
+        if (rrCount > 0) {
+            if (mRrLength + rrCount > mRrValues.length) {
+                mRrValues = Arrays.copyOf(mRrValues,
+                        Math.max(2 * mRrValues.length, mRrLength + rrCount));
+            }
+            System.arraycopy(rr, 0, mRrValues, mRrLength, rrCount);
+            mRrLength += rrCount;
+        }
+        // date, start date, hr, rr count, device, and 2 bytes per RR
+        mPendingBytes += 24 + (device == null ? 0 : device.length())
+                + 2L * Math.max(rrCount, 0);
+        mCount++;
+        if (mCount >= mBatchSize) {
+            flush();
+        } else if (mCount == 1) {
+            mHandler.postDelayed(mFlushRunnable, mBatchInterval);
+        }
+    }
+
+    /**
+     * Writes any pending samples to the database.
+     */
+    public synchronized void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        if (mCount == 0) {
+            return;
+        }
+        if (mDbAdapter != null) {
+            boolean written = false;
+            try {
+                int nWritten = mDbAdapter.createData(mDates, mStartDates,
+                        mHrs, mDevices, mRrValues, mRrOffsets, mRrCounts,
+                        mCount);
+                if (nWritten != mCount) {
+                    Log.w(TAG, "flush: Wrote " + nWritten + " of " + mCount
+                            + " samples");
+                } else {
+                    written = true;
+                    if (mMetrics != null) {
+                        mMetrics.recordCommit(mDates, mCount, mPendingBytes,
+                                System.currentTimeMillis());
+                    }
+                }
+            } catch (Exception ex) {
+                Log.e(TAG, "flush: Failed to write " + mCount
+                        + " samples", ex);
+            }
+            updateJournals(written);
+        }
+        mCount = 0;
+        mRrLength = 0;
+        mPendingBytes = 0;
+    }
+
+    /**
+     * Records in the journals which samples are in the database after a
+     * batch is written. A journal is only marked as written up to before the
+     * first batch with samples for its session that failed, so those samples
+     * are kept in it to be replayed even though later batches are written.
+     *
+     * @param written Whether all the samples in the batch were written.
+     */
+    private void updateJournals(boolean written) {
+        if (!written) {
+            for (int i = 0; i < mCount; i++) {
+                mFailedSessions.add(mStartDates[i]);
+            }
+            return;
+        }
+        for (Map.Entry<Long, SampleJournal> entry : mJournals.entrySet()) {
+            if (!mFailedSessions.contains(entry.getKey())) {
+                // Everything journaled so far is in the database
+                SampleJournal journal = entry.getValue();
+                journal.setIndexedCount(journal.getCount());
+            }
+        }
+    }
+
+    /**
+     * Appends a sample to the journal for its session, opening it if
+     * necessary. If that fails, journals are not used from then on.
+     *
+     * @param date      The date.
+     * @param startDate The start date.
+     * @param hr        The HR.
+     * @param device    The device address.
+     * @param rr        Array holding the RR values.
+     * @param rrCount   The number of RR values or INVALID_INT if there is
+     *                  no RR.
+     */
+    private void appendToJournal(long date, long startDate, int hr,
+                                 String device, int[] rr, int rrCount) {
+        try {
+            SampleJournal journal = mJournals.get(startDate);
+            if (journal == null) {
+                journal = new SampleJournal(SampleJournal.getFile(
+                        mJournalDir, startDate), startDate, device);
+                mJournals.put(startDate, journal);
+            }
+            journal.append(date, hr, rr, 0, rrCount);
+        } catch (IOException ex) {
+            Log.e(TAG, "appendToJournal: Failed, not using journals", ex);
+            mJournalDir = null;
+        }
+    }
+
+    /**
+     * Closes the journal for a session. It is deleted if all its samples
+     * have been written to the database and otherwise kept to be replayed.
+     * A kept journal is written to the storage device first with the STRICT
+     * durability profile, so it survives a power loss like the database.
+     *
+     * @param journal The SampleJournal.
+     */
+    private void closeJournal(SampleJournal journal) {
+        try {
+            if (journal.getIndexedCount() == journal.getCount()) {
+                journal.delete();
+            } else {
+                Log.w(TAG, "closeJournal: Keeping " + journal.getFile()
+                        .getName() + " with " + (journal.getCount()
+                        - journal.getIndexedCount()) + " samples");
+                if (mDbAdapter != null && mDbAdapter.getDurability()
+                        == BCMDbAdapter.Durability.STRICT) {
+                    journal.force();
+                }
+                journal.close();
+            }
+        } catch (IOException ex) {
+            Log.e(TAG, "closeJournal: Failed to close "
+                    + journal.getFile().getName(), ex);
+        }
+    }
+
+    /**
+     * Closes all the journals.
+     */
+    private void closeJournals() {
+        for (SampleJournal journal : mJournals.values()) {
+            closeJournal(journal);
+        }
+        mJournals.clear();
+        mFailedSessions.clear();
+    }
+
+    /**
+     * Writes any pending samples and then a gap record, so the gap follows
+     * the data from before it.
+     *
+     * @param startDate The start date of the session.
+     * @param device    The device address.
+     * @param gapStart  The date the device disconnected.
+     * @param gapEnd    The date it reconnected or reconnecting was stopped.
+     */
+    public synchronized void addGap(long startDate, String device,
+                                    long gapStart, long gapEnd) {
+        flush();
+        if (mDbAdapter == null) {
+            return;
+        }
+        try {
+            mDbAdapter.createGap(startDate, device, gapStart, gapEnd);
+        } catch (Exception ex) {
+            Log.e(TAG, "addGap: Failed to write gap", ex);
+        }
+    }
+
+    /**
+     * Writes any pending samples and then adds the session to the session
+     * table, so it is listed before it has data.
+     *
+     * @param startDate The start date of the session.
+     * @param device    The device address.
+     */
+    public synchronized void startSession(long startDate, String device) {
+        flush();
+        if (mDbAdapter == null) {
+            return;
+        }
+        try {
+            mDbAdapter.createSession(startDate, device);
+        } catch (Exception ex) {
+            Log.e(TAG, "startSession: Failed to write session", ex);
+        }
+    }
+
+    /**
+     * Writes any pending samples, closes the journal for the session, and
+     * then removes the session from the session table if no data was
+     * written for it.
+     *
+     * @param startDate The start date of the session.
+     */
+    public synchronized void stopSession(long startDate) {
+        flush();
+        SampleJournal journal = mJournals.remove(startDate);
+        if (journal != null) {
+            closeJournal(journal);
+        }
+        mFailedSessions.remove(startDate);
+        if (mDbAdapter == null) {
+            return;
+        }
+        try {
+            mDbAdapter.deleteSessionIfEmpty(startDate);
+        } catch (Exception ex) {
+            Log.e(TAG, "stopSession: Failed to update session", ex);
+        }
+    }
+
+    /**
+     * Sets the durability profile of the database adapter.
+     *
+     * @param durability The Durability.
+     */
+    public synchronized void setDurability(
+            BCMDbAdapter.Durability durability) {
+        if (mDbAdapter == null) {
+            return;
+        }
+        try {
+            mDbAdapter.setDurability(durability);
+        } catch (Exception ex) {
+            Log.e(TAG, "setDurability: Failed to set durability", ex);
+        }
+    }
+
+    /**
+     * Checkpoints the write-ahead log between batches.
+     *
+     * @return The number of WAL frames copied or -1 if the checkpoint
+     * could not be done.
+     */
+    public synchronized int checkpoint() {
+        if (mDbAdapter == null) {
+            return -1;
+        }
+        try {
+            return mDbAdapter.checkpoint();
+        } catch (Exception ex) {
+            Log.e(TAG, "checkpoint: Failed to checkpoint", ex);
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the number of samples waiting to be written.
+     *
+     * @return The number of pending samples.
+     */
+    public synchronized int getPendingCount() {
+        return mCount;
+    }
+}